@@ -0,0 +1,311 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.stratio.cassandra.index.query.Aggregation;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The partial results of the count and the {@link Aggregation}s of a search, computed by the index of a replica
+ * without reading any row. The partial results of several replicas can be merged with {@link #merge(Aggregates)}, and
+ * they can be sent to the coordinator with {@link #serialize()} and {@link #deserialize(ByteBuffer)}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class Aggregates
+{
+
+    private static final Comparator<Map.Entry<String, Long>> TERMS_COMPARATOR = new Comparator<Map.Entry<String, Long>>()
+    {
+        @Override
+        public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2)
+        {
+            int comparison = e2.getValue().compareTo(e1.getValue());
+            return comparison == 0 ? e1.getKey().compareTo(e2.getKey()) : comparison;
+        }
+    };
+
+    private long count;
+    private final Value[] values;
+
+    /**
+     * Builds new empty {@link Aggregates} for the specified {@link Aggregation}s.
+     *
+     * @param aggregations The {@link Aggregation}s to be computed.
+     */
+    public Aggregates(List<Aggregation> aggregations)
+    {
+        this.values = new Value[aggregations.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = new Value(aggregations.get(i).getType() == Aggregation.Type.FACET);
+        }
+    }
+
+    private Aggregates(long count, Value[] values)
+    {
+        this.count = count;
+        this.values = values;
+    }
+
+    /**
+     * Returns the number of matched documents.
+     *
+     * @return The number of matched documents.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the number of aggregations.
+     *
+     * @return The number of aggregations.
+     */
+    public int size()
+    {
+        return values.length;
+    }
+
+    /**
+     * Adds a matched document.
+     */
+    void addDocument()
+    {
+        count++;
+    }
+
+    /**
+     * Adds the specified value of a matched document to the numeric aggregation at the specified position.
+     *
+     * @param position The position of the numeric aggregation.
+     * @param value    A numeric value.
+     */
+    void addValue(int position, double value)
+    {
+        Value aggregate = values[position];
+        aggregate.count++;
+        aggregate.min = Math.min(aggregate.min, value);
+        aggregate.max = Math.max(aggregate.max, value);
+        aggregate.sum += value;
+    }
+
+    /**
+     * Adds the specified number of matched documents with the specified term to the facet at the specified position.
+     *
+     * @param position The position of the facet.
+     * @param term     A term.
+     * @param count    The number of documents containing {@code term}.
+     */
+    void addTerm(int position, String term, long count)
+    {
+        Map<String, Long> terms = values[position].terms;
+        Long previous = terms.get(term);
+        terms.put(term, previous == null ? count : previous + count);
+    }
+
+    /**
+     * Adds the specified partial results to these ones. Both of them must have been computed for the same
+     * {@link Aggregation}s.
+     *
+     * @param other The {@link Aggregates} to be added.
+     */
+    public void merge(Aggregates other)
+    {
+        count += other.count;
+        for (int i = 0; i < values.length; i++)
+        {
+            Value value = values[i];
+            Value otherValue = other.values[i];
+            value.count += otherValue.count;
+            value.min = Math.min(value.min, otherValue.min);
+            value.max = Math.max(value.max, otherValue.max);
+            value.sum += otherValue.sum;
+            if (value.terms != null)
+            {
+                for (Map.Entry<String, Long> entry : otherValue.terms.entrySet())
+                {
+                    addTerm(i, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the min value of the numeric aggregation at the specified position, or {@code null} if there are no
+     * values.
+     *
+     * @param position The position of the numeric aggregation.
+     * @return The min value, maybe {@code null}.
+     */
+    public Double getMin(int position)
+    {
+        Value value = values[position];
+        return value.count == 0 ? null : value.min;
+    }
+
+    /**
+     * Returns the max value of the numeric aggregation at the specified position, or {@code null} if there are no
+     * values.
+     *
+     * @param position The position of the numeric aggregation.
+     * @return The max value, maybe {@code null}.
+     */
+    public Double getMax(int position)
+    {
+        Value value = values[position];
+        return value.count == 0 ? null : value.max;
+    }
+
+    /**
+     * Returns the sum of the values of the numeric aggregation at the specified position.
+     *
+     * @param position The position of the numeric aggregation.
+     * @return The sum of the values.
+     */
+    public double getSum(int position)
+    {
+        return values[position].sum;
+    }
+
+    /**
+     * Returns the {@code limit} terms of the facet at the specified position with more documents, mapped to their
+     * number of documents and sorted by descending number of documents.
+     *
+     * @param position The position of the facet.
+     * @param limit    The max number of terms to be returned.
+     * @return The top terms of the facet and their number of documents.
+     */
+    public Map<String, Long> getTerms(int position, int limit)
+    {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(values[position].terms.entrySet());
+        Collections.sort(entries, TERMS_COMPARATOR);
+        Map<String, Long> terms = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries.subList(0, Math.min(limit, entries.size())))
+        {
+            terms.put(entry.getKey(), entry.getValue());
+        }
+        return terms;
+    }
+
+    /**
+     * Returns the binary representation of these {@link Aggregates}.
+     *
+     * @return The binary representation of these {@link Aggregates}.
+     */
+    public ByteBuffer serialize()
+    {
+        try
+        {
+            DataOutputBuffer out = new DataOutputBuffer();
+            out.writeLong(count);
+            out.writeInt(values.length);
+            for (Value value : values)
+            {
+                out.writeLong(value.count);
+                out.writeDouble(value.min);
+                out.writeDouble(value.max);
+                out.writeDouble(value.sum);
+                out.writeInt(value.terms == null ? -1 : value.terms.size());
+                if (value.terms != null)
+                {
+                    for (Map.Entry<String, Long> entry : value.terms.entrySet())
+                    {
+                        ByteBufferUtil.writeWithLength(ByteBufferUtil.bytes(entry.getKey()), out);
+                        out.writeLong(entry.getValue());
+                    }
+                }
+            }
+            return ByteBuffer.wrap(out.getData(), 0, out.getLength());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the {@link Aggregates} represented by the specified binary data.
+     *
+     * @param bytes The binary representation of some {@link Aggregates}.
+     * @return The {@link Aggregates} represented by {@code bytes}.
+     */
+    public static Aggregates deserialize(ByteBuffer bytes)
+    {
+        try
+        {
+            DataInput in = new DataInputStream(ByteBufferUtil.inputStream(bytes));
+            long count = in.readLong();
+            Value[] values = new Value[in.readInt()];
+            for (int i = 0; i < values.length; i++)
+            {
+                long valueCount = in.readLong();
+                double min = in.readDouble();
+                double max = in.readDouble();
+                double sum = in.readDouble();
+                int numTerms = in.readInt();
+                Value value = new Value(numTerms >= 0);
+                value.count = valueCount;
+                value.min = min;
+                value.max = max;
+                value.sum = sum;
+                for (int j = 0; j < numTerms; j++)
+                {
+                    String term = ByteBufferUtil.string(ByteBufferUtil.readWithLength(in));
+                    value.terms.put(term, in.readLong());
+                }
+                values[i] = value;
+            }
+            return new Aggregates(count, values);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The partial result of a single {@link Aggregation}.
+     */
+    private static class Value
+    {
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+        private final Map<String, Long> terms;
+
+        private Value(boolean isFacet)
+        {
+            this.terms = isFacet ? new HashMap<String, Long>() : null;
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.stratio.cassandra.index.query.Aggregation;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Lucene's {@link Collector} computing the count and the {@link Aggregation}s of the matched documents into
+ * {@link Aggregates}, without loading any stored field. The field values are read from the per segment doc values
+ * written by the {@link com.stratio.cassandra.index.schema.Schema}, so nothing is uninverted into the heap, and the
+ * terms of the facets are counted per segment by their ordinal.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class AggregatesCollector extends Collector
+{
+
+    private final List<Aggregation> aggregations;
+    private final SortField.Type[] types;
+    private final Aggregates aggregates;
+    private final LeafAggregator[] leafAggregators;
+
+    /**
+     * Builds a new {@link AggregatesCollector}.
+     *
+     * @param aggregations The {@link Aggregation}s to be computed.
+     * @param types        The Lucene's {@link SortField.Type} of the field of each {@link Aggregation}.
+     */
+    public AggregatesCollector(List<Aggregation> aggregations, SortField.Type[] types)
+    {
+        this.aggregations = aggregations;
+        this.types = types;
+        this.aggregates = new Aggregates(aggregations);
+        this.leafAggregators = new LeafAggregator[aggregations.size()];
+    }
+
+    /**
+     * Returns a new empty {@link AggregatesCollector} for the same {@link Aggregation}s as this.
+     *
+     * @return A new empty {@link AggregatesCollector} for the same {@link Aggregation}s as this.
+     */
+    public AggregatesCollector copy()
+    {
+        return new AggregatesCollector(aggregations, types);
+    }
+
+    /**
+     * Returns the computed {@link Aggregates}. The collector mustn't be used after calling this.
+     *
+     * @return The computed {@link Aggregates}.
+     */
+    public Aggregates aggregates()
+    {
+        finishLeaf();
+        return aggregates;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setScorer(Scorer scorer)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void collect(int doc)
+    {
+        aggregates.addDocument();
+        for (LeafAggregator leafAggregator : leafAggregators)
+        {
+            leafAggregator.collect(doc);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException
+    {
+        finishLeaf();
+        AtomicReader reader = context.reader();
+        for (int i = 0; i < leafAggregators.length; i++)
+        {
+            String field = aggregations.get(i).getField();
+            leafAggregators[i] = aggregations.get(i).getType() == Aggregation.Type.FACET
+                                 ? facetAggregator(i, reader, field)
+                                 : numericAggregator(i, reader, field, types[i]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        return true;
+    }
+
+    private void finishLeaf()
+    {
+        for (int i = 0; i < leafAggregators.length; i++)
+        {
+            if (leafAggregators[i] != null)
+            {
+                leafAggregators[i].finish();
+                leafAggregators[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Checks that the specified field hasn't been indexed without doc values in the specified segment, as it happens
+     * with the segments written by previous versions, whose documents would be silently ignored otherwise.
+     */
+    private static void checkDocValues(AtomicReader reader, String field)
+    {
+        FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(field);
+        if (fieldInfo != null && !fieldInfo.hasDocValues())
+        {
+            String msg = String.format("Field %s has been indexed without doc values, the index must be rebuilt", field);
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    private LeafAggregator facetAggregator(int position, AtomicReader reader, String field) throws IOException
+    {
+        SortedDocValues terms = reader.getSortedDocValues(field);
+        if (terms == null)
+        {
+            checkDocValues(reader, field);
+            return new NoopAggregator(position);
+        }
+        return new FacetAggregator(position, terms);
+    }
+
+    private LeafAggregator numericAggregator(int position, AtomicReader reader, String field, SortField.Type type)
+    throws IOException
+    {
+        final NumericDocValues values = reader.getNumericDocValues(field);
+        if (values == null)
+        {
+            checkDocValues(reader, field);
+            return new NoopAggregator(position);
+        }
+        Bits docsWithField = reader.getDocsWithField(field);
+        switch (type)
+        {
+            case INT:
+            case LONG:
+                return new NumericAggregator(position, docsWithField)
+                {
+                    @Override
+                    double value(int doc)
+                    {
+                        return values.get(doc);
+                    }
+                };
+            case FLOAT:
+                return new NumericAggregator(position, docsWithField)
+                {
+                    @Override
+                    double value(int doc)
+                    {
+                        return Float.intBitsToFloat((int) values.get(doc));
+                    }
+                };
+            case DOUBLE:
+                return new NumericAggregator(position, docsWithField)
+                {
+                    @Override
+                    double value(int doc)
+                    {
+                        return Double.longBitsToDouble(values.get(doc));
+                    }
+                };
+            default:
+                throw new IllegalArgumentException(String.format("Field %s is not numeric", field));
+        }
+    }
+
+    /**
+     * Computes an {@link Aggregation} over the documents of a single index segment.
+     */
+    private abstract class LeafAggregator
+    {
+        protected final int position;
+
+        private LeafAggregator(int position)
+        {
+            this.position = position;
+        }
+
+        abstract void collect(int doc);
+
+        abstract void finish();
+    }
+
+    /**
+     * {@link LeafAggregator} for a segment without values of the aggregated field.
+     */
+    private class NoopAggregator extends LeafAggregator
+    {
+        private NoopAggregator(int position)
+        {
+            super(position);
+        }
+
+        @Override
+        void collect(int doc)
+        {
+        }
+
+        @Override
+        void finish()
+        {
+        }
+    }
+
+    /**
+     * {@link LeafAggregator} for the min, max and sum of a numeric field.
+     */
+    private abstract class NumericAggregator extends LeafAggregator
+    {
+        private final Bits docsWithField;
+
+        private NumericAggregator(int position, Bits docsWithField)
+        {
+            super(position);
+            this.docsWithField = docsWithField;
+        }
+
+        abstract double value(int doc);
+
+        @Override
+        void collect(int doc)
+        {
+            if (docsWithField.get(doc))
+            {
+                aggregates.addValue(position, value(doc));
+            }
+        }
+
+        @Override
+        void finish()
+        {
+        }
+    }
+
+    /**
+     * {@link LeafAggregator} counting the documents per term of a string field.
+     */
+    private class FacetAggregator extends LeafAggregator
+    {
+        private final SortedDocValues terms;
+        private final int[] counts;
+
+        private FacetAggregator(int position, SortedDocValues terms)
+        {
+            super(position);
+            this.terms = terms;
+            this.counts = new int[terms.getValueCount()];
+        }
+
+        @Override
+        void collect(int doc)
+        {
+            int ord = terms.getOrd(doc);
+            if (ord >= 0)
+            {
+                counts[ord]++;
+            }
+        }
+
+        @Override
+        void finish()
+        {
+            BytesRef term = new BytesRef();
+            for (int ord = 0; ord < counts.length; ord++)
+            {
+                if (counts[ord] > 0)
+                {
+                    terms.lookupOrd(ord, term);
+                    aggregates.addTerm(position, term.utf8ToString(), counts[ord]);
+                }
+            }
+        }
+    }
+
+}
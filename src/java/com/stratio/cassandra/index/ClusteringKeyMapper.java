@@ -35,7 +35,6 @@ import org.apache.cassandra.db.marshal.CompositeType;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StringField;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.util.BytesRef;
@@ -63,6 +62,9 @@ public abstract class ClusteringKeyMapper
     /** The clustering key type as composite */
     protected final CompositeType compositeType;
 
+    /** The reusable clustering key fields */
+    private final KeyFields keyFields = new KeyFields(FIELD_NAME, Field.Store.YES);
+
     /**
      * Returns a new {@code ClusteringKeyMapper} according to the specified column family meta data.
      *
@@ -98,10 +100,17 @@ public abstract class ClusteringKeyMapper
         return cellNameType;
     }
 
-    public final void addFields(Document document, CellName cellName) {
-        String serializedKey = ByteBufferUtils.toString(cellName.toByteBuffer());
-        Field field = new StringField(FIELD_NAME, serializedKey, Field.Store.YES);
-        document.add(field);
+    /**
+     * Adds to the specified {@link Document} the {@link Field}s associated to the specified clustering key. The key is
+     * both indexed and stored, and it is optionally added as a binary doc value to be used for sorting. The added
+     * {@link Field}s are reused by the calling thread.
+     *
+     * @param document  The document in which the fields are going to be added.
+     * @param cellName  The clustering key to be added.
+     * @param docValues If the key must be also added as a binary doc value.
+     */
+    public final void addFields(Document document, CellName cellName, boolean docValues) {
+        keyFields.addFields(document, cellName.toByteBuffer(), docValues);
     }
 
     public final CellName clusteringKey(ColumnFamily columnFamily)
@@ -143,6 +152,38 @@ public abstract class ClusteringKeyMapper
         return sort(clusteringKeys);
     }
 
+    /**
+     * Returns {@code true} if each CQL3 row contained in the specified {@link ColumnFamily} contains its row marker and
+     * there are no static cells, {@code false} otherwise. Rows written with CQL3 {@code INSERT} always contain a row
+     * marker, while rows written with {@code UPDATE} could be partial.
+     *
+     * @param columnFamily A storage engine {@link ColumnFamily}.
+     * @return {@code true} if each CQL3 row contained in the specified {@link ColumnFamily} contains its row marker and
+     * there are no static cells, {@code false} otherwise.
+     */
+    public final boolean containsFullRows(ColumnFamily columnFamily)
+    {
+        CellName lastClusteringKey = null;
+        for (Cell cell : columnFamily)
+        {
+            CellName cellName = cell.name();
+            if (isStatic(cellName))
+            {
+                return false;
+            }
+            CellName clusteringKey = extractClusteringKey(cellName);
+            if (lastClusteringKey == null || !lastClusteringKey.isSameCQL3RowAs(cellNameType, clusteringKey))
+            {
+                if (!isClusteringKey(cellName))
+                {
+                    return false;
+                }
+                lastClusteringKey = clusteringKey;
+            }
+        }
+        return true;
+    }
+
     protected final CellName extractClusteringKey(CellName cellName)
     {
         int numClusteringColumns = metadata.clusteringColumns().size();
@@ -213,8 +254,7 @@ public abstract class ClusteringKeyMapper
 
     public final CellName clusteringKey(Document document)
     {
-        String string = document.get(FIELD_NAME);
-        ByteBuffer bb = ByteBufferUtils.fromString(string);
+        ByteBuffer bb = KeyFields.key(document, FIELD_NAME);
         return cellNameType.cellFromByteBuffer(bb);
     }
 
@@ -301,6 +341,10 @@ public abstract class ClusteringKeyMapper
                 clusteringKey = cellName;
                 rowColumnFamily = ArrayBackedSortedColumns.factory.create(metadata);
             }
+            else if (rowColumnFamily == null || !clusteringKey.isSameCQL3RowAs(cellNameType, cellName))
+            {
+                continue; // Ignore static cells and cells of rows without row marker
+            }
             rowColumnFamily.addColumn(cell);
         }
         if (rowColumnFamily != null)
@@ -53,6 +53,40 @@ class ClusteringKeyQuery extends MultiTermQuery
         return new FullKeyDataRangeFilteredTermsEnum(terms.iterator(null));
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Two queries are equal only if they have the same range, so they can be used as keys by both the buffered deletes
+     * of the index writer and the filter cache.
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!super.equals(o))
+        {
+            return false;
+        }
+        ClusteringKeyQuery query = (ClusteringKeyQuery) o;
+        return (start == null ? query.start == null : start.equals(query.start))
+               && (stop == null ? query.stop == null : stop.equals(query.stop));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        int result = super.hashCode();
+        result = 31 * result + (start == null ? 0 : start.hashCode());
+        result = 31 * result + (stop == null ? 0 : stop.hashCode());
+        return result;
+    }
+
     @Override
     public String toString(String field)
     {
@@ -18,6 +18,7 @@ package com.stratio.cassandra.index;
 import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.composites.CellNameType;
 import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.search.FieldCache;
@@ -29,6 +30,11 @@ import java.io.IOException;
 
 /**
  * {@link FieldComparator} that compares clustering key field sorting by its Cassandra's {@link AbstractType}.
+ * <p/>
+ * Values are read from the field's binary doc values. The segments of an index written without key doc values, as the
+ * ones written by previous versions, are un-inverted with the {@link FieldCache} until the index is rebuilt. An index
+ * never mixes documents with and without key doc values (see {@link LuceneIndex#hasKeyDocValues()}), so there are not
+ * segments with doc values missing for some documents.
  *
  * @author Andres de la Pena <adelapena@stratio.com>
  */
@@ -136,8 +142,17 @@ class ClusteringKeySorter extends FieldComparator<BytesRef>
     @Override
     public FieldComparator<BytesRef> setNextReader(AtomicReaderContext context) throws IOException
     {
-        docTerms = FieldCache.DEFAULT.getTerms(context.reader(), field, true);
-        docsWithField = FieldCache.DEFAULT.getDocsWithField(context.reader(), field);
+        AtomicReader reader = context.reader();
+        docTerms = reader.getBinaryDocValues(field);
+        if (docTerms != null)
+        {
+            docsWithField = reader.getDocsWithField(field);
+        }
+        else // Index written without key doc values, so un-invert it
+        {
+            docTerms = FieldCache.DEFAULT.getTerms(reader, field, true);
+            docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, field);
+        }
         return this;
     }
 
@@ -188,7 +203,7 @@ class ClusteringKeySorter extends FieldComparator<BytesRef>
         {
             tempBR.bytes = MISSING_BYTES;
         }
-        return compare(tempBR, topValue);
+        return compare(topValue, tempBR);
     }
 
     @Override
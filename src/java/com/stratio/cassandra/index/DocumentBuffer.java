@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Row;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Lucene writes done by an indexing thread during a batch of tasks. The upserts are buffered per shard, keeping
+ * only the last {@link Row} for each {@link Term}, and they are written in bulk by {@link #flush()}. Deletions are
+ * not buffered: they are applied after the pending upserts of their shard, because they can match several documents.
+ * <p/>
+ * The buffered {@link Row}s are mapped to {@link Document}s while they are being written, one at a time, because
+ * {@link RowMapper} reuses the same {@link Document} for all the rows mapped by the same thread. Instances are not
+ * thread safe, each indexing thread must use its own one.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class DocumentBuffer
+{
+
+    private final ShardedLuceneIndex luceneIndex;
+    private final RowMapper rowMapper;
+    private final Map<LuceneIndex, Map<Term, Row>> upserts = new IdentityHashMap<>();
+
+    /**
+     * Builds a new empty {@link DocumentBuffer} for the specified {@link ShardedLuceneIndex}.
+     *
+     * @param luceneIndex The {@link ShardedLuceneIndex} to be written.
+     * @param rowMapper   The {@link RowMapper} to be used for building the {@link Document}s.
+     */
+    public DocumentBuffer(ShardedLuceneIndex luceneIndex, RowMapper rowMapper)
+    {
+        this.luceneIndex = luceneIndex;
+        this.rowMapper = rowMapper;
+    }
+
+    /**
+     * Buffers the replacement of the documents of the specified partition containing the specified {@link Term} with
+     * the {@link Document} of the specified {@link Row}, discarding any buffered row for the same {@link Term}.
+     *
+     * @param partitionKey The partition key.
+     * @param term         The {@link Term} identifying the document.
+     * @param row          The {@link Row} to be added.
+     */
+    public void upsert(DecoratedKey partitionKey, Term term, Row row)
+    {
+        LuceneIndex shard = luceneIndex.shard(partitionKey);
+        Map<Term, Row> rows = upserts.get(shard);
+        if (rows == null)
+        {
+            rows = new LinkedHashMap<>();
+            upserts.put(shard, rows);
+        }
+        rows.put(term, row);
+    }
+
+    /**
+     * Deletes all the {@link Document}s of the specified partition containing the specified {@link Term}, after
+     * writing the buffered upserts of its shard.
+     *
+     * @param partitionKey The partition key.
+     * @param term         The {@link Term} to identify the documents to be deleted.
+     */
+    public void delete(DecoratedKey partitionKey, Term term) throws IOException
+    {
+        LuceneIndex shard = luceneIndex.shard(partitionKey);
+        flush(shard);
+        shard.delete(term);
+    }
+
+    /**
+     * Deletes all the {@link Document}s of the specified partition satisfying the specified {@link Query}, after
+     * writing the buffered upserts of its shard.
+     *
+     * @param partitionKey The partition key.
+     * @param query        The {@link Query} to identify the documents to be deleted.
+     */
+    public void delete(DecoratedKey partitionKey, Query query) throws IOException
+    {
+        LuceneIndex shard = luceneIndex.shard(partitionKey);
+        flush(shard);
+        shard.delete(query);
+    }
+
+    /**
+     * Writes all the buffered upserts.
+     */
+    public void flush() throws IOException
+    {
+        for (LuceneIndex shard : upserts.keySet().toArray(new LuceneIndex[upserts.size()]))
+        {
+            flush(shard);
+        }
+    }
+
+    private void flush(LuceneIndex shard) throws IOException
+    {
+        final Map<Term, Row> rows = upserts.remove(shard);
+        if (rows != null)
+        {
+            Term[] terms = rows.keySet().toArray(new Term[rows.size()]);
+            Iterable<Document> documents = new Iterable<Document>()
+            {
+                @Override
+                public Iterator<Document> iterator()
+                {
+                    final Iterator<Row> iterator = rows.values().iterator();
+                    return new Iterator<Document>()
+                    {
+                        @Override
+                        public boolean hasNext()
+                        {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Document next()
+                        {
+                            return rowMapper.document(iterator.next());
+                        }
+
+                        @Override
+                        public void remove()
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+            shard.upsert(terms, documents);
+        }
+    }
+}
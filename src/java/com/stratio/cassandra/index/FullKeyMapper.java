@@ -21,9 +21,7 @@ import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.CompositeType;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.Term;
 
 import java.nio.ByteBuffer;
@@ -47,6 +45,11 @@ public class FullKeyMapper
      */
     public CompositeType type;
 
+    /**
+     * The reusable full key fields.
+     */
+    private final KeyFields keyFields = new KeyFields(FIELD_NAME, Store.NO);
+
     /**
      * Returns a new {@link FullKeyMapper} using the specified column family metadata.
      *
@@ -96,8 +99,7 @@ public class FullKeyMapper
     public void addFields(Document document, DecoratedKey partitionKey, CellName clusteringKey)
     {
         ByteBuffer fullKey = byteBuffer(partitionKey, clusteringKey);
-        Field field = new StringField(FIELD_NAME, ByteBufferUtils.toString(fullKey), Store.NO);
-        document.add(field);
+        keyFields.addFields(document, fullKey, false);
     }
 
     /**
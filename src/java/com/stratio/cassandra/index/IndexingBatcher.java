@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.stratio.cassandra.index.util.Log;
+import com.stratio.cassandra.index.util.TaskQueue;
+import org.apache.cassandra.concurrent.DebuggableScheduledThreadPoolExecutor;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.ArrayBackedSortedColumns;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DecoratedKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-side grouping stage for indexing. It coalesces the pending updates of each partition into a single
+ * {@link ColumnFamily}, so that all of them can be indexed with a single read-before-write and a single batch of
+ * Lucene's writes.
+ * <p/>
+ * A batch is open to new updates since its creation until it is either picked up by its indexing task or it reaches
+ * the max number of updates. Its indexing task is submitted to the {@link TaskQueue} once the batch time window is
+ * elapsed, so updates keep being coalesced while the task waits in the queue.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class IndexingBatcher
+{
+
+    private final RowService rowService;
+    private final CFMetaData metadata;
+    private final TaskQueue<IndexingTask> indexQueue;
+    private final RowIndexMetrics metrics;
+    private final long batchMillis;
+    private final int batchSize;
+
+    private final ConcurrentMap<DecoratedKey, Batch> batches = new ConcurrentHashMap<>();
+    private final DebuggableScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Builds a new {@link IndexingBatcher}.
+     *
+     * @param rowService  The {@link RowService} performing the indexing.
+     * @param metadata    The indexed column family metadata.
+     * @param indexQueue  The {@link TaskQueue} where indexing tasks are submitted.
+     * @param metrics     The {@link RowIndexMetrics} to be updated.
+     * @param batchMillis The max time in milliseconds that a batch waits for more updates before being submitted.
+     * @param batchSize   The max number of updates in a batch.
+     */
+    public IndexingBatcher(RowService rowService,
+                           CFMetaData metadata,
+                           TaskQueue<IndexingTask> indexQueue,
+                           RowIndexMetrics metrics,
+                           long batchMillis,
+                           int batchSize)
+    {
+        this.rowService = rowService;
+        this.metadata = metadata;
+        this.indexQueue = indexQueue;
+        this.metrics = metrics;
+        this.batchMillis = batchMillis;
+        this.batchSize = batchSize;
+        this.scheduler = batchMillis > 0 ? new DebuggableScheduledThreadPoolExecutor("IndexingBatcher") : null;
+    }
+
+    /**
+     * Adds the specified update to the pending batch of its partition, creating a new batch if there is no open one.
+     *
+     * @param partitionKey The partition key.
+     * @param columnFamily The {@link ColumnFamily} to be indexed.
+     * @param timestamp    The operation time stamp.
+     */
+    public void add(DecoratedKey partitionKey, ColumnFamily columnFamily, long timestamp)
+    {
+        metrics.indexingUpdates.inc();
+        while (true)
+        {
+            Batch batch = batches.get(partitionKey);
+            if (batch == null)
+            {
+                batch = new Batch(partitionKey, columnFamily, timestamp);
+                if (batches.putIfAbsent(partitionKey, batch) == null)
+                {
+                    schedule(batch);
+                    return;
+                }
+            }
+            else if (batch.add(columnFamily, timestamp))
+            {
+                if (batch.size() >= batchSize)
+                {
+                    batch.close();
+                    batches.remove(partitionKey, batch);
+                    submit(batch);
+                }
+                return;
+            }
+            else // Closed batch
+            {
+                batches.remove(partitionKey, batch);
+            }
+        }
+    }
+
+    /**
+     * Closes the open batch of the specified partition, if any, submitting its indexing task immediately. Following
+     * updates will be added to a new batch, so any task submitted after this will be executed after the closed batch.
+     *
+     * @param partitionKey The partition key.
+     */
+    public void flush(DecoratedKey partitionKey)
+    {
+        Batch batch = batches.remove(partitionKey);
+        if (batch != null)
+        {
+            batch.close();
+            submit(batch);
+        }
+    }
+
+    /**
+     * Submits the indexing tasks of all the open batches.
+     */
+    public void flush()
+    {
+        for (DecoratedKey partitionKey : batches.keySet())
+        {
+            flush(partitionKey);
+        }
+    }
+
+    /**
+     * Stops the scheduling of new batches.
+     */
+    public void close()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void schedule(final Batch batch)
+    {
+        if (scheduler == null)
+        {
+            submit(batch);
+        }
+        else
+        {
+            scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    submit(batch);
+                }
+            }, batchMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void submit(Batch batch)
+    {
+        if (batch.submitted.compareAndSet(false, true))
+        {
+            indexQueue.submitAsynchronous(batch.partitionKey, IndexingTask.INDEX, batch);
+        }
+    }
+
+    /**
+     * Indexes the specified submitted batch, closing it to new updates.
+     *
+     * @param batch  The batch to be indexed.
+     * @param writes The {@link DocumentBuffer} where the Lucene writes are done.
+     */
+    void index(Batch batch, DocumentBuffer writes)
+    {
+        batch.close();
+        batches.remove(batch.partitionKey, batch);
+        try
+        {
+            metrics.indexingBatches.inc();
+            rowService.indexInner(batch.partitionKey, batch.columnFamily, batch.timestamp, writes);
+        }
+        catch (Exception e)
+        {
+            Log.error(e, "Error while running indexing task");
+        }
+    }
+
+    /**
+     * The coalesced pending updates of a partition.
+     */
+    class Batch
+    {
+        private final DecoratedKey partitionKey;
+        private final AtomicBoolean submitted = new AtomicBoolean(false);
+        private ColumnFamily columnFamily;
+        private long timestamp;
+        private int size;
+        private boolean closed;
+
+        private Batch(DecoratedKey partitionKey, ColumnFamily columnFamily, long timestamp)
+        {
+            this.partitionKey = partitionKey;
+            this.columnFamily = columnFamily;
+            this.timestamp = timestamp;
+            this.size = 1;
+        }
+
+        /**
+         * Merges the specified update into this batch, if it is still open.
+         *
+         * @param columnFamily The {@link ColumnFamily} to be merged.
+         * @param timestamp    The update time stamp.
+         * @return {@code true} if the update has been merged, {@code false} if this batch is closed.
+         */
+        private synchronized boolean add(ColumnFamily columnFamily, long timestamp)
+        {
+            if (closed)
+            {
+                return false;
+            }
+            if (size == 1) // Avoid modifying the column family given by the storage engine
+            {
+                ColumnFamily merged = ArrayBackedSortedColumns.factory.create(metadata);
+                merged.addAll(this.columnFamily);
+                this.columnFamily = merged;
+            }
+            this.columnFamily.addAll(columnFamily);
+            this.timestamp = Math.max(this.timestamp, timestamp);
+            size++;
+            return true;
+        }
+
+        private synchronized void close()
+        {
+            closed = true;
+        }
+
+        private synchronized int size()
+        {
+            return size;
+        }
+    }
+
+}
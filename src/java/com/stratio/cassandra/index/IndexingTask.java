@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.EventTranslatorThreeArg;
+import com.stratio.cassandra.index.util.TaskQueue;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.DecoratedKey;
+
+/**
+ * A preallocated slot of the indexing {@link TaskQueue}. Its fields describe the indexing operation to be run, and they
+ * are set by the translators of each operation type, so submissions don't allocate a task object.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class IndexingTask extends TaskQueue.Task
+{
+
+    /** The types of indexing operations. */
+    public enum Type
+    {
+        INDEX, REBUILD, DELETE
+    }
+
+    /** The factory of the preallocated slots. */
+    public static final EventFactory<IndexingTask> FACTORY = new EventFactory<IndexingTask>()
+    {
+        @Override
+        public IndexingTask newInstance()
+        {
+            return new IndexingTask();
+        }
+    };
+
+    /** Sets a slot for indexing the coalesced updates of an {@link IndexingBatcher.Batch}. */
+    public static final EventTranslatorOneArg<IndexingTask, IndexingBatcher.Batch> INDEX = new EventTranslatorOneArg<IndexingTask, IndexingBatcher.Batch>()
+    {
+        @Override
+        public void translateTo(IndexingTask task, long sequence, IndexingBatcher.Batch batch)
+        {
+            task.type = Type.INDEX;
+            task.batch = batch;
+        }
+    };
+
+    /** Sets a slot for rebuilding a partition with all its data. */
+    public static final EventTranslatorThreeArg<IndexingTask, DecoratedKey, ColumnFamily, Long> REBUILD = new EventTranslatorThreeArg<IndexingTask, DecoratedKey, ColumnFamily, Long>()
+    {
+        @Override
+        public void translateTo(IndexingTask task,
+                                long sequence,
+                                DecoratedKey partitionKey,
+                                ColumnFamily columnFamily,
+                                Long timestamp)
+        {
+            task.type = Type.REBUILD;
+            task.partitionKey = partitionKey;
+            task.columnFamily = columnFamily;
+            task.timestamp = timestamp;
+        }
+    };
+
+    /** Sets a slot for deleting a partition. */
+    public static final EventTranslatorOneArg<IndexingTask, DecoratedKey> DELETE = new EventTranslatorOneArg<IndexingTask, DecoratedKey>()
+    {
+        @Override
+        public void translateTo(IndexingTask task, long sequence, DecoratedKey partitionKey)
+        {
+            task.type = Type.DELETE;
+            task.partitionKey = partitionKey;
+        }
+    };
+
+    Type type;
+    IndexingBatcher.Batch batch;
+    DecoratedKey partitionKey;
+    ColumnFamily columnFamily;
+    long timestamp;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void clear()
+    {
+        type = null;
+        batch = null;
+        partitionKey = null;
+        columnFamily = null;
+    }
+}
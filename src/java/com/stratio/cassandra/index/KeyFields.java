@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.stratio.cassandra.index.util.ByteBufferUtils;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.util.BytesRef;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable per thread Lucene's {@link Field}s for indexing a binary key as a string field and, optionally, as binary
+ * doc values. Each thread gets its own {@link Field} instances, whose values are replaced each time they are added to
+ * a {@link Document}, so a thread must index a {@link Document} before adding these fields to another one.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+class KeyFields
+{
+
+    private final String name;
+    private final Store store;
+
+    private final ThreadLocal<Fields> fields = new ThreadLocal<Fields>()
+    {
+        @Override
+        protected Fields initialValue()
+        {
+            return new Fields();
+        }
+    };
+
+    /**
+     * Builds a new {@link KeyFields}.
+     *
+     * @param name  The Lucene's field name.
+     * @param store If the string field must be stored.
+     */
+    KeyFields(String name, Store store)
+    {
+        this.name = name;
+        this.store = store;
+    }
+
+    /**
+     * Adds to the specified {@link Document} the calling thread's {@link Field}s, with the specified key as value.
+     *
+     * @param document  The {@link Document} in which the fields are going to be added.
+     * @param key       The raw key.
+     * @param docValues If the key must be also added as binary doc values.
+     */
+    void addFields(Document document, ByteBuffer key, boolean docValues)
+    {
+        Fields fields = this.fields.get();
+        fields.field.setStringValue(ByteBufferUtils.toString(key));
+        document.add(fields.field);
+        if (docValues)
+        {
+            ByteBufferUtils.toBytesRef(key, fields.bytesRef);
+            document.add(fields.docValuesField);
+        }
+    }
+
+    /**
+     * Returns the raw key contained in the specified {@link Document}'s field. The field can be either the stored
+     * string field or a binary field holding the doc values of the key, as the ones loaded by
+     * {@link LuceneIndex#search}.
+     *
+     * @param document The {@link Document} containing the key.
+     * @param name     The Lucene's field name.
+     * @return The raw key contained in {@code document}.
+     */
+    static ByteBuffer key(Document document, String name)
+    {
+        BytesRef bytesRef = document.getBinaryValue(name);
+        return bytesRef == null
+               ? ByteBufferUtils.fromString(document.get(name))
+               : ByteBufferUtils.fromBytesRef(bytesRef);
+    }
+
+    /**
+     * The {@link Field}s of a thread.
+     */
+    private class Fields
+    {
+        private final Field field = new StringField(name, "", store);
+        private final BytesRef bytesRef = new BytesRef();
+        private final Field docValuesField = new BinaryDocValuesField(name, bytesRef);
+    }
+
+}
@@ -16,23 +16,37 @@
 package com.stratio.cassandra.index;
 
 import com.stratio.cassandra.index.util.Log;
+import com.stratio.cassandra.index.util.ThrottledMergeScheduler;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.sorter.EarlyTerminatingSortingCollector;
 import org.apache.lucene.index.sorter.SortingMergePolicy;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Class wrapping a Lucene's directory and its readers , writers and searchers for NRT.
@@ -41,9 +55,18 @@ import java.util.Set;
  */
 public class LuceneIndex
 {
+
+    /** The commit user data key for the commit log position up to which all the writes have been committed. */
+    private static final String REPLAY_POSITION = "replay_position";
+
+    /** The commit user data key recording that all the documents have been written with their key doc values. */
+    private static final String KEY_DOC_VALUES = "key_doc_values";
+
+    private final CFMetaData metadata;
     private final RowMapper rowMapper;
     private final String path;
     private final Double refreshSeconds;
+    private final Double minRefreshSeconds;
     private final Integer ramBufferMB;
     private final Integer maxMergeMB;
     private final Integer maxCachedMB;
@@ -52,34 +75,51 @@ public class LuceneIndex
     private File file;
     private Directory directory;
     private IndexWriter indexWriter;
+    private TrackingIndexWriter trackingIndexWriter;
     private SearcherManager searcherManager;
     private ControlledRealTimeReopenThread<IndexSearcher> searcherReopener;
 
     private Sort sort;
 
+    /** If all the documents have their key fields written as doc values */
+    private volatile boolean keyDocValues;
+
+    /** The generation of the last write, to be visible to searches waiting for the latest writes */
+    private final AtomicLong lastGeneration = new AtomicLong();
+
+    /** Excludes searcher reopens during bulk upserts, so searches never see their deletions without their additions */
+    private final ReadWriteLock reopenLock = new ReentrantReadWriteLock();
+
     /**
      * Builds a new {@code RowDirectory} using the specified directory path and analyzer.
      *
-     * @param rowMapper A {@link RowMapper}.
+     * @param metadata       The indexed column family metadata.
+     * @param rowMapper      A {@link RowMapper}.
      * @param path           The analyzer to be used. The path of the directory in where the Lucene's files will be stored.
      * @param refreshSeconds The index readers refresh time in seconds. No guarantees that the writings are visible until this
      *                       time.
+     * @param minRefreshSeconds The index readers refresh time in seconds when there are searches waiting for the
+     *                          latest writes.
      * @param ramBufferMB    The index writer buffer size in MB.
      * @param maxMergeMB     NRTCachingDirectory max merge size in MB.
      * @param maxCachedMB    NRTCachingDirectory max cached MB.
      * @param analyzer       The default {@link Analyzer}.
      */
-    public LuceneIndex(RowMapper rowMapper,
+    public LuceneIndex(CFMetaData metadata,
+                       RowMapper rowMapper,
                        String path,
                        Double refreshSeconds,
+                       Double minRefreshSeconds,
                        Integer ramBufferMB,
                        Integer maxMergeMB,
                        Integer maxCachedMB,
                        Analyzer analyzer)
     {
+        this.metadata = metadata;
         this.rowMapper = rowMapper;
         this.path = path;
         this.refreshSeconds = refreshSeconds;
+        this.minRefreshSeconds = minRefreshSeconds;
         this.ramBufferMB = ramBufferMB;
         this.maxMergeMB = maxMergeMB;
         this.maxCachedMB = maxCachedMB;
@@ -98,9 +138,14 @@ public class LuceneIndex
         // Get directory file
         file = new File(path);
 
+        // Setup merge scheduler throttled as compactions
+        ThrottledMergeScheduler mergeScheduler = new ThrottledMergeScheduler(metadata);
+
         // Open or create directory
         FSDirectory fsDirectory = FSDirectory.open(file);
-        directory = new NRTCachingDirectory(fsDirectory, maxMergeMB, maxCachedMB);
+        RateLimitedDirectoryWrapper rateLimitedDirectory = new RateLimitedDirectoryWrapper(fsDirectory);
+        rateLimitedDirectory.setRateLimiter(mergeScheduler.getRateLimiter(), IOContext.Context.MERGE);
+        directory = new NRTCachingDirectory(rateLimitedDirectory, maxMergeMB, maxCachedMB);
 
         // Setup index writer
         IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, analyzer);
@@ -108,8 +153,22 @@ public class LuceneIndex
         config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
         config.setUseCompoundFile(true);
         config.setMergePolicy(new SortingMergePolicy(config.getMergePolicy(), sort));
+        config.setMergeScheduler(mergeScheduler);
         indexWriter = new IndexWriter(directory, config);
 
+        // Indexes written by previous versions keep being written without key doc values until they are emptied
+        Map<String, String> commitData = indexWriter.getCommitData();
+        keyDocValues = indexWriter.maxDoc() == 0
+                       || (commitData != null && Boolean.parseBoolean(commitData.get(KEY_DOC_VALUES)));
+        if (keyDocValues)
+        {
+            setCommitData(KEY_DOC_VALUES, Boolean.TRUE.toString());
+        }
+        else
+        {
+            Log.warn("Index %s has not key doc values, it should be rebuilt", path);
+        }
+
         // Setup NRT search
         SearcherFactory searcherFactory = new SearcherFactory()
         {
@@ -120,12 +179,27 @@ public class LuceneIndex
                 return searcher;
             }
         };
-        TrackingIndexWriter trackingIndexWriter = new TrackingIndexWriter(indexWriter);
+        // Searchers are lazily reopened each refreshSeconds, and faster if any search is waiting for a generation
+        trackingIndexWriter = new TrackingIndexWriter(indexWriter);
         searcherManager = new SearcherManager(indexWriter, true, searcherFactory);
+        searcherManager.addListener(new ReferenceManager.RefreshListener()
+        {
+            @Override
+            public void beforeRefresh()
+            {
+                reopenLock.writeLock().lock();
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh)
+            {
+                reopenLock.writeLock().unlock();
+            }
+        });
         searcherReopener = new ControlledRealTimeReopenThread<>(trackingIndexWriter,
                                                                 searcherManager,
                                                                 refreshSeconds,
-                                                                refreshSeconds);
+                                                                minRefreshSeconds);
         searcherReopener.start(); // Start the refresher thread
     }
 
@@ -140,7 +214,38 @@ public class LuceneIndex
     public void upsert(Term term, Document document) throws IOException
     {
         // Log.debug("Updating document %s with term %s", document, term);
-        indexWriter.updateDocument(term, document);
+        updateGeneration(trackingIndexWriter.updateDocument(term, document));
+    }
+
+    /**
+     * Updates the specified {@link Document}s by first deleting the documents containing the specified {@link Term}s
+     * and then adding all the new documents at once. Searchers are not reopened between the deletes and the adds, so
+     * the replacement is atomic as seen by searches.
+     * <p/>
+     * The {@link Document}s are indexed one at a time while they are iterated, so they can be built lazily reusing the
+     * same {@link Document} instance.
+     *
+     * @param terms     The {@link Term}s identifying the documents to be deleted.
+     * @param documents The {@link Document}s to be added.
+     */
+    public void upsert(Term[] terms, Iterable<Document> documents) throws IOException
+    {
+        // Log.debug("Updating %d documents", terms.length);
+        if (terms.length == 1)
+        {
+            upsert(terms[0], documents.iterator().next());
+            return;
+        }
+        reopenLock.readLock().lock();
+        try
+        {
+            trackingIndexWriter.deleteDocuments(terms);
+            updateGeneration(trackingIndexWriter.addDocuments(documents));
+        }
+        finally
+        {
+            reopenLock.readLock().unlock();
+        }
     }
 
     /**
@@ -151,7 +256,7 @@ public class LuceneIndex
     public void delete(Term term) throws IOException
     {
         // Log.debug(String.format("Deleting by term %s", term));
-        indexWriter.deleteDocuments(term);
+        updateGeneration(trackingIndexWriter.deleteDocuments(term));
     }
 
     /**
@@ -162,7 +267,7 @@ public class LuceneIndex
     public void delete(Query query) throws IOException
     {
         // Log.debug("Deleting by query %s", query);
-        indexWriter.deleteDocuments(query);
+        updateGeneration(trackingIndexWriter.deleteDocuments(query));
     }
 
     /**
@@ -171,7 +276,53 @@ public class LuceneIndex
     public void truncate() throws IOException
     {
         Log.info("Deleting all");
-        indexWriter.deleteAll();
+        updateGeneration(trackingIndexWriter.deleteAll());
+        if (!keyDocValues) // The index is empty, so it can be written with key doc values from now on
+        {
+            setCommitData(KEY_DOC_VALUES, Boolean.TRUE.toString());
+            keyDocValues = true;
+        }
+    }
+
+    /**
+     * Returns if all the {@link Document}s in this index have their key fields written as doc values, which is true
+     * for the indexes created empty by this version and for the indexes that have been truncated. Otherwise, the new
+     * {@link Document}s must be written without doc values, so no segment mixes documents with and without them.
+     *
+     * @return {@code true} if all the documents have key doc values, {@code false} otherwise.
+     */
+    public boolean hasKeyDocValues()
+    {
+        return keyDocValues;
+    }
+
+    private void updateGeneration(long generation)
+    {
+        long current = lastGeneration.get();
+        while (generation > current && !lastGeneration.compareAndSet(current, generation))
+        {
+            current = lastGeneration.get();
+        }
+    }
+
+    /**
+     * Waits until the writes done before this call are visible to searches, forcing a faster reopening of the index
+     * searchers.
+     *
+     * @param timeoutMillis The max time to wait in milliseconds.
+     * @return {@code true} if the writes are visible, {@code false} if the timeout has been reached.
+     */
+    public boolean waitForLastWrite(long timeoutMillis)
+    {
+        try
+        {
+            return searcherReopener.waitForGeneration(lastGeneration.get(), (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     /**
@@ -183,6 +334,62 @@ public class LuceneIndex
         indexWriter.commit();
     }
 
+    /**
+     * Commits the pending changes, recording the specified commit log position as the one up to which all the writes
+     * have been applied to this index.
+     *
+     * @param replayPosition The commit log position up to which all the writes have been applied.
+     */
+    public void commit(ReplayPosition replayPosition) throws IOException
+    {
+        Log.info("Committing at %s", replayPosition);
+        String value = String.format("%d:%d", replayPosition.segment, replayPosition.position);
+        setCommitData(REPLAY_POSITION, value);
+        indexWriter.commit();
+    }
+
+    /**
+     * Sets the specified commit user data entry to be recorded by the next commits, keeping the other entries.
+     *
+     * @param key   The commit user data key.
+     * @param value The commit user data value.
+     */
+    private synchronized void setCommitData(String key, String value)
+    {
+        Map<String, String> commitData = new HashMap<>();
+        if (indexWriter.getCommitData() != null)
+        {
+            commitData.putAll(indexWriter.getCommitData());
+        }
+        commitData.put(key, value);
+        indexWriter.setCommitData(commitData);
+    }
+
+    /**
+     * Returns the commit log position recorded by the last commit, or {@code null} if it has not been recorded.
+     *
+     * @return The commit log position up to which all the writes have been committed.
+     */
+    public ReplayPosition getReplayPosition()
+    {
+        Map<String, String> commitData = indexWriter.getCommitData();
+        String value = commitData == null ? null : commitData.get(REPLAY_POSITION);
+        if (value == null)
+        {
+            return null;
+        }
+        String[] parts = value.split(":");
+        try
+        {
+            return new ReplayPosition(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+        {
+            Log.warn("Ignoring invalid replay position in commit data: %s", value);
+            return null;
+        }
+    }
+
     /**
      * Commits all changes to the index, waits for pending merges to complete, and closes all associated resources.
      */
@@ -212,42 +419,167 @@ public class LuceneIndex
      *
      * @param query        The {@link Query} to search for.
      * @param sort         The {@link Sort} to be applied.
-     * @param after        The starting {@link SearchResult}.
+     * @param after        The starting {@link ScoreDoc}, maybe {@code null}.
      * @param count        Return only the top {@code count} results.
      * @param fieldsToLoad The name of the fields to be loaded.
      * @return The found documents, sorted according to the supplied {@link Sort} instance.
      */
     public List<SearchResult> search(Query query,
                                        Sort sort,
-                                       SearchResult after,
+                                       ScoreDoc after,
                                        Integer count,
                                        Set<String> fieldsToLoad, boolean usesRelevance) throws IOException
     {
-        Log.debug("Searching by query %s", query);
-
-        IndexSearcher searcher = searcherManager.acquire();
+        IndexSearcher searcher = acquireSearcher();
         try
         {
-            // Search
-            ScoreDoc start = after == null ? null : after.getScoreDoc();
-            TopDocs topDocs = topDocs(searcher, query, sort, start, count, usesRelevance);
-            ScoreDoc[] scoreDocs = topDocs.scoreDocs;
-
-            // Collect the documents from query result
-            List<SearchResult> searchResults = new ArrayList<>(scoreDocs.length);
-            for (ScoreDoc scoreDoc : scoreDocs)
-            {
-                Document document = searcher.doc(scoreDoc.doc, fieldsToLoad);
-                SearchResult searchResult = rowMapper.searchResult(document, scoreDoc);
-                searchResults.add(searchResult);
-            }
+            return search(searcher, query, sort, after, count, fieldsToLoad, usesRelevance);
+        }
+        finally
+        {
+            releaseSearcher(searcher);
+        }
+    }
 
-            return searchResults;
+    /**
+     * Collects all the hits for {@code query} with the specified {@link Collector}.
+     *
+     * @param query     The {@link Query} to search for.
+     * @param collector The {@link Collector} to be used.
+     */
+    public void search(Query query, Collector collector) throws IOException
+    {
+        IndexSearcher searcher = acquireSearcher();
+        try
+        {
+            searcher.search(query, collector);
         }
         finally
         {
-            searcherManager.release(searcher);
+            releaseSearcher(searcher);
+        }
+    }
+
+    /**
+     * Finds the top {@code count} hits for {@code query} using the specified {@link IndexSearcher}, sorting the hits
+     * by the criteria in {@code sort}.
+     *
+     * @param searcher     An {@link IndexSearcher} acquired with {@link #acquireSearcher()}.
+     * @param query        The {@link Query} to search for.
+     * @param sort         The {@link Sort} to be applied.
+     * @param after        The starting {@link ScoreDoc}, maybe {@code null}.
+     * @param count        Return only the top {@code count} results.
+     * @param fieldsToLoad The name of the fields to be loaded.
+     * @return The found documents, sorted according to the supplied {@link Sort} instance.
+     */
+    public List<SearchResult> search(IndexSearcher searcher,
+                                     Query query,
+                                     Sort sort,
+                                     ScoreDoc after,
+                                     Integer count,
+                                     Set<String> fieldsToLoad,
+                                     boolean usesRelevance) throws IOException
+    {
+        Log.debug("Searching by query %s", query);
+
+        // Search
+        TopDocs topDocs = topDocs(searcher, query, sort, after, count, usesRelevance);
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+
+        // Collect the documents from query result
+        Document[] documents = documents(searcher, scoreDocs, fieldsToLoad);
+        List<SearchResult> searchResults = new ArrayList<>(scoreDocs.length);
+        for (int i = 0; i < scoreDocs.length; i++)
+        {
+            SearchResult searchResult = rowMapper.searchResult(documents[i], scoreDocs[i]);
+            searchResults.add(searchResult);
+        }
+
+        return searchResults;
+    }
+
+    /**
+     * Returns the current {@link IndexSearcher}, which must be released with {@link #releaseSearcher(IndexSearcher)}.
+     * The returned searcher keeps its point in time view of the index, and so its document ids, until it is released.
+     *
+     * @return The current {@link IndexSearcher}.
+     */
+    public IndexSearcher acquireSearcher() throws IOException
+    {
+        return searcherManager.acquire();
+    }
+
+    /**
+     * Releases the specified {@link IndexSearcher}, which must have been acquired with {@link #acquireSearcher()}.
+     *
+     * @param searcher The {@link IndexSearcher} to be released.
+     */
+    public void releaseSearcher(IndexSearcher searcher) throws IOException
+    {
+        searcherManager.release(searcher);
+    }
+
+    /**
+     * Returns the {@link Document}s containing the specified fields of the specified hits, in the same order. The
+     * fields are read from their binary doc values, visiting the hits in index order, so each segment is read
+     * sequentially. The stored fields are used only for the documents whose segment has not doc values for any of the
+     * fields, such as the ones written by previous versions.
+     *
+     * @param searcher     The {@link IndexSearcher} used to find the hits.
+     * @param scoreDocs    The hits to be loaded.
+     * @param fieldsToLoad The name of the fields to be loaded.
+     * @return The {@link Document}s of {@code scoreDocs}, containing {@code fieldsToLoad}.
+     */
+    private Document[] documents(IndexSearcher searcher, ScoreDoc[] scoreDocs, Set<String> fieldsToLoad)
+            throws IOException
+    {
+        // Sort hits by document id, keeping their position
+        long[] hits = new long[scoreDocs.length];
+        for (int i = 0; i < scoreDocs.length; i++)
+        {
+            hits[i] = ((long) scoreDocs[i].doc << 32) | i;
+        }
+        Arrays.sort(hits);
+
+        String[] fields = fieldsToLoad.toArray(new String[fieldsToLoad.size()]);
+        BinaryDocValues[] docValues = new BinaryDocValues[fields.length];
+        Bits[] docsWithField = new Bits[fields.length];
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        AtomicReaderContext leaf = null;
+        BytesRef bytesRef = new BytesRef();
+        Document[] documents = new Document[scoreDocs.length];
+        for (long hit : hits)
+        {
+            int docId = (int) (hit >>> 32);
+            int position = (int) hit;
+
+            // Get the doc values of a new segment
+            if (leaf == null || docId >= leaf.docBase + leaf.reader().maxDoc())
+            {
+                leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+                for (int i = 0; i < fields.length; i++)
+                {
+                    docValues[i] = leaf.reader().getBinaryDocValues(fields[i]);
+                    docsWithField[i] = leaf.reader().getDocsWithField(fields[i]);
+                }
+            }
+
+            // Read the fields from doc values, or from stored fields if missing
+            int leafDocId = docId - leaf.docBase;
+            Document document = new Document();
+            for (int i = 0; i < fields.length; i++)
+            {
+                if (docValues[i] == null || docsWithField[i] == null || !docsWithField[i].get(leafDocId))
+                {
+                    document = searcher.doc(docId, fieldsToLoad);
+                    break;
+                }
+                docValues[i].get(leafDocId, bytesRef);
+                document.add(new StoredField(fields[i], BytesRef.deepCopyOf(bytesRef)));
+            }
+            documents[position] = document;
         }
+        return documents;
     }
 
     private TopDocs topDocs(IndexSearcher searcher, Query query, Sort sort, ScoreDoc after, int count, boolean usesRelevance)
@@ -278,7 +610,7 @@ public class LuceneIndex
 
     /**
      * Optimizes the index forcing merge segments leaving one single segment. This operation blocks until all merging
-     * completes.
+     * completes. Merges are run by the merge scheduler, so they are throttled as the regular merges.
      *
      * @throws IOException
      */
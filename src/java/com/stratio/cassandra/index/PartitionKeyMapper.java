@@ -28,7 +28,6 @@ import org.apache.cassandra.dht.IPartitioner;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
@@ -59,6 +58,8 @@ public class PartitionKeyMapper
 
     private final AbstractType<?> type;
 
+    private final KeyFields keyFields = new KeyFields(FIELD_NAME, Store.YES);
+
     /**
      * Returns a new {@code PartitionKeyMapper} according to the specified column family meta data.
      *
@@ -87,16 +88,17 @@ public class PartitionKeyMapper
     }
 
     /**
-     * Adds to the specified {@link Document} the {@link Field}s associated to the specified raw partition key.
+     * Adds to the specified {@link Document} the {@link Field}s associated to the specified raw partition key. The key
+     * is both indexed and stored, and it is optionally added as a binary doc value. The added {@link Field}s are
+     * reused by the calling thread.
      *
      * @param document     The document in which the fields are going to be added.
      * @param partitionKey The raw partition key to be converted.
+     * @param docValues    If the key must be also added as a binary doc value.
      */
-    public void addFields(Document document, DecoratedKey partitionKey)
+    public void addFields(Document document, DecoratedKey partitionKey, boolean docValues)
     {
-        String serializedKey = ByteBufferUtils.toString(partitionKey.getKey());
-        Field field = new StringField(FIELD_NAME, serializedKey, Store.YES);
-        document.add(field);
+        keyFields.addFields(document, partitionKey.getKey(), docValues);
     }
 
     /**
@@ -130,8 +132,7 @@ public class PartitionKeyMapper
      */
     public DecoratedKey partitionKey(Document document)
     {
-        String string = document.get(FIELD_NAME);
-        ByteBuffer partitionKey = ByteBufferUtils.fromString(string);
+        ByteBuffer partitionKey = KeyFields.key(document, FIELD_NAME);
         return partitionKey(partitionKey);
     }
 
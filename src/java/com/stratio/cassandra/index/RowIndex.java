@@ -21,8 +21,11 @@ import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.CommitLog;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.index.PerRowSecondaryIndex;
+import org.apache.cassandra.db.index.SecondaryIndexBuilder;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.db.index.SecondaryIndexSearcher;
 import org.apache.cassandra.exceptions.ConfigurationException;
@@ -32,8 +35,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A {@link PerRowSecondaryIndex} that uses Apache Lucene as backend. It allows, among others, multi-comun and full-text
@@ -53,10 +54,11 @@ public class RowIndex extends PerRowSecondaryIndex
     private String columnName;
     private String logName;
 
-    private RowService rowService;
+    private volatile RowService rowService;
 
-    // Concurrency lock
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Indexing and per-partition deletions run in groups of this order, so they don't contend with each other, and
+    // lifecycle operations, which are mutually exclusive, use barriers to wait for the groups started before them
+    private final OpOrder indexingOrder = new OpOrder();
 
     @Override
     public String getIndexName()
@@ -85,10 +87,9 @@ public class RowIndex extends PerRowSecondaryIndex
     }
 
     @Override
-    public void init()
+    public synchronized void init()
     {
         Log.info("Initializing index %s", logName);
-        lock.writeLock().lock();
         try
         {
             setup();
@@ -99,10 +100,6 @@ public class RowIndex extends PerRowSecondaryIndex
             Log.error(e, "Error while initializing index %s", logName);
             throw new RuntimeException(e);
         }
-        finally
-        {
-            lock.writeLock().unlock();
-        }
     }
 
     @Override
@@ -136,9 +133,9 @@ public class RowIndex extends PerRowSecondaryIndex
     public void index(ByteBuffer key, ColumnFamily columnFamily)
     {
         // Log.debug("Indexing row %s in index %s ", key, logName);
-        lock.readLock().lock();
-        try
+        try (OpOrder.Group indexingGroup = indexingOrder.start())
         {
+            RowService rowService = this.rowService;
             if (rowService != null)
             {
                 long timestamp = System.currentTimeMillis();
@@ -150,10 +147,6 @@ public class RowIndex extends PerRowSecondaryIndex
             // Ignore errors
             Log.error(e, "Ignoring error while indexing row %s", key);
         }
-        finally
-        {
-            lock.readLock().unlock();
-        }
     }
 
     /**
@@ -165,21 +158,19 @@ public class RowIndex extends PerRowSecondaryIndex
     public void delete(DecoratedKey key, OpOrder.Group opGroup)
     {
         Log.debug("Removing row %s from index %s", key, logName);
-        lock.writeLock().lock();
-        try
+        try (OpOrder.Group indexingGroup = indexingOrder.start())
         {
-            rowService.delete(key);
-            rowService = null;
+            RowService rowService = this.rowService;
+            if (rowService != null)
+            {
+                rowService.delete(key);
+            }
         }
         catch (RuntimeException e)
         {
             Log.error(e, "Error deleting row %s", key);
             throw e;
         }
-        finally
-        {
-            lock.writeLock().unlock();
-        }
     }
 
     @Override
@@ -234,16 +225,17 @@ public class RowIndex extends PerRowSecondaryIndex
     }
 
     @Override
-    public void removeIndex(ByteBuffer columnName)
+    public synchronized void removeIndex(ByteBuffer columnName)
     {
         Log.info("Removing index %s", logName);
-        lock.writeLock().lock();
         try
         {
+            RowService rowService = this.rowService;
             if (rowService != null)
             {
+                this.rowService = null;
+                indexingOrder.awaitNewBarrier(); // Wait for the running indexing operations
                 rowService.delete();
-                rowService = null;
             }
             Log.info("Removed index %s", logName);
         }
@@ -252,23 +244,20 @@ public class RowIndex extends PerRowSecondaryIndex
             Log.error(e, "Removing index %s", logName);
             throw new RuntimeException(e);
         }
-        finally
-        {
-            lock.writeLock().unlock();
-        }
     }
 
     @Override
-    public void invalidate()
+    public synchronized void invalidate()
     {
         Log.info("Invalidating index %s", logName);
-        lock.writeLock().lock();
         try
         {
+            RowService rowService = this.rowService;
             if (rowService != null)
             {
+                this.rowService = null;
+                indexingOrder.awaitNewBarrier(); // Wait for the running indexing operations
                 rowService.delete();
-                rowService = null;
             }
             Log.info("Invalidated index %s", logName);
         }
@@ -277,21 +266,18 @@ public class RowIndex extends PerRowSecondaryIndex
             Log.error(e, "Invalidating index %s", logName);
             throw new RuntimeException(e);
         }
-        finally
-        {
-            lock.writeLock().unlock();
-        }
     }
 
     @Override
-    public void truncateBlocking(long truncatedAt)
+    public synchronized void truncateBlocking(long truncatedAt)
     {
         Log.info("Truncating index %s", logName);
-        lock.writeLock().lock();
         try
         {
+            RowService rowService = this.rowService;
             if (rowService != null)
             {
+                indexingOrder.awaitNewBarrier(); // Wait for the running indexing operations
                 rowService.truncate();
             }
             Log.info("Truncated index %s", logName);
@@ -301,17 +287,12 @@ public class RowIndex extends PerRowSecondaryIndex
             Log.error(e, "Truncating index %s", logName);
             throw new RuntimeException(e);
         }
-        finally
-        {
-            lock.writeLock().unlock();
-        }
     }
 
     @Override
     public void reload()
     {
         Log.info("Reloading index %s", logName);
-        // lock.writeLock().lock();
         // try {
         // if (rowService == null && !columnDefs.isEmpty()) {
         // setup();
@@ -320,32 +301,54 @@ public class RowIndex extends PerRowSecondaryIndex
         // } catch (Exception e) {
         // Log.error(e, "Reloading index %s", logName);
         // throw new RuntimeException(e);
-        // } finally {
-        // lock.writeLock().unlock();
         // }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The current commit log position is recorded with the Lucene commit. Before committing, this waits for all the
+     * writes started before that position to be submitted to the index, so after a crash the commit log replay can
+     * re-feed this index with only the mutations that were not committed yet.
+     */
     @Override
     public void forceBlockingFlush()
     {
         Log.info("Flushing index %s", logName);
-        lock.writeLock().lock();
-        try
+        ReplayPosition replayPosition = CommitLog.instance.getContext();
+        OpOrder.Barrier barrier = baseCfs.keyspace.writeOrder.newBarrier();
+        barrier.issue();
+        barrier.markBlocking();
+        barrier.await();
+        synchronized (this)
         {
-            rowService.commit();
-            Log.info("Flushed index %s", logName);
-        }
-        catch (RuntimeException e)
-        {
-            Log.error(e, "Flushing index %s", logName);
-            throw e;
-        }
-        finally
-        {
-            lock.writeLock().unlock();
+            try
+            {
+                RowService rowService = this.rowService;
+                if (rowService != null)
+                {
+                    rowService.commit(replayPosition);
+                }
+                Log.info("Flushed index %s", logName);
+            }
+            catch (RuntimeException e)
+            {
+                Log.error(e, "Flushing index %s", logName);
+                throw e;
+            }
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReplayPosition getReplayPosition()
+    {
+        RowService rowService = this.rowService;
+        return rowService == null ? null : rowService.getReplayPosition();
+    }
+
     @Override
     protected SecondaryIndexSearcher createSecondaryIndexSearcher(Set<ByteBuffer> columns)
     {
@@ -353,6 +356,12 @@ public class RowIndex extends PerRowSecondaryIndex
         return new RowIndexSearcher(secondaryIndexManager, this, columns, rowService);
     }
 
+    @Override
+    public SecondaryIndexBuilder getFullBuilder()
+    {
+        return new RowIndexBuilder(baseCfs, indexName, rowService);
+    }
+
     @Override
     public void optimize()
     {
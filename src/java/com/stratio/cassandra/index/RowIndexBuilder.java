@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.stratio.cassandra.index.util.Log;
+import org.apache.cassandra.db.ArrayBackedSortedColumns;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.columniterator.OnDiskAtomIterator;
+import org.apache.cassandra.db.compaction.CompactionInfo;
+import org.apache.cassandra.db.compaction.CompactionInterruptedException;
+import org.apache.cassandra.db.compaction.CompactionManager;
+import org.apache.cassandra.db.compaction.ICompactionScanner;
+import org.apache.cassandra.db.compaction.OperationType;
+import org.apache.cassandra.db.index.SecondaryIndexBuilder;
+import org.apache.cassandra.io.sstable.SSTableIdentityIterator;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.utils.CloseableIterator;
+import org.apache.cassandra.utils.MergeIterator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link SecondaryIndexBuilder} rebuilding a {@link RowIndex} by streaming the merged partitions of all the SSTables
+ * of the indexed column family, instead of reading each partition key from the storage engine as the default builder
+ * does. The SSTables are read sequentially and the partitions are indexed concurrently by the {@link RowService}'s
+ * indexing queue.
+ * <p/>
+ * Partitions bigger than {@link #MAX_IN_MEMORY_PARTITION_SIZE} are not merged in memory, they are indexed by the
+ * default storage engine read path. Partitions updated during the rebuild are read again from the storage engine, so
+ * the rebuilt index doesn't lose any write.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class RowIndexBuilder extends SecondaryIndexBuilder
+{
+
+    /** The max serialized size in bytes of a partition to be merged in memory. */
+    public static final long MAX_IN_MEMORY_PARTITION_SIZE = 64L * 1024 * 1024;
+
+    private static final Comparator<OnDiskAtomIterator> comparator = new Comparator<OnDiskAtomIterator>()
+    {
+        public int compare(OnDiskAtomIterator i1, OnDiskAtomIterator i2)
+        {
+            return i1.getKey().compareTo(i2.getKey());
+        }
+    };
+
+    private final ColumnFamilyStore baseCfs;
+    private final Set<String> indexNames;
+    private final RowService rowService;
+
+    private volatile long bytesRead;
+    private volatile long totalBytes;
+
+    /**
+     * Builds a new {@link RowIndexBuilder}.
+     *
+     * @param baseCfs    The indexed {@link ColumnFamilyStore}.
+     * @param indexName  The name of the index to be built.
+     * @param rowService The {@link RowService} of the index to be built.
+     */
+    public RowIndexBuilder(ColumnFamilyStore baseCfs, String indexName, RowService rowService)
+    {
+        super(baseCfs, Collections.singleton(indexName));
+        this.baseCfs = baseCfs;
+        this.indexNames = Collections.singleton(indexName);
+        this.rowService = rowService;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompactionInfo getCompactionInfo()
+    {
+        return new CompactionInfo(baseCfs.metadata, OperationType.INDEX_BUILD, bytesRead, totalBytes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void build()
+    {
+        rowService.startRebuild();
+        try
+        {
+            baseCfs.forceBlockingFlush();
+            Collection<SSTableReader> sstables = baseCfs.markCurrentSSTablesReferenced();
+            try
+            {
+                build(sstables);
+            }
+            finally
+            {
+                SSTableReader.releaseReferences(sstables);
+            }
+        }
+        finally
+        {
+            rowService.finishRebuild();
+        }
+    }
+
+    private void build(Collection<SSTableReader> sstables)
+    {
+        final List<ICompactionScanner> scanners = new ArrayList<>(sstables.size());
+        for (SSTableReader sstable : sstables)
+        {
+            ICompactionScanner scanner = sstable.getScanner(CompactionManager.instance.getRateLimiter());
+            totalBytes += scanner.getLengthInBytes();
+            scanners.add(scanner);
+        }
+        Log.info("Rebuilding index %s from %d SSTables", indexNames, scanners.size());
+
+        final List<OnDiskAtomIterator> partitions = new ArrayList<>();
+        CloseableIterator<DecoratedKey> iterator = MergeIterator.get(scanners,
+                                                                     comparator,
+                                                                     new MergeIterator.Reducer<OnDiskAtomIterator, DecoratedKey>()
+                                                                     {
+                                                                         public void reduce(OnDiskAtomIterator current)
+                                                                         {
+                                                                             partitions.add(current);
+                                                                         }
+
+                                                                         protected DecoratedKey getReduced()
+                                                                         {
+                                                                             return partitions.get(0).getKey();
+                                                                         }
+                                                                     });
+        try
+        {
+            while (iterator.hasNext())
+            {
+                if (isStopRequested())
+                {
+                    throw new CompactionInterruptedException(getCompactionInfo());
+                }
+                DecoratedKey partitionKey = iterator.next();
+                long timestamp = System.currentTimeMillis();
+                ColumnFamily columnFamily = merge(partitions);
+                if (columnFamily == null) // Too big to be merged in memory
+                {
+                    Keyspace.indexRow(partitionKey, baseCfs, indexNames);
+                }
+                else
+                {
+                    rowService.rebuild(partitionKey, columnFamily, timestamp);
+                }
+                partitions.clear();
+
+                long position = 0;
+                for (ICompactionScanner scanner : scanners)
+                {
+                    position += scanner.getCurrentPosition();
+                }
+                bytesRead = position;
+            }
+        }
+        finally
+        {
+            try
+            {
+                iterator.close();
+            }
+            catch (Exception e)
+            {
+                Log.error(e, "Error while closing SSTable scanners for index %s", indexNames);
+            }
+        }
+    }
+
+    /**
+     * Returns a {@link ColumnFamily} containing all the data of the specified SSTable versions of the same partition,
+     * or {@code null} if the partition is too big to be merged in memory.
+     *
+     * @param partitions The SSTable versions of the same partition.
+     * @return A {@link ColumnFamily} containing all the data of the partition.
+     */
+    private ColumnFamily merge(List<OnDiskAtomIterator> partitions)
+    {
+        long size = 0;
+        for (OnDiskAtomIterator partition : partitions)
+        {
+            if (partition instanceof SSTableIdentityIterator)
+            {
+                size += ((SSTableIdentityIterator) partition).dataSize;
+            }
+        }
+        if (size > MAX_IN_MEMORY_PARTITION_SIZE)
+        {
+            return null;
+        }
+
+        ColumnFamily columnFamily = ArrayBackedSortedColumns.factory.create(baseCfs.metadata);
+        for (OnDiskAtomIterator partition : partitions)
+        {
+            columnFamily.delete(partition.getColumnFamily());
+            while (partition.hasNext())
+            {
+                columnFamily.addAtom(partition.next());
+            }
+        }
+        return columnFamily;
+    }
+
+}
@@ -36,6 +36,9 @@ public class RowIndexConfig
     private static final String REFRESH_SECONDS_OPTION = "refresh_seconds";
     private static final double DEFAULT_REFESH_SECONDS = 60;
 
+    private static final String MIN_REFRESH_SECONDS_OPTION = "min_refresh_seconds";
+    private static final double DEFAULT_MIN_REFESH_SECONDS = 0.1;
+
     private static final String INDEXES_DIR_NAME = "lucene";
 
     private static final String RAM_BUFFER_MB_OPTION = "ram_buffer_mb";
@@ -53,14 +56,55 @@ public class RowIndexConfig
     private static final String INDEXING_QUEUES_SIZE_OPTION = "indexing_queues_size";
     private static final int DEFAULT_INDEXING_QUEUES_SIZE = 50;
 
+    private static final String INDEXING_BATCH_MS_OPTION = "indexing_batch_ms";
+    private static final int DEFAULT_INDEXING_BATCH_MS = 0;
+
+    private static final String INDEXING_BATCH_SIZE_OPTION = "indexing_batch_size";
+    private static final int DEFAULT_INDEXING_BATCH_SIZE = 100;
+
+    private static final String INSERT_ONLY_OPTION = "insert_only";
+    private static final boolean DEFAULT_INSERT_ONLY = false;
+
+    private static final String INDEX_ONLY_COUNTS_OPTION = "index_only_counts";
+    private static final boolean DEFAULT_INDEX_ONLY_COUNTS = false;
+
+    private static final String CONCURRENT_READS_OPTION = "concurrent_reads";
+    private static final int DEFAULT_CONCURRENT_READS = 8;
+
+    private static final String FILTER_CACHE_MB_OPTION = "filter_cache_mb";
+    private static final int DEFAULT_FILTER_CACHE_MB = 16;
+
+    private static final String SEARCH_CACHE_SIZE_OPTION = "search_cache_size";
+    private static final int DEFAULT_SEARCH_CACHE_SIZE = 1000;
+
+    private static final String SEARCH_CURSORS_OPTION = "search_cursors";
+    private static final int DEFAULT_SEARCH_CURSORS = 128;
+
+    private static final String SEARCH_CURSOR_TTL_SECONDS_OPTION = "search_cursor_ttl_seconds";
+    private static final int DEFAULT_SEARCH_CURSOR_TTL_SECONDS = 30;
+
+    private static final String SHARDS_OPTION = "shards";
+    private static final int DEFAULT_SHARDS = 1;
+
     private final Schema schema;
     private final double refreshSeconds;
+    private final double minRefreshSeconds;
     private final String path;
     private final int ramBufferMB;
     private final int maxMergeMB;
     private final int maxCachedMB;
     private final int indexingThreads;
     private final int indexingQueuesSize;
+    private final int indexingBatchMillis;
+    private final int indexingBatchSize;
+    private final boolean insertOnly;
+    private final boolean indexOnlyCounts;
+    private final int concurrentReads;
+    private final int filterCacheMB;
+    private final int searchCacheSize;
+    private final int searchCursors;
+    private final int searchCursorTTLSeconds;
+    private final int shards;
 
     public RowIndexConfig(CFMetaData metadata, Map<String, String> options)
     {
@@ -89,6 +133,37 @@ public class RowIndexConfig
             refreshSeconds = DEFAULT_REFESH_SECONDS;
         }
 
+        // Setup min refresh seconds
+        String minRefreshOption = options.get(MIN_REFRESH_SECONDS_OPTION);
+        if (minRefreshOption != null)
+        {
+            try
+            {
+                minRefreshSeconds = Double.parseDouble(minRefreshOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s' must be a strictly positive double", MIN_REFRESH_SECONDS_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (minRefreshSeconds <= 0)
+            {
+                String msg = String.format("'%s' must be strictly positive", MIN_REFRESH_SECONDS_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (minRefreshSeconds > refreshSeconds)
+            {
+                String msg = String.format("'%s' must not be greater than '%s'",
+                                           MIN_REFRESH_SECONDS_OPTION,
+                                           REFRESH_SECONDS_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            minRefreshSeconds = Math.min(DEFAULT_MIN_REFESH_SECONDS, refreshSeconds);
+        }
+
         // Setup write buffer size
         String ramBufferSizeOption = options.get(RAM_BUFFER_MB_OPTION);
         if (ramBufferSizeOption != null)
@@ -209,6 +284,245 @@ public class RowIndexConfig
             indexingQueuesSize = DEFAULT_INDEXING_QUEUES_SIZE;
         }
 
+        // Setup indexing batches time window
+        String indexingBatchMillisOption = options.get(INDEXING_BATCH_MS_OPTION);
+        if (indexingBatchMillisOption != null)
+        {
+            try
+            {
+                indexingBatchMillis = Integer.parseInt(indexingBatchMillisOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a positive integer", INDEXING_BATCH_MS_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (indexingBatchMillis < 0)
+            {
+                String msg = String.format("'%s'  must be positive", INDEXING_BATCH_MS_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            indexingBatchMillis = DEFAULT_INDEXING_BATCH_MS;
+        }
+
+        // Setup indexing batches size window
+        String indexingBatchSizeOption = options.get(INDEXING_BATCH_SIZE_OPTION);
+        if (indexingBatchSizeOption != null)
+        {
+            try
+            {
+                indexingBatchSize = Integer.parseInt(indexingBatchSizeOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a strictly positive integer", INDEXING_BATCH_SIZE_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (indexingBatchSize <= 0)
+            {
+                String msg = String.format("'%s'  must be strictly positive", INDEXING_BATCH_SIZE_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            indexingBatchSize = DEFAULT_INDEXING_BATCH_SIZE;
+        }
+
+        // Setup read-free indexing
+        String insertOnlyOption = options.get(INSERT_ONLY_OPTION);
+        if (insertOnlyOption != null)
+        {
+            if (insertOnlyOption.equalsIgnoreCase("true"))
+            {
+                insertOnly = true;
+            }
+            else if (insertOnlyOption.equalsIgnoreCase("false"))
+            {
+                insertOnly = false;
+            }
+            else
+            {
+                String msg = String.format("'%s'  must be a boolean", INSERT_ONLY_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            insertOnly = DEFAULT_INSERT_ONLY;
+        }
+
+        // Setup index-only counts and aggregations
+        String indexOnlyCountsOption = options.get(INDEX_ONLY_COUNTS_OPTION);
+        if (indexOnlyCountsOption != null)
+        {
+            if (indexOnlyCountsOption.equalsIgnoreCase("true"))
+            {
+                indexOnlyCounts = true;
+            }
+            else if (indexOnlyCountsOption.equalsIgnoreCase("false"))
+            {
+                indexOnlyCounts = false;
+            }
+            else
+            {
+                String msg = String.format("'%s'  must be a boolean", INDEX_ONLY_COUNTS_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            indexOnlyCounts = DEFAULT_INDEX_ONLY_COUNTS;
+        }
+
+        // Setup concurrent partition reads per search
+        String concurrentReadsOption = options.get(CONCURRENT_READS_OPTION);
+        if (concurrentReadsOption != null)
+        {
+            try
+            {
+                concurrentReads = Integer.parseInt(concurrentReadsOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a strictly positive integer", CONCURRENT_READS_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (concurrentReads <= 0)
+            {
+                String msg = String.format("'%s'  must be strictly positive", CONCURRENT_READS_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            concurrentReads = DEFAULT_CONCURRENT_READS;
+        }
+
+        // Setup filter cache size
+        String filterCacheMBOption = options.get(FILTER_CACHE_MB_OPTION);
+        if (filterCacheMBOption != null)
+        {
+            try
+            {
+                filterCacheMB = Integer.parseInt(filterCacheMBOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a positive integer", FILTER_CACHE_MB_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (filterCacheMB < 0)
+            {
+                String msg = String.format("'%s'  must be positive", FILTER_CACHE_MB_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            filterCacheMB = DEFAULT_FILTER_CACHE_MB;
+        }
+
+        // Setup parsed searches cache size
+        String searchCacheSizeOption = options.get(SEARCH_CACHE_SIZE_OPTION);
+        if (searchCacheSizeOption != null)
+        {
+            try
+            {
+                searchCacheSize = Integer.parseInt(searchCacheSizeOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a positive integer", SEARCH_CACHE_SIZE_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (searchCacheSize < 0)
+            {
+                String msg = String.format("'%s'  must be positive", SEARCH_CACHE_SIZE_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            searchCacheSize = DEFAULT_SEARCH_CACHE_SIZE;
+        }
+
+        // Setup max number of open search cursors
+        String searchCursorsOption = options.get(SEARCH_CURSORS_OPTION);
+        if (searchCursorsOption != null)
+        {
+            try
+            {
+                searchCursors = Integer.parseInt(searchCursorsOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a positive integer", SEARCH_CURSORS_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (searchCursors < 0)
+            {
+                String msg = String.format("'%s'  must be positive", SEARCH_CURSORS_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            searchCursors = DEFAULT_SEARCH_CURSORS;
+        }
+
+        // Setup seconds an unused search cursor is kept open
+        String searchCursorTTLOption = options.get(SEARCH_CURSOR_TTL_SECONDS_OPTION);
+        if (searchCursorTTLOption != null)
+        {
+            try
+            {
+                searchCursorTTLSeconds = Integer.parseInt(searchCursorTTLOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a strictly positive integer",
+                                           SEARCH_CURSOR_TTL_SECONDS_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (searchCursorTTLSeconds <= 0)
+            {
+                String msg = String.format("'%s'  must be strictly positive", SEARCH_CURSOR_TTL_SECONDS_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            searchCursorTTLSeconds = DEFAULT_SEARCH_CURSOR_TTL_SECONDS;
+        }
+
+        // Setup number of token range shards
+        String shardsOption = options.get(SHARDS_OPTION);
+        if (shardsOption != null)
+        {
+            try
+            {
+                shards = Integer.parseInt(shardsOption);
+            }
+            catch (NumberFormatException e)
+            {
+                String msg = String.format("'%s'  must be a strictly positive integer", SHARDS_OPTION);
+                throw new RuntimeException(msg);
+            }
+            if (shards <= 0)
+            {
+                String msg = String.format("'%s'  must be strictly positive", SHARDS_OPTION);
+                throw new RuntimeException(msg);
+            }
+        }
+        else
+        {
+            shards = DEFAULT_SHARDS;
+        }
+
         // Get columns mapping schema
         String schemaOption = options.get(SCHEMA_OPTION);
         if (schemaOption != null && !schemaOption.trim().isEmpty())
@@ -255,6 +569,11 @@ public class RowIndexConfig
         return refreshSeconds;
     }
 
+    public double getMinRefreshSeconds()
+    {
+        return minRefreshSeconds;
+    }
+
     public String getPath()
     {
         return path;
@@ -285,4 +604,54 @@ public class RowIndexConfig
         return indexingQueuesSize;
     }
 
+    public int getIndexingBatchMillis()
+    {
+        return indexingBatchMillis;
+    }
+
+    public int getIndexingBatchSize()
+    {
+        return indexingBatchSize;
+    }
+
+    public boolean isInsertOnly()
+    {
+        return insertOnly;
+    }
+
+    public boolean isIndexOnlyCounts()
+    {
+        return indexOnlyCounts;
+    }
+
+    public int getConcurrentReads()
+    {
+        return concurrentReads;
+    }
+
+    public int getFilterCacheMB()
+    {
+        return filterCacheMB;
+    }
+
+    public int getSearchCacheSize()
+    {
+        return searchCacheSize;
+    }
+
+    public int getSearchCursors()
+    {
+        return searchCursors;
+    }
+
+    public int getSearchCursorTTLSeconds()
+    {
+        return searchCursorTTLSeconds;
+    }
+
+    public int getShards()
+    {
+        return shards;
+    }
+
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.google.common.cache.Cache;
+import com.stratio.cassandra.index.util.FilterCache;
+import com.stratio.cassandra.index.util.TaskQueue;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.apache.cassandra.metrics.DefaultNameFactory;
+import org.apache.cassandra.metrics.MetricNameFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics for a {@link RowIndex}. They are registered in the {@code org.apache.cassandra.metrics} JMX domain under
+ * the {@code RowIndex} type, using {@code <keyspace>.<table>.<index>} as scope.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class RowIndexMetrics
+{
+
+    private static final String TYPE_NAME = "RowIndex";
+
+    private final MetricNameFactory factory;
+    private final List<MetricName> names = new ArrayList<>();
+
+    /** Number of indexing updates received from the storage engine. */
+    public final Counter indexingUpdates;
+    /** Number of per partition indexing batches, each one of them coalescing one or more updates. */
+    public final Counter indexingBatches;
+    /** Ratio between received updates and indexing batches. */
+    public final Gauge<Double> coalescingRatio;
+    /** Number of indexing batches that have required reading the indexed rows from the storage engine. */
+    public final Counter indexingReads;
+    /** Number of indexing batches that have been indexed without reading from the storage engine. */
+    public final Counter indexingSkippedReads;
+    /** Number of rows read from the storage engine by searches. */
+    public final Counter searchRowsRead;
+    /** Number of rows returned by searches after checking the filtering expressions not solved by the index. */
+    public final Counter searchRowsReturned;
+    /** Ratio between rows returned and rows read by searches. */
+    public final Gauge<Double> searchReadEfficiency;
+    /** Number of index-only aggregation searches. */
+    public final Counter searchAggregations;
+    /** Number of searches resumed from the search cursor left by the previous page. */
+    public final Counter searchCursorsResumed;
+
+    /**
+     * Builds and registers the metrics for the specified index.
+     *
+     * @param keyspaceName The name of the indexed keyspace.
+     * @param tableName    The name of the indexed table.
+     * @param indexName    The name of the index.
+     */
+    public RowIndexMetrics(String keyspaceName, String tableName, String indexName)
+    {
+        factory = new DefaultNameFactory(TYPE_NAME, String.format("%s.%s.%s", keyspaceName, tableName, indexName));
+
+        indexingUpdates = Metrics.newCounter(name("IndexingUpdates"));
+        indexingBatches = Metrics.newCounter(name("IndexingBatches"));
+        coalescingRatio = Metrics.newGauge(name("CoalescingRatio"), new Gauge<Double>()
+        {
+            public Double value()
+            {
+                return ratio(indexingUpdates.count(), indexingBatches.count());
+            }
+        });
+        indexingReads = Metrics.newCounter(name("IndexingReads"));
+        indexingSkippedReads = Metrics.newCounter(name("IndexingSkippedReads"));
+        searchRowsRead = Metrics.newCounter(name("SearchRowsRead"));
+        searchRowsReturned = Metrics.newCounter(name("SearchRowsReturned"));
+        searchReadEfficiency = Metrics.newGauge(name("SearchReadEfficiency"), new Gauge<Double>()
+        {
+            public Double value()
+            {
+                return ratio(searchRowsReturned.count(), searchRowsRead.count());
+            }
+        });
+        searchCursorsResumed = Metrics.newCounter(name("SearchCursorsResumed"));
+        searchAggregations = Metrics.newCounter(name("SearchAggregations"));
+    }
+
+    /**
+     * Registers the hit, miss and eviction metrics of the specified {@link Cache}, prefixing their names with the
+     * specified name.
+     *
+     * @param cacheName The name of the cache.
+     * @param cache     The {@link Cache} to be monitored.
+     */
+    public void registerCache(String cacheName, final Cache<?, ?> cache)
+    {
+        Metrics.newGauge(name(cacheName + "Hits"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return cache.stats().hitCount();
+            }
+        });
+        Metrics.newGauge(name(cacheName + "Misses"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return cache.stats().missCount();
+            }
+        });
+        Metrics.newGauge(name(cacheName + "HitRate"), new Gauge<Double>()
+        {
+            public Double value()
+            {
+                return cache.stats().hitRate();
+            }
+        });
+        Metrics.newGauge(name(cacheName + "Evictions"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return cache.stats().evictionCount();
+            }
+        });
+        Metrics.newGauge(name(cacheName + "Entries"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return cache.size();
+            }
+        });
+    }
+
+    /**
+     * Registers the metrics of the specified {@link FilterCache}, including the memory used by its entries.
+     *
+     * @param filterCache The {@link FilterCache} to be monitored.
+     */
+    public void registerFilterCache(final FilterCache filterCache)
+    {
+        registerCache("FilterCache", filterCache.getCache());
+        Metrics.newGauge(name("FilterCacheSize"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return filterCache.sizeInBytes();
+            }
+        });
+    }
+
+    /**
+     * Registers the depth, backpressure and batch draining metrics of the specified indexing {@link TaskQueue}.
+     *
+     * @param taskQueue The indexing {@link TaskQueue} to be monitored.
+     */
+    public void registerIndexingQueue(final TaskQueue<?> taskQueue)
+    {
+        Metrics.newGauge(name("IndexingQueueDepth"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return taskQueue.getPendingTasks();
+            }
+        });
+        Metrics.newGauge(name("IndexingQueueCapacity"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return taskQueue.getCapacity();
+            }
+        });
+        Metrics.newGauge(name("IndexingBlockedSubmissions"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return taskQueue.getBlockedSubmissions();
+            }
+        });
+        Metrics.newGauge(name("IndexingBlockedMillis"), new Gauge<Long>()
+        {
+            public Long value()
+            {
+                return TimeUnit.NANOSECONDS.toMillis(taskQueue.getBlockedNanos());
+            }
+        });
+        Metrics.newGauge(name("IndexingDrainedBatchSize"), new Gauge<Double>()
+        {
+            public Double value()
+            {
+                return ratio(taskQueue.getDrainedTasks(), taskQueue.getDrainedBatches());
+            }
+        });
+    }
+
+    /**
+     * Returns the {@link MetricName} for the specified metric name, remembering it for releasing.
+     *
+     * @param metricName A metric name.
+     * @return The {@link MetricName} for the specified metric name.
+     */
+    protected final MetricName name(String metricName)
+    {
+        MetricName name = factory.createMetricName(metricName);
+        names.add(name);
+        return name;
+    }
+
+    /**
+     * Returns the ratio between the two specified counts, or {@code 0} if the divisor is {@code 0}.
+     *
+     * @param dividend The dividend.
+     * @param divisor  The divisor.
+     * @return The ratio between the two specified counts.
+     */
+    protected static double ratio(long dividend, long divisor)
+    {
+        return divisor == 0 ? 0 : (double) dividend / divisor;
+    }
+
+    /**
+     * Unregisters all the metrics.
+     */
+    public void release()
+    {
+        for (MetricName name : names)
+        {
+            Metrics.defaultRegistry().removeMetric(name);
+        }
+    }
+
+}
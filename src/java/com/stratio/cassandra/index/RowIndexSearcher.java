@@ -18,17 +18,25 @@ package com.stratio.cassandra.index;
 import com.stratio.cassandra.index.query.Search;
 import com.stratio.cassandra.index.schema.Schema;
 import com.stratio.cassandra.index.util.Log;
+import org.apache.cassandra.cql3.ColumnIdentifier;
+import org.apache.cassandra.cql3.ResultSet;
+import org.apache.cassandra.db.ConsistencyLevel;
 import org.apache.cassandra.db.DataRange;
 import org.apache.cassandra.db.IndexExpression;
+import org.apache.cassandra.db.RangeSliceCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.SystemKeyspace;
 import org.apache.cassandra.db.filter.ExtendedFilter;
+import org.apache.cassandra.db.filter.SliceQueryFilter;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.db.index.SecondaryIndexSearcher;
 import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.exceptions.ReadTimeoutException;
+import org.apache.cassandra.exceptions.UnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 
@@ -144,7 +152,7 @@ public class RowIndexSearcher extends SecondaryIndexSearcher
     public void validate(IndexExpression indexExpression)
     {
         String json = UTF8Type.instance.compose(indexExpression.value);
-        Search.fromJson(json).validate(schema);
+        rowService.search(json).validate(schema);
     }
 
     /**
@@ -157,6 +165,103 @@ public class RowIndexSearcher extends SecondaryIndexSearcher
         return search.usesRelevanceOrSorting();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Only the searches using relevance or sorting and whose filtering expressions can be solved by the index can be
+     * solved as top-K queries, because their results are fully determined by the Lucene index.
+     */
+    @Override
+    public boolean supportsTopK(List<IndexExpression> clause)
+    {
+        return search(clause).usesRelevanceOrSorting() && rowService.isIndexed(filteredExpressions(clause));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer searchTopK(ExtendedFilter extendedFilter)
+    {
+        try
+        {
+            List<IndexExpression> clause = extendedFilter.getClause();
+            Search search = search(clause);
+            return rowService.searchTopK(search,
+                                         filteredExpressions(clause),
+                                         extendedFilter.dataRange,
+                                         extendedFilter.currentLimit());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Row> fetchTopK(RangeSliceCommand command, List<ByteBuffer> candidates, ConsistencyLevel consistencyLevel)
+    throws UnavailableException, ReadTimeoutException
+    {
+        Search search = search(command.rowFilter);
+        return rowService.fetchTopK(search, candidates, command.limit(), command.timestamp, consistencyLevel);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Count queries whose filtering expressions are all solved by the index and which don't restrict the clustering
+     * columns are answered only by the index, because all their matching rows are indexed documents. This must be
+     * enabled with the {@code index_only_counts} index option, because the index may still contain expired rows.
+     */
+    @Override
+    public boolean supportsAggregation(RangeSliceCommand command)
+    {
+        if (!(command.predicate instanceof SliceQueryFilter))
+        {
+            return false;
+        }
+        SliceQueryFilter sliceQueryFilter = (SliceQueryFilter) command.predicate;
+        return rowService.isIndexOnlyCounts()
+               && sliceQueryFilter.slices.length == 1
+               && sliceQueryFilter.start().isEmpty()
+               && sliceQueryFilter.finish().isEmpty()
+               && rowService.isIndexed(filteredExpressions(command.rowFilter));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer aggregate(ExtendedFilter extendedFilter)
+    {
+        try
+        {
+            List<IndexExpression> clause = extendedFilter.getClause();
+            Search search = search(clause);
+            return rowService.aggregate(search, filteredExpressions(clause), extendedFilter.dataRange);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultSet aggregate(RangeSliceCommand command,
+                               List<ByteBuffer> partials,
+                               int limit,
+                               ColumnIdentifier countAlias)
+    {
+        Search search = search(command.rowFilter);
+        return rowService.aggregate(search, partials, limit, countAlias);
+    }
+
     /**
      * Returns the {@link Search} contained in the specified list of {@link IndexExpression}s.
      *
@@ -167,7 +272,7 @@ public class RowIndexSearcher extends SecondaryIndexSearcher
     {
         IndexExpression indexedExpression = indexedExpression(clause);
         String json = UTF8Type.instance.compose(indexedExpression.value);
-        return Search.fromJson(json);
+        return rowService.search(json);
     }
 
     /**
@@ -209,29 +314,26 @@ public class RowIndexSearcher extends SecondaryIndexSearcher
         return filteredExpressions;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The partial results of each token range are already sorted, so they are just merged.
+     */
     @Override
     public List<Row> sort(List<IndexExpression> clause, List<Row> rows)
     {
         int startSize = rows.size();
         long startTime = System.currentTimeMillis();
 
-        // Remove duplicates
-        TreeSet<Row> set = new TreeSet<>(rowService.comparator());
-        set.addAll(rows);
-        List<Row> result = new ArrayList<>(set);
-
-        // Sort
         Search search = search(clause);
-        Comparator<Row> comparator = rowService.comparator(search);
-        Collections.sort(result, comparator);
+        RowComparator comparator = rowService.comparator(search);
+        List<Row> result = rowService.merge(rows, comparator);
 
         String comparatorName = comparator.getClass().getSimpleName();
         int endSize = result.size();
         long endTime = System.currentTimeMillis() - startTime;
 
-//        result = rowService.group(result);
-
-        Log.debug("Sorted %d rows to %d with comparator %s in %d ms\n", startSize, endSize, comparatorName, endTime);
+        Log.debug("Merged %d rows to %d with comparator %s in %d ms", startSize, endSize, comparatorName, endTime);
 
         return result;
     }
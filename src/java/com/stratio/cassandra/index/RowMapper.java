@@ -47,6 +47,18 @@ public abstract class RowMapper
     protected final PartitionKeyMapper partitionKeyMapper;
     protected final RegularCellsMapper regularCellsMapper;
 
+    /** If the key fields must be written as doc values, that is, if the index has them in all its documents */
+    private volatile boolean keyDocValues = true;
+
+    private final ThreadLocal<Document> documents = new ThreadLocal<Document>()
+    {
+        @Override
+        protected Document initialValue()
+        {
+            return new Document();
+        }
+    };
+
     /**
      * Builds a new {@link RowMapper} for the specified column family metadata, indexed column definition and {@link Schema}.
      *
@@ -94,12 +106,58 @@ public abstract class RowMapper
 
     /**
      * Returns the {@link Document} representing the specified {@link Row}.
+     * <p/>
+     * The returned {@link Document} and its key fields are reused by the calling thread, so it must be indexed before
+     * building another {@link Document} in the same thread.
      *
      * @param row A {@link Row}.
      * @return The {@link Document} representing the specified {@link Row}.
      */
     public abstract Document document(Row row);
 
+    /**
+     * Returns if the built {@link Document}s have their key fields written as doc values.
+     *
+     * @return {@code true} if the key fields are written as doc values, {@code false} otherwise.
+     */
+    public final boolean hasKeyDocValues()
+    {
+        return keyDocValues;
+    }
+
+    /**
+     * Sets if the built {@link Document}s must have their key fields written as doc values. The key fields of an index
+     * must be written either always or never with doc values, because the documents written without them get default
+     * values when they are merged with documents having them.
+     *
+     * @param keyDocValues If the key fields must be written as doc values.
+     */
+    public final void setKeyDocValues(boolean keyDocValues)
+    {
+        this.keyDocValues = keyDocValues;
+    }
+
+    /**
+     * Returns the empty reusable {@link Document} of the calling thread.
+     *
+     * @return The empty reusable {@link Document} of the calling thread.
+     */
+    protected final Document emptyDocument()
+    {
+        Document document = documents.get();
+        document.getFields().clear();
+        return document;
+    }
+
+    /**
+     * Returns {@code true} if the specified {@link ColumnFamily} contains full CQL3 rows, so the {@link Document}s
+     * representing them can be built without reading the rows from the storage engine, {@code false} otherwise.
+     *
+     * @param columnFamily A {@link ColumnFamily}.
+     * @return {@code true} if the specified {@link ColumnFamily} contains full CQL3 rows, {@code false} otherwise.
+     */
+    public abstract boolean containsFullRows(ColumnFamily columnFamily);
+
     /**
      * Returns the decorated partition key representing the specified raw partition key.
      *
@@ -158,4 +216,17 @@ public abstract class RowMapper
 
     public abstract SearchResult searchResult(Document document, ScoreDoc scoreDoc);
 
+    /**
+     * Returns {@code true} if the specified {@link DataRange} starts at the row of the specified {@link SearchResult},
+     * as the ranges used by CQL paging for fetching the rows following a page do, {@code false} otherwise.
+     *
+     * @param dataRange    A {@link DataRange}.
+     * @param searchResult The {@link SearchResult} of the last row of a page.
+     * @return {@code true} if {@code dataRange} starts at the row of {@code searchResult}, {@code false} otherwise.
+     */
+    public boolean startsAt(DataRange dataRange, SearchResult searchResult)
+    {
+        return searchResult.getPartitionKey().equals(dataRange.startKey());
+    }
+
 }
@@ -21,6 +21,7 @@ import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.composites.CellName;
+import org.apache.cassandra.db.composites.Composites;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -66,13 +67,26 @@ public class RowMapperSkinny extends RowMapper
     public Document document(Row row)
     {
         DecoratedKey partitionKey = row.key;
-        Document document = new Document();
-        tokenMapper.addFields(document, partitionKey);
-        partitionKeyMapper.addFields(document, partitionKey);
+        Document document = emptyDocument();
+        boolean docValues = hasKeyDocValues();
+        tokenMapper.addFields(document, partitionKey, docValues);
+        partitionKeyMapper.addFields(document, partitionKey, docValues);
         schema.addFields(document, columns(row));
         return document;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Skinny rows are full if they contain its row marker.
+     */
+    @Override
+    public boolean containsFullRows(ColumnFamily columnFamily)
+    {
+        CellName rowMarker = metadata.comparator.rowMarker(Composites.EMPTY);
+        return columnFamily.getColumn(rowMarker) != null;
+    }
+
     /**
      * Returns the Lucene {@link Sort} to get {@link Document}s in the same order that is used in Cassandra.
      *
@@ -23,6 +23,7 @@ import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.composites.Composite;
 import org.apache.cassandra.db.filter.ColumnSlice;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
 import org.apache.cassandra.db.filter.SliceQueryFilter;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -83,15 +84,25 @@ public class RowMapperWide extends RowMapper
         DecoratedKey partitionKey = row.key;
         CellName clusteringKey = clusteringKeyMapper.clusteringKey(row);
 
-        Document document = new Document();
-        tokenMapper.addFields(document, partitionKey);
-        partitionKeyMapper.addFields(document, partitionKey);
-        clusteringKeyMapper.addFields(document, clusteringKey);
+        Document document = emptyDocument();
+        boolean docValues = hasKeyDocValues();
+        tokenMapper.addFields(document, partitionKey, docValues);
+        partitionKeyMapper.addFields(document, partitionKey, docValues);
+        clusteringKeyMapper.addFields(document, clusteringKey, docValues);
         fullKeyMapper.addFields(document, partitionKey, clusteringKey);
         schema.addFields(document, columns(row));
         return document;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsFullRows(ColumnFamily columnFamily)
+    {
+        return clusteringKeyMapper.containsFullRows(columnFamily);
+    }
+
     /**
      * Returns the Lucene {@link Sort} to get {@link Document}s in the same order that is used in Cassandra.
      *
@@ -263,4 +274,28 @@ public class RowMapperWide extends RowMapper
         CellName clusteringKey = clusteringKeyMapper.clusteringKey(document);
         return new SearchResult(partitionKey, clusteringKey, scoreDoc);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The slice of the starting partition must start at any of the cells of the logical row of the search result.
+     */
+    @Override
+    public boolean startsAt(DataRange dataRange, SearchResult searchResult)
+    {
+        if (!super.startsAt(dataRange, searchResult))
+        {
+            return false;
+        }
+        IDiskAtomFilter filter = dataRange.columnFilter(searchResult.getPartitionKey().getKey());
+        if (!(filter instanceof SliceQueryFilter) || ((SliceQueryFilter) filter).reversed)
+        {
+            return false;
+        }
+        Composite start = ((SliceQueryFilter) filter).start();
+        CellName clusteringKey = searchResult.getClusteringKey();
+        return !start.isEmpty()
+               && metadata.comparator.compare(clusteringKeyMapper.start(clusteringKey), start) <= 0
+               && metadata.comparator.compare(start, clusteringKeyMapper.end(clusteringKey)) <= 0;
+    }
 }
@@ -15,26 +15,64 @@
  */
 package com.stratio.cassandra.index;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Iterators;
+import com.stratio.cassandra.index.query.Aggregation;
 import com.stratio.cassandra.index.query.Search;
 import com.stratio.cassandra.index.schema.Column;
+import com.stratio.cassandra.index.schema.ColumnMapper;
 import com.stratio.cassandra.index.schema.Columns;
 import com.stratio.cassandra.index.schema.Schema;
+import com.stratio.cassandra.index.util.FilterCache;
+import com.stratio.cassandra.index.util.JsonSerializer;
 import com.stratio.cassandra.index.util.Log;
 import com.stratio.cassandra.index.util.TaskQueue;
+import org.apache.cassandra.concurrent.Stage;
+import org.apache.cassandra.concurrent.StageManager;
 import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.cql3.ColumnIdentifier;
+import org.apache.cassandra.cql3.ColumnSpecification;
+import org.apache.cassandra.cql3.ResultSet;
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.db.composites.CellName;
+import org.apache.cassandra.db.filter.IDiskAtomFilter;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.db.marshal.AbstractType;
+import org.apache.cassandra.db.marshal.DoubleType;
+import org.apache.cassandra.db.marshal.LongType;
 import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.exceptions.InvalidRequestException;
+import org.apache.cassandra.exceptions.IsBootstrappingException;
+import org.apache.cassandra.exceptions.ReadTimeoutException;
+import org.apache.cassandra.exceptions.UnavailableException;
+import org.apache.cassandra.service.StorageProxy;
+import org.apache.cassandra.utils.Pair;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class for mapping rows between Cassandra and Lucene.
@@ -49,7 +87,11 @@ public abstract class RowService
     protected final CFMetaData metadata;
     protected final ColumnIdentifier indexedColumnName;
     protected final Schema schema;
-    protected final LuceneIndex luceneIndex;
+    protected final ShardedLuceneIndex luceneIndex;
+    protected final boolean insertOnly;
+    protected final boolean indexOnlyCounts;
+    protected final int concurrentReads;
+    protected final Executor readExecutor;
 
     /**
      * The max number of rows to be read per iteration
@@ -57,7 +99,28 @@ public abstract class RowService
     private static final int MAX_PAGE_SIZE = 100000;
     private static final int FILTERING_PAGE_SIZE = 1000;
 
-    private TaskQueue indexQueue;
+    private final TaskQueue<IndexingTask> indexQueue;
+    private final IndexingBatcher indexingBatcher;
+    protected final RowIndexMetrics metrics;
+
+    private final Cache<String, Search> searchCache;
+    private final FilterCache filterCache;
+
+    /**
+     * The open cursors of paged searches, keyed by search and partition key of their last returned row. The paging state
+     * of a CQL query is kept by its coordinator, and replicas only get the {@link DataRange} of the following page,
+     * which starts at the last returned row. So this key, combined with the checks done by {@link #cursor} on the
+     * expressions, the stop key and the clustering key of the starting row, identifies the same position as the paging
+     * state. Two clients paging the same search at different partitions use different cursors. If they stop in the same
+     * partition, the last stored cursor replaces and releases the other one. It can be taken only by a client starting
+     * at its row, and only once. Any other client just searches the index again from its starting row, as when there is
+     * no cursor, so the results are always right.
+     */
+    private final Cache<Pair<Search, RowPosition>, SearchCursor> searchCursors;
+    private final SearchResultSerializer searchResultSerializer;
+
+    /** The partitions updated since the start of the running rebuild, if any */
+    private volatile Set<DecoratedKey> rebuildUpdatedKeys;
 
     /**
      * Returns a new {@code RowService}.
@@ -75,17 +138,71 @@ public abstract class RowService
         RowIndexConfig config = new RowIndexConfig(metadata, columnDefinition.getIndexOptions());
 
         this.schema = config.getSchema();
+        this.insertOnly = config.isInsertOnly();
+        this.indexOnlyCounts = config.isIndexOnlyCounts();
+        this.concurrentReads = config.getConcurrentReads();
+        this.readExecutor = StageManager.getStage(Stage.READ);
         this.rowMapper = RowMapper.build(metadata, columnDefinition, schema);
 
-        this.luceneIndex = new LuceneIndex(rowMapper,
-                                           config.getPath(),
-                                           config.getRefreshSeconds(),
-                                           config.getRamBufferMB(),
-                                           config.getMaxMergeMB(),
-                                           config.getMaxCachedMB(),
-                                           schema.analyzer());
+        this.luceneIndex = new ShardedLuceneIndex(metadata,
+                                                  rowMapper,
+                                                  config.getShards(),
+                                                  config.getPath(),
+                                                  config.getRefreshSeconds(),
+                                                  config.getMinRefreshSeconds(),
+                                                  config.getRamBufferMB(),
+                                                  config.getMaxMergeMB(),
+                                                  config.getMaxCachedMB(),
+                                                  schema.analyzer(),
+                                                  readExecutor);
+
+        this.indexQueue = new TaskQueue<>(config.getIndexingThreads(),
+                                          config.getIndexingQueuesSize(),
+                                          IndexingTask.FACTORY,
+                                          new TaskQueue.ConsumerFactory<IndexingTask>()
+                                          {
+                                              @Override
+                                              public TaskQueue.Consumer<IndexingTask> newConsumer()
+                                              {
+                                                  return new IndexingConsumer();
+                                              }
+                                          });
 
-        this.indexQueue = new TaskQueue(config.getIndexingThreads(), config.getIndexingQueuesSize());
+        this.metrics = new RowIndexMetrics(metadata.ksName, metadata.cfName, columnDefinition.getIndexName());
+        metrics.registerIndexingQueue(indexQueue);
+
+        this.indexingBatcher = new IndexingBatcher(this,
+                                                   metadata,
+                                                   indexQueue,
+                                                   metrics,
+                                                   config.getIndexingBatchMillis(),
+                                                   config.getIndexingBatchSize());
+
+        this.searchCache = CacheBuilder.newBuilder()
+                                       .maximumSize(config.getSearchCacheSize())
+                                       .recordStats()
+                                       .build();
+        metrics.registerCache("SearchCache", searchCache);
+
+        this.searchCursors = CacheBuilder.newBuilder()
+                                         .maximumSize(config.getSearchCursors())
+                                         .expireAfterAccess(config.getSearchCursorTTLSeconds(), TimeUnit.SECONDS)
+                                         .removalListener(new SearchCursorReleaser())
+                                         .recordStats()
+                                         .build();
+        metrics.registerCache("SearchCursors", searchCursors);
+
+        if (config.getFilterCacheMB() > 0)
+        {
+            this.filterCache = new FilterCache(config.getFilterCacheMB() * 1024L * 1024L);
+            metrics.registerFilterCache(filterCache);
+        }
+        else
+        {
+            this.filterCache = null;
+        }
+
+        this.searchResultSerializer = new SearchResultSerializer(rowMapper, metadata.comparator);
     }
 
     /**
@@ -129,78 +246,201 @@ public abstract class RowService
      * Indexes the logical {@link Row} identified by the specified key and column family using the specified time stamp.
      * The must be read from the {@link ColumnFamilyStore} because it could exist previously having more columns than
      * the specified ones. The specified {@link ColumnFamily} is used for determine the cluster key. This operation is
-     * performed asynchronously.
+     * performed asynchronously, coalescing the pending updates of the same partition.
      *
      * @param key          A partition key.
      * @param columnFamily A {@link ColumnFamily} with a single common cluster key.
      * @param timestamp    The insertion time.
      */
-    protected void index(final ByteBuffer key, final ColumnFamily columnFamily, final long timestamp)
+    protected void index(ByteBuffer key, ColumnFamily columnFamily, long timestamp)
     {
-        indexQueue.submitAsynchronous(key, new Runnable()
+        DecoratedKey partitionKey = rowMapper.partitionKey(key);
+        markUpdated(partitionKey);
+        indexingBatcher.add(partitionKey, columnFamily, timestamp);
+    }
+
+    /**
+     * Starts a full rebuild of the index, tracking the partitions updated since now. The tracked partitions are read
+     * again from the storage engine when they are rebuilt, instead of using the possibly stale data read from the
+     * SSTables.
+     * <p/>
+     * An index written without key doc values is emptied first, so it is rebuilt with key doc values.
+     */
+    public final void startRebuild()
+    {
+        rebuildUpdatedKeys = Collections.newSetFromMap(new ConcurrentHashMap<DecoratedKey, Boolean>());
+        if (!luceneIndex.hasKeyDocValues())
         {
-            @Override
-            public void run()
+            Log.info("Emptying index %s.%s to rebuild it with key doc values", metadata.ksName, metadata.cfName);
+            try
             {
-                try
-                {
-                    indexInner(key, columnFamily, timestamp);
-                }
-                catch (Exception e)
-                {
-                    Log.error(e, "Error while running indexing task");
-                }
+                truncate();
             }
-        });
+            catch (IOException e)
+            {
+                Log.error(e, "Error while emptying index to be rebuilt");
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     /**
-     * Puts in the Lucene index the Cassandra's the row identified by the specified partition key and the clustering
-     * keys contained in the specified {@link ColumnFamily}.
+     * Waits for the pending rebuilding tasks and stops tracking the updated partitions.
+     */
+    public final void finishRebuild()
+    {
+        indexQueue.await();
+        rebuildUpdatedKeys = null;
+    }
+
+    private void markUpdated(DecoratedKey partitionKey)
+    {
+        Set<DecoratedKey> updatedKeys = rebuildUpdatedKeys;
+        if (updatedKeys != null)
+        {
+            updatedKeys.add(partitionKey);
+        }
+    }
+
+    /**
+     * Rebuilds the index entries of the specified partition using the specified {@link ColumnFamily}, which contains
+     * all the partition's data read from the SSTables at the start of the rebuild. If the partition has been updated
+     * since then, its data is read again from the storage engine. This operation is performed asynchronously, after
+     * any pending updates of the same partition.
      *
-     * @param key          The partition key.
+     * @param partitionKey The partition key.
+     * @param columnFamily The {@link ColumnFamily} containing all the partition's data.
+     * @param timestamp    The operation time stamp.
+     */
+    public final void rebuild(DecoratedKey partitionKey, ColumnFamily columnFamily, long timestamp)
+    {
+        indexQueue.submitAsynchronous(partitionKey, IndexingTask.REBUILD, partitionKey, columnFamily, timestamp);
+    }
+
+    private void rebuildTask(DecoratedKey partitionKey,
+                             ColumnFamily columnFamily,
+                             long timestamp,
+                             DocumentBuffer writes) throws IOException
+    {
+        Set<DecoratedKey> updatedKeys = rebuildUpdatedKeys;
+        if (updatedKeys != null && updatedKeys.contains(partitionKey))
+        {
+            QueryFilter filter = QueryFilter.getIdentityFilter(partitionKey, metadata.cfName, timestamp);
+            rebuildInner(partitionKey, baseCfs.getColumnFamily(filter), timestamp, writes);
+        }
+        else
+        {
+            rebuildInner(partitionKey, columnFamily, timestamp, writes);
+        }
+    }
+
+    /**
+     * Replaces the index entries of the specified partition with the live rows contained in the specified
+     * {@link ColumnFamily}, which contains all the partition's data, including its deletions.
+     *
+     * @param partitionKey The partition key.
+     * @param columnFamily The {@link ColumnFamily} containing all the partition's data, maybe {@code null}.
+     * @param timestamp    The operation time stamp.
+     * @param writes       The {@link DocumentBuffer} where the Lucene writes are done.
+     */
+    protected abstract void rebuildInner(DecoratedKey partitionKey,
+                                         ColumnFamily columnFamily,
+                                         long timestamp,
+                                         DocumentBuffer writes) throws IOException;
+
+    /**
+     * Puts in the Lucene index the Cassandra's the rows identified by the specified partition key and the clustering
+     * keys contained in the specified {@link ColumnFamily}, and removes the rows deleted by its {@link DeletionInfo}.
+     * The specified {@link ColumnFamily} can be the result of merging several updates of the same partition.
+     *
+     * @param partitionKey The partition key.
      * @param columnFamily The column family containing the clustering keys.
      * @param timestamp    The operation time stamp.
+     * @param writes       The {@link DocumentBuffer} where the Lucene writes are done.
      */
-    protected abstract void indexInner(ByteBuffer key, ColumnFamily columnFamily, long timestamp) throws IOException;
+    protected abstract void indexInner(DecoratedKey partitionKey,
+                                       ColumnFamily columnFamily,
+                                       long timestamp,
+                                       DocumentBuffer writes) throws IOException;
+
+    /**
+     * Returns {@code true} if the full rows contained in the specified {@link ColumnFamily} can be indexed without
+     * reading them from the storage engine, {@code false} otherwise. This is only possible if the index is configured
+     * as insert only, the {@link ColumnFamily} contains no deletions and the table has no static columns. Partial rows,
+     * that is, rows without row marker, must be read anyway.
+     *
+     * @param columnFamily The {@link ColumnFamily} to be indexed.
+     * @return {@code true} if the full rows contained in the specified {@link ColumnFamily} can be indexed without
+     * reading them, {@code false} otherwise.
+     */
+    protected boolean isInsertOnly(ColumnFamily columnFamily)
+    {
+        return insertOnly && columnFamily.deletionInfo().isLive() && !metadata.hasStaticColumns();
+    }
+
+    /**
+     * Records whether an indexing batch has required reading from the storage engine or not.
+     *
+     * @param read {@code true} if the batch has required reading, {@code false} otherwise.
+     */
+    protected void countRead(boolean read)
+    {
+        if (read)
+        {
+            metrics.indexingReads.inc();
+        }
+        else
+        {
+            metrics.indexingSkippedReads.inc();
+        }
+    }
 
     /**
      * Deletes the partition identified by the specified partition key. This operation is performed asynchronously.
      *
      * @param partitionKey The partition key identifying the partition to be deleted.
      */
-    public void delete(final DecoratedKey partitionKey)
+    public void delete(DecoratedKey partitionKey)
     {
-        indexQueue.submitAsynchronous(partitionKey, new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                try
-                {
-                    deleteInner(partitionKey);
-                }
-                catch (Exception e)
-                {
-                    Log.error(e, "Error while running deletion task");
-                }
-            }
-        });
+        markUpdated(partitionKey);
+        indexingBatcher.flush(partitionKey);
+        indexQueue.submitAsynchronous(partitionKey, IndexingTask.DELETE, partitionKey);
     }
 
     /**
      * Deletes the partition identified by the specified partition key.
      *
      * @param partitionKey The partition key identifying the partition to be deleted.
+     * @param writes       The {@link DocumentBuffer} where the Lucene writes are done.
      */
-    protected abstract void deleteInner(DecoratedKey partitionKey) throws IOException;
+    protected abstract void deleteInner(DecoratedKey partitionKey, DocumentBuffer writes) throws IOException;
 
     /**
-     * Deletes all the {@link Document}s.
+     * Deletes all the {@link Document}s, after running the pending indexing tasks. The emptied index is written with
+     * key doc values from now on.
      */
     public final void truncate() throws IOException
     {
-        luceneIndex.truncate();
+        searchCursors.invalidateAll();
+        indexingBatcher.flush();
+        // The documents built from now on are either deleted by the truncation or written after it
+        rowMapper.setKeyDocValues(true);
+        indexQueue.submitSynchronous(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    luceneIndex.truncate();
+                }
+                catch (Exception e)
+                {
+                    Log.error(e, "Error while running truncate task");
+                    throw new RuntimeException(e);
+                }
+            }
+        });
     }
 
     /**
@@ -208,14 +448,23 @@ public abstract class RowService
      */
     public final void delete() throws IOException
     {
+        searchCursors.invalidateAll();
+        indexingBatcher.close();
+        indexQueue.close();
         luceneIndex.drop();
+        metrics.release();
     }
 
     /**
-     * Commits the pending changes. This operation is performed asynchronously.
+     * Commits the pending changes, recording the specified commit log position as the one up to which all the writes
+     * have been applied to the index. The caller must ensure that all the writes before that position have been
+     * already submitted to this service.
+     *
+     * @param replayPosition The commit log position up to which all the writes have been submitted.
      */
-    public final void commit()
+    public final void commit(final ReplayPosition replayPosition)
     {
+        indexingBatcher.flush();
         indexQueue.submitSynchronous(new Runnable()
         {
             @Override
@@ -223,7 +472,7 @@ public abstract class RowService
             {
                 try
                 {
-                    luceneIndex.commit();
+                    luceneIndex.commit(replayPosition);
                 }
                 catch (Exception e)
                 {
@@ -233,15 +482,49 @@ public abstract class RowService
         });
     }
 
+    /**
+     * Returns the commit log position up to which all the writes have been committed to the index, or {@code null} if
+     * it is unknown.
+     *
+     * @return The commit log position up to which all the writes have been committed to the index.
+     */
+    public final ReplayPosition getReplayPosition()
+    {
+        return luceneIndex.getReplayPosition();
+    }
+
+    /**
+     * Returns the {@link Search} represented by the specified JSON {@code String}. Parsed searches are cached, so
+     * repeated searches are parsed only once.
+     *
+     * @param json A JSON {@code String} representing a {@link Search}.
+     * @return The {@link Search} represented by the specified JSON {@code String}.
+     */
+    public final Search search(String json)
+    {
+        Search search = searchCache.getIfPresent(json);
+        if (search == null)
+        {
+            search = Search.fromJson(json);
+            searchCache.put(json, search);
+        }
+        return search;
+    }
+
     /**
      * Returns the stored and indexed {@link Row}s satisfying the specified restrictions.
+     * <p/>
+     * If the search is not sorted, the rows are not post filtered and there could be more matching rows, the index
+     * searchers used for the search are kept open in a {@link SearchCursor} for a while, keyed by the last returned
+     * row. So if the following page of a paged query starts at that row, it is resumed from the same point in time view
+     * of the index, without searching again the rows already returned.
      *
      * @param search      The {@link Search} to be performed.
      * @param expressions A list of filtering {@link IndexExpression}s to be satisfied.
      * @param dataRange   A {@link DataRange} to be satisfied.
      * @param limit       The max number of {@link Row}s to be returned.
      * @param timestamp   The operation time stamp.
-     * @return The {@link Row}s satisfying the specified restrictions.
+     * @return The {@link Row}s satisfying the specified restrictions, sorted as they are retrieved from Lucene.
      */
     public final List<Row> search(Search search,
                                   List<IndexExpression> expressions,
@@ -251,59 +534,560 @@ public abstract class RowService
     {
         // Log.debug("Searching with search %s ", search);
 
+        if (search.refresh())
+        {
+            waitForWrites(dataRange);
+        }
+
         // Setup search arguments
-        Query rangeQuery = rowMapper.query(dataRange);
-        Query query = search.query(schema, rangeQuery);
+        List<IndexExpression> postFilteredExpressions = new ArrayList<>(expressions.size());
+        Query query = query(search, expressions, dataRange, postFilteredExpressions);
         Sort sort = search.sort(schema);
         boolean usesRelevance = search.usesRelevance();
+        boolean postFiltering = !postFilteredExpressions.isEmpty();
+
+        // Resume the cursor left by the previous page, if any
+        IndexSearcher[] searchers;
+        SearchResult lastDoc; // The last search result
+        SearchCursor cursor = search.refresh() ? null : cursor(search, expressions, dataRange);
+        if (cursor == null)
+        {
+            searchers = luceneIndex.searchers();
+            lastDoc = null;
+        }
+        else
+        {
+            query = cursor.query;
+            searchers = cursor.searchers;
+            lastDoc = cursor.lastDoc;
+            metrics.searchCursorsResumed.inc();
+        }
 
         // Setup search pagination
-        List<Row> rows = new LinkedList<>(); // The row list to be returned
-        SearchResult lastDoc = null; // The last search result
-        int collectedDocs = 0;
-        long searchTime = 0;
-        long collectTime = 0;
-        int numPages = 0;
-
-        // Paginate search collecting documents
-        List<SearchResult> searchResults;
-        int pageSize = Math.min(limit, MAX_PAGE_SIZE);
-        boolean maybeMore;
-        do
-        {
-            // Search rows identifiers in Lucene
-            long searchStartTime = System.currentTimeMillis();
-            searchResults = luceneIndex.search(query, sort, lastDoc, pageSize, fieldsToLoad(), usesRelevance);
-            collectedDocs += searchResults.size();
-            lastDoc = searchResults.isEmpty() ? null : searchResults.get(searchResults.size() - 1);
-            searchTime += System.currentTimeMillis() - searchStartTime;
-
-            // Collect rows from Cassandra
-            long collectStartTime = System.currentTimeMillis();
-            for (Row row : rows(searchResults, timestamp, usesRelevance))
+        List<Row> rows = new ArrayList<>(Math.min(limit, MAX_PAGE_SIZE)); // The row list to be returned
+        try
+        {
+            int collectedDocs = 0;
+            int readRows = 0;
+            long searchTime = 0;
+            long collectTime = 0;
+            int numPages = 0;
+
+            // Paginate search collecting documents
+            List<SearchResult> searchResults;
+            int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+            boolean maybeMore;
+            do
             {
-                if (row != null && accepted(row, expressions))
+                // Search rows identifiers in Lucene
+                long searchStartTime = System.currentTimeMillis();
+                searchResults = luceneIndex.search(searchers,
+                                                   dataRange,
+                                                   query,
+                                                   sort,
+                                                   lastDoc,
+                                                   pageSize,
+                                                   fieldsToLoad(),
+                                                   usesRelevance);
+                collectedDocs += searchResults.size();
+                lastDoc = searchResults.isEmpty() ? lastDoc : searchResults.get(searchResults.size() - 1);
+                searchTime += System.currentTimeMillis() - searchStartTime;
+
+                // Collect rows from Cassandra in Lucene's order, stopping as soon as there are enough rows
+                long collectStartTime = System.currentTimeMillis();
+                Iterator<Row> iterator = rows(searchResults, timestamp, usesRelevance);
+                while (rows.size() < limit && iterator.hasNext())
                 {
-                    rows.add(row);
+                    Row row = iterator.next();
+                    readRows++;
+                    if (!postFiltering || accepted(row, postFilteredExpressions))
+                    {
+                        row = slice(row, dataRange, timestamp);
+                        if (row.cf.hasColumns())
+                        {
+                            rows.add(row);
+                        }
+                    }
                 }
+                collectTime += System.currentTimeMillis() - collectStartTime;
+
+                // Setup next iteration, reading more documents per page only if rows are post filtered
+                maybeMore = searchResults.size() == pageSize;
+                pageSize = postFiltering
+                           ? Math.min(Math.max(FILTERING_PAGE_SIZE, limit - rows.size()), MAX_PAGE_SIZE)
+                           : Math.min(limit - rows.size(), MAX_PAGE_SIZE);
+                numPages++;
+
+                // Iterate while there are still documents to read and we don't have enough rows
+            } while (maybeMore && rows.size() < limit);
+
+            metrics.searchRowsRead.inc(readRows);
+            metrics.searchRowsReturned.inc(rows.size());
+
+            Log.debug("Lucene time: %d ms", searchTime);
+            Log.debug("Cassandra time: %d ms", collectTime);
+            Log.debug("Collected %d docs and %d rows in %d pages, returning %d rows",
+                      collectedDocs,
+                      readRows,
+                      numPages,
+                      rows.size());
+
+            // Keep the searchers open for the next page only if it can be resumed after the last row
+            if (maybeMore && sort == null && !usesRelevance && !postFiltering && rows.size() == limit && lastDoc != null)
+            {
+                cursor = new SearchCursor(expressions, dataRange.stopKey(), query, searchers, lastDoc);
+                searchCursors.put(Pair.<Search, RowPosition>create(search, lastDoc.getPartitionKey()), cursor);
+                searchers = null;
+            }
+            return rows;
+        }
+        finally
+        {
+            if (searchers != null)
+            {
+                luceneIndex.release(searchers);
+            }
+        }
+    }
+
+    /**
+     * Returns the specified {@link Row} restricted to the cells selected by the specified {@link DataRange}. Only the
+     * first partition of the pages of a paged query has not all its cells selected: it starts at the last cell returned
+     * by the previous page, so the CQL pager can recognize and discard the already returned row.
+     *
+     * @param row       A {@link Row} satisfying {@code dataRange}.
+     * @param dataRange A {@link DataRange}.
+     * @param timestamp The operation time stamp.
+     * @return The cells of {@code row} selected by {@code dataRange}.
+     */
+    private Row slice(Row row, DataRange dataRange, long timestamp)
+    {
+        ByteBuffer key = row.key.getKey();
+        if (dataRange.selectsFullRowFor(key))
+        {
+            return row;
+        }
+        IDiskAtomFilter filter = dataRange.columnFilter(key);
+        ColumnFamily columnFamily = row.cf.cloneMeShallow();
+        filter.collectReducedColumns(columnFamily, filter.getColumnIterator(row.cf), Integer.MIN_VALUE, timestamp);
+        return new Row(row.key, columnFamily);
+    }
+
+    /**
+     * Takes the {@link SearchCursor} left by a previous page of the specified search whose last row is the first row of
+     * the specified {@link DataRange}, if any.
+     *
+     * @param search      The {@link Search} to be performed.
+     * @param expressions A list of filtering {@link IndexExpression}s to be satisfied.
+     * @param dataRange   A {@link DataRange} to be satisfied.
+     * @return The {@link SearchCursor} to be resumed, or {@code null} if there is no one.
+     */
+    private SearchCursor cursor(Search search, List<IndexExpression> expressions, DataRange dataRange)
+    {
+        searchCursors.cleanUp();
+        Pair<Search, RowPosition> key = Pair.create(search, dataRange.startKey());
+        SearchCursor cursor = searchCursors.getIfPresent(key);
+        if (cursor != null
+            && cursor.expressions.equals(expressions)
+            && cursor.stopKey.equals(dataRange.stopKey())
+            && rowMapper.startsAt(dataRange, cursor.lastDoc)
+            && cursor.take())
+        {
+            searchCursors.asMap().remove(key, cursor);
+            return cursor;
+        }
+        return null;
+    }
+
+    /**
+     * Waits until the writes done before this call in the token range of the specified {@link DataRange} are visible
+     * to searches. That is, until the pending indexing tasks are done and the index searchers have been reopened. The
+     * wait is limited to a half of the range RPC timeout, after which the search goes on with the visible writes.
+     *
+     * @param dataRange A {@link DataRange} to be searched.
+     */
+    private void waitForWrites(DataRange dataRange)
+    {
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + DatabaseDescriptor.getRangeRpcTimeout() / 2;
+        indexingBatcher.flush();
+        boolean visible = indexQueue.awaitSubmitted(deadline - System.currentTimeMillis())
+                          && luceneIndex.waitForLastWrites(dataRange, deadline - System.currentTimeMillis());
+        long time = System.currentTimeMillis() - startTime;
+        if (visible)
+        {
+            Log.debug("Waited %d ms for previous writes to be visible", time);
+        }
+        else
+        {
+            Log.warn("Timed out after %d ms waiting for previous writes to be visible", time);
+        }
+    }
+
+    /**
+     * Returns the Lucene's {@link Query} for the specified {@link Search}, {@link DataRange} and filtering
+     * {@link IndexExpression}s. The expressions that can be solved by the {@link ColumnMapper}s of the {@link Schema}
+     * are added to the query as a non scoring filter, while the rest of them are added to the specified list, so they
+     * must be checked against the read rows.
+     *
+     * @param search                  The {@link Search} to be performed.
+     * @param expressions             A list of filtering {@link IndexExpression}s to be satisfied.
+     * @param dataRange               A {@link DataRange} to be satisfied.
+     * @param postFilteredExpressions The list where the {@link IndexExpression}s not solved by the index are added.
+     * @return The Lucene's {@link Query} for the specified search restrictions.
+     */
+    private Query query(Search search,
+                        List<IndexExpression> expressions,
+                        DataRange dataRange,
+                        List<IndexExpression> postFilteredExpressions)
+    {
+        Query rangeQuery = rowMapper.query(dataRange);
+        Query query = search.query(schema, rangeQuery, filterCache);
+
+        BooleanQuery expressionsQuery = new BooleanQuery();
+        for (IndexExpression expression : expressions)
+        {
+            Query expressionQuery = query(expression);
+            if (expressionQuery == null)
+            {
+                postFilteredExpressions.add(expression);
+            }
+            else
+            {
+                expressionsQuery.add(expressionQuery, BooleanClause.Occur.MUST);
             }
-            collectTime += System.currentTimeMillis() - collectStartTime;
+        }
+        if (expressionsQuery.clauses().isEmpty())
+        {
+            return query;
+        }
+        Filter filter = filterCache == null
+                        ? new QueryWrapperFilter(expressionsQuery)
+                        : filterCache.filter(expressionsQuery);
+        return new FilteredQuery(query, filter);
+    }
 
-            // Setup next iteration
-            maybeMore = searchResults.size() == pageSize;
-            pageSize = Math.min(Math.max(FILTERING_PAGE_SIZE, rows.size() - limit), MAX_PAGE_SIZE);
-            numPages++;
+    /**
+     * Returns the Lucene's {@link Query} equivalent to the specified {@link IndexExpression}, or {@code null} if the
+     * expression's column is not mapped in the {@link Schema} or its {@link ColumnMapper} can't exactly solve it.
+     *
+     * @param expression An {@link IndexExpression}.
+     * @return The Lucene's {@link Query} equivalent to {@code expression}, maybe {@code null}.
+     */
+    private Query query(IndexExpression expression)
+    {
+        ColumnDefinition def = metadata.getColumnDefinition(expression.column);
+        if (def == null)
+        {
+            return null;
+        }
+        String name = def.name.toString();
+        ColumnMapper<?> columnMapper = schema.getMapper(name);
+        return columnMapper == null ? null : columnMapper.query(name, def.type, expression);
+    }
 
-            // Iterate while there are still documents to read and we don't have enough rows
-        } while (maybeMore && rows.size() < limit);
+    /**
+     * Returns {@code true} if count queries can be answered only by the index, as set by the index options. The
+     * index-only counts may include rows whose TTL has expired but which haven't been removed from the index yet.
+     *
+     * @return {@code true} if count queries can be answered only by the index.
+     */
+    public boolean isIndexOnlyCounts()
+    {
+        return indexOnlyCounts;
+    }
 
-        Log.debug("Lucene time: %d ms", searchTime);
-        Log.debug("Cassandra time: %d ms", collectTime);
-        Log.debug("Collected %d docs and %d rows in %d pages", collectedDocs, rows.size(), numPages);
+    /**
+     * Returns {@code true} if all the specified {@link IndexExpression}s can be solved by the index, without checking
+     * them against the read rows, {@code false} otherwise.
+     *
+     * @param expressions A list of {@link IndexExpression}s.
+     * @return {@code true} if all the specified {@link IndexExpression}s can be solved by the index.
+     */
+    public final boolean isIndexed(List<IndexExpression> expressions)
+    {
+        for (IndexExpression expression : expressions)
+        {
+            if (query(expression) == null)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        Collections.sort(rows, comparator());
+    /**
+     * Returns the serialized best {@code limit} candidates satisfying the specified {@link Search} in the local index,
+     * without reading any row from the storage engine. This is the first phase of a distributed top-K search, whose
+     * second phase is {@link #fetchTopK(Search, List, int, long, ConsistencyLevel)}. The filtering expressions are
+     * solved by the index.
+     *
+     * @param search      The {@link Search} to be performed.
+     * @param expressions A list of filtering {@link IndexExpression}s to be satisfied, all of them solvable by the
+     *                    index, see {@link #isIndexed(List)}.
+     * @param dataRange   A {@link DataRange} to be satisfied.
+     * @param limit       The max number of candidates to be returned.
+     * @return The serialized best candidates, sorted as they are retrieved from Lucene.
+     */
+    public final ByteBuffer searchTopK(Search search,
+                                       List<IndexExpression> expressions,
+                                       DataRange dataRange,
+                                       int limit) throws IOException
+    {
+        if (search.refresh())
+        {
+            waitForWrites(dataRange);
+        }
+        List<IndexExpression> postFilteredExpressions = new ArrayList<>(0);
+        Query query = query(search, expressions, dataRange, postFilteredExpressions);
+        if (!postFilteredExpressions.isEmpty())
+        {
+            throw new IllegalArgumentException(String.format("Expressions not solvable by the index: %s",
+                                                             postFilteredExpressions));
+        }
+        Sort sort = search.sort(schema);
+        List<SearchResult> searchResults = luceneIndex.search(dataRange,
+                                                              query,
+                                                              sort,
+                                                              null,
+                                                              Math.min(limit, MAX_PAGE_SIZE),
+                                                              fieldsToLoad(),
+                                                              search.usesRelevance());
+        Log.debug("Found %d top-K candidates", searchResults.size());
+        return searchResultSerializer.serialize(searchResults);
+    }
+
+    /**
+     * Merges the candidates returned by {@link #searchTopK(Search, List, DataRange, int)} in several replicas and reads the
+     * best {@code limit} of them with the specified {@link ConsistencyLevel}. The candidates that don't exist anymore
+     * are skipped and replaced by the following ones. If there are not enough candidates to fill the limit but some
+     * replica could have more of them, {@code null} is returned, so the caller can fall back to a regular search.
+     *
+     * @param search           The {@link Search} that produced the candidates.
+     * @param candidates       The serialized candidates returned by each replica.
+     * @param limit            The max number of {@link Row}s to be returned.
+     * @param timestamp        The operation time stamp.
+     * @param consistencyLevel The {@link ConsistencyLevel} for reading the rows.
+     * @return The best {@link Row}s, sorted, or {@code null} if the candidates were not enough.
+     */
+    public final List<Row> fetchTopK(Search search,
+                                     List<ByteBuffer> candidates,
+                                     int limit,
+                                     long timestamp,
+                                     ConsistencyLevel consistencyLevel)
+    throws UnavailableException, ReadTimeoutException
+    {
+        long startTime = System.currentTimeMillis();
+        int candidatesLimit = Math.min(limit, MAX_PAGE_SIZE);
 
-        return rows;
+        // Deserialize the candidates of each replica
+        TopDocs[] shardHits = new TopDocs[candidates.size()];
+        Map<ScoreDoc, SearchResult> searchResults = new IdentityHashMap<>();
+        boolean maybeMore = false;
+        int numCandidates = 0;
+        for (int i = 0; i < shardHits.length; i++)
+        {
+            List<SearchResult> replicaResults = searchResultSerializer.deserialize(candidates.get(i));
+            ScoreDoc[] scoreDocs = new ScoreDoc[replicaResults.size()];
+            for (int j = 0; j < scoreDocs.length; j++)
+            {
+                SearchResult searchResult = replicaResults.get(j);
+                scoreDocs[j] = searchResult.getScoreDoc();
+                searchResults.put(scoreDocs[j], searchResult);
+            }
+            shardHits[i] = new TopDocs(scoreDocs.length, scoreDocs, Float.NaN);
+            maybeMore |= scoreDocs.length >= candidatesLimit;
+            numCandidates += scoreDocs.length;
+        }
+
+        // Merge the candidates removing the duplicates returned by the replicas of the same range
+        TopDocs merged;
+        try
+        {
+            merged = TopDocs.merge(search.sort(schema), Math.max(numCandidates, 1), shardHits);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        Set<Pair<DecoratedKey, CellName>> seen = new HashSet<>();
+        List<SearchResult> mergedResults = new ArrayList<>(merged.scoreDocs.length);
+        for (ScoreDoc scoreDoc : merged.scoreDocs)
+        {
+            SearchResult searchResult = searchResults.get(scoreDoc);
+            if (seen.add(Pair.create(searchResult.getPartitionKey(), searchResult.getClusteringKey())))
+            {
+                mergedResults.add(searchResult);
+            }
+        }
+
+        // Read the best candidates, replacing the missing ones with the following candidates
+        boolean usesRelevance = search.usesRelevance();
+        List<Row> rows = new ArrayList<>(Math.min(limit, mergedResults.size()));
+        int position = 0;
+        int numReads = 0;
+        while (rows.size() < limit && position < mergedResults.size())
+        {
+            int end = Math.min(position + limit - rows.size(), mergedResults.size());
+            rows.addAll(fetch(mergedResults.subList(position, end), timestamp, usesRelevance, consistencyLevel));
+            position = end;
+            numReads++;
+        }
+
+        Log.debug("Fetched %d rows from %d candidates in %d reads in %d ms",
+                  rows.size(),
+                  mergedResults.size(),
+                  numReads,
+                  System.currentTimeMillis() - startTime);
+
+        return rows.size() < limit && maybeMore ? null : rows;
+    }
+
+    /**
+     * Returns the serialized count and {@link Aggregation}s of the stored and indexed rows satisfying the specified
+     * restrictions in the local index, without reading any row from the storage engine. The partial results of each
+     * replica set are merged by {@link #aggregate(Search, List, int, ColumnIdentifier)}.
+     *
+     * @param search      The {@link Search} to be performed.
+     * @param expressions A list of filtering {@link IndexExpression}s to be satisfied, all of them solvable by the
+     *                    index, see {@link #isIndexed(List)}.
+     * @param dataRange   A {@link DataRange} to be satisfied.
+     * @return The serialized local {@link Aggregates}.
+     */
+    public final ByteBuffer aggregate(Search search, List<IndexExpression> expressions, DataRange dataRange)
+    throws IOException
+    {
+        if (search.refresh())
+        {
+            waitForWrites(dataRange);
+        }
+        List<IndexExpression> postFilteredExpressions = new ArrayList<>(0);
+        Query query = query(search, expressions, dataRange, postFilteredExpressions);
+        if (!postFilteredExpressions.isEmpty())
+        {
+            throw new IllegalArgumentException(String.format("Expressions not solvable by the index: %s",
+                                                             postFilteredExpressions));
+        }
+        AggregatesCollector collector = new AggregatesCollector(search.getAggregations(),
+                                                                search.aggregationTypes(schema));
+        Aggregates aggregates = luceneIndex.aggregate(dataRange, query, collector);
+        metrics.searchAggregations.inc();
+        Log.debug("Aggregated %d documents", aggregates.getCount());
+        return aggregates.serialize();
+    }
+
+    /**
+     * Merges the partial aggregates returned by {@link #aggregate(Search, List, DataRange)} in several replica sets
+     * into a single row {@link ResultSet}, containing the count of matched rows followed by a column for each
+     * {@link Aggregation} of the {@link Search}. Numeric aggregations are returned as doubles, and facets are returned
+     * as a JSON object mapping the top terms to their number of rows.
+     *
+     * @param search     The {@link Search} that produced the partial aggregates.
+     * @param partials   The serialized partial aggregates returned by each replica set.
+     * @param limit      The max count to be returned.
+     * @param countAlias The alias of the count column, maybe {@code null}.
+     * @return A single row {@link ResultSet} with the count and the aggregations.
+     */
+    public final ResultSet aggregate(Search search, List<ByteBuffer> partials, int limit, ColumnIdentifier countAlias)
+    {
+        List<Aggregation> aggregations = search.getAggregations();
+        Aggregates aggregates = new Aggregates(aggregations);
+        for (ByteBuffer partial : partials)
+        {
+            aggregates.merge(Aggregates.deserialize(partial));
+        }
+
+        List<ColumnSpecification> specs = new ArrayList<>(aggregations.size() + 1);
+        List<ByteBuffer> row = new ArrayList<>(aggregations.size() + 1);
+        specs.add(ResultSet.makeCountMetadata(metadata.ksName, metadata.cfName, countAlias).names.get(0));
+        row.add(LongType.instance.decompose(Math.min(aggregates.getCount(), limit)));
+        for (int i = 0; i < aggregations.size(); i++)
+        {
+            Aggregation aggregation = aggregations.get(i);
+            ColumnIdentifier name = new ColumnIdentifier(aggregation.name(), true);
+            switch (aggregation.getType())
+            {
+                case MIN:
+                    specs.add(new ColumnSpecification(metadata.ksName, metadata.cfName, name, DoubleType.instance));
+                    row.add(decompose(aggregates.getMin(i)));
+                    break;
+                case MAX:
+                    specs.add(new ColumnSpecification(metadata.ksName, metadata.cfName, name, DoubleType.instance));
+                    row.add(decompose(aggregates.getMax(i)));
+                    break;
+                case SUM:
+                    specs.add(new ColumnSpecification(metadata.ksName, metadata.cfName, name, DoubleType.instance));
+                    row.add(decompose(aggregates.getSum(i)));
+                    break;
+                case FACET:
+                    specs.add(new ColumnSpecification(metadata.ksName, metadata.cfName, name, UTF8Type.instance));
+                    row.add(UTF8Type.instance.decompose(json(aggregates.getTerms(i, aggregation.getLimit()))));
+                    break;
+            }
+        }
+        Log.debug("Merged %d partial aggregates counting %d rows", partials.size(), aggregates.getCount());
+        return new ResultSet(new ResultSet.Metadata(specs), Collections.singletonList(row));
+    }
+
+    private static ByteBuffer decompose(Double value)
+    {
+        return value == null ? null : DoubleType.instance.decompose(value);
+    }
+
+    private static String json(Map<String, Long> terms)
+    {
+        try
+        {
+            return JsonSerializer.toString(terms);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the {@link Row}s identified by the specified {@link SearchResult}s, read with the specified
+     * {@link ConsistencyLevel} and using the specified time stamp to ignore deleted columns. The {@link Row}s are
+     * returned in the same order as the {@link SearchResult}s, and the {@link Row}s that don't exist anymore are
+     * skipped.
+     *
+     * @param searchResults    The {@link SearchResult}s.
+     * @param timestamp        The time stamp to ignore deleted columns.
+     * @param usesRelevance    If the search uses relevance.
+     * @param consistencyLevel The {@link ConsistencyLevel} for reading the rows.
+     * @return The {@link Row}s identified by the specified {@link SearchResult}s.
+     */
+    protected abstract List<Row> fetch(List<SearchResult> searchResults,
+                                       long timestamp,
+                                       boolean usesRelevance,
+                                       ConsistencyLevel consistencyLevel)
+    throws UnavailableException, ReadTimeoutException;
+
+    /**
+     * Reads the specified {@link ReadCommand}s with the specified {@link ConsistencyLevel}, returning the read
+     * {@link Row}s indexed by partition key.
+     *
+     * @param commands         The {@link ReadCommand}s to be executed.
+     * @param consistencyLevel The {@link ConsistencyLevel} for reading the rows.
+     * @return The read {@link Row}s indexed by partition key.
+     */
+    protected Map<DecoratedKey, Row> read(List<ReadCommand> commands, ConsistencyLevel consistencyLevel)
+    throws UnavailableException, ReadTimeoutException
+    {
+        try
+        {
+            Map<DecoratedKey, Row> rows = new HashMap<>(commands.size());
+            for (Row row : StorageProxy.read(commands, consistencyLevel))
+            {
+                rows.put(row.key, row);
+            }
+            return rows;
+        }
+        catch (IsBootstrappingException | InvalidRequestException e)
+        {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -380,15 +1164,31 @@ public abstract class RowService
     }
 
     /**
-     * Returns the {@link Row}s identified by the specified {@link Document}s, using the specified time stamp to ignore
-     * deleted columns. The {@link Row}s are retrieved from the storage engine, so it involves IO operations.
+     * Returns the {@link Row}s identified by the specified {@link SearchResult}s, using the specified time stamp to
+     * ignore deleted columns. The {@link Row}s are retrieved from the storage engine, so it involves IO operations.
+     * The {@link Row}s are lazily retrieved while iterating, and they are returned in the same order as the
+     * {@link SearchResult}s. The {@link Row}s that don't exist anymore are skipped.
      *
      * @param searchResults The {@link SearchResult}s
      * @param timestamp     The time stamp to ignore deleted columns.
      * @param usesRelevance If the search uses relevance.
-     * @return The {@link Row} identified by the specified {@link Document}s
+     * @return The {@link Row}s identified by the specified {@link SearchResult}s.
+     */
+    protected abstract Iterator<Row> rows(List<SearchResult> searchResults, long timestamp, boolean usesRelevance);
+
+    /**
+     * Returns a {@link ColumnFamily} composed by the non deleted and non expired {@link Cell}s of the specified
+     * {@link ColumnFamily}, which is modified.
+     *
+     * @param columnFamily A {@link ColumnFamily}.
+     * @param timestamp    The max allowed timestamp for the {@link Cell}s.
+     * @return A {@link ColumnFamily} composed by the live {@link Cell}s of the specified {@link ColumnFamily}.
      */
-    protected abstract List<Row> rows(List<SearchResult> searchResults, long timestamp, boolean usesRelevance) throws IOException;
+    protected ColumnFamily cleanDeleted(ColumnFamily columnFamily, long timestamp)
+    {
+        ColumnFamilyStore.removeDeletedColumnsOnly(columnFamily, Integer.MIN_VALUE, SecondaryIndexManager.nullUpdater);
+        return cleanExpired(columnFamily, timestamp);
+    }
 
     /**
      * Returns a {@link ColumnFamily} composed by the non expired {@link Cell}s of the specified  {@link ColumnFamily}.
@@ -481,6 +1281,53 @@ public abstract class RowService
         return Float.parseFloat(value);
     }
 
+    /**
+     * Merges the specified {@link Row}s into a list sorted by the specified {@link RowComparator} without duplicates.
+     * The {@link Row}s are expected to be composed by one or more runs already sorted by the comparator, such as the
+     * concatenated partial results of several token ranges. These runs are merged without sorting them again.
+     *
+     * @param rows       The {@link Row}s to be merged.
+     * @param comparator The {@link RowComparator} defining the order of each run.
+     * @return The merged {@link Row}s, sorted by {@code comparator} and without duplicates.
+     */
+    public List<Row> merge(List<Row> rows, RowComparator comparator)
+    {
+        // Split sorted runs
+        List<Iterator<Row>> runs = new ArrayList<>();
+        List<Row> run = new ArrayList<>();
+        for (Row row : rows)
+        {
+            if (!run.isEmpty() && comparator.compare(run.get(run.size() - 1), row) > 0)
+            {
+                runs.add(run.iterator());
+                run = new ArrayList<>();
+            }
+            run.add(row);
+        }
+        runs.add(run.iterator());
+
+        // Merge runs removing duplicates
+        RowComparator naturalComparator = comparator();
+        boolean isNatural = comparator instanceof RowComparatorNatural;
+        Set<Row> seen = isNatural ? null : new TreeSet<>(naturalComparator);
+        List<Row> result = new ArrayList<>(rows.size());
+        Row last = null;
+        Iterator<Row> iterator = runs.size() == 1 ? runs.get(0) : Iterators.mergeSorted(runs, comparator);
+        while (iterator.hasNext())
+        {
+            Row row = iterator.next();
+            boolean duplicated = isNatural
+                                 ? last != null && naturalComparator.compare(last, row) == 0
+                                 : !seen.add(row);
+            if (!duplicated)
+            {
+                result.add(row);
+                last = row;
+            }
+        }
+        return result;
+    }
+
     /**
      * Optimizes the managed Lucene's index. It can be a very heavy operation.
      */
@@ -525,4 +1372,96 @@ public abstract class RowService
         return result;
     }
 
+    /**
+     * The open state of a paged search, allowing to resume it after its last returned row.
+     */
+    private static class SearchCursor
+    {
+        private final List<IndexExpression> expressions;
+        private final RowPosition stopKey;
+        private final Query query;
+        private final IndexSearcher[] searchers;
+        private final SearchResult lastDoc;
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        private SearchCursor(List<IndexExpression> expressions,
+                             RowPosition stopKey,
+                             Query query,
+                             IndexSearcher[] searchers,
+                             SearchResult lastDoc)
+        {
+            this.expressions = expressions;
+            this.stopKey = stopKey;
+            this.query = query;
+            this.searchers = searchers;
+            this.lastDoc = lastDoc;
+        }
+
+        /**
+         * Takes the ownership of this cursor's searchers, which can be done only once.
+         *
+         * @return {@code true} if the ownership has been taken, {@code false} if it was already taken.
+         */
+        private boolean take()
+        {
+            return taken.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * The {@link TaskQueue.Consumer} of an indexing thread, buffering the Lucene writes of each batch of tasks.
+     */
+    private class IndexingConsumer implements TaskQueue.Consumer<IndexingTask>
+    {
+        private final DocumentBuffer writes = new DocumentBuffer(luceneIndex, rowMapper);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void consume(IndexingTask task) throws IOException
+        {
+            switch (task.type)
+            {
+                case INDEX:
+                    indexingBatcher.index(task.batch, writes);
+                    break;
+                case REBUILD:
+                    rebuildTask(task.partitionKey, task.columnFamily, task.timestamp, writes);
+                    break;
+                case DELETE:
+                    deleteInner(task.partitionKey, writes);
+                    break;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void flush() throws IOException
+        {
+            writes.flush();
+        }
+    }
+
+    /**
+     * {@link RemovalListener} releasing the searchers of the evicted {@link SearchCursor}s that have not been taken.
+     */
+    private class SearchCursorReleaser implements RemovalListener<Pair<Search, RowPosition>, SearchCursor>
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onRemoval(RemovalNotification<Pair<Search, RowPosition>, SearchCursor> notification)
+        {
+            SearchCursor cursor = notification.getValue();
+            if (cursor != null && cursor.take())
+            {
+                luceneIndex.release(cursor.searchers);
+            }
+        }
+    }
+
 }
@@ -15,20 +15,28 @@
  */
 package com.stratio.cassandra.index;
 
+import com.google.common.collect.AbstractIterator;
+import com.stratio.cassandra.index.util.ReadAhead;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.ConsistencyLevel;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.SliceFromReadCommand;
+import org.apache.cassandra.db.columniterator.IdentityQueryFilter;
 import org.apache.cassandra.db.filter.QueryFilter;
-import org.apache.lucene.document.Document;
+import org.apache.cassandra.exceptions.ReadTimeoutException;
+import org.apache.cassandra.exceptions.UnavailableException;
 import org.apache.lucene.index.Term;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -63,6 +71,7 @@ public class RowServiceSkinny extends RowService
         super(baseCfs, columnDefinition);
         this.rowMapper = (RowMapperSkinny) super.rowMapper;
         luceneIndex.init(rowMapper.sort());
+        rowMapper.setKeyDocValues(luceneIndex.hasKeyDocValues());
     }
 
     /**
@@ -80,21 +89,32 @@ public class RowServiceSkinny extends RowService
      * {@inheritDoc}
      */
     @Override
-    public void indexInner(ByteBuffer key, ColumnFamily columnFamily, long timestamp) throws IOException
+    public void indexInner(DecoratedKey partitionKey,
+                           ColumnFamily columnFamily,
+                           long timestamp,
+                           DocumentBuffer writes) throws IOException
     {
-        DecoratedKey partitionKey = rowMapper.partitionKey(key);
-
         if (columnFamily.iterator().hasNext()) // Create or update row
         {
-            Row row = row(partitionKey, timestamp); // Read row
-            Document document = rowMapper.document(row);
+            boolean readFree = isInsertOnly(columnFamily) && rowMapper.containsFullRows(columnFamily);
+            countRead(!readFree);
+            Row row = readFree
+                      ? new Row(partitionKey, cleanExpired(columnFamily, timestamp))
+                      : row(partitionKey, timestamp); // Read row
             Term term = rowMapper.term(partitionKey);
-            luceneIndex.upsert(term, document); // Store document
+            if (row == null || !row.cf.iterator().hasNext()) // Deleted after the update
+            {
+                writes.delete(partitionKey, term);
+            }
+            else
+            {
+                writes.upsert(partitionKey, term, row); // Buffer row
+            }
         }
         else if (columnFamily.deletionInfo() != null) // Delete full row
         {
             Term term = rowMapper.term(partitionKey);
-            luceneIndex.delete(term);
+            writes.delete(partitionKey, term);
         }
     }
 
@@ -102,40 +122,121 @@ public class RowServiceSkinny extends RowService
      * {@inheritDoc}
      */
     @Override
-    public void deleteInner(DecoratedKey partitionKey) throws IOException
+    public void deleteInner(DecoratedKey partitionKey, DocumentBuffer writes) throws IOException
     {
         Term term = rowMapper.term(partitionKey);
-        luceneIndex.delete(term);
+        writes.delete(partitionKey, term);
     }
 
     /**
      * {@inheritDoc}
      */
-    protected List<Row> rows(List<SearchResult> searchResults, long timestamp, boolean usesRelevance)
+    @Override
+    protected void rebuildInner(DecoratedKey partitionKey,
+                                ColumnFamily columnFamily,
+                                long timestamp,
+                                DocumentBuffer writes) throws IOException
     {
-        List<Row> rows = new ArrayList<>(searchResults.size());
-        for (SearchResult searchResult : searchResults)
+        Term term = rowMapper.term(partitionKey);
+        ColumnFamily cleanColumnFamily = columnFamily == null ? null : cleanDeleted(columnFamily, timestamp);
+        if (cleanColumnFamily != null && cleanColumnFamily.iterator().hasNext())
         {
+            writes.upsert(partitionKey, term, new Row(partitionKey, cleanColumnFamily));
+        }
+        else
+        {
+            writes.delete(partitionKey, term);
+        }
+    }
 
-            // Extract row from document
-            DecoratedKey partitionKey = searchResult.getPartitionKey();
-            Row row = row(partitionKey, timestamp);
-
-            if (row == null)
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Iterator<Row> rows(List<SearchResult> searchResults, final long timestamp, final boolean usesRelevance)
+    {
+        // Read partitions concurrently
+        List<DecoratedKey> partitionKeys = new ArrayList<>(searchResults.size());
+        for (SearchResult searchResult : searchResults)
+        {
+            partitionKeys.add(searchResult.getPartitionKey());
+        }
+        final ReadAhead<DecoratedKey, Row> readAhead = new ReadAhead<DecoratedKey, Row>(readExecutor,
+                                                                                        partitionKeys,
+                                                                                        concurrentReads)
+        {
+            @Override
+            protected Row read(DecoratedKey partitionKey)
             {
-                return null;
+                return row(partitionKey, timestamp);
             }
+        };
 
-            // Return decorated row
-            if (usesRelevance)
+        final Iterator<SearchResult> iterator = searchResults.iterator();
+        return new AbstractIterator<Row>()
+        {
+            @Override
+            protected Row computeNext()
             {
-                Float score = searchResult.getScore();
-                Row decoratedRow = addScoreColumn(row, timestamp, score);
-                rows.add(decoratedRow);
+                while (iterator.hasNext())
+                {
+                    // Extract row from document
+                    SearchResult searchResult = iterator.next();
+                    DecoratedKey partitionKey = searchResult.getPartitionKey();
+                    Row row = readAhead.get(partitionKey);
+
+                    if (row != null)
+                    {
+                        // Return decorated row
+                        if (usesRelevance)
+                        {
+                            Float score = searchResult.getScore();
+                            return addScoreColumn(row, timestamp, score);
+                        }
+                        return row;
+                    }
+                }
+                return endOfData();
             }
-            else
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All the partitions are read at once.
+     */
+    @Override
+    protected List<Row> fetch(List<SearchResult> searchResults,
+                              long timestamp,
+                              boolean usesRelevance,
+                              ConsistencyLevel consistencyLevel)
+    throws UnavailableException, ReadTimeoutException
+    {
+        List<ReadCommand> commands = new ArrayList<>(searchResults.size());
+        for (SearchResult searchResult : searchResults)
+        {
+            commands.add(new SliceFromReadCommand(metadata.ksName,
+                                                  searchResult.getPartitionKey().getKey(),
+                                                  metadata.cfName,
+                                                  timestamp,
+                                                  new IdentityQueryFilter()));
+        }
+        Map<DecoratedKey, Row> partitions = read(commands, consistencyLevel);
+
+        List<Row> rows = new ArrayList<>(searchResults.size());
+        for (SearchResult searchResult : searchResults)
+        {
+            DecoratedKey partitionKey = searchResult.getPartitionKey();
+            Row partition = partitions.get(partitionKey);
+            if (partition != null && partition.cf != null)
             {
-                rows.add(row);
+                ColumnFamily cleanColumnFamily = cleanExpired(partition.cf, timestamp);
+                if (cleanColumnFamily.iterator().hasNext())
+                {
+                    Row row = new Row(partitionKey, cleanColumnFamily);
+                    rows.add(usesRelevance ? addScoreColumn(row, timestamp, searchResult.getScore()) : row);
+                }
             }
         }
         return rows;
@@ -15,19 +15,22 @@
  */
 package com.stratio.cassandra.index;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
+import com.stratio.cassandra.index.util.ReadAhead;
+import com.stratio.cassandra.index.util.Log;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.filter.ColumnSlice;
 import org.apache.cassandra.db.filter.QueryFilter;
 import org.apache.cassandra.db.filter.SliceQueryFilter;
-import org.apache.lucene.document.Document;
+import org.apache.cassandra.exceptions.ReadTimeoutException;
+import org.apache.cassandra.exceptions.UnavailableException;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -60,6 +63,7 @@ public class RowServiceWide extends RowService
         super(baseCfs, columnDefinition);
         this.rowMapper = (RowMapperWide) super.rowMapper;
         luceneIndex.init(rowMapper.sort());
+        rowMapper.setKeyDocValues(luceneIndex.hasKeyDocValues());
     }
 
     /**
@@ -75,24 +79,64 @@ public class RowServiceWide extends RowService
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * All the clustering keys of the specified {@link ColumnFamily} are read with a single multi slice query. If the
+     * index is insert only, the rows containing their row marker are indexed without reading them, so only the partial
+     * rows are read.
      */
     @Override
-    public void indexInner(ByteBuffer key, ColumnFamily columnFamily, long timestamp) throws IOException
+    public void indexInner(DecoratedKey partitionKey,
+                           ColumnFamily columnFamily,
+                           long timestamp,
+                           DocumentBuffer writes) throws IOException
     {
         DeletionInfo deletionInfo = columnFamily.deletionInfo();
-        DecoratedKey partitionKey = rowMapper.partitionKey(key);
 
         if (columnFamily.iterator().hasNext())
         {
+            if (!deletionInfo.getTopLevelDeletion().isLive()) // Partition deletion followed by updates
+            {
+                Term term = rowMapper.term(partitionKey);
+                writes.delete(partitionKey, term);
+            }
+            delete(partitionKey, deletionInfo.rangeIterator(), writes); // Row deletions followed by updates
+
+            Map<CellName, Row> rows = new LinkedHashMap<>();
             List<CellName> clusteringKeys = rowMapper.clusteringKeys(columnFamily);
-            Map<CellName, Row> rows = rows(partitionKey, clusteringKeys, timestamp);
+            if (isInsertOnly(columnFamily))
+            {
+                // Full rows are indexed as they come, only partial rows are read
+                List<CellName> partialClusteringKeys = new ArrayList<>();
+                Map<CellName, ColumnFamily> fullRows = rowMapper.splitRows(cleanExpired(columnFamily, timestamp));
+                for (CellName clusteringKey : clusteringKeys)
+                {
+                    ColumnFamily rowColumnFamily = fullRows.get(clusteringKey);
+                    if (rowColumnFamily == null) // Without row marker, or with an expired one
+                    {
+                        partialClusteringKeys.add(clusteringKey);
+                    }
+                    else
+                    {
+                        rows.put(clusteringKey, new Row(partitionKey, rowColumnFamily));
+                    }
+                }
+                clusteringKeys = partialClusteringKeys;
+            }
+            countRead(!clusteringKeys.isEmpty());
+            if (!clusteringKeys.isEmpty())
+            {
+                Map<CellName, Row> readRows = rows(partitionKey, clusteringKeys, timestamp);
+                if (readRows != null)
+                {
+                    rows.putAll(readRows);
+                }
+            }
             for (Map.Entry<CellName, Row> entry : rows.entrySet())
             {
                 CellName clusteringKey = entry.getKey();
                 Row row = entry.getValue();
-                Document document = rowMapper.document(row);
                 Term term = rowMapper.term(partitionKey, clusteringKey);
-                luceneIndex.upsert(term, document); // Store document
+                writes.upsert(partitionKey, term, row); // Buffer row
             }
         }
         else if (deletionInfo != null)
@@ -100,52 +144,85 @@ public class RowServiceWide extends RowService
             Iterator<RangeTombstone> iterator = deletionInfo.rangeIterator();
             if (iterator.hasNext())
             {
-                while (iterator.hasNext())
-                {
-                    RangeTombstone rangeTombstone = iterator.next();
-                    Query query = rowMapper.query(partitionKey, rangeTombstone);
-                    System.out.println("DELETING WITH RANGE TOMBSTONE " + query);
-                    luceneIndex.delete(query);
-                }
+                delete(partitionKey, iterator, writes);
             }
             else
             {
                 Term term = rowMapper.term(partitionKey);
-                luceneIndex.delete(term);
+                writes.delete(partitionKey, term);
             }
         }
     }
 
+    /**
+     * Deletes the rows of the specified partition contained in the specified {@link RangeTombstone}s.
+     *
+     * @param partitionKey The partition key.
+     * @param iterator     The {@link RangeTombstone}s to be deleted.
+     * @param writes       The {@link DocumentBuffer} where the deletions are done.
+     */
+    private void delete(DecoratedKey partitionKey,
+                        Iterator<RangeTombstone> iterator,
+                        DocumentBuffer writes) throws IOException
+    {
+        while (iterator.hasNext())
+        {
+            RangeTombstone rangeTombstone = iterator.next();
+            Query query = rowMapper.query(partitionKey, rangeTombstone);
+            Log.debug("Deleting with range tombstone %s", query);
+            writes.delete(partitionKey, query);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public void deleteInner(DecoratedKey partitionKey) throws IOException
+    public void deleteInner(DecoratedKey partitionKey, DocumentBuffer writes) throws IOException
     {
         Term term = rowMapper.term(partitionKey);
-        luceneIndex.delete(term);
+        writes.delete(partitionKey, term);
     }
 
     /**
      * {@inheritDoc}
-     * <p/>
-     * The {@link Row} is a logical one.
      */
     @Override
-    protected List<Row> rows(List<SearchResult> searchResults, long timestamp, boolean usesRelevance)
+    protected void rebuildInner(DecoratedKey partitionKey,
+                                ColumnFamily columnFamily,
+                                long timestamp,
+                                DocumentBuffer writes) throws IOException
     {
-        // Initialize result
-        List<Row> rows = new ArrayList<>(searchResults.size());
+        Term partitionTerm = rowMapper.term(partitionKey);
+        writes.delete(partitionKey, partitionTerm);
+        if (columnFamily != null)
+        {
+            ColumnFamily cleanColumnFamily = cleanDeleted(columnFamily, timestamp);
+            for (Map.Entry<CellName, ColumnFamily> entry : rowMapper.splitRows(cleanColumnFamily).entrySet())
+            {
+                CellName clusteringKey = entry.getKey();
+                Row row = new Row(partitionKey, entry.getValue());
+                Term term = rowMapper.term(partitionKey, clusteringKey);
+                writes.upsert(partitionKey, term, row); // Buffer row
+            }
+        }
+    }
 
-        // Group key queries by partition keys
-        Map<CellName, Float> scoresByClusteringKey = new HashMap<>(searchResults.size());
-        Map<DecoratedKey, List<CellName>> keys = new HashMap<>();
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The {@link Row} is a logical one. All the clustering keys of the same partition are read together, and several
+     * partitions are read concurrently ahead of the iteration.
+     */
+    @Override
+    protected Iterator<Row> rows(final List<SearchResult> searchResults, final long timestamp, final boolean usesRelevance)
+    {
+        // Group clustering keys by partition keys, keeping Lucene's order
+        final Map<DecoratedKey, List<CellName>> keys = new LinkedHashMap<>();
         for (SearchResult searchResult : searchResults)
         {
             DecoratedKey partitionKey = searchResult.getPartitionKey();
             CellName clusteringKey = searchResult.getClusteringKey();
-            Float score = searchResult.getScore();
-            scoresByClusteringKey.put(clusteringKey, score);
             List<CellName> clusteringKeys = keys.get(partitionKey);
             if (clusteringKeys == null)
             {
@@ -155,27 +232,73 @@ public class RowServiceWide extends RowService
             clusteringKeys.add(clusteringKey);
         }
 
-        for (Map.Entry<DecoratedKey, List<CellName>> entry : keys.entrySet())
+        // Read partitions concurrently
+        List<DecoratedKey> partitionKeys = new ArrayList<>(keys.keySet());
+        final ReadAhead<DecoratedKey, Map<CellName, Row>> readAhead = new ReadAhead<DecoratedKey, Map<CellName, Row>>(
+                readExecutor,
+                partitionKeys,
+                concurrentReads)
         {
-            DecoratedKey partitionKey = entry.getKey();
-            for (List<CellName> clusteringKeys : Lists.partition(entry.getValue(), 1000))
+            @Override
+            protected Map<CellName, Row> read(DecoratedKey partitionKey)
             {
-                Map<CellName, Row> partitionRows = rows(partitionKey, clusteringKeys, timestamp);
-                for (Map.Entry<CellName, Row> entry1 : partitionRows.entrySet())
+                return rows(partitionKey, keys.get(partitionKey), timestamp, 1000);
+            }
+        };
+
+        final Iterator<SearchResult> iterator = searchResults.iterator();
+        return new AbstractIterator<Row>()
+        {
+            private final Map<DecoratedKey, Map<CellName, Row>> partitions = new HashMap<>();
+
+            @Override
+            protected Row computeNext()
+            {
+                while (iterator.hasNext())
                 {
-                    Row row = entry1.getValue();
-                    if (usesRelevance)
+                    SearchResult searchResult = iterator.next();
+                    DecoratedKey partitionKey = searchResult.getPartitionKey();
+                    Map<CellName, Row> partitionRows = partitions.get(partitionKey);
+                    if (partitionRows == null)
                     {
-                        CellName clusteringKey = entry1.getKey();
-                        Float score = scoresByClusteringKey.get(clusteringKey);
-                        Row scoredRow = addScoreColumn(row, timestamp, score);
-                        rows.add(scoredRow);
+                        partitionRows = readAhead.get(partitionKey);
+                        partitions.put(partitionKey, partitionRows);
                     }
-                    else
+                    Row row = partitionRows.remove(searchResult.getClusteringKey());
+                    if (row != null)
                     {
-                        rows.add(row);
+                        if (usesRelevance)
+                        {
+                            Float score = searchResult.getScore();
+                            return addScoreColumn(row, timestamp, score);
+                        }
+                        return row;
                     }
                 }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Returns the CQL3 {@link Row}s identified by the specified key pairs, using the specified time stamp to ignore
+     * deleted columns. The {@link Row}s are retrieved from the storage engine in groups of the specified size.
+     *
+     * @param partitionKey   The partition key.
+     * @param clusteringKeys The clustering keys.
+     * @param timestamp      The time stamp to ignore deleted columns.
+     * @param readSize       The max number of clustering keys to be read at once.
+     * @return The CQL3 {@link Row}s identified by the specified key pairs.
+     */
+    private Map<CellName, Row> rows(DecoratedKey partitionKey, List<CellName> clusteringKeys, long timestamp, int readSize)
+    {
+        Map<CellName, Row> rows = new HashMap<>(clusteringKeys.size());
+        for (List<CellName> partition : Lists.partition(clusteringKeys, readSize))
+        {
+            Map<CellName, Row> partitionRows = rows(partitionKey, partition, timestamp);
+            if (partitionRows != null)
+            {
+                rows.putAll(partitionRows);
             }
         }
         return rows;
@@ -192,17 +315,7 @@ public class RowServiceWide extends RowService
      */
     private Map<CellName, Row> rows(DecoratedKey partitionKey, List<CellName> clusteringKeys, long timestamp)
     {
-        ColumnSlice[] slices = rowMapper.columnSlices(clusteringKeys);
-
-        if (baseCfs.metadata.hasStaticColumns())
-        {
-            LinkedList<ColumnSlice> l = new LinkedList<>(Arrays.asList(slices));
-            l.addFirst(baseCfs.metadata.comparator.staticPrefix().slice());
-            slices = new ColumnSlice[l.size()];
-            slices = l.toArray(slices);
-        }
-
-        SliceQueryFilter dataFilter = new SliceQueryFilter(slices, false, Integer.MAX_VALUE, baseCfs.metadata.clusteringColumns().size());
+        SliceQueryFilter dataFilter = dataFilter(clusteringKeys);
         QueryFilter queryFilter = new QueryFilter(partitionKey, baseCfs.name, dataFilter, timestamp);
 
         ColumnFamily queryColumnFamily = baseCfs.getColumnFamily(queryFilter);
@@ -229,4 +342,91 @@ public class RowServiceWide extends RowService
         return rows;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * All the clustering keys of the same partition are read together, and all the partitions are read at once.
+     */
+    @Override
+    protected List<Row> fetch(List<SearchResult> searchResults,
+                              long timestamp,
+                              boolean usesRelevance,
+                              ConsistencyLevel consistencyLevel)
+    throws UnavailableException, ReadTimeoutException
+    {
+        // Group clustering keys by partition keys
+        Map<DecoratedKey, List<CellName>> keys = new LinkedHashMap<>();
+        for (SearchResult searchResult : searchResults)
+        {
+            DecoratedKey partitionKey = searchResult.getPartitionKey();
+            List<CellName> clusteringKeys = keys.get(partitionKey);
+            if (clusteringKeys == null)
+            {
+                clusteringKeys = new ArrayList<>();
+                keys.put(partitionKey, clusteringKeys);
+            }
+            clusteringKeys.add(searchResult.getClusteringKey());
+        }
+
+        // Read all the partitions
+        List<ReadCommand> commands = new ArrayList<>(keys.size());
+        for (Map.Entry<DecoratedKey, List<CellName>> entry : keys.entrySet())
+        {
+            commands.add(new SliceFromReadCommand(metadata.ksName,
+                                                  entry.getKey().getKey(),
+                                                  metadata.cfName,
+                                                  timestamp,
+                                                  dataFilter(entry.getValue())));
+        }
+        Map<DecoratedKey, Row> partitions = read(commands, consistencyLevel);
+
+        // Split the partitions into CQL3 rows, returning them in Lucene's order
+        Map<DecoratedKey, Map<CellName, ColumnFamily>> partitionsRows = new HashMap<>(partitions.size());
+        for (Row partition : partitions.values())
+        {
+            if (partition.cf != null)
+            {
+                ColumnFamily cleanColumnFamily = cleanExpired(partition.cf, timestamp);
+                partitionsRows.put(partition.key, rowMapper.splitRows(cleanColumnFamily));
+            }
+        }
+        List<Row> rows = new ArrayList<>(searchResults.size());
+        for (SearchResult searchResult : searchResults)
+        {
+            DecoratedKey partitionKey = searchResult.getPartitionKey();
+            Map<CellName, ColumnFamily> partitionRows = partitionsRows.get(partitionKey);
+            ColumnFamily columnFamily = partitionRows == null
+                                        ? null
+                                        : partitionRows.remove(searchResult.getClusteringKey());
+            if (columnFamily != null)
+            {
+                Row row = new Row(partitionKey, columnFamily);
+                rows.add(usesRelevance ? addScoreColumn(row, timestamp, searchResult.getScore()) : row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the {@link SliceQueryFilter} for reading the CQL3 rows identified by the specified clustering keys,
+     * including the static columns, if any.
+     *
+     * @param clusteringKeys The clustering keys.
+     * @return The {@link SliceQueryFilter} for reading the CQL3 rows identified by {@code clusteringKeys}.
+     */
+    private SliceQueryFilter dataFilter(List<CellName> clusteringKeys)
+    {
+        ColumnSlice[] slices = rowMapper.columnSlices(clusteringKeys);
+
+        if (baseCfs.metadata.hasStaticColumns())
+        {
+            LinkedList<ColumnSlice> l = new LinkedList<>(Arrays.asList(slices));
+            l.addFirst(baseCfs.metadata.comparator.staticPrefix().slice());
+            slices = new ColumnSlice[l.size()];
+            slices = l.toArray(slices);
+        }
+
+        return new SliceQueryFilter(slices, false, Integer.MAX_VALUE, baseCfs.metadata.clusteringColumns().size());
+    }
+
 }
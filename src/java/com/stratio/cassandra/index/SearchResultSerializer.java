@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.composites.CellName;
+import org.apache.cassandra.db.composites.CellNameType;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.io.util.DataOutputPlus;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary serializer for lists of {@link SearchResult}s, used for sending the local top-K candidates of a search from
+ * the replicas to the coordinator. Each {@link SearchResult} is serialized with its primary key, its score and its
+ * sort field values, if any, which are enough for merging the candidates of several replicas with
+ * {@link org.apache.lucene.search.TopDocs#merge}. The Lucene's document ids are meaningless out of the replica, so they
+ * are replaced by the position of each result in its list.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+class SearchResultSerializer
+{
+
+    private static final byte NULL = 0;
+    private static final byte BYTES = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte STRING = 6;
+
+    private final RowMapper rowMapper;
+    private final CellNameType cellNameType;
+
+    /**
+     * Builds a new {@link SearchResultSerializer}.
+     *
+     * @param rowMapper    The {@link RowMapper} to be used for decorating the partition keys.
+     * @param cellNameType The indexed column family's cell name type.
+     */
+    SearchResultSerializer(RowMapper rowMapper, CellNameType cellNameType)
+    {
+        this.rowMapper = rowMapper;
+        this.cellNameType = cellNameType;
+    }
+
+    /**
+     * Returns the binary representation of the specified {@link SearchResult}s.
+     *
+     * @param searchResults The {@link SearchResult}s to be serialized.
+     * @return The binary representation of {@code searchResults}.
+     */
+    ByteBuffer serialize(List<SearchResult> searchResults)
+    {
+        try
+        {
+            DataOutputBuffer out = new DataOutputBuffer();
+            out.writeInt(searchResults.size());
+            for (SearchResult searchResult : searchResults)
+            {
+                serialize(searchResult, out);
+            }
+            return ByteBuffer.wrap(out.getData(), 0, out.getLength());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the {@link SearchResult}s represented by the specified binary data.
+     *
+     * @param bytes The binary representation of a list of {@link SearchResult}s.
+     * @return The {@link SearchResult}s represented by {@code bytes}.
+     */
+    List<SearchResult> deserialize(ByteBuffer bytes)
+    {
+        try
+        {
+            DataInput in = new DataInputStream(ByteBufferUtil.inputStream(bytes));
+            int size = in.readInt();
+            List<SearchResult> searchResults = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+            {
+                searchResults.add(deserialize(in, i));
+            }
+            return searchResults;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void serialize(SearchResult searchResult, DataOutputPlus out) throws IOException
+    {
+        ByteBufferUtil.writeWithLength(searchResult.getPartitionKey().getKey(), out);
+        CellName clusteringKey = searchResult.getClusteringKey();
+        out.writeBoolean(clusteringKey != null);
+        if (clusteringKey != null)
+        {
+            ByteBufferUtil.writeWithLength(clusteringKey.toByteBuffer(), out);
+        }
+        ScoreDoc scoreDoc = searchResult.getScoreDoc();
+        out.writeFloat(scoreDoc.score);
+        Object[] fields = scoreDoc instanceof FieldDoc ? ((FieldDoc) scoreDoc).fields : null;
+        out.writeInt(fields == null ? -1 : fields.length);
+        if (fields != null)
+        {
+            for (Object field : fields)
+            {
+                serializeField(field, out);
+            }
+        }
+    }
+
+    private SearchResult deserialize(DataInput in, int position) throws IOException
+    {
+        DecoratedKey partitionKey = rowMapper.partitionKey(ByteBufferUtil.readWithLength(in));
+        CellName clusteringKey = in.readBoolean()
+                                 ? cellNameType.cellFromByteBuffer(ByteBufferUtil.readWithLength(in))
+                                 : null;
+        float score = in.readFloat();
+        int numFields = in.readInt();
+        ScoreDoc scoreDoc;
+        if (numFields < 0)
+        {
+            scoreDoc = new ScoreDoc(position, score);
+        }
+        else
+        {
+            Object[] fields = new Object[numFields];
+            for (int i = 0; i < numFields; i++)
+            {
+                fields[i] = deserializeField(in);
+            }
+            scoreDoc = new FieldDoc(position, score, fields);
+        }
+        return new SearchResult(partitionKey, clusteringKey, scoreDoc);
+    }
+
+    private static void serializeField(Object field, DataOutputPlus out) throws IOException
+    {
+        if (field == null)
+        {
+            out.writeByte(NULL);
+        }
+        else if (field instanceof BytesRef)
+        {
+            BytesRef bytesRef = (BytesRef) field;
+            out.writeByte(BYTES);
+            out.writeInt(bytesRef.length);
+            out.write(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        }
+        else if (field instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong((Long) field);
+        }
+        else if (field instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) field);
+        }
+        else if (field instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) field);
+        }
+        else if (field instanceof Float)
+        {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) field);
+        }
+        else if (field instanceof String)
+        {
+            out.writeByte(STRING);
+            out.writeUTF((String) field);
+        }
+        else
+        {
+            throw new IllegalArgumentException(String.format("Unsupported sort field value type: %s",
+                                                             field.getClass().getName()));
+        }
+    }
+
+    private static Object deserializeField(DataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type)
+        {
+            case NULL:
+                return null;
+            case BYTES:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new BytesRef(bytes);
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case STRING:
+                return in.readUTF();
+            default:
+                throw new IllegalArgumentException(String.format("Unknown sort field value type: %d", type));
+        }
+    }
+
+}
@@ -0,0 +1,609 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.stratio.cassandra.index.util.Log;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.DataRange;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A Lucene index partitioned by token range into several {@link LuceneIndex} shards, each one of them with its own
+ * directory, writer and NRT searcher. Each partition is indexed in the shard owning its token, so concurrent indexing
+ * threads use different writers, and searches only visit the shards intersecting the searched {@link DataRange}.
+ * <p/>
+ * The token ring is split by halves using the partitioner's midpoint, so shards are even if their number is a power of
+ * two. The shards of a search are searched concurrently and their results are merged using the search sort, paging
+ * each shard with the last merged result.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class ShardedLuceneIndex
+{
+
+    private final IPartitioner<?> partitioner;
+    private final String path;
+    private final Executor executor;
+    private final LuceneIndex[] shards;
+    private final Token[] starts;
+
+    private Sort sort;
+
+    /**
+     * Builds a new {@link ShardedLuceneIndex}.
+     *
+     * @param metadata          The indexed column family metadata.
+     * @param rowMapper         A {@link RowMapper}.
+     * @param numShards         The number of token range shards.
+     * @param path              The path of the directory in where the shards' directories will be stored.
+     * @param refreshSeconds    The index readers refresh time in seconds.
+     * @param minRefreshSeconds The index readers refresh time in seconds when searches wait for the latest writes.
+     * @param ramBufferMB       The index writers buffer size in MB, shared by all the shards.
+     * @param maxMergeMB        NRTCachingDirectory max merge size in MB.
+     * @param maxCachedMB       NRTCachingDirectory max cached MB, shared by all the shards.
+     * @param analyzer          The default {@link Analyzer}.
+     * @param executor          The {@link Executor} to be used for searching the shards concurrently.
+     */
+    public ShardedLuceneIndex(CFMetaData metadata,
+                              RowMapper rowMapper,
+                              int numShards,
+                              String path,
+                              Double refreshSeconds,
+                              Double minRefreshSeconds,
+                              Integer ramBufferMB,
+                              Integer maxMergeMB,
+                              Integer maxCachedMB,
+                              Analyzer analyzer,
+                              Executor executor)
+    {
+        this.partitioner = DatabaseDescriptor.getPartitioner();
+        this.path = path;
+        this.executor = executor;
+        this.starts = starts(partitioner, numShards);
+        this.shards = new LuceneIndex[numShards];
+        for (int i = 0; i < numShards; i++)
+        {
+            String shardPath = numShards == 1 ? path : path + File.separatorChar + "shard_" + i;
+            shards[i] = new LuceneIndex(metadata,
+                                        rowMapper,
+                                        shardPath,
+                                        refreshSeconds,
+                                        minRefreshSeconds,
+                                        Math.max(1, ramBufferMB / numShards),
+                                        maxMergeMB,
+                                        Math.max(1, maxCachedMB / numShards),
+                                        analyzer);
+        }
+    }
+
+    /**
+     * Returns the sorted first tokens of the specified number of token ranges splitting the ring.
+     *
+     * @param partitioner The partitioner.
+     * @param numShards   The number of token ranges.
+     * @return The sorted first tokens of the token ranges.
+     */
+    private static Token[] starts(IPartitioner<?> partitioner, int numShards)
+    {
+        Token minimum = partitioner.getMinimumToken();
+        LinkedList<Token[]> ranges = new LinkedList<>();
+        ranges.add(new Token[]{minimum, minimum});
+        while (ranges.size() < numShards) // Split the widest range
+        {
+            Token[] range = ranges.removeFirst();
+            Token midpoint = partitioner.midpoint(range[0], range[1]);
+            ranges.addLast(new Token[]{range[0], midpoint});
+            ranges.addLast(new Token[]{midpoint, range[1]});
+        }
+        Token[] starts = new Token[numShards];
+        for (int i = 0; i < numShards; i++)
+        {
+            starts[i] = ranges.get(i)[0];
+        }
+        Arrays.sort(starts);
+        return starts;
+    }
+
+    /**
+     * Initializes all the shards using the specified {@link Sort} for trying to keep the {@link Document}s sorted.
+     *
+     * @param sort The {@link Sort} to be used.
+     */
+    public void init(Sort sort) throws IOException
+    {
+        this.sort = sort;
+        for (LuceneIndex shard : shards)
+        {
+            shard.init(sort);
+        }
+    }
+
+    /**
+     * Returns the index of the shard owning the specified {@link Token}.
+     *
+     * @param token A {@link Token}.
+     * @return The index of the shard owning {@code token}.
+     */
+    private int shardIndex(Token token)
+    {
+        int index = Arrays.binarySearch(starts, token);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Returns the shard owning the specified partition.
+     *
+     * @param partitionKey A partition key.
+     * @return The shard owning the specified partition.
+     */
+    LuceneIndex shard(DecoratedKey partitionKey)
+    {
+        return shards[shardIndex(partitionKey.getToken())];
+    }
+
+    /**
+     * Returns the indexes of the shards intersecting the specified {@link DataRange}, in token order.
+     *
+     * @param dataRange A {@link DataRange}.
+     * @return The indexes of the shards intersecting {@code dataRange}.
+     */
+    private List<Integer> shardIndexes(DataRange dataRange)
+    {
+        Token start = dataRange.startKey().getToken();
+        Token stop = dataRange.stopKey().getToken();
+        int first = shardIndex(start);
+        int last = stop.isMinimum(partitioner) ? shards.length - 1 : shardIndex(stop);
+        boolean wraps = first > last || (dataRange.keyRange() instanceof Range && start.equals(stop));
+        List<Integer> indexes = new ArrayList<>(shards.length);
+        for (int i = wraps ? 0 : first; i <= (wraps ? shards.length - 1 : last); i++)
+        {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+
+    /**
+     * Deletes all the {@link Document}s.
+     */
+    public void truncate() throws IOException
+    {
+        for (LuceneIndex shard : shards)
+        {
+            shard.truncate();
+        }
+    }
+
+    /**
+     * Returns if all the {@link Document}s in all the shards have their key fields written as doc values.
+     *
+     * @return {@code true} if all the documents have key doc values, {@code false} otherwise.
+     * @see LuceneIndex#hasKeyDocValues()
+     */
+    public boolean hasKeyDocValues()
+    {
+        for (LuceneIndex shard : shards)
+        {
+            if (!shard.hasKeyDocValues())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Commits the pending changes.
+     */
+    public void commit() throws IOException
+    {
+        for (LuceneIndex shard : shards)
+        {
+            shard.commit();
+        }
+    }
+
+    /**
+     * Commits the pending changes of all the shards, recording the specified commit log position as the one up to which
+     * all the writes have been applied.
+     *
+     * @param replayPosition The commit log position up to which all the writes have been applied.
+     */
+    public void commit(ReplayPosition replayPosition) throws IOException
+    {
+        for (LuceneIndex shard : shards)
+        {
+            shard.commit(replayPosition);
+        }
+    }
+
+    /**
+     * Returns the oldest commit log position recorded by the last commit of each shard, or {@code null} if any of the
+     * shards has not recorded it.
+     *
+     * @return The commit log position up to which all the writes have been committed in all the shards.
+     */
+    public ReplayPosition getReplayPosition()
+    {
+        ReplayPosition min = null;
+        for (LuceneIndex shard : shards)
+        {
+            ReplayPosition replayPosition = shard.getReplayPosition();
+            if (replayPosition == null)
+            {
+                return null;
+            }
+            if (min == null || ReplayPosition.comparator.compare(replayPosition, min) < 0)
+            {
+                min = replayPosition;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Commits all changes to the index, waits for pending merges to complete, and closes all associated resources.
+     */
+    public void close() throws IOException
+    {
+        for (LuceneIndex shard : shards)
+        {
+            shard.close();
+        }
+    }
+
+    /**
+     * Closes the index and removes all its files.
+     */
+    public void drop() throws IOException
+    {
+        for (LuceneIndex shard : shards)
+        {
+            shard.drop();
+        }
+        if (shards.length > 1)
+        {
+            FileUtils.deleteRecursive(new File(path));
+        }
+    }
+
+    /**
+     * Optimizes the index forcing merge segments leaving one single segment per shard.
+     */
+    public void optimize() throws IOException
+    {
+        for (LuceneIndex shard : shards)
+        {
+            shard.optimize();
+        }
+    }
+
+    /**
+     * Returns the total number of {@link Document}s in this index.
+     *
+     * @return The total number of {@link Document}s in this index.
+     */
+    public long getNumDocs() throws IOException
+    {
+        long numDocs = 0;
+        for (LuceneIndex shard : shards)
+        {
+            numDocs += shard.getNumDocs();
+        }
+        return numDocs;
+    }
+
+    /**
+     * Waits until the writes done before this call in the shards intersecting the specified {@link DataRange} are
+     * visible to searches.
+     *
+     * @param dataRange     The {@link DataRange} restricting the shards.
+     * @param timeoutMillis The max time to wait in milliseconds.
+     * @return {@code true} if the writes are visible, {@code false} if the timeout has been reached.
+     */
+    public boolean waitForLastWrites(DataRange dataRange, long timeoutMillis)
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (int index : shardIndexes(dataRange))
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !shards[index].waitForLastWrite(remaining))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the top {@code count} hits for {@code query} in the shards intersecting the specified {@link DataRange},
+     * sorting the hits by the criteria in {@code sort}.
+     *
+     * @param dataRange     The {@link DataRange} restricting the searched shards.
+     * @param query         The {@link Query} to search for.
+     * @param sort          The {@link Sort} to be applied.
+     * @param after         The starting {@link SearchResult}, maybe {@code null}.
+     * @param count         Return only the top {@code count} results.
+     * @param fieldsToLoad  The name of the fields to be loaded.
+     * @param usesRelevance If the search uses relevance.
+     * @return The found documents, sorted according to the supplied {@link Sort} instance.
+     */
+    public List<SearchResult> search(DataRange dataRange,
+                                     Query query,
+                                     Sort sort,
+                                     SearchResult after,
+                                     Integer count,
+                                     Set<String> fieldsToLoad,
+                                     boolean usesRelevance) throws IOException
+    {
+        IndexSearcher[] searchers = searchers();
+        try
+        {
+            return search(searchers, dataRange, query, sort, after, count, fieldsToLoad, usesRelevance);
+        }
+        finally
+        {
+            release(searchers);
+        }
+    }
+
+    /**
+     * Finds the top {@code count} hits for {@code query} in the shards intersecting the specified {@link DataRange},
+     * sorting the hits by the criteria in {@code sort}, and using the specified per shard {@link IndexSearcher}s. The
+     * searchers of the searched shards are acquired if they are {@code null}, so the same searchers can be used for
+     * paging several searches over the same point in time view of the index.
+     *
+     * @param searchers     The per shard {@link IndexSearcher}s, as returned by {@link #searchers()}.
+     * @param dataRange     The {@link DataRange} restricting the searched shards.
+     * @param query         The {@link Query} to search for.
+     * @param sort          The {@link Sort} to be applied.
+     * @param after         The starting {@link SearchResult}, maybe {@code null}.
+     * @param count         Return only the top {@code count} results.
+     * @param fieldsToLoad  The name of the fields to be loaded.
+     * @param usesRelevance If the search uses relevance.
+     * @return The found documents, sorted according to the supplied {@link Sort} instance.
+     */
+    public List<SearchResult> search(final IndexSearcher[] searchers,
+                                     DataRange dataRange,
+                                     final Query query,
+                                     final Sort sort,
+                                     SearchResult after,
+                                     final Integer count,
+                                     final Set<String> fieldsToLoad,
+                                     final boolean usesRelevance) throws IOException
+    {
+        List<Integer> indexes = shardIndexes(dataRange);
+        for (int index : indexes)
+        {
+            if (searchers[index] == null)
+            {
+                searchers[index] = shards[index].acquireSearcher();
+            }
+        }
+
+        // Start the searches of all the shards but the first one, which is searched by this thread
+        List<FutureTask<List<SearchResult>>> tasks = new ArrayList<>(indexes.size());
+        for (int i = 0; i < indexes.size(); i++)
+        {
+            final int index = indexes.get(i);
+            final ScoreDoc shardAfter = after(after, index);
+            FutureTask<List<SearchResult>> task = new FutureTask<>(new Callable<List<SearchResult>>()
+            {
+                @Override
+                public List<SearchResult> call() throws Exception
+                {
+                    return shards[index].search(searchers[index],
+                                                query,
+                                                sort,
+                                                shardAfter,
+                                                count,
+                                                fieldsToLoad,
+                                                usesRelevance);
+                }
+            });
+            tasks.add(task);
+            if (i > 0)
+            {
+                executor.execute(task);
+            }
+        }
+
+        // Collect the results of each shard
+        TopDocs[] shardHits = new TopDocs[indexes.size()];
+        Map<ScoreDoc, SearchResult> searchResults = new IdentityHashMap<>();
+        for (int i = 0; i < indexes.size(); i++)
+        {
+            List<SearchResult> shardResults = get(tasks.get(i));
+            ScoreDoc[] scoreDocs = new ScoreDoc[shardResults.size()];
+            for (int j = 0; j < scoreDocs.length; j++)
+            {
+                SearchResult searchResult = shardResults.get(j);
+                scoreDocs[j] = searchResult.getScoreDoc();
+                searchResults.put(scoreDocs[j], searchResult);
+            }
+            shardHits[i] = new TopDocs(scoreDocs.length, scoreDocs, Float.NaN);
+        }
+
+        // Merge the results of all the shards
+        Sort mergeSort = sort == null && !usesRelevance ? this.sort : sort;
+        TopDocs merged = shardHits.length == 1 ? shardHits[0] : TopDocs.merge(mergeSort, count, shardHits);
+        List<SearchResult> results = new ArrayList<>(merged.scoreDocs.length);
+        for (ScoreDoc scoreDoc : merged.scoreDocs)
+        {
+            scoreDoc.shardIndex = indexes.get(shardHits.length == 1 ? 0 : scoreDoc.shardIndex);
+            results.add(searchResults.get(scoreDoc));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the count and the aggregations of all the hits for {@code query} in the shards intersecting the specified
+     * {@link DataRange}. Each shard is collected with its own copy of the specified {@link AggregatesCollector}, and
+     * the results of all the shards are merged.
+     *
+     * @param dataRange The {@link DataRange} restricting the searched shards.
+     * @param query     The {@link Query} to search for.
+     * @param collector The empty {@link AggregatesCollector} to be copied for each shard.
+     * @return The merged {@link Aggregates} of all the searched shards.
+     */
+    public Aggregates aggregate(DataRange dataRange, final Query query, final AggregatesCollector collector)
+    throws IOException
+    {
+        // Start the searches of all the shards but the first one, which is searched by this thread
+        List<Integer> indexes = shardIndexes(dataRange);
+        List<FutureTask<Aggregates>> tasks = new ArrayList<>(indexes.size());
+        for (int i = 0; i < indexes.size(); i++)
+        {
+            final int index = indexes.get(i);
+            FutureTask<Aggregates> task = new FutureTask<>(new Callable<Aggregates>()
+            {
+                @Override
+                public Aggregates call() throws Exception
+                {
+                    AggregatesCollector shardCollector = collector.copy();
+                    shards[index].search(query, shardCollector);
+                    return shardCollector.aggregates();
+                }
+            });
+            tasks.add(task);
+            if (i > 0)
+            {
+                executor.execute(task);
+            }
+        }
+
+        // Merge the results of all the shards
+        Aggregates aggregates = collector.aggregates();
+        for (FutureTask<Aggregates> task : tasks)
+        {
+            aggregates.merge(get(task));
+        }
+        return aggregates;
+    }
+
+    /**
+     * Returns a new array for holding the {@link IndexSearcher} of each shard, to be filled by
+     * {@link #search(IndexSearcher[], DataRange, Query, Sort, SearchResult, Integer, Set, boolean)} and released with
+     * {@link #release(IndexSearcher[])}.
+     *
+     * @return A new array for holding the {@link IndexSearcher} of each shard.
+     */
+    public IndexSearcher[] searchers()
+    {
+        return new IndexSearcher[shards.length];
+    }
+
+    /**
+     * Releases the acquired {@link IndexSearcher}s contained in the specified array.
+     *
+     * @param searchers The per shard {@link IndexSearcher}s, as returned by {@link #searchers()}.
+     */
+    public void release(IndexSearcher[] searchers)
+    {
+        for (int i = 0; i < searchers.length; i++)
+        {
+            if (searchers[i] != null)
+            {
+                try
+                {
+                    shards[i].releaseSearcher(searchers[i]);
+                }
+                catch (IOException e)
+                {
+                    Log.error(e, "Error while releasing index searcher");
+                }
+                searchers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link ScoreDoc} to be used for paging the specified shard after the specified merged
+     * {@link SearchResult}. Ties in the merged order are sorted by shard, so the shards before the one of the last
+     * result have already returned all their ties, while the following shards haven't returned any of them.
+     *
+     * @param after      The last merged {@link SearchResult}, maybe {@code null}.
+     * @param shardIndex The index of the shard to be searched.
+     * @return The {@link ScoreDoc} to be used for paging the specified shard.
+     */
+    private static ScoreDoc after(SearchResult after, int shardIndex)
+    {
+        if (after == null)
+        {
+            return null;
+        }
+        ScoreDoc scoreDoc = after.getScoreDoc();
+        if (scoreDoc.shardIndex == shardIndex)
+        {
+            return scoreDoc;
+        }
+        int doc = shardIndex < scoreDoc.shardIndex ? Integer.MAX_VALUE : -1;
+        return scoreDoc instanceof FieldDoc
+               ? new FieldDoc(doc, scoreDoc.score, ((FieldDoc) scoreDoc).fields)
+               : new ScoreDoc(doc, scoreDoc.score);
+    }
+
+    private static <T> T get(FutureTask<T> task) throws IOException
+    {
+        task.run(); // Run in this thread if not started yet
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+}
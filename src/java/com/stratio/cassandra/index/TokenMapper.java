@@ -68,8 +68,9 @@ public abstract class TokenMapper
      *
      * @param document     A {@link Document}.
      * @param partitionKey The raw partition key to be added.
+     * @param docValues    If the token must be also added as doc values.
      */
-    public abstract void addFields(Document document, DecoratedKey partitionKey);
+    public abstract void addFields(Document document, DecoratedKey partitionKey, boolean docValues);
 
     /**
      * Returns a Lucene's {@link Query} for filtering documents/rows according to the row token range specified in
@@ -23,9 +23,7 @@ import org.apache.cassandra.dht.IPartitioner;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.dht.Token.TokenFactory;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.util.BytesRef;
@@ -35,7 +33,8 @@ import java.nio.ByteBuffer;
 
 /**
  * {@link TokenMapper} to be used when any {@link IPartitioner} when there is not a more specific implementation. It
- * indexes the token raw binary value as a Lucene's string field.
+ * indexes the token raw binary value as a Lucene's string field, which is optionally added as binary doc values for
+ * sorting.
  *
  * @author Andres de la Pena <adelapena@stratio.com>
  */
@@ -51,6 +50,11 @@ public class TokenMapperGeneric extends TokenMapper
      */
     private final TokenFactory<?> factory;
 
+    /**
+     * The reusable token fields.
+     */
+    private final KeyFields keyFields = new KeyFields(FIELD_NAME, Store.YES);
+
     /**
      * Returns a new {@link TokenMapperGeneric}.
      */
@@ -65,12 +69,10 @@ public class TokenMapperGeneric extends TokenMapper
      */
     @Override
     @SuppressWarnings("unchecked")
-    public void addFields(Document document, DecoratedKey partitionKey)
+    public void addFields(Document document, DecoratedKey partitionKey, boolean docValues)
     {
         ByteBuffer bb = factory.toByteArray(partitionKey.getToken());
-        String serialized = ByteBufferUtils.toString(bb);
-        Field field = new StringField(FIELD_NAME, serialized, Store.YES);
-        document.add(field);
+        keyFields.addFields(document, bb, docValues);
     }
 
     /**
@@ -78,7 +80,12 @@ public class TokenMapperGeneric extends TokenMapper
      */
     @Override
     protected Query makeQuery(Token lower, Token upper, boolean includeLower, boolean includeUpper) {
-        return new TokenRangeQuery(lower, upper, includeLower, includeUpper, this);
+        Token start = lower == null || isMinimum(lower) ? null : lower;
+        Token stop = upper == null || isMinimum(upper) ? null : upper;
+        if (start == null && stop == null) {
+            return null;
+        }
+        return new TokenRangeQuery(start, stop, includeLower, includeUpper, this);
     }
 
     /**
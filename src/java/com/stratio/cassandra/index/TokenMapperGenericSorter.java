@@ -16,6 +16,7 @@
 package com.stratio.cassandra.index;
 
 import org.apache.cassandra.dht.Token;
+import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.search.FieldCache;
@@ -27,6 +28,11 @@ import java.io.IOException;
 
 /**
  * {@link FieldComparator} that compares {@link Token} field sorting by its Cassandra's partitioner.
+ * <p/>
+ * Values are read from the field's binary doc values. The segments of an index written without key doc values, as the
+ * ones written by previous versions, are un-inverted with the {@link FieldCache} until the index is rebuilt. An index
+ * never mixes documents with and without key doc values (see {@link LuceneIndex#hasKeyDocValues()}), so there are not
+ * segments with doc values missing for some documents.
  *
  * @author Andres de la Pena <adelapena@stratio.com>
  */
@@ -134,8 +140,17 @@ public class TokenMapperGenericSorter extends FieldComparator<BytesRef>
     @Override
     public FieldComparator<BytesRef> setNextReader(AtomicReaderContext context) throws IOException
     {
-        docTerms = FieldCache.DEFAULT.getTerms(context.reader(), field, true);
-        docsWithField = FieldCache.DEFAULT.getDocsWithField(context.reader(), field);
+        AtomicReader reader = context.reader();
+        docTerms = reader.getBinaryDocValues(field);
+        if (docTerms != null)
+        {
+            docsWithField = reader.getDocsWithField(field);
+        }
+        else // Index written without key doc values, so un-invert it
+        {
+            docTerms = FieldCache.DEFAULT.getTerms(reader, field, true);
+            docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, field);
+        }
         return this;
     }
 
@@ -189,7 +204,7 @@ public class TokenMapperGenericSorter extends FieldComparator<BytesRef>
         {
             tempBR.bytes = MISSING_BYTES;
         }
-        return compare(tempBR, topValue);
+        return compare(topValue, tempBR);
     }
 
     /**
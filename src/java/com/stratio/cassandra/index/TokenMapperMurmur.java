@@ -23,6 +23,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
@@ -33,7 +34,7 @@ import org.apache.lucene.util.NumericUtils;
 
 /**
  * {@link PartitionKeyMapper} to be used when {@link Murmur3Partitioner} is used. It indexes the token long value as a
- * Lucene's long field.
+ * Lucene's long field, which is optionally added as numeric doc values for sorting.
  *
  * @author Andres de la Pena <adelapena@stratio.com>
  */
@@ -42,6 +43,15 @@ public class TokenMapperMurmur extends TokenMapper
 
     private static final String FIELD_NAME = "_token_murmur";
 
+    private final ThreadLocal<Field[]> fields = new ThreadLocal<Field[]>()
+    {
+        @Override
+        protected Field[] initialValue()
+        {
+            return new Field[]{new LongField(FIELD_NAME, 0L, Store.NO), new NumericDocValuesField(FIELD_NAME, 0L)};
+        }
+    };
+
     public TokenMapperMurmur(CFMetaData metadata)
     {
         super(metadata);
@@ -51,11 +61,15 @@ public class TokenMapperMurmur extends TokenMapper
      * {@inheritDoc}
      */
     @Override
-    public void addFields(Document document, DecoratedKey partitionKey)
+    public void addFields(Document document, DecoratedKey partitionKey, boolean docValues)
     {
-        Long value = (Long) partitionKey.getToken().token;
-        Field tokenField = new LongField(FIELD_NAME, value, Store.NO);
-        document.add(tokenField);
+        long value = (Long) partitionKey.getToken().token;
+        Field[] fields = this.fields.get(); // Reused by this thread
+        for (int i = 0; i < (docValues ? fields.length : 1); i++)
+        {
+            fields[i].setLongValue(value);
+            document.add(fields[i]);
+        }
     }
 
     /**
@@ -94,6 +108,9 @@ public class TokenMapperMurmur extends TokenMapper
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * The {@link SortField} reads the token numeric doc values, or it un-inverts the field if the segment has not them,
+     * as all the segments of an index written without doc values until it is rebuilt.
      */
     @Override
     public SortField[] sortFields()
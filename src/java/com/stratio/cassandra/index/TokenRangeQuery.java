@@ -52,6 +52,44 @@ public class TokenRangeQuery extends MultiTermQuery
         return new TokenDataRangeFilteredTermsEnum(tenum);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Two queries are equal only if they have the same range, so they can be used as keys by both the buffered deletes
+     * of the index writer and the filter cache.
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!super.equals(o))
+        {
+            return false;
+        }
+        TokenRangeQuery query = (TokenRangeQuery) o;
+        return includeLower == query.includeLower
+               && includeUpper == query.includeUpper
+               && (lower == null ? query.lower == null : lower.equals(query.lower))
+               && (upper == null ? query.upper == null : upper.equals(query.upper));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        int result = super.hashCode();
+        result = 31 * result + (lower == null ? 0 : lower.hashCode());
+        result = 31 * result + (upper == null ? 0 : upper.hashCode());
+        result = 31 * result + (includeLower ? 1 : 0);
+        result = 31 * result + (includeUpper ? 1 : 0);
+        return result;
+    }
+
     @Override
     public String toString(String field)
     {
@@ -78,9 +116,9 @@ public class TokenRangeQuery extends MultiTermQuery
         protected AcceptStatus accept(BytesRef term)
         {
             Token token = tokenMapper.token(term);
-            if (includeLower ? token.compareTo(lower) < 0 : token.compareTo(lower) <= 0) {
+            if (lower != null && (includeLower ? token.compareTo(lower) < 0 : token.compareTo(lower) <= 0)) {
                 return AcceptStatus.NO;
-            } else if (includeUpper ? token.compareTo(upper) > 0 : token.compareTo(upper) >= 0) {
+            } else if (upper != null && (includeUpper ? token.compareTo(upper) > 0 : token.compareTo(upper) >= 0)) {
                 return AcceptStatus.NO;
             } else {
                 return AcceptStatus.YES;
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.query;
+
+import com.stratio.cassandra.index.schema.ColumnMapper;
+import com.stratio.cassandra.index.schema.Schema;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.lucene.search.SortField;
+import org.codehaus.jackson.annotate.JsonCreator;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * An aggregation over a field of the documents matching a search, computed only from the index. Numeric fields can be
+ * aggregated with {@code min}, {@code max} and {@code sum}, and string fields can be aggregated with {@code facet},
+ * which counts the matching documents per term.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class Aggregation
+{
+    /** The default max number of terms returned by a facet. */
+    public static final int DEFAULT_LIMIT = 10;
+
+    /** The kinds of aggregation. */
+    public enum Type
+    {
+        MIN, MAX, SUM, FACET
+    }
+
+    /** The kind of aggregation. */
+    @JsonProperty("type")
+    private final Type type;
+
+    /** The name of the field to be aggregated. */
+    @JsonProperty("field")
+    private final String field;
+
+    /** The max number of terms returned by a facet. */
+    @JsonProperty("limit")
+    private final int limit;
+
+    /**
+     * Returns a new {@link Aggregation}.
+     *
+     * @param type  The kind of aggregation, one of {@code min}, {@code max}, {@code sum} and {@code facet}.
+     * @param field The name of the field to be aggregated.
+     * @param limit The max number of terms returned by a facet, maybe {@code null} meaning {@link #DEFAULT_LIMIT}.
+     */
+    @JsonCreator
+    public Aggregation(@JsonProperty("type") String type,
+                       @JsonProperty("field") String field,
+                       @JsonProperty("limit") Integer limit)
+    {
+        if (type == null)
+        {
+            throw new IllegalArgumentException("Aggregation type required");
+        }
+        try
+        {
+            this.type = Type.valueOf(type.toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException(String.format("Unknown aggregation type: %s", type));
+        }
+        if (field == null || field.trim().isEmpty())
+        {
+            throw new IllegalArgumentException("Field name required");
+        }
+        this.field = field;
+        this.limit = limit == null ? DEFAULT_LIMIT : limit;
+        if (this.limit <= 0)
+        {
+            throw new IllegalArgumentException("Aggregation limit must be strictly positive");
+        }
+    }
+
+    /**
+     * Returns the kind of this aggregation.
+     *
+     * @return The kind of this aggregation.
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the name of the aggregated field.
+     *
+     * @return The name of the aggregated field.
+     */
+    public String getField()
+    {
+        return field;
+    }
+
+    /**
+     * Returns the max number of terms returned by a facet.
+     *
+     * @return The max number of terms returned by a facet.
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Returns the name of the result of this aggregation, such as {@code max(age)}.
+     *
+     * @return The name of the result of this aggregation.
+     */
+    public String name()
+    {
+        return String.format("%s(%s)", type.name().toLowerCase(), field);
+    }
+
+    /**
+     * Returns the Lucene's {@link SortField.Type} of the aggregated field, which determines how its values are read
+     * from the index, validating that it is suitable for this aggregation. Only the fields written with doc values,
+     * that is, the single valued fields of the numeric, string and boolean mappers, can be aggregated.
+     *
+     * @param schema The {@link Schema} to be used.
+     * @return The Lucene's {@link SortField.Type} of the aggregated field.
+     */
+    public SortField.Type fieldType(Schema schema)
+    {
+        ColumnMapper<?> columnMapper = schema.getMapper(field);
+        if (columnMapper == null)
+        {
+            throw new IllegalArgumentException(String.format("No mapper found for aggregation field %s", field));
+        }
+        if (!schema.hasDocValues(field))
+        {
+            throw new IllegalArgumentException(String.format("Field %s has no doc values to be aggregated", field));
+        }
+        SortField.Type fieldType = columnMapper.sortField(field, false).getType();
+        boolean numeric = fieldType == SortField.Type.INT
+                          || fieldType == SortField.Type.LONG
+                          || fieldType == SortField.Type.FLOAT
+                          || fieldType == SortField.Type.DOUBLE;
+        if (type == Type.FACET ? fieldType != SortField.Type.STRING : !numeric)
+        {
+            throw new IllegalArgumentException(String.format("Field %s can't be aggregated with %s",
+                                                             field,
+                                                             type.name().toLowerCase()));
+        }
+        return fieldType;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+                .append("type", type)
+                .append("field", field)
+                .append("limit", limit)
+                .toString();
+    }
+}
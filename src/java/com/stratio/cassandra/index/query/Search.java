@@ -16,13 +16,16 @@
 package com.stratio.cassandra.index.query;
 
 import com.stratio.cassandra.index.schema.Schema;
+import com.stratio.cassandra.index.util.FilterCache;
 import com.stratio.cassandra.index.util.JsonSerializer;
 import com.stratio.cassandra.index.util.Log;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.search.*;
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
-import org.eclipse.jdt.core.dom.ReturnStatement;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Class representing an Lucene's index search. It is formed by an optional querying {@link Condition} and an optional
@@ -50,6 +53,23 @@ public class Search
     @JsonProperty("sort")
     private Sort sort;
 
+    /**
+     * If the search must wait for the previous writes to be visible.
+     */
+    @JsonProperty("refresh")
+    private boolean refresh;
+
+    /**
+     * The index-only aggregations.
+     */
+    @JsonProperty("aggregations")
+    private List<Aggregation> aggregations;
+
+    /**
+     * The Lucene's objects compiled for the last used {@link Schema}.
+     */
+    private volatile Compiled compiled;
+
     /**
      * Returns a new {@link Search} composed by the specified querying and filtering conditions.
      *
@@ -57,15 +77,50 @@ public class Search
      * @param filterCondition The {@link Condition} for filtering, maybe {@code null} meaning no filtering.
      * @param sort         The {@link Sort} for the query. Note that is the order in which the data will be read before
      *                        querying, not the order of the results after querying.
+     * @param refresh         If the search must wait for the previous writes to be visible, maybe {@code null} meaning
+     *                        {@code false}.
+     * @param aggregations    The {@link Aggregation}s to be computed by count queries, maybe {@code null} meaning
+     *                        none.
      */
     @JsonCreator
     public Search(@JsonProperty("query") Condition queryCondition,
                   @JsonProperty("filter") Condition filterCondition,
-                  @JsonProperty("sort") Sort sort)
+                  @JsonProperty("sort") Sort sort,
+                  @JsonProperty("refresh") Boolean refresh,
+                  @JsonProperty("aggregations") List<Aggregation> aggregations)
     {
         this.queryCondition = queryCondition;
         this.filterCondition = filterCondition;
         this.sort = sort;
+        this.refresh = refresh != null && refresh;
+        this.aggregations = aggregations == null ? Collections.<Aggregation>emptyList() : aggregations;
+    }
+
+    /**
+     * Returns a new {@link Search} composed by the specified querying and filtering conditions, without aggregations.
+     *
+     * @param queryCondition  The {@link Condition} for querying, maybe {@code null} meaning no querying.
+     * @param filterCondition The {@link Condition} for filtering, maybe {@code null} meaning no filtering.
+     * @param sort            The {@link Sort} for the query.
+     * @param refresh         If the search must wait for the previous writes to be visible, maybe {@code null} meaning
+     *                        {@code false}.
+     */
+    public Search(Condition queryCondition, Condition filterCondition, Sort sort, Boolean refresh)
+    {
+        this(queryCondition, filterCondition, sort, refresh, null);
+    }
+
+    /**
+     * Returns a new {@link Search} composed by the specified querying and filtering conditions, not waiting for the
+     * previous writes to be visible.
+     *
+     * @param queryCondition  The {@link Condition} for querying, maybe {@code null} meaning no querying.
+     * @param filterCondition The {@link Condition} for filtering, maybe {@code null} meaning no filtering.
+     * @param sort            The {@link Sort} for the query.
+     */
+    public Search(Condition queryCondition, Condition filterCondition, Sort sort)
+    {
+        this(queryCondition, filterCondition, sort, false);
     }
 
     /**
@@ -137,6 +192,39 @@ public class Search
         return this.sort;
     }
 
+    /**
+     * Returns {@code true} if this search must wait for the writes done before it to be visible, {@code false} if it
+     * can use the last opened index searchers, which can be up to {@code refresh_seconds} stale.
+     *
+     * @return {@code true} if this search must see the previous writes, {@code false} otherwise.
+     */
+    public boolean refresh()
+    {
+        return refresh;
+    }
+
+    /**
+     * Returns the {@link Aggregation}s to be computed by count queries.
+     *
+     * @return The {@link Aggregation}s to be computed by count queries, maybe empty.
+     */
+    public List<Aggregation> getAggregations()
+    {
+        return aggregations;
+    }
+
+    /**
+     * Returns the Lucene's {@link org.apache.lucene.search.SortField.Type} of the fields of each {@link Aggregation},
+     * using the specified {@link Schema}.
+     *
+     * @param schema A {@link Schema}.
+     * @return The Lucene's field types of the {@link Aggregation}s, in the same order.
+     */
+    public org.apache.lucene.search.SortField.Type[] aggregationTypes(Schema schema)
+    {
+        return compile(schema).aggregationTypes;
+    }
+
     /**
      * Returns the Lucene's {@link org.apache.lucene.search.Sort} represented by this {@link Sort} using the specified {@link Schema}. Maybe
      * {@code null} meaning no sorting.
@@ -146,32 +234,54 @@ public class Search
      */
     public org.apache.lucene.search.Sort sort(Schema schema)
     {
-        return sort == null ? null : sort.sort(schema);
+        return compile(schema).sort;
     }
 
     /**
      * Returns the Lucene's {@link Query} representation of this search. This {@link Query} include both the querying
      * and filtering {@link Condition}s. If none of them is set, then a {@link MatchAllDocsQuery} is returned, so it
-     * never {@link ReturnStatement} {@code null}.
+     * never returns {@code null}.
      *
      * @param schema     The {@link Schema} to be used.
      * @param rangeQuery An additional range {@link Query} to be used.
      * @return The Lucene's {@link Query} representation of this search.
      */
     public Query query(Schema schema, Query rangeQuery)
+    {
+        return query(schema, rangeQuery, null);
+    }
+
+    /**
+     * Returns the Lucene's {@link Query} representation of this search. This {@link Query} include both the querying
+     * and filtering {@link Condition}s. If none of them is set, then a {@link MatchAllDocsQuery} is returned, so it
+     * never returns {@code null}.
+     * <p/>
+     * The filtering {@link Condition} doesn't need scoring, so its matching documents are taken from the specified
+     * {@link FilterCache}, if any.
+     *
+     * @param schema      The {@link Schema} to be used.
+     * @param rangeQuery  An additional range {@link Query} to be used.
+     * @param filterCache The {@link FilterCache} to be used for the filtering {@link Condition}, maybe {@code null}
+     *                    meaning no caching.
+     * @return The Lucene's {@link Query} representation of this search.
+     */
+    public Query query(Schema schema, Query rangeQuery, FilterCache filterCache)
     {
         if (queryCondition == null && filterCondition == null && rangeQuery == null) {
             return new MatchAllDocsQuery();
         }
+        Compiled compiled = compile(schema);
         BooleanQuery booleanQuery = new BooleanQuery();
-        if (queryCondition != null)
+        if (compiled.query != null)
         {
-            Query query = queryCondition.query(schema);
-            booleanQuery.add(query, BooleanClause.Occur.MUST);
+            booleanQuery.add(compiled.query, BooleanClause.Occur.MUST);
         }
-        if (filterCondition != null)
+        if (compiled.filterQuery != null)
         {
-            Query query = new ConstantScoreQuery(filterCondition.query(schema));
+            Query filterQuery = compiled.filterQuery;
+            Query query = filterCache == null
+                          ? new ConstantScoreQuery(filterQuery)
+                          : new ConstantScoreQuery(filterCache.filter(filterQuery));
             booleanQuery.add(query, BooleanClause.Occur.MUST);
         }
         if (rangeQuery != null)
@@ -188,14 +298,26 @@ public class Search
      */
     public void validate(Schema schema)
     {
-        if (queryCondition != null || filterCondition != null)
-        {
-            query(schema, null);
-        }
-        if (sort != null)
+        compile(schema);
+    }
+
+    /**
+     * Returns the Lucene's objects represented by this search using the specified {@link Schema}. They are compiled
+     * only once per {@link Schema}, so a cached search reuses its queries, including their analyzed terms and
+     * automata, and its sort. The returned {@link Query}s are shared, so they must not be modified.
+     *
+     * @param schema The {@link Schema} to be used.
+     * @return The Lucene's objects represented by this search using {@code schema}.
+     */
+    private Compiled compile(Schema schema)
+    {
+        Compiled compiled = this.compiled;
+        if (compiled == null || compiled.schema != schema)
         {
-            sort.sort(schema);
+            compiled = new Compiled(schema);
+            this.compiled = compiled;
         }
+        return compiled;
     }
 
     @Override
@@ -205,7 +327,34 @@ public class Search
                 .append("queryCondition", queryCondition)
                 .append("filterCondition", filterCondition)
                 .append("sorting", sort)
+                .append("refresh", refresh)
+                .append("aggregations", aggregations)
                 .toString();
     }
 
+    /**
+     * The Lucene's objects represented by a {@link Search} using a certain {@link Schema}.
+     */
+    private class Compiled
+    {
+        private final Schema schema;
+        private final Query query;
+        private final Query filterQuery;
+        private final org.apache.lucene.search.Sort sort;
+        private final org.apache.lucene.search.SortField.Type[] aggregationTypes;
+
+        private Compiled(Schema schema)
+        {
+            this.schema = schema;
+            this.query = queryCondition == null ? null : queryCondition.query(schema);
+            this.filterQuery = filterCondition == null ? null : filterCondition.query(schema);
+            this.sort = Search.this.sort == null ? null : Search.this.sort.sort(schema);
+            this.aggregationTypes = new org.apache.lucene.search.SortField.Type[aggregations.size()];
+            for (int i = 0; i < aggregationTypes.length; i++)
+            {
+                aggregationTypes[i] = aggregations.get(i).fieldType(schema);
+            }
+        }
+    }
+
 }
@@ -29,6 +29,8 @@ public class SearchBuilder implements Builder<Search>
     private Condition filterCondition;
     private Sort sort;
 
+    private boolean refresh;
+
     /**
      * Returns this builder with the specified querying condition.
      *
@@ -65,6 +67,18 @@ public class SearchBuilder implements Builder<Search>
         return this;
     }
 
+    /**
+     * Returns this builder with the specified refresh mode.
+     *
+     * @param refresh If the search must wait for the previous writes to be visible.
+     * @return This builder with the specified refresh mode.
+     */
+    public SearchBuilder refresh(boolean refresh)
+    {
+        this.refresh = refresh;
+        return this;
+    }
+
     /**
      * Returns the {@link Search} represented by this builder.
      *
@@ -73,7 +87,7 @@ public class SearchBuilder implements Builder<Search>
     @Override
     public Search build()
     {
-        return new Search(queryCondition, filterCondition, sort);
+        return new Search(queryCondition, filterCondition, sort, refresh);
     }
 
     /**
@@ -15,6 +15,8 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression;
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.ListType;
 import org.apache.cassandra.db.marshal.MapType;
@@ -23,7 +25,12 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.codehaus.jackson.annotate.JsonSubTypes;
 import org.codehaus.jackson.annotate.JsonTypeInfo;
 
@@ -87,6 +94,31 @@ public abstract class ColumnMapper<BASE>
      */
     public abstract Field field(String name, Object value);
 
+    /**
+     * Returns if this mapper writes the doc values returned by {@link #docValuesField(String, Object)}, which allow
+     * to read the field values of the matched documents without loading them into the {@code FieldCache}.
+     *
+     * @return {@code true} if this mapper writes doc values, {@code false} otherwise.
+     */
+    public boolean hasDocValues()
+    {
+        return false;
+    }
+
+    /**
+     * Returns the Lucene doc values {@link Field} resulting from the mapping of {@code value}, using {@code name} as
+     * field's name, or {@code null} if this mapper doesn't write doc values. Doc values are single valued, so they
+     * mustn't be written for collection columns.
+     *
+     * @param name  The name of the Lucene {@link Field}.
+     * @param value The value of the Lucene {@link Field}.
+     * @return The Lucene doc values {@link Field} resulting from the mapping of {@code value}, or {@code null}.
+     */
+    public Field docValuesField(String name, Object value)
+    {
+        return null;
+    }
+
     /**
      * Returns the Lucene's type for this mapper.
      *
@@ -149,4 +181,67 @@ public abstract class ColumnMapper<BASE>
         return false;
     }
 
+    /**
+     * Returns {@code true} if the Lucene's values built by this mapper from values of the specified Cassandra type
+     * keep the semantics of the specified {@link Operator}, so an {@link IndexExpression} using it can be solved by
+     * the index instead of being checked against each row.
+     *
+     * @param type     A Cassandra type supported by this mapper.
+     * @param operator An {@link IndexExpression}'s {@link Operator}.
+     * @return {@code true} if the index can solve the specified {@link Operator} for values of {@code type}.
+     */
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return false;
+    }
+
+    /**
+     * Returns the Lucene's {@link Query} selecting the documents whose specified field satisfies the specified
+     * {@link IndexExpression}, or {@code null} if the expression can't be exactly solved by the index.
+     *
+     * @param field      The field name.
+     * @param type       The Cassandra type of the indexed column.
+     * @param expression The {@link IndexExpression} to be satisfied.
+     * @return The Lucene's {@link Query} equivalent to {@code expression}, or {@code null} if there is no such query.
+     */
+    public Query query(String field, AbstractType<?> type, IndexExpression expression)
+    {
+        Operator operator = expression.operator;
+        if (type.isCollection() || !supports(type) || !supportsFiltering(type, operator))
+        {
+            return null;
+        }
+
+        Object value = indexValue(field, type.compose(expression.value));
+        Object lower = operator == Operator.EQ || operator == Operator.GT || operator == Operator.GTE ? value : null;
+        Object upper = operator == Operator.EQ || operator == Operator.LT || operator == Operator.LTE ? value : null;
+        boolean includeLower = operator != Operator.GT;
+        boolean includeUpper = operator != Operator.LT;
+
+        Class<BASE> clazz = baseClass();
+        if (clazz == String.class)
+        {
+            return operator == Operator.EQ
+                   ? new TermQuery(new Term(field, (String) value))
+                   : TermRangeQuery.newStringRange(field, (String) lower, (String) upper, includeLower, includeUpper);
+        }
+        else if (clazz == Integer.class)
+        {
+            return NumericRangeQuery.newIntRange(field, (Integer) lower, (Integer) upper, includeLower, includeUpper);
+        }
+        else if (clazz == Long.class)
+        {
+            return NumericRangeQuery.newLongRange(field, (Long) lower, (Long) upper, includeLower, includeUpper);
+        }
+        else if (clazz == Float.class)
+        {
+            return NumericRangeQuery.newFloatRange(field, (Float) lower, (Float) upper, includeLower, includeUpper);
+        }
+        else if (clazz == Double.class)
+        {
+            return NumericRangeQuery.newDoubleRange(field, (Double) lower, (Double) upper, includeLower, includeUpper);
+        }
+        return null;
+    }
+
 }
@@ -16,6 +16,7 @@
 package com.stratio.cassandra.index.schema;
 
 import com.stratio.cassandra.index.util.ByteBufferUtils;
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.AsciiType;
 import org.apache.cassandra.db.marshal.BytesType;
@@ -114,6 +115,12 @@ public class ColumnMapperBlob extends ColumnMapper<String>
         return String.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return operator == Operator.EQ && (type instanceof BytesType);
+    }
+
     @Override
     public String toString()
     {
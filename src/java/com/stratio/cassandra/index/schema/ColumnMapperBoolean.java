@@ -15,6 +15,7 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.AsciiType;
 import org.apache.cassandra.db.marshal.BooleanType;
@@ -22,9 +23,11 @@ import org.apache.cassandra.db.marshal.UTF8Type;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
+import org.apache.lucene.util.BytesRef;
 import org.codehaus.jackson.annotate.JsonCreator;
 
 /**
@@ -100,6 +103,18 @@ public class ColumnMapperBoolean extends ColumnMapper<String>
         return new StringField(name, indexValue(name, value), STORE);
     }
 
+    @Override
+    public boolean hasDocValues()
+    {
+        return true;
+    }
+
+    @Override
+    public Field docValuesField(String name, Object value)
+    {
+        return new SortedDocValuesField(name, new BytesRef(indexValue(name, value)));
+    }
+
     @Override
     public SortField sortField(String field, boolean reverse)
     {
@@ -112,6 +127,12 @@ public class ColumnMapperBoolean extends ColumnMapper<String>
         return String.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return operator == Operator.EQ && (type instanceof BooleanType);
+    }
+
     @Override
     public String toString()
     {
@@ -15,11 +15,13 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
 import org.codehaus.jackson.annotate.JsonCreator;
@@ -119,6 +121,18 @@ public class ColumnMapperDate extends ColumnMapper<Long>
         return new LongField(name, indexValue(name, value), STORE);
     }
 
+    @Override
+    public boolean hasDocValues()
+    {
+        return true;
+    }
+
+    @Override
+    public Field docValuesField(String name, Object value)
+    {
+        return new NumericDocValuesField(name, indexValue(name, value));
+    }
+
     @Override
     public SortField sortField(String field, boolean reverse)
     {
@@ -131,6 +145,12 @@ public class ColumnMapperDate extends ColumnMapper<Long>
         return Long.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return type instanceof TimestampType || type instanceof LongType;
+    }
+
     @Override
     public String toString()
     {
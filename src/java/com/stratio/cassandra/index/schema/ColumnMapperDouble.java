@@ -15,9 +15,11 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.DoubleDocValuesField;
 import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.search.SortField;
@@ -99,6 +101,18 @@ public class ColumnMapperDouble extends ColumnMapper<Double>
         return field;
     }
 
+    @Override
+    public boolean hasDocValues()
+    {
+        return true;
+    }
+
+    @Override
+    public Field docValuesField(String name, Object value)
+    {
+        return new DoubleDocValuesField(name, indexValue(name, value));
+    }
+
     @Override
     public SortField sortField(String field, boolean reverse)
     {
@@ -111,6 +125,12 @@ public class ColumnMapperDouble extends ColumnMapper<Double>
         return Double.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return type instanceof FloatType || type instanceof DoubleType || type instanceof Int32Type;
+    }
+
     @Override
     public String toString()
     {
@@ -15,10 +15,12 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FloatDocValuesField;
 import org.apache.lucene.document.FloatField;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
@@ -105,6 +107,18 @@ public class ColumnMapperFloat extends ColumnMapper<Float>
         return field;
     }
 
+    @Override
+    public boolean hasDocValues()
+    {
+        return true;
+    }
+
+    @Override
+    public Field docValuesField(String name, Object value)
+    {
+        return new FloatDocValuesField(name, indexValue(name, value));
+    }
+
     @Override
     public SortField sortField(String field, boolean reverse)
     {
@@ -117,6 +131,12 @@ public class ColumnMapperFloat extends ColumnMapper<Float>
         return Float.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return type instanceof FloatType;
+    }
+
     @Override
     public String toString()
     {
@@ -16,6 +16,7 @@
 package com.stratio.cassandra.index.schema;
 
 import com.stratio.cassandra.index.util.Log;
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.AsciiType;
 import org.apache.cassandra.db.marshal.InetAddressType;
@@ -144,6 +145,12 @@ public class ColumnMapperInet extends ColumnMapper<String>
         return String.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return operator == Operator.EQ && (type instanceof InetAddressType);
+    }
+
     @Override
     public String toString()
     {
@@ -15,11 +15,13 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
 import org.codehaus.jackson.annotate.JsonCreator;
@@ -105,6 +107,18 @@ public class ColumnMapperInteger extends ColumnMapper<Integer>
         return field;
     }
 
+    @Override
+    public boolean hasDocValues()
+    {
+        return true;
+    }
+
+    @Override
+    public Field docValuesField(String name, Object value)
+    {
+        return new NumericDocValuesField(name, indexValue(name, value));
+    }
+
     @Override
     public SortField sortField(String field, boolean reverse)
     {
@@ -117,6 +131,12 @@ public class ColumnMapperInteger extends ColumnMapper<Integer>
         return Integer.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return type instanceof Int32Type;
+    }
+
     @Override
     public String toString()
     {
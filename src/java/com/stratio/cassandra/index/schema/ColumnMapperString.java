@@ -15,13 +15,16 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
+import org.apache.lucene.util.BytesRef;
 import org.codehaus.jackson.annotate.JsonCreator;
 
 /**
@@ -84,6 +87,18 @@ public class ColumnMapperString extends ColumnMapper<String>
         return new StringField(name, string, STORE);
     }
 
+    @Override
+    public boolean hasDocValues()
+    {
+        return true;
+    }
+
+    @Override
+    public Field docValuesField(String name, Object value)
+    {
+        return new SortedDocValuesField(name, new BytesRef(indexValue(name, value)));
+    }
+
     @Override
     public SortField sortField(String field, boolean reverse)
     {
@@ -96,6 +111,21 @@ public class ColumnMapperString extends ColumnMapper<String>
         return String.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        if (type instanceof UTF8Type || type instanceof AsciiType)
+        {
+            return true;
+        }
+        return operator == Operator.EQ && (type instanceof Int32Type
+                                           || type instanceof LongType
+                                           || type instanceof IntegerType
+                                           || type instanceof UUIDType
+                                           || type instanceof TimeUUIDType
+                                           || type instanceof BooleanType);
+    }
+
     @Override
     public String toString()
     {
@@ -15,6 +15,7 @@
  */
 package com.stratio.cassandra.index.schema;
 
+import org.apache.cassandra.db.IndexExpression.Operator;
 import org.apache.cassandra.db.marshal.*;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.lucene.analysis.Analyzer;
@@ -100,6 +101,12 @@ public class ColumnMapperUUID extends ColumnMapper<String>
         return String.class;
     }
 
+    @Override
+    protected boolean supportsFiltering(AbstractType<?> type, Operator operator)
+    {
+        return operator == Operator.EQ && (type instanceof UUIDType || type instanceof TimeUUIDType);
+    }
+
     @Override
     public String toString()
     {
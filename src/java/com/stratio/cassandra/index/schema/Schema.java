@@ -34,8 +34,10 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 /**
  * Class for several columns mappings between Cassandra and Lucene.
@@ -65,6 +67,11 @@ public class Schema
      */
     private Map<String, ColumnMapper<?>> columnMappers;
 
+    /**
+     * The names of the mapped collection columns, whose multiple values can't be written as doc values.
+     */
+    private final Set<String> collectionColumns = new HashSet<>();
+
     /**
      * Builds a new {@code ColumnsMapper} for the specified analyzer and cell mappers.
      *
@@ -134,6 +141,11 @@ public class Schema
             {
                 throw new RuntimeException("Not supported type for mapper " + name);
             }
+
+            if (type.isCollection())
+            {
+                collectionColumns.add(name);
+            }
         }
     }
 
@@ -158,10 +170,26 @@ public class Schema
             {
                 Field field = columnMapper.field(fieldName, value);
                 document.add(field);
+                if (hasDocValues(name))
+                {
+                    document.add(columnMapper.docValuesField(fieldName, value));
+                }
             }
         }
     }
 
+    /**
+     * Returns if the values of the specified field are written as doc values, so they can be read by aggregations.
+     *
+     * @param field A field name.
+     * @return {@code true} if the values of the specified field are written as doc values, {@code false} otherwise.
+     */
+    public boolean hasDocValues(String field)
+    {
+        ColumnMapper<?> columnMapper = columnMappers.get(field);
+        return columnMapper != null && columnMapper.hasDocValues() && !collectionColumns.contains(field);
+    }
+
     /**
      * Returns the {@link ColumnMapper} identified by the specified field name.
      *
@@ -15,7 +15,8 @@
  */
 package com.stratio.cassandra.index.util;
 
-import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
 
 import java.nio.ByteBuffer;
 
@@ -27,23 +28,6 @@ import java.nio.ByteBuffer;
 class Base256Serializer
 {
 
-    /**
-     * Returns the {@code char} array representation of the specified {@code byte} array.
-     *
-     * @param bytes The {@code byte} array to be converted.
-     * @return The {@code char} array representation of the specified {@code byte} array.
-     */
-    private static char[] chars(byte[] bytes)
-    {
-        char[] chars = new char[bytes.length];
-        for (int i = 0; i < bytes.length; i++)
-        {
-            int pos = bytes[i] & 0xff;
-            chars[i] = (char) pos;
-        }
-        return chars;
-    }
-
     /**
      * Returns the {@code byte} array representation of the specified {@code char} array.
      *
@@ -80,10 +64,46 @@ class Base256Serializer
      */
     public static String string(ByteBuffer byteBuffer)
     {
-        ByteBuffer bb = ByteBufferUtil.clone(byteBuffer);
-        byte[] bytes = new byte[bb.remaining()];
-        bb.get(bytes);
-        return new String(chars(bytes));
+        int position = byteBuffer.position();
+        char[] chars = new char[byteBuffer.remaining()];
+        for (int i = 0; i < chars.length; i++)
+        {
+            chars[i] = (char) (byteBuffer.get(position + i) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes into the specified {@link BytesRef} the UTF-8 encoding of the {@code String} representation of the
+     * specified {@code ByteBuffer}, without building the intermediate {@code String}. The {@link BytesRef} is reused,
+     * growing its array if needed.
+     *
+     * @param byteBuffer The {@code ByteBuffer} to be converted.
+     * @param bytesRef   The {@link BytesRef} where the UTF-8 bytes are written.
+     * @return The specified {@link BytesRef}.
+     */
+    public static BytesRef bytesRef(ByteBuffer byteBuffer, BytesRef bytesRef)
+    {
+        int position = byteBuffer.position();
+        int remaining = byteBuffer.remaining();
+        bytesRef.bytes = ArrayUtil.grow(bytesRef.bytes, 2 * remaining);
+        bytesRef.offset = 0;
+        int length = 0;
+        for (int i = 0; i < remaining; i++)
+        {
+            int b = byteBuffer.get(position + i) & 0xff;
+            if (b < 0x80)
+            {
+                bytesRef.bytes[length++] = (byte) b;
+            }
+            else
+            {
+                bytesRef.bytes[length++] = (byte) (0xc0 | (b >> 6));
+                bytesRef.bytes[length++] = (byte) (0x80 | (b & 0x3f));
+            }
+        }
+        bytesRef.length = length;
+        return bytesRef;
     }
 
     /**
@@ -96,4 +116,39 @@ class Base256Serializer
     {
         return ByteBuffer.wrap(bytes(string));
     }
+
+    /**
+     * Returns the {@code ByteBuffer} represented by the UTF-8 encoding of a {@code String} representation, such as the
+     * one written by {@link #bytesRef(ByteBuffer, BytesRef)}, without building the intermediate {@code String}.
+     *
+     * @param bytesRef The {@link BytesRef} containing the UTF-8 bytes to be converted.
+     * @return The {@code ByteBuffer} represented by the specified UTF-8 bytes.
+     */
+    public static ByteBuffer byteBuffer(BytesRef bytesRef)
+    {
+        int end = bytesRef.offset + bytesRef.length;
+        int length = 0;
+        for (int i = bytesRef.offset; i < end; i++)
+        {
+            if ((bytesRef.bytes[i] & 0xc0) != 0x80) // Not a continuation byte
+            {
+                length++;
+            }
+        }
+        byte[] bytes = new byte[length];
+        int j = 0;
+        for (int i = bytesRef.offset; i < end; i++)
+        {
+            int b = bytesRef.bytes[i] & 0xff;
+            if (b < 0x80)
+            {
+                bytes[j++] = (byte) b;
+            }
+            else
+            {
+                bytes[j++] = (byte) (((b & 0x1f) << 6) | (bytesRef.bytes[++i] & 0x3f));
+            }
+        }
+        return ByteBuffer.wrap(bytes);
+    }
 }
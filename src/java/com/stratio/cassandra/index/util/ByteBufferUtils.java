@@ -20,6 +20,7 @@ import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.db.marshal.CompositeType;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.Hex;
+import org.apache.lucene.util.BytesRef;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -136,6 +137,19 @@ public class ByteBufferUtils
         return Base256Serializer.string(byteBuffer);
     }
 
+    /**
+     * Writes into {@code bytesRef} the UTF-8 bytes of the {@code String} returned by {@link #toString(ByteBuffer)}
+     * for {@code byteBuffer}, without building the {@code String}.
+     *
+     * @param byteBuffer the {@link java.nio.ByteBuffer} to be converted.
+     * @param bytesRef   the {@link BytesRef} to be reused.
+     * @return {@code bytesRef}, containing the UTF-8 bytes of the {@code String} representation of {@code byteBuffer}.
+     */
+    public static BytesRef toBytesRef(ByteBuffer byteBuffer, BytesRef bytesRef)
+    {
+        return Base256Serializer.bytesRef(byteBuffer, bytesRef);
+    }
+
     /**
      * Returns the {@link java.nio.ByteBuffer} represented by {@code string}, which must be have generated by
      * {@link #toString(ByteBuffer)}.
@@ -149,6 +163,18 @@ public class ByteBufferUtils
         return Base256Serializer.byteBuffer(string);
     }
 
+    /**
+     * Returns the {@link java.nio.ByteBuffer} represented by the UTF-8 bytes of a {@code String} generated by
+     * {@link #toString(ByteBuffer)}, such as the ones written by {@link #toBytesRef(ByteBuffer, BytesRef)}.
+     *
+     * @param bytesRef the {@link BytesRef} to be converted to {@link ByteBuffer}.
+     * @return the {@link java.nio.ByteBuffer} represented by {@code bytesRef}.
+     */
+    public static ByteBuffer fromBytesRef(BytesRef bytesRef)
+    {
+        return Base256Serializer.byteBuffer(bytesRef);
+    }
+
     public static String toHex(ByteBuffer byteBuffer)
     {
         return ByteBufferUtil.bytesToHex(byteBuffer);
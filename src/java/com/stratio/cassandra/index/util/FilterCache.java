@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.WAH8DocIdSet;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the per segment {@link DocIdSet}s matched by not scoring filtering {@link Query}s, shared by all the
+ * {@link Filter}s built by it and bounded by the memory used by the cached {@link DocIdSet}s.
+ * <p/>
+ * Entries are keyed by the filtering {@link Query} and the segment core, so they survive the NRT reopens not
+ * modifying the segment, and they are invalidated when the segment core is closed. Deletions are applied at search
+ * time, so they don't invalidate the cached entries.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class FilterCache
+{
+
+    private final Cache<Key, WAH8DocIdSet> cache;
+    private final Set<Object> cores = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    private final SegmentReader.CoreClosedListener listener = new SegmentReader.CoreClosedListener()
+    {
+        @Override
+        public void onClose(Object core)
+        {
+            invalidate(core);
+        }
+    };
+
+    /**
+     * Builds a new {@link FilterCache}.
+     *
+     * @param maxSizeInBytes The max memory in bytes used by the cached {@link DocIdSet}s.
+     */
+    public FilterCache(long maxSizeInBytes)
+    {
+        cache = CacheBuilder.newBuilder().maximumWeight(maxSizeInBytes).weigher(new Weigher<Key, WAH8DocIdSet>()
+        {
+            @Override
+            public int weigh(Key key, WAH8DocIdSet docIdSet)
+            {
+                return (int) Math.min(Integer.MAX_VALUE, docIdSet.ramBytesUsed());
+            }
+        }).recordStats().build();
+    }
+
+    /**
+     * Returns the underlying {@link Cache}.
+     *
+     * @return The underlying {@link Cache}.
+     */
+    public Cache<?, ?> getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Returns the memory in bytes currently used by the cached {@link DocIdSet}s.
+     *
+     * @return The memory in bytes currently used by the cached {@link DocIdSet}s.
+     */
+    public long sizeInBytes()
+    {
+        long size = 0;
+        for (WAH8DocIdSet docIdSet : cache.asMap().values())
+        {
+            size += docIdSet.ramBytesUsed();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a cached {@link Filter} matching the same documents as the specified not scoring {@link Query}.
+     *
+     * @param query A not scoring {@link Query}.
+     * @return A cached {@link Filter} matching the same documents as the specified {@link Query}.
+     */
+    public Filter filter(Query query)
+    {
+        return new CachedFilter(query);
+    }
+
+    /**
+     * Removes all the cached entries.
+     */
+    public void clear()
+    {
+        cache.invalidateAll();
+    }
+
+    private void invalidate(Object core)
+    {
+        cores.remove(core);
+        for (Key key : cache.asMap().keySet())
+        {
+            if (key.core == core)
+            {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    private static WAH8DocIdSet docIdSet(DocIdSet docIdSet) throws IOException
+    {
+        WAH8DocIdSet.Builder builder = new WAH8DocIdSet.Builder();
+        if (docIdSet != null)
+        {
+            DocIdSetIterator iterator = docIdSet.iterator();
+            if (iterator != null)
+            {
+                builder.add(iterator);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * A {@link Filter} reading and populating this cache.
+     */
+    private class CachedFilter extends Filter
+    {
+        private final Query query;
+        private final Filter filter;
+
+        private CachedFilter(Query query)
+        {
+            this.query = query;
+            this.filter = new QueryWrapperFilter(query);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException
+        {
+            AtomicReader reader = context.reader();
+            if (!(reader instanceof SegmentReader))
+            {
+                return filter.getDocIdSet(context, acceptDocs);
+            }
+
+            Object core = reader.getCoreCacheKey();
+            Key key = new Key(query, core);
+            WAH8DocIdSet docIdSet = cache.getIfPresent(key);
+            if (docIdSet == null)
+            {
+                docIdSet = docIdSet(filter.getDocIdSet(context, null));
+                if (cores.add(core))
+                {
+                    ((SegmentReader) reader).addCoreClosedListener(listener);
+                }
+                cache.put(key, docIdSet);
+            }
+            return BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof CachedFilter && query.equals(((CachedFilter) o).query);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return query.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("CachedFilter(%s)", query);
+        }
+    }
+
+    /**
+     * A cache key formed by a filtering {@link Query} and a segment core.
+     */
+    private static class Key
+    {
+        private final Query query;
+        private final Object core;
+
+        private Key(Query query, Object core)
+        {
+            this.query = query;
+            this.core = core;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key key = (Key) o;
+            return core == key.core && query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * query.hashCode() + System.identityHashCode(core);
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reads the values associated to an ordered list of keys, reading ahead concurrently the values of the next keys
+ * while the values are retrieved in order. The number of reads in flight is bounded by a window size.
+ * <p/>
+ * A read that has not been started by the {@link Executor} when its value is requested is run by the requesting
+ * thread, so it never waits for an executor thread. This allows to use a shared executor, such as a Cassandra stage,
+ * from tasks running in that same executor.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public abstract class ReadAhead<K, V>
+{
+
+    private final Executor executor;
+    private final List<K> keys;
+    private final int window;
+    private final Map<K, Integer> positions;
+    private final Map<K, FutureTask<V>> tasks;
+    private int next;
+
+    /**
+     * Builds a new {@link ReadAhead}.
+     *
+     * @param executor The {@link Executor} to be used for reading ahead.
+     * @param keys     The keys to be read, in the order in which their values are going to be requested.
+     * @param window   The max number of keys to be read concurrently. A value of {@code 1} means no read ahead.
+     */
+    public ReadAhead(Executor executor, List<K> keys, int window)
+    {
+        this.executor = executor;
+        this.keys = keys;
+        this.window = window;
+        this.positions = new HashMap<>(keys.size());
+        this.tasks = new HashMap<>(Math.min(keys.size(), window));
+        for (int i = 0; i < keys.size(); i++)
+        {
+            positions.put(keys.get(i), i);
+        }
+    }
+
+    /**
+     * Returns the value associated to the specified key.
+     *
+     * @param key A key.
+     * @return The value associated to the specified key.
+     */
+    protected abstract V read(K key);
+
+    /**
+     * Returns the value associated to the specified key, starting the reading of the next keys in the window.
+     *
+     * @param key A key.
+     * @return The value associated to the specified key.
+     */
+    public V get(K key)
+    {
+        Integer position = positions.get(key);
+        if (position != null)
+        {
+            int last = Math.min(keys.size(), position + window);
+            while (next < last)
+            {
+                submit(keys.get(next), next != position); // The requested key is read by this thread
+                next++;
+            }
+        }
+
+        FutureTask<V> task = tasks.remove(key);
+        if (task == null)
+        {
+            return read(key);
+        }
+        task.run(); // Run in this thread if not started yet
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void submit(final K key, boolean async)
+    {
+        FutureTask<V> task = new FutureTask<>(new Callable<V>()
+        {
+            @Override
+            public V call() throws Exception
+            {
+                return read(key);
+            }
+        });
+        tasks.put(key, task);
+        if (async && window > 1)
+        {
+            executor.execute(task);
+        }
+    }
+
+}
@@ -15,139 +15,292 @@
  */
 package com.stratio.cassandra.index.util;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import com.lmax.disruptor.BatchEventProcessor;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.EventTranslatorThreeArg;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * A queue that executes each submitted task using one of possibly several pooled threads. Tasks can be submitted with
+ * A queue that executes each submitted task using one of possibly several consumer threads. Tasks can be submitted with
  * an identifier, ensuring that all tasks with same identifier will be executed orderly in the same thread. Each thread
- * has its own task queue.
+ * consumes its own ring buffer of preallocated task slots, draining all the available tasks in a single batch.
+ * <p/>
+ * Tasks are not closures but the fields of a reusable slot, which are set by an {@link EventTranslatorOneArg} or
+ * {@link EventTranslatorThreeArg} when the task is submitted. Each thread has its own {@link Consumer}, which is
+ * flushed at the end of each batch, so it can buffer the work of the whole batch.
+ * <p/>
+ * Asynchronous submissions don't take any lock, and they block while the ring buffer of the chosen thread is full.
+ * Synchronous tasks are mutually exclusive, and they are run after all the tasks submitted before them have been
+ * consumed and flushed, without blocking new asynchronous submissions.
  *
+ * @param <T> The type of the task slots.
  * @author Andres de la Pena <adelapena@stratio.com>
  */
-public class TaskQueue
+public class TaskQueue<T extends TaskQueue.Task>
 {
 
-    private NotifyingBlockingThreadPoolExecutor[] pools;
+    private final List<RingBuffer<T>> rings;
+    private final List<BatchEventProcessor<T>> processors;
+    private final ExecutorService executor;
+
+    private final AtomicLong blockedSubmissions = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong drainedTasks = new AtomicLong();
+    private final AtomicLong drainedBatches = new AtomicLong();
+
+    /** The time to wait between retries of a barrier submission to a full queue. */
+    private static final long BARRIER_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final EventTranslatorOneArg<Task, CountDownLatch> barrierTranslator = new EventTranslatorOneArg<Task, CountDownLatch>()
+    {
+        @Override
+        public void translateTo(Task task, long sequence, CountDownLatch barrier)
+        {
+            task.barrier = barrier;
+        }
+    };
 
     /**
      * Returns a new {@link TaskQueue}
      *
-     * @param numThreads The number of executor threads.
-     * @param queuesSize The max number of tasks in each thread queue before blocking.
+     * @param numThreads The number of consumer threads.
+     * @param queuesSize The max number of tasks in each thread queue before blocking, rounded up to a power of two.
+     * @param factory    The factory of the preallocated task slots.
+     * @param consumers  The factory of the {@link Consumer} of each thread.
      */
-    public TaskQueue(int numThreads, int queuesSize)
+    public TaskQueue(int numThreads, int queuesSize, EventFactory<T> factory, ConsumerFactory<T> consumers)
     {
-
-        pools = new NotifyingBlockingThreadPoolExecutor[numThreads];
+        int bufferSize = Integer.highestOneBit(Math.max(1, queuesSize - 1)) << 1;
+        rings = new ArrayList<>(numThreads);
+        processors = new ArrayList<>(numThreads);
+        executor = Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("LuceneIndexer"));
         for (int i = 0; i < numThreads; i++)
         {
-            pools[i] = new NotifyingBlockingThreadPoolExecutor(1,
-                    queuesSize,
-                    Long.MAX_VALUE,
-                    TimeUnit.DAYS,
-                    0,
-                    TimeUnit.NANOSECONDS,
-                    null);
-            pools[i].submit(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    Log.debug("Task queue starts");
-                }
-            });
+            RingBuffer<T> ring = RingBuffer.createMultiProducer(factory, bufferSize, new BlockingWaitStrategy());
+            EventHandler<T> handler = new Handler(consumers.newConsumer());
+            BatchEventProcessor<T> processor = new BatchEventProcessor<>(ring, ring.newBarrier(), handler);
+            ring.addGatingSequences(processor.getSequence());
+            rings.add(ring);
+            processors.add(processor);
+            executor.execute(processor);
         }
+        Log.debug("Task queue starts with %d threads and %d slots per thread", numThreads, bufferSize);
+    }
+
+    /**
+     * Submits a task for asynchronous execution, setting the fields of its slot with the specified translator.
+     * <p/>
+     * The specified identifier is used to choose the thread where the task will be queued. The selection and load
+     * balancing is based in the {@link #hashCode()} of this identifier. If the queue of the chosen thread is full, this
+     * blocks until there is room for the task.
+     *
+     * @param id         The identifier of the task used to choose the thread where the task will be queued for
+     *                   asynchronous execution.
+     * @param translator The translator setting the task slot fields.
+     * @param arg        The translator argument.
+     * @param <A>        The type of the translator argument.
+     */
+    public <A> void submitAsynchronous(Object id, EventTranslatorOneArg<? super T, A> translator, A arg)
+    {
+        publish(ring(id), translator, arg);
     }
 
     /**
-     * Submits a non value-returning task for asynchronous execution.
+     * Submits a task for asynchronous execution, setting the fields of its slot with the specified translator.
      * <p/>
-     * The specified identifier is used to choose the thread executor where the task will be queued. The selection and
-     * load balancing is based in the {@link #hashCode()} of this identifier.
+     * The specified identifier is used to choose the thread where the task will be queued. The selection and load
+     * balancing is based in the {@link #hashCode()} of this identifier. If the queue of the chosen thread is full, this
+     * blocks until there is room for the task.
      *
-     * @param id   The identifier of the task used to choose the thread executor where the task will be queued for
-     *             asynchronous execution.
-     * @param task A task to be queued for asynchronous execution.
+     * @param id         The identifier of the task used to choose the thread where the task will be queued for
+     *                   asynchronous execution.
+     * @param translator The translator setting the task slot fields.
+     * @param arg0       The first translator argument.
+     * @param arg1       The second translator argument.
+     * @param arg2       The third translator argument.
+     * @param <A>        The type of the first translator argument.
+     * @param <B>        The type of the second translator argument.
+     * @param <C>        The type of the third translator argument.
      */
-    public Future<?> submitAsynchronous(Object id, Runnable task)
+    public <A, B, C> void submitAsynchronous(Object id,
+                                             EventTranslatorThreeArg<? super T, A, B, C> translator,
+                                             A arg0,
+                                             B arg1,
+                                             C arg2)
     {
-        lock.readLock().lock();
+        RingBuffer<T> ring = ring(id);
+        long sequence = next(ring);
         try
         {
-            int i = Math.abs((int) (id.hashCode() % pools.length));
-            return pools[i].submit(task);
+            translator.translateTo(ring.get(sequence), sequence, arg0, arg1, arg2);
         }
-        catch (Exception e)
+        finally
         {
-            Log.error(e, "Task queue submission failed");
-            throw new RuntimeException(e);
+            ring.publish(sequence);
+        }
+    }
+
+    private RingBuffer<T> ring(Object id)
+    {
+        return rings.get(Math.abs(id.hashCode() % rings.size()));
+    }
+
+    private <A> void publish(RingBuffer<T> ring, EventTranslatorOneArg<? super T, A> translator, A arg)
+    {
+        long sequence = next(ring);
+        try
+        {
+            translator.translateTo(ring.get(sequence), sequence, arg);
         }
         finally
         {
-            lock.readLock().unlock();
+            ring.publish(sequence);
+        }
+    }
+
+    private long next(RingBuffer<T> ring)
+    {
+        try
+        {
+            return ring.tryNext();
+        }
+        catch (InsufficientCapacityException e)
+        {
+            long startTime = System.nanoTime();
+            long sequence = ring.next();
+            blockedSubmissions.incrementAndGet();
+            blockedNanos.addAndGet(System.nanoTime() - startTime);
+            return sequence;
         }
     }
 
-    private void awaitInner() throws ExecutionException, InterruptedException
+    /**
+     * Submits a barrier task to each thread, returning a {@link CountDownLatch} to be released once all of them have
+     * been consumed, and so all the tasks submitted before them have been consumed and flushed.
+     *
+     * @return A latch released once all the tasks submitted before this call have been completed.
+     */
+    private CountDownLatch submitBarrier()
     {
-        Future<?>[] futures = new Future<?>[pools.length];
-        for (int i = 0; i < pools.length; i++)
+        CountDownLatch latch = new CountDownLatch(rings.size());
+        for (RingBuffer<T> ring : rings)
         {
-            Future<?> future = pools[i].submit(new Runnable()
+            publish(ring, barrierTranslator, latch);
+        }
+        return latch;
+    }
+
+    /**
+     * Submits a barrier task to each thread as {@link #submitBarrier()} does, but without blocking past the specified
+     * deadline when the ring buffer of a thread is full, retrying the submission until there is room for it. The
+     * barriers already submitted when the deadline is reached are consumed as any other task.
+     *
+     * @param deadlineNanos The deadline as a {@link System#nanoTime()} value.
+     * @return A latch released once all the tasks submitted before this call have been completed, or {@code null} if
+     * the deadline has been reached or the calling thread has been interrupted before submitting all the barriers.
+     */
+    private CountDownLatch submitBarrier(long deadlineNanos)
+    {
+        CountDownLatch latch = new CountDownLatch(rings.size());
+        for (RingBuffer<T> ring : rings)
+        {
+            long sequence;
+            while (true)
             {
-                @Override
-                public void run()
+                try
                 {
+                    sequence = ring.tryNext();
+                    break;
                 }
-            });
-            futures[i] = future;
-        }
-        for (Future<?> future : futures)
-        {
-            future.get();
+                catch (InsufficientCapacityException e)
+                {
+                    if (System.nanoTime() - deadlineNanos >= 0 || Thread.currentThread().isInterrupted())
+                    {
+                        return null;
+                    }
+                    LockSupport.parkNanos(BARRIER_RETRY_NANOS);
+                }
+            }
+            try
+            {
+                barrierTranslator.translateTo(ring.get(sequence), sequence, latch);
+            }
+            finally
+            {
+                ring.publish(sequence);
+            }
         }
+        return latch;
     }
 
-    public void await()
+    /**
+     * Waits for the completion of the tasks submitted before this call, without blocking new submissions. The timeout
+     * covers both the submission of the barriers, which can't be queued while the queues are full, and the wait for
+     * their completion, so this returns even if the consumers have been stopped by {@link #close()}.
+     *
+     * @param timeoutMillis The max time to wait in milliseconds.
+     * @return {@code true} if the tasks have been completed, {@code false} if the timeout has been reached.
+     */
+    public boolean awaitSubmitted(long timeoutMillis)
     {
-        lock.writeLock().lock();
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        CountDownLatch latch = submitBarrier(deadlineNanos);
+        if (latch == null)
+        {
+            return false;
+        }
         try
         {
-            awaitInner();
+            return latch.await(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
         }
         catch (InterruptedException e)
         {
-            Log.error(e, "Await interrupted");
-            throw new RuntimeException(e);
+            Thread.currentThread().interrupt();
+            return false;
         }
-        catch (ExecutionException e)
+    }
+
+    /**
+     * Waits for the completion of the tasks submitted before this call.
+     */
+    public synchronized void await()
+    {
+        try
         {
-            Log.error(e, "Await failed");
-            throw new RuntimeException(e);
+            submitBarrier().await();
         }
-        finally
+        catch (InterruptedException e)
         {
-            lock.writeLock().unlock();
+            Log.error(e, "Await interrupted");
+            throw new RuntimeException(e);
         }
     }
 
     /**
-     * Submits a non value-returning task for synchronous execution. It waits for all synchronous tasks to be completed.
+     * Submits a non value-returning task for synchronous execution. It waits for all the tasks submitted before this
+     * call to be completed.
      *
      * @param task A task to be executed synchronously.
      */
-    public void submitSynchronous(Runnable task)
+    public synchronized void submitSynchronous(Runnable task)
     {
-        lock.writeLock().lock();
         try
         {
-            awaitInner();
+            submitBarrier().await();
             task.run();
         }
         catch (InterruptedException e)
@@ -160,9 +313,220 @@ public class TaskQueue
             Log.error(e, "Task queue isolated submission failed");
             throw new RuntimeException(e);
         }
-        finally
+    }
+
+    /**
+     * Waits for the completion of the submitted tasks and stops the consumer threads. Tasks submitted after this call
+     * are never run.
+     */
+    public synchronized void close()
+    {
+        await();
+        for (BatchEventProcessor<T> processor : processors)
+        {
+            processor.halt();
+        }
+        executor.shutdown();
+        try
+        {
+            // Halting is asynchronous, so wait for the consumers to stop before any further submission
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                Log.warn("Waiting for the task queue consumers to stop");
+            }
+        }
+        catch (InterruptedException e)
         {
-            lock.writeLock().unlock();
+            Log.error(e, "Task queue close interrupted");
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting in the queues.
+     *
+     * @return The number of tasks waiting in the queues.
+     */
+    public long getPendingTasks()
+    {
+        long pendingTasks = 0;
+        for (RingBuffer<T> ring : rings)
+        {
+            pendingTasks += ring.getBufferSize() - ring.remainingCapacity();
+        }
+        return pendingTasks;
+    }
+
+    /**
+     * Returns the max number of tasks that can be waiting in the queues.
+     *
+     * @return The max number of tasks that can be waiting in the queues.
+     */
+    public long getCapacity()
+    {
+        long capacity = 0;
+        for (RingBuffer<T> ring : rings)
+        {
+            capacity += ring.getBufferSize();
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns the number of asynchronous submissions that have been blocked because their queue was full.
+     *
+     * @return The number of blocked submissions.
+     */
+    public long getBlockedSubmissions()
+    {
+        return blockedSubmissions.get();
+    }
+
+    /**
+     * Returns the total time in nanoseconds that asynchronous submissions have been blocked because their queue was
+     * full.
+     *
+     * @return The total blocking time in nanoseconds.
+     */
+    public long getBlockedNanos()
+    {
+        return blockedNanos.get();
+    }
+
+    /**
+     * Returns the number of tasks run by the consumer threads.
+     *
+     * @return The number of tasks run by the consumer threads.
+     */
+    public long getDrainedTasks()
+    {
+        return drainedTasks.get();
+    }
+
+    /**
+     * Returns the number of batches of tasks drained by the consumer threads.
+     *
+     * @return The number of batches drained by the consumer threads.
+     */
+    public long getDrainedBatches()
+    {
+        return drainedBatches.get();
+    }
+
+    /**
+     * A preallocated task slot of a ring buffer. Subclasses add the fields describing the task.
+     */
+    public abstract static class Task
+    {
+        private CountDownLatch barrier;
+
+        /**
+         * Releases the fields of this slot once the task has been consumed, so they can be garbage collected.
+         */
+        protected abstract void clear();
+    }
+
+    /**
+     * The consumer of the tasks of a single thread.
+     *
+     * @param <T> The type of the task slots.
+     */
+    public interface Consumer<T>
+    {
+        /**
+         * Runs the specified task, maybe buffering its work until the next call to {@link #flush()}.
+         *
+         * @param task The task to be run.
+         */
+        void consume(T task) throws Exception;
+
+        /**
+         * Completes the work buffered by the previous calls to {@link #consume(Object)}.
+         */
+        void flush() throws Exception;
+    }
+
+    /**
+     * The factory of the {@link Consumer} of each thread.
+     *
+     * @param <T> The type of the task slots.
+     */
+    public interface ConsumerFactory<T>
+    {
+        /**
+         * Returns a new {@link Consumer}, to be used by a single thread.
+         *
+         * @return A new {@link Consumer}.
+         */
+        Consumer<T> newConsumer();
+    }
+
+    /**
+     * Passes the tasks of a ring buffer to its {@link Consumer}, releasing their slots, and flushes the consumer at the
+     * end of each batch and before releasing a barrier.
+     */
+    private class Handler implements EventHandler<T>
+    {
+        private final Consumer<T> consumer;
+        private long batchSize;
+
+        private Handler(Consumer<T> consumer)
+        {
+            this.consumer = consumer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onEvent(T task, long sequence, boolean endOfBatch)
+        {
+            Task slot = task;
+            CountDownLatch barrier = slot.barrier;
+            if (barrier != null)
+            {
+                slot.barrier = null;
+                flush();
+                barrier.countDown();
+            }
+            else
+            {
+                try
+                {
+                    consumer.consume(task);
+                }
+                catch (Exception e)
+                {
+                    Log.error(e, "Error while running queued task");
+                }
+                finally
+                {
+                    task.clear();
+                }
+                batchSize++;
+            }
+            if (endOfBatch)
+            {
+                flush();
+            }
+        }
+
+        private void flush()
+        {
+            if (batchSize > 0)
+            {
+                try
+                {
+                    consumer.flush();
+                }
+                catch (Exception e)
+                {
+                    Log.error(e, "Error while flushing queued tasks");
+                }
+                drainedTasks.addAndGet(batchSize);
+                drainedBatches.incrementAndGet();
+                batchSize = 0;
+            }
         }
     }
 
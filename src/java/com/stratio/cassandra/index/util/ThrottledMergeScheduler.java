@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.compaction.CompactionInfo;
+import org.apache.cassandra.db.compaction.CompactionManager;
+import org.apache.cassandra.db.compaction.OperationType;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.MergePolicy.OneMerge;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.apache.lucene.store.RateLimiter;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lucene's {@link ConcurrentMergeScheduler} integrated with Cassandra's compaction. The number of Lucene merges
+ * running concurrently in the node is limited by {@link #MAX_CONCURRENT_MERGES}, and both the running and the waiting
+ * merges are reported as {@link OperationType#INDEX_MERGE} compactions, visible in {@code nodetool compactionstats}.
+ * <p/>
+ * The {@link RateLimiter} returned by {@link #getRateLimiter()} should be set for the merges of a
+ * {@link RateLimitedDirectoryWrapper}, so merges writes are throttled by the same rate limiter as compactions, which is
+ * configured by {@code compaction_throughput_mb_per_sec}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class ThrottledMergeScheduler extends ConcurrentMergeScheduler
+{
+
+    /** The max number of Lucene merges running concurrently in the node, across all the indexes. */
+    public static final int MAX_CONCURRENT_MERGES = Integer.getInteger("cassandra.lucene_max_concurrent_merges",
+                                                                       DatabaseDescriptor.getConcurrentCompactors());
+
+    private static final long MIN_PAUSE_CHECK_BYTES = 64 * 1024;
+
+    private static final Semaphore permits = new Semaphore(MAX_CONCURRENT_MERGES, true);
+
+    private final CFMetaData metadata;
+    private final ThreadLocal<Merge> currentMerge = new ThreadLocal<>();
+    private final RateLimiter rateLimiter = new CompactionRateLimiter();
+
+    /**
+     * Builds a new {@link ThrottledMergeScheduler} for an index of the specified column family.
+     *
+     * @param metadata The indexed column family metadata.
+     */
+    public ThrottledMergeScheduler(CFMetaData metadata)
+    {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Returns the {@link RateLimiter} throttling the writes of the merges run by this scheduler.
+     *
+     * @return The {@link RateLimiter} throttling the writes of the merges run by this scheduler.
+     */
+    public RateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void doMerge(OneMerge oneMerge) throws IOException
+    {
+        Merge merge = new Merge(oneMerge);
+        CompactionManager.instance.beginCompaction(merge);
+        try
+        {
+            permits.acquireUninterruptibly();
+            try
+            {
+                currentMerge.set(merge);
+                super.doMerge(oneMerge);
+            }
+            finally
+            {
+                currentMerge.remove();
+                permits.release();
+            }
+        }
+        finally
+        {
+            CompactionManager.instance.finishCompaction(merge);
+        }
+    }
+
+    /**
+     * A Lucene's merge reported as a compaction.
+     */
+    private class Merge extends CompactionInfo.Holder
+    {
+        private final OneMerge merge;
+        private volatile long bytesWritten;
+
+        private Merge(OneMerge merge)
+        {
+            this.merge = merge;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public CompactionInfo getCompactionInfo()
+        {
+            long total = Math.max(bytesWritten, merge.estimatedMergeBytes);
+            return new CompactionInfo(metadata, OperationType.INDEX_MERGE, bytesWritten, total);
+        }
+    }
+
+    /**
+     * {@link RateLimiter} delegating on the compactions rate limiter, and tracking the progress of the current merge.
+     */
+    private class CompactionRateLimiter extends RateLimiter
+    {
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * The rate is driven by {@code compaction_throughput_mb_per_sec}, so this does nothing.
+         */
+        @Override
+        public void setMbPerSec(double mbPerSec)
+        {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public double getMbPerSec()
+        {
+            return CompactionManager.instance.getRateLimiter().getRate() / (1024 * 1024);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long pause(long bytes)
+        {
+            Merge merge = currentMerge.get();
+            if (merge != null)
+            {
+                merge.bytesWritten += bytes;
+            }
+            long startTime = System.nanoTime();
+            com.google.common.util.concurrent.RateLimiter limiter = CompactionManager.instance.getRateLimiter();
+            while (bytes > 0)
+            {
+                int acquired = (int) Math.min(bytes, Integer.MAX_VALUE);
+                limiter.acquire(acquired);
+                bytes -= acquired;
+            }
+            return System.nanoTime() - startTime;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getMinPauseCheckBytes()
+        {
+            return MIN_PAUSE_CHECK_BYTES;
+        }
+    }
+
+}
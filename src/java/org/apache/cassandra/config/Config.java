@@ -91,6 +91,7 @@ public class Config
     public Integer concurrent_replicates = null;
 
     public Integer memtable_flush_writers = null;
+    public Integer memtable_flush_shards = null;
     public Integer memtable_heap_space_in_mb;
     public Integer memtable_offheap_space_in_mb;
     public Float memtable_cleanup_threshold = null;
@@ -144,12 +145,15 @@ public class Config
 
     // Commit Log
     public String commitlog_directory;
+    public String[] commitlog_directories;
+    public Integer commitlog_stripes;
     public Integer commitlog_total_space_in_mb;
     public CommitLogSync commitlog_sync;
     public Double commitlog_sync_batch_window_in_ms;
     public Integer commitlog_sync_period_in_ms;
     public int commitlog_segment_size_in_mb = 32;
     public int commitlog_periodic_queue_size = 1024 * FBUtilities.getAvailableProcessors();
+    public String commitlog_compression;
 
     public String endpoint_snitch;
     public Boolean dynamic_snitch = true;
@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,6 +54,7 @@ import org.apache.cassandra.db.SystemKeyspace;
 import org.apache.cassandra.dht.IPartitioner;
 import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.io.FSWriteError;
+import org.apache.cassandra.io.compress.CompressionParameters;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.cassandra.io.util.IAllocator;
 import org.apache.cassandra.locator.DynamicEndpointSnitch;
@@ -190,6 +192,13 @@ public class DatabaseDescriptor
         if (conf.commitlog_total_space_in_mb == null)
             conf.commitlog_total_space_in_mb = hasLargeAddressSpace() ? 8192 : 32;
 
+        if (conf.commitlog_compression != null)
+        {
+            // fail fast on unknown compressors rather than when the first segment is created
+            new CompressionParameters(conf.commitlog_compression, null, Collections.<String, String>emptyMap());
+            logger.debug("Compressing commitlog segments with {}", conf.commitlog_compression);
+        }
+
         /* evaluate the DiskAccessMode Config directive, which also affects indexAccessMode selection */
         if (conf.disk_access_mode == Config.DiskAccessMode.auto)
         {
@@ -440,6 +449,8 @@ public class DatabaseDescriptor
 
         // if data dirs, commitlog dir, or saved caches dir are set in cassandra.yaml, use that.  Otherwise,
         // use -Dcassandra.storagedir (set in cassandra-env.sh) as the parent dir for data/, commitlog/, and saved_caches/
+        if (conf.commitlog_directory == null && conf.commitlog_directories != null && conf.commitlog_directories.length > 0)
+            conf.commitlog_directory = conf.commitlog_directories[0];
         if (conf.commitlog_directory == null)
         {
             conf.commitlog_directory = System.getProperty("cassandra.storagedir", null);
@@ -447,6 +458,16 @@ public class DatabaseDescriptor
                 throw new ConfigurationException("commitlog_directory is missing and -Dcassandra.storagedir is not set");
             conf.commitlog_directory += File.separator + "commitlog";
         }
+        if (conf.commitlog_directories == null || conf.commitlog_directories.length == 0)
+        {
+            conf.commitlog_directories = new String[]{ conf.commitlog_directory };
+        }
+        else if (!conf.commitlog_directory.equals(conf.commitlog_directories[0]))
+        {
+            throw new ConfigurationException("commitlog_directory must be the first of the commitlog_directories");
+        }
+        if (new HashSet<>(Arrays.asList(conf.commitlog_directories)).size() < conf.commitlog_directories.length)
+            throw new ConfigurationException("commitlog_directories must not contain the same directory twice");
         if (conf.saved_caches_directory == null)
         {
             conf.saved_caches_directory = System.getProperty("cassandra.storagedir", null);
@@ -465,14 +486,20 @@ public class DatabaseDescriptor
         /* data file and commit log directories. they get created later, when they're needed. */
         for (String datadir : conf.data_file_directories)
         {
-            if (datadir.equals(conf.commitlog_directory))
-                throw new ConfigurationException("commitlog_directory must not be the same as any data_file_directories");
+            if (Arrays.asList(conf.commitlog_directories).contains(datadir))
+                throw new ConfigurationException("commitlog_directories must not be the same as any data_file_directories");
             if (datadir.equals(conf.saved_caches_directory))
                 throw new ConfigurationException("saved_caches_directory must not be the same as any data_file_directories");
         }
 
-        if (conf.commitlog_directory.equals(conf.saved_caches_directory))
-            throw new ConfigurationException("saved_caches_directory must not be the same as the commitlog_directory");
+        if (Arrays.asList(conf.commitlog_directories).contains(conf.saved_caches_directory))
+            throw new ConfigurationException("saved_caches_directory must not be the same as any commitlog_directories");
+
+        if (conf.commitlog_stripes == null)
+            conf.commitlog_stripes = conf.commitlog_directories.length;
+
+        if (conf.commitlog_stripes < conf.commitlog_directories.length)
+            throw new ConfigurationException("commitlog_stripes must be at least the number of commitlog_directories");
 
         if (conf.memtable_flush_writers == null)
             conf.memtable_flush_writers = Math.min(8, Math.max(2, Math.min(FBUtilities.getAvailableProcessors(), conf.data_file_directories.length)));
@@ -480,6 +507,12 @@ public class DatabaseDescriptor
         if (conf.memtable_flush_writers < 1)
             throw new ConfigurationException("memtable_flush_writers must be at least 1");
 
+        if (conf.memtable_flush_shards == null)
+            conf.memtable_flush_shards = conf.data_file_directories.length;
+
+        if (conf.memtable_flush_shards < 1)
+            throw new ConfigurationException("memtable_flush_shards must be at least 1");
+
         if (conf.memtable_cleanup_threshold == null)
             conf.memtable_cleanup_threshold = (float) (1.0 / (1 + conf.memtable_flush_writers));
 
@@ -675,7 +708,10 @@ public class DatabaseDescriptor
             if (conf.commitlog_directory == null)
                 throw new ConfigurationException("commitlog_directory must be specified");
 
-            FileUtils.createDirectory(conf.commitlog_directory);
+            for (String commitLogDirectory : conf.commitlog_directories)
+            {
+                FileUtils.createDirectory(commitLogDirectory);
+            }
 
             if (conf.saved_caches_directory == null)
                 throw new ConfigurationException("saved_caches_directory must be specified");
@@ -979,6 +1015,17 @@ public class DatabaseDescriptor
             return conf.memtable_flush_writers;
     }
 
+    public static int getFlushShards()
+    {
+        return conf.memtable_flush_shards;
+    }
+
+    @VisibleForTesting
+    public static void setFlushShards(int flushShards)
+    {
+        conf.memtable_flush_shards = flushShards;
+    }
+
     public static int getConcurrentCompactors()
     {
         return conf.concurrent_compactors;
@@ -1029,6 +1076,35 @@ public class DatabaseDescriptor
         return conf.commitlog_directory;
     }
 
+    /**
+     * @return all the commit log directories, the first of them being {@link #getCommitLogLocation()}
+     */
+    public static String[] getCommitLogLocations()
+    {
+        return conf.commitlog_directories;
+    }
+
+    @VisibleForTesting
+    public static void setCommitLogLocations(String... directories)
+    {
+        conf.commitlog_directory = directories[0];
+        conf.commitlog_directories = directories;
+    }
+
+    /**
+     * @return the number of segments mutations are concurrently appended to, spread over the commit log directories
+     */
+    public static int getCommitLogStripes()
+    {
+        return conf.commitlog_stripes;
+    }
+
+    @VisibleForTesting
+    public static void setCommitLogStripes(int stripes)
+    {
+        conf.commitlog_stripes = stripes;
+    }
+
     public static int getTombstoneWarnThreshold()
     {
         return conf.tombstone_warn_threshold;
@@ -1057,6 +1133,20 @@ public class DatabaseDescriptor
         return conf.commitlog_segment_size_in_mb * 1024 * 1024;
     }
 
+    /**
+     * @return the class name of the compressor of the commitlog segments, or null if they aren't compressed
+     */
+    public static String getCommitLogCompression()
+    {
+        return conf.commitlog_compression;
+    }
+
+    @VisibleForTesting
+    public static void setCommitLogCompression(String compression)
+    {
+        conf.commitlog_compression = compression;
+    }
+
     public static String getSavedCachesLocation()
     {
         return conf.saved_caches_directory;
@@ -1512,6 +1602,11 @@ public class DatabaseDescriptor
         return conf.inter_dc_tcp_nodelay;
     }
 
+    public static float getMemtableCleanupThreshold()
+    {
+        return conf.memtable_cleanup_threshold;
+    }
+
     public static MemtablePool getMemtableAllocatorPool()
     {
         long heapLimit = ((long) conf.memtable_heap_space_in_mb) << 20;
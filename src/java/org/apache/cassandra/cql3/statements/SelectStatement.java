@@ -200,6 +200,18 @@ public class SelectStatement implements CQLStatement, MeasurableForPreparedCache
         long now = System.currentTimeMillis();
         Pageable command = getPageableCommand(options, limit, now);
 
+        // A count answered only by the secondary index doesn't need to read, nor to page, any row
+        if (parameters.isCount && command instanceof RangeSliceCommand)
+        {
+            RangeSliceCommand rangeCommand = (RangeSliceCommand) command;
+            List<ByteBuffer> partials = StorageProxy.getRangeAggregate(rangeCommand, cl);
+            ResultSet aggregates = partials == null
+                                 ? null
+                                 : rangeCommand.searcher.aggregate(rangeCommand, partials, limit, parameters.countAlias);
+            if (aggregates != null)
+                return new ResultMessage.Rows(aggregates);
+        }
+
         int pageSize = options.getPageSize();
         // A count query will never be paged for the user, but we always page it internally to avoid OOM.
         // If we user provided a pageSize we'll use that to page internally (because why not), otherwise we use our default
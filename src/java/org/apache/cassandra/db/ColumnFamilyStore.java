@@ -56,6 +56,7 @@ import org.apache.cassandra.db.filter.IDiskAtomFilter;
 import org.apache.cassandra.db.filter.QueryFilter;
 import org.apache.cassandra.db.filter.SliceQueryFilter;
 import org.apache.cassandra.db.index.SecondaryIndex;
+import org.apache.cassandra.db.index.SecondaryIndexBuilder;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
 import org.apache.cassandra.dht.*;
 import org.apache.cassandra.dht.Range;
@@ -764,7 +765,21 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
             cfs.indexManager.setIndexRemoved(indexes);
             SSTableReader.acquireReferences(sstables);
             logger.info(String.format("User Requested secondary index re-build for %s/%s indexes", ksName, cfName));
-            cfs.indexManager.maybeBuildSecondaryIndexes(sstables, indexes);
+
+            // indexes with their own full builder are rebuilt from all the data by themselves
+            Set<String> defaultBuilt = new HashSet<String>(indexes);
+            for (SecondaryIndex index : cfs.indexManager.getIndexesByNames(indexes))
+            {
+                SecondaryIndexBuilder fullBuilder = index.getFullBuilder();
+                if (fullBuilder != null)
+                {
+                    FBUtilities.waitOnFuture(CompactionManager.instance.submitIndexBuild(fullBuilder));
+                    index.forceBlockingFlush();
+                    defaultBuilt.remove(index.getIndexName());
+                }
+            }
+
+            cfs.indexManager.maybeBuildSecondaryIndexes(sstables, defaultBuilt);
             cfs.indexManager.setIndexBuilt(indexes);
         }
         finally
@@ -1001,8 +1016,11 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
             writeBarrier = keyspace.writeOrder.newBarrier();
             memtables = new ArrayList<>();
 
-            // submit flushes for the memtable for any indexed sub-cfses, and our own
-            final ReplayPosition minReplayPosition = CommitLog.instance.getContext();
+            // submit flushes for the memtable for any indexed sub-cfses, and our own; the memtables flushed while the
+            // commit log is replayed don't cover the segments not replayed yet, so their sstables mustn't skip them
+            final ReplayPosition minReplayPosition = CommitLog.instance.isReplaying()
+                                                   ? ReplayPosition.NONE
+                                                   : CommitLog.instance.getContext();
             for (ColumnFamilyStore cfs : concatWithIndexes())
             {
                 // switch all memtables, regardless of their dirty status, setting the barrier
@@ -1033,7 +1051,7 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
                 memtable.cfs.data.markFlushing(memtable);
                 if (memtable.isClean() || truncate)
                 {
-                    memtable.cfs.replaceFlushed(memtable, null);
+                    memtable.cfs.replaceFlushed(memtable, Collections.<SSTableReader>emptyList());
                     memtable.setDiscarded();
                     iter.remove();
                 }
@@ -1365,9 +1383,9 @@ public class ColumnFamilyStore implements ColumnFamilyStoreMBean
         data.markObsolete(sstables, compactionType);
     }
 
-    void replaceFlushed(Memtable memtable, SSTableReader sstable)
+    void replaceFlushed(Memtable memtable, Collection<SSTableReader> sstables)
     {
-        compactionStrategy.replaceFlushed(memtable, sstable);
+        compactionStrategy.replaceFlushed(memtable, sstables);
     }
 
     public boolean isValid()
@@ -287,6 +287,16 @@ public class Directories
      * @throws IOError if all directories are blacklisted.
      */
     public DataDirectory getWriteableLocation()
+    {
+        return getWriteableLocations().get(0);
+    }
+
+    /**
+     * @return the non-blacklisted directories, sorted by least current tasks and then by most free space.
+     *
+     * @throws IOError if all directories are blacklisted.
+     */
+    public List<DataDirectory> getWriteableLocations()
     {
         List<DataDirectory> candidates = new ArrayList<>();
 
@@ -313,7 +323,7 @@ public class Directories
             }
         });
 
-        return candidates.get(0);
+        return candidates;
     }
 
     public static File getSnapshotDirectory(Descriptor desc, String snapshotName)
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.cassandra.io.IVersionedSerializer;
+import org.apache.cassandra.io.util.DataOutputPlus;
+import org.apache.cassandra.net.MessageOut;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+/**
+ * Reply to the index search verbs, INDEX_TOP_K and INDEX_AGGREGATE, containing the result computed by the index of a
+ * replica, encoded by the index searcher. A null result means that the replica can't answer the search, so the
+ * coordinator must use the regular range scan.
+ */
+public class IndexSearchReply
+{
+    public static final IVersionedSerializer<IndexSearchReply> serializer = new IndexSearchReplySerializer();
+
+    public final ByteBuffer result;
+
+    public IndexSearchReply(ByteBuffer result)
+    {
+        this.result = result;
+    }
+
+    public MessageOut<IndexSearchReply> createMessage()
+    {
+        return new MessageOut<IndexSearchReply>(MessagingService.Verb.REQUEST_RESPONSE, this, serializer);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "IndexSearchReply{result=" + (result == null ? "null" : result.remaining() + " bytes") + "}";
+    }
+
+    private static class IndexSearchReplySerializer implements IVersionedSerializer<IndexSearchReply>
+    {
+        public void serialize(IndexSearchReply reply, DataOutputPlus out, int version) throws IOException
+        {
+            out.writeBoolean(reply.result != null);
+            if (reply.result != null)
+                ByteBufferUtil.writeWithLength(reply.result, out);
+        }
+
+        public IndexSearchReply deserialize(DataInput in, int version) throws IOException
+        {
+            return new IndexSearchReply(in.readBoolean() ? ByteBufferUtil.readWithLength(in) : null);
+        }
+
+        public long serializedSize(IndexSearchReply reply, int version)
+        {
+            long size = TypeSizes.NATIVE.sizeof(reply.result != null);
+            if (reply.result != null)
+                size += TypeSizes.NATIVE.sizeofWithLength(reply.result);
+            return size;
+        }
+    }
+}
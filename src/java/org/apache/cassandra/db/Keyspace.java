@@ -373,8 +373,9 @@ public class Keyspace
             else
             {
                 // we don't need the replayposition, but grab one anyway so that it stays stack allocated.
-                // (the JVM will not stack allocate if the object may be null.)
-                replayPosition = CommitLog.instance.getContext();
+                // (the JVM will not stack allocate if the object may be null.) While the commit log is replayed,
+                // the mutations must not raise the position of the memtable past the segments not replayed yet.
+                replayPosition = CommitLog.instance.isReplaying() ? ReplayPosition.NONE : CommitLog.instance.getContext();
             }
 
             DecoratedKey key = StorageService.getPartitioner().decorateKey(mutation.key());
@@ -19,32 +19,38 @@ package org.apache.cassandra.db;
 
 import java.io.File;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.concurrent.StageManager;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.commitlog.CommitLog;
 import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.db.composites.CellNameType;
 import org.apache.cassandra.db.index.SecondaryIndexManager;
-import org.apache.cassandra.dht.LongToken;
 import org.apache.cassandra.io.sstable.SSTableReader;
 import org.apache.cassandra.io.sstable.SSTableWriter;
 import org.apache.cassandra.io.sstable.metadata.MetadataCollector;
 import org.apache.cassandra.io.util.DiskAwareRunnable;
 import org.apache.cassandra.service.ActiveRepairService;
-import org.apache.cassandra.utils.ByteBufferUtil;
-import org.apache.cassandra.utils.ObjectSizes;
+import org.apache.cassandra.utils.WrappedRunnable;
 import org.apache.cassandra.utils.concurrent.OpOrder;
 import org.apache.cassandra.utils.memory.*;
 
@@ -53,7 +59,17 @@ public class Memtable
     private static final Logger logger = LoggerFactory.getLogger(Memtable.class);
 
     static final MemtablePool MEMORY_POOL = DatabaseDescriptor.getMemtableAllocatorPool();
-    private static final int ROW_OVERHEAD_HEAP_SIZE = estimateRowOverhead(Integer.valueOf(System.getProperty("cassandra.memtable_row_overhead_computation_step", "100000")));
+
+    // memtables are only split for flushing into ranges of at least this size
+    @VisibleForTesting
+    static long minFlushShardSize = 64L << 20;
+
+    private static final ExecutorService flushShardExecutor = new JMXEnabledThreadPoolExecutor(Math.max(1, DatabaseDescriptor.getFlushShards() - 1),
+                                                                                               StageManager.KEEPALIVE,
+                                                                                               TimeUnit.SECONDS,
+                                                                                               new LinkedBlockingQueue<Runnable>(),
+                                                                                               new NamedThreadFactory("MemtableFlushShard"),
+                                                                                               "internal");
 
     private final MemtableAllocator allocator;
     private final AtomicLong liveDataSize = new AtomicLong(0);
@@ -66,10 +82,7 @@ public class Memtable
     // the "first" ReplayPosition owned by this Memtable; this is inaccurate, and only used as a convenience to prevent CLSM flushing wantonly
     private final ReplayPosition minReplayPosition = CommitLog.instance.getContext();
 
-    // We index the memtable by RowPosition only for the purpose of being able
-    // to select key range using Token.KeyBound. However put() ensures that we
-    // actually only store DecoratedKey.
-    private final ConcurrentNavigableMap<RowPosition, AtomicBTreeColumns> rows = new ConcurrentSkipListMap<>();
+    private final MemtableIndex rows;
     public final ColumnFamilyStore cfs;
     private final long creationTime = System.currentTimeMillis();
     private final long creationNano = System.nanoTime();
@@ -83,6 +96,7 @@ public class Memtable
     {
         this.cfs = cfs;
         this.allocator = MEMORY_POOL.newAllocator();
+        this.rows = MemtableIndex.create(cfs.partitioner, allocator);
         this.initialComparator = cfs.metadata.comparator;
         this.cfs.scheduleFlush();
     }
@@ -153,10 +167,13 @@ public class Memtable
      */
     void put(DecoratedKey key, ColumnFamily cf, SecondaryIndexManager.Updater indexer, OpOrder.Group opGroup, ReplayPosition replayPosition)
     {
-        if (replayPosition != null && writeBarrier != null)
+        if (replayPosition != null && writeBarrier != null && DatabaseDescriptor.getCommitLogStripes() == 1)
         {
             // if the writeBarrier is set, we want to maintain lastReplayPosition; this is an optimisation to avoid
             // casing it for every write, but still ensure it is correct when writeBarrier.await() completes.
+            // with several commit log stripes, raising it to a write in a stripe ahead of the others could pass the
+            // writes to the new memtable in the stripes behind, so it stays at the context of the switch instead, and
+            // the writes after that context may just be replayed twice.
             // we clone the replay position so that the object passed in does not "escape", permitting stack allocation
             replayPosition = replayPosition.clone();
             while (true)
@@ -174,20 +191,14 @@ public class Memtable
         if (previous == null)
         {
             AtomicBTreeColumns empty = cf.cloneMeShallow(AtomicBTreeColumns.factory, false);
-            final DecoratedKey cloneKey = allocator.clone(key, opGroup);
             // We'll add the columns later. This avoids wasting works if we get beaten in the putIfAbsent
-            previous = rows.putIfAbsent(cloneKey, empty);
+            previous = rows.putIfAbsent(key, empty, opGroup);
             if (previous == null)
             {
                 previous = empty;
                 // allocate the row overhead after the fact; this saves over allocating and having to free after, but
                 // means we can overshoot our declared limit.
-                int overhead = (int) (cfs.partitioner.getHeapSizeOf(key.getToken()) + ROW_OVERHEAD_HEAP_SIZE);
-                allocator.onHeap().allocate(overhead, opGroup);
-            }
-            else
-            {
-                allocator.reclaimer().reclaimImmediately(cloneKey);
+                allocator.onHeap().allocate(rows.rowOverhead(key), opGroup);
             }
         }
 
@@ -200,8 +211,10 @@ public class Memtable
     {
         StringBuilder builder = new StringBuilder();
         builder.append("{");
-        for (Map.Entry<RowPosition, AtomicBTreeColumns> entry : rows.entrySet())
+        Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iter = rows.iterator();
+        while (iter.hasNext())
         {
+            Map.Entry<DecoratedKey, AtomicBTreeColumns> entry = iter.next();
             builder.append(entry.getKey()).append(": ").append(entry.getValue()).append(", ");
         }
         builder.append("}");
@@ -227,9 +240,7 @@ public class Memtable
     {
         return new Iterator<Map.Entry<DecoratedKey, ColumnFamily>>()
         {
-            private Iterator<? extends Map.Entry<? extends RowPosition, AtomicBTreeColumns>> iter = stopAt.isMinimum(cfs.partitioner)
-                    ? rows.tailMap(startWith).entrySet().iterator()
-                    : rows.subMap(startWith, true, stopAt, true).entrySet().iterator();
+            private Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iter = rows.iterator(startWith, stopAt.isMinimum(cfs.partitioner) ? null : stopAt);
 
             private Map.Entry<? extends RowPosition, ? extends ColumnFamily> currentEntry;
 
@@ -240,19 +251,16 @@ public class Memtable
 
             public Map.Entry<DecoratedKey, ColumnFamily> next()
             {
-                Map.Entry<? extends RowPosition, ? extends ColumnFamily> entry = iter.next();
-                // Actual stored key should be true DecoratedKey
-                assert entry.getKey() instanceof DecoratedKey;
+                Map.Entry<DecoratedKey, ? extends ColumnFamily> entry = iter.next();
                 if (MEMORY_POOL.needToCopyOnHeap())
                 {
-                    DecoratedKey key = (DecoratedKey) entry.getKey();
+                    DecoratedKey key = entry.getKey();
                     key = new BufferDecoratedKey(key.getToken(), HeapAllocator.instance.clone(key.getKey()));
                     ColumnFamily cells = ArrayBackedSortedColumns.localCopy(entry.getValue(), HeapAllocator.instance);
                     entry = new AbstractMap.SimpleImmutableEntry<>(key, cells);
                 }
                 // Store the reference to the current entry so that remove() can update the current size.
                 currentEntry = entry;
-                // Object cast is required since otherwise we can't turn RowPosition into DecoratedKey
                 return (Map.Entry<DecoratedKey, ColumnFamily>) entry;
             }
 
@@ -280,26 +288,127 @@ public class Memtable
         return lastReplayPosition.get();
     }
 
-    class FlushRunnable extends DiskAwareRunnable
+    class FlushRunnable extends WrappedRunnable
     {
         private final ReplayPosition context;
-        private final long estimatedSize;
 
         FlushRunnable(ReplayPosition context)
         {
             this.context = context;
+        }
 
-            long keySize = 0;
-            for (RowPosition key : rows.keySet())
+        protected void runMayThrow() throws Exception
+        {
+            logger.info("Writing {}", Memtable.this.toString());
+
+            // write the first shard in this thread and the others concurrently, so that a flush is limited by neither
+            // a single core nor a single disk
+            List<FlushShard> shards = shards();
+            List<Future<?>> futures = new ArrayList<>(shards.size() - 1);
+            for (FlushShard shard : shards.subList(1, shards.size()))
+                futures.add(flushShardExecutor.submit(shard));
+
+            Throwable failure = null;
+            try
             {
-                //  make sure we don't write non-sensical keys
-                assert key instanceof DecoratedKey;
-                keySize += ((DecoratedKey)key).getKey().remaining();
+                shards.get(0).run();
             }
-            estimatedSize = (long) ((keySize // index entries
-                                    + keySize // keys in data file
-                                    + liveDataSize.get()) // data
-                                    * 1.2); // bloom filter and row index overhead
+            catch (Throwable t)
+            {
+                failure = t;
+            }
+            for (Future<?> future : futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    if (failure == null)
+                        failure = e.getCause();
+                }
+            }
+
+            List<SSTableReader> sstables = new ArrayList<>(shards.size());
+            for (FlushShard shard : shards)
+            {
+                if (shard.sstable != null)
+                    sstables.add(shard.sstable);
+            }
+
+            if (failure != null)
+            {
+                // don't leave behind the sstables of a partially flushed memtable
+                for (SSTableReader sstable : sstables)
+                {
+                    sstable.markObsolete();
+                    sstable.releaseReference();
+                }
+                throw Throwables.propagate(failure);
+            }
+
+            cfs.replaceFlushed(Memtable.this, sstables);
+        }
+
+        /**
+         * Splits the memtable into up to memtable_flush_shards ranges with the same number of partitions, each one to
+         * be written into its own sstable in a different data directory.
+         */
+        private List<FlushShard> shards()
+        {
+            int partitions = rows.size();
+            long keySize = rows.keySize();
+            long estimatedSize = (long) ((keySize // index entries
+                                          + keySize // keys in data file
+                                          + liveDataSize.get()) // data
+                                         * 1.2); // bloom filter and row index overhead
+
+            int shardCount = (int) Math.max(1, Math.min(Math.min(DatabaseDescriptor.getFlushShards(), partitions),
+                                                        liveDataSize.get() / minFlushShardSize));
+            if (shardCount == 1)
+                return Collections.singletonList(new FlushShard(context, null, null, partitions, estimatedSize, null));
+
+            List<Directories.DataDirectory> locations = cfs.directories.getWriteableLocations();
+            List<FlushShard> shards = new ArrayList<>(shardCount);
+            int shardPartitions = partitions / shardCount;
+            DecoratedKey from = null;
+            Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iter = rows.iterator();
+            for (int position = 0; shards.size() < shardCount - 1 && iter.hasNext(); position++)
+            {
+                DecoratedKey key = iter.next().getKey();
+                if (position > 0 && position % shardPartitions == 0)
+                {
+                    shards.add(new FlushShard(context, from, key, shardPartitions, estimatedSize / shardCount, locations.get(shards.size() % locations.size())));
+                    from = key;
+                }
+            }
+            shards.add(new FlushShard(context, from, null, partitions - shards.size() * shardPartitions, estimatedSize / shardCount, locations.get(shards.size() % locations.size())));
+            return shards;
+        }
+    }
+
+    /**
+     * Writes the partitions of a range of the memtable into a new sstable.
+     */
+    private class FlushShard extends DiskAwareRunnable
+    {
+        private final ReplayPosition context;
+        private final DecoratedKey from; // inclusive, null for the first partition
+        private final DecoratedKey to; // exclusive, null for after the last partition
+        private final long partitions;
+        private final long estimatedSize;
+        private final Directories.DataDirectory location; // null for the least loaded directory
+        private volatile SSTableReader sstable;
+
+        FlushShard(ReplayPosition context, DecoratedKey from, DecoratedKey to, long partitions, long estimatedSize, Directories.DataDirectory location)
+        {
+            this.context = context;
+            this.from = from;
+            this.to = to;
+            this.partitions = partitions;
+            this.estimatedSize = estimatedSize;
+            this.location = location;
         }
 
         public long getExpectedWriteSize()
@@ -307,12 +416,21 @@ public class Memtable
             return estimatedSize;
         }
 
+        protected Directories.DataDirectory getWriteableLocation()
+        {
+            // the directory picked when splitting the memtable may have been blacklisted or filled up since
+            if (location != null
+                && !BlacklistedDirectories.isUnwritable(cfs.directories.getLocationForDisk(location))
+                && location.getEstimatedAvailableSpace() >= estimatedSize)
+                return location;
+            return super.getWriteableLocation();
+        }
+
         protected void runWith(File sstableDirectory) throws Exception
         {
             assert sstableDirectory != null : "Flush task is not bound to any disk";
 
-            SSTableReader sstable = writeSortedContents(context, sstableDirectory);
-            cfs.replaceFlushed(Memtable.this, sstable);
+            sstable = writeSortedContents(sstableDirectory);
         }
 
         protected Directories getDirectories()
@@ -320,11 +438,8 @@ public class Memtable
             return cfs.directories;
         }
 
-        private SSTableReader writeSortedContents(ReplayPosition context, File sstableDirectory)
-        throws ExecutionException, InterruptedException
+        private SSTableReader writeSortedContents(File sstableDirectory)
         {
-            logger.info("Writing {}", Memtable.this.toString());
-
             SSTableReader ssTable;
             // errors when creating the writer that may leave empty temp files.
             SSTableWriter writer = createFlushWriter(cfs.getTempSSTablePath(sstableDirectory));
@@ -332,8 +447,13 @@ public class Memtable
             {
                 // (we can't clear out the map as-we-go to free up memory,
                 //  since the memtable is being used for queries in the "pending flush" category)
-                for (Map.Entry<RowPosition, AtomicBTreeColumns> entry : rows.entrySet())
+                Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iter = from == null ? rows.iterator() : rows.iterator(from, null);
+                while (iter.hasNext())
                 {
+                    Map.Entry<DecoratedKey, AtomicBTreeColumns> entry = iter.next();
+                    if (to != null && entry.getKey().compareTo(to) >= 0)
+                        break;
+
                     ColumnFamily cf = entry.getValue();
 
                     if (cf.isMarkedForDelete() && cf.hasColumns())
@@ -348,7 +468,7 @@ public class Memtable
                     }
 
                     if (!cf.isEmpty())
-                        writer.append((DecoratedKey)entry.getKey(), cf);
+                        writer.append(entry.getKey(), cf);
                 }
 
                 if (writer.getFilePointer() > 0)
@@ -377,34 +497,15 @@ public class Memtable
             }
         }
 
-        public SSTableWriter createFlushWriter(String filename) throws ExecutionException, InterruptedException
+        private SSTableWriter createFlushWriter(String filename)
         {
             MetadataCollector sstableMetadataCollector = new MetadataCollector(cfs.metadata.comparator).replayPosition(context);
             return new SSTableWriter(filename,
-                                     rows.size(),
+                                     partitions,
                                      ActiveRepairService.UNREPAIRED_SSTABLE,
                                      cfs.metadata,
                                      cfs.partitioner,
                                      sstableMetadataCollector);
         }
     }
-
-    private static int estimateRowOverhead(final int count)
-    {
-        // calculate row overhead
-        final OpOrder.Group group = new OpOrder().start();
-        int rowOverhead;
-        MemtableAllocator allocator = MEMORY_POOL.newAllocator();
-        ConcurrentNavigableMap<RowPosition, Object> rows = new ConcurrentSkipListMap<>();
-        final Object val = new Object();
-        for (int i = 0 ; i < count ; i++)
-            rows.put(allocator.clone(new BufferDecoratedKey(new LongToken((long) i), ByteBufferUtil.EMPTY_BYTE_BUFFER), group), val);
-        double avgSize = ObjectSizes.measureDeep(rows) / (double) count;
-        rowOverhead = (int) ((avgSize - Math.floor(avgSize)) < 0.05 ? Math.floor(avgSize) : Math.ceil(avgSize));
-        rowOverhead -= ObjectSizes.measureDeep(new LongToken((long) 0));
-        rowOverhead += AtomicBTreeColumns.EMPTY_SIZE;
-        allocator.setDiscarding();
-        allocator.setDiscarded();
-        return rowOverhead;
-    }
 }
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.ObjectSizes;
+import org.apache.cassandra.utils.concurrent.OpOrder;
+import org.apache.cassandra.utils.memory.MemtableAllocator;
+import org.apache.cassandra.utils.memory.NativeAllocator;
+
+/**
+ * The index of the partitions of a {@link Memtable}, sorted by {@link DecoratedKey}. Partitions are only ever added,
+ * and they can be concurrently read and iterated while they are being added.
+ */
+abstract class MemtableIndex
+{
+    private static final boolean NATIVE_INDEX_ENABLED = Boolean.parseBoolean(System.getProperty("cassandra.memtable_native_index", "true"));
+
+    /**
+     * @return an off-heap {@link NativeMemtableIndex} if the memtable data is allocated off-heap and the partitioner
+     * produces long tokens, or an on-heap {@link SkipListIndex} otherwise
+     */
+    static MemtableIndex create(IPartitioner<?> partitioner, MemtableAllocator allocator)
+    {
+        if (NATIVE_INDEX_ENABLED && allocator instanceof NativeAllocator && partitioner instanceof Murmur3Partitioner)
+            return new NativeMemtableIndex((NativeAllocator) allocator);
+        return new SkipListIndex(partitioner, allocator);
+    }
+
+    abstract boolean isEmpty();
+
+    abstract int size();
+
+    /**
+     * @return the sum of the lengths of all the keys
+     */
+    abstract long keySize();
+
+    /**
+     * @return the partition with the given key, or null if there is none
+     */
+    abstract AtomicBTreeColumns get(RowPosition key);
+
+    /**
+     * Adds the partition if there is none with the same key, copying the key into the memtable memory.
+     *
+     * @return the existing partition, or null if the given one has been added
+     */
+    abstract AtomicBTreeColumns putIfAbsent(DecoratedKey key, AtomicBTreeColumns partition, OpOrder.Group opGroup);
+
+    /**
+     * @return the on-heap memory used by the index for a partition with the given key, excluding the partition data
+     */
+    abstract long rowOverhead(DecoratedKey key);
+
+    /**
+     * @return all the partitions in key order
+     */
+    abstract Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iterator();
+
+    /**
+     * @param from the inclusive lower bound
+     * @param to the inclusive upper bound, or null for no upper bound
+     * @return the partitions between both bounds in key order
+     */
+    abstract Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iterator(RowPosition from, RowPosition to);
+
+    /**
+     * The original index, a {@link ConcurrentSkipListMap} on the heap.
+     */
+    static class SkipListIndex extends MemtableIndex
+    {
+        private static final int ROW_OVERHEAD_HEAP_SIZE = estimateRowOverhead(Integer.valueOf(System.getProperty("cassandra.memtable_row_overhead_computation_step", "100000")));
+
+        private final IPartitioner<?> partitioner;
+        private final MemtableAllocator allocator;
+
+        // We index the memtable by RowPosition only for the purpose of being able
+        // to select key range using Token.KeyBound. However putIfAbsent() ensures that we
+        // actually only store DecoratedKey.
+        private final ConcurrentNavigableMap<RowPosition, AtomicBTreeColumns> rows = new ConcurrentSkipListMap<>();
+
+        SkipListIndex(IPartitioner<?> partitioner, MemtableAllocator allocator)
+        {
+            this.partitioner = partitioner;
+            this.allocator = allocator;
+        }
+
+        boolean isEmpty()
+        {
+            return rows.isEmpty();
+        }
+
+        int size()
+        {
+            return rows.size();
+        }
+
+        long keySize()
+        {
+            long keySize = 0;
+            for (RowPosition key : rows.keySet())
+            {
+                //  make sure we don't write non-sensical keys
+                assert key instanceof DecoratedKey;
+                keySize += ((DecoratedKey)key).getKey().remaining();
+            }
+            return keySize;
+        }
+
+        AtomicBTreeColumns get(RowPosition key)
+        {
+            return rows.get(key);
+        }
+
+        AtomicBTreeColumns putIfAbsent(DecoratedKey key, AtomicBTreeColumns partition, OpOrder.Group opGroup)
+        {
+            final DecoratedKey cloneKey = allocator.clone(key, opGroup);
+            AtomicBTreeColumns previous = rows.putIfAbsent(cloneKey, partition);
+            if (previous != null)
+                allocator.reclaimer().reclaimImmediately(cloneKey);
+            return previous;
+        }
+
+        @SuppressWarnings("unchecked")
+        long rowOverhead(DecoratedKey key)
+        {
+            return ((IPartitioner) partitioner).getHeapSizeOf(key.getToken()) + ROW_OVERHEAD_HEAP_SIZE;
+        }
+
+        Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iterator()
+        {
+            return cast(rows.entrySet().iterator());
+        }
+
+        Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iterator(RowPosition from, RowPosition to)
+        {
+            return to == null
+                   ? cast(rows.tailMap(from).entrySet().iterator())
+                   : cast(rows.subMap(from, true, to, true).entrySet().iterator());
+        }
+
+        // Object cast is required since otherwise we can't turn RowPosition into DecoratedKey
+        @SuppressWarnings("unchecked")
+        private static Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> cast(Iterator<? extends Map.Entry<? extends RowPosition, AtomicBTreeColumns>> iter)
+        {
+            return (Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>>) (Object) iter;
+        }
+
+        private static int estimateRowOverhead(final int count)
+        {
+            // calculate row overhead
+            final OpOrder.Group group = new OpOrder().start();
+            int rowOverhead;
+            MemtableAllocator allocator = Memtable.MEMORY_POOL.newAllocator();
+            ConcurrentNavigableMap<RowPosition, Object> rows = new ConcurrentSkipListMap<>();
+            final Object val = new Object();
+            for (int i = 0 ; i < count ; i++)
+                rows.put(allocator.clone(new BufferDecoratedKey(new LongToken((long) i), ByteBufferUtil.EMPTY_BYTE_BUFFER), group), val);
+            double avgSize = ObjectSizes.measureDeep(rows) / (double) count;
+            rowOverhead = (int) ((avgSize - Math.floor(avgSize)) < 0.05 ? Math.floor(avgSize) : Math.ceil(avgSize));
+            rowOverhead -= ObjectSizes.measureDeep(new LongToken((long) 0));
+            rowOverhead += AtomicBTreeColumns.EMPTY_SIZE;
+            allocator.setDiscarding();
+            allocator.setDiscarded();
+            return rowOverhead;
+        }
+    }
+}
@@ -38,6 +38,15 @@ public class NativeDecoratedKey extends DecoratedKey
         MemoryUtil.setBytes(peer + 4, key);
     }
 
+    /**
+     * A view over a key already written off-heap at {@code peer}, as its length followed by its bytes
+     */
+    NativeDecoratedKey(Token token, long peer)
+    {
+        super(token);
+        this.peer = peer;
+    }
+
     public ByteBuffer getKey()
     {
         return MemoryUtil.getByteBuffer(peer + 4, MemoryUtil.getInt(peer));
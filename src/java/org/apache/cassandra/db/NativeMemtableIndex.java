@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.AbstractIterator;
+
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.utils.ObjectSizes;
+import org.apache.cassandra.utils.concurrent.OpOrder;
+import org.apache.cassandra.utils.memory.MemoryUtil;
+import org.apache.cassandra.utils.memory.NativeAllocator;
+
+/**
+ * A lock-free, insert-only skip list of the partitions of a memtable using long tokens, whose nodes are allocated
+ * off-heap by the {@link NativeAllocator} of the memtable, and so freed with it. The only on-heap memory used per
+ * partition is its {@link AtomicBTreeColumns} and a slot referencing it, instead of the skip list nodes, the key and the
+ * token objects of a {@link java.util.concurrent.ConcurrentSkipListMap}. Lookups compare the searched key directly
+ * with the off-heap nodes, without allocating.
+ *
+ * Each node is 8-byte aligned, so that its next pointers can be atomically updated, and it is laid out as:
+ * <pre>
+ *   int height | int slot | long token | long next[height] | int key length | key bytes
+ * </pre>
+ * A zero pointer is the end of the list, and the zero node is the head, whose next pointers are kept on-heap.
+ */
+class NativeMemtableIndex extends MemtableIndex
+{
+    private static final int MAX_HEIGHT = 16;
+
+    private static final int HEIGHT_OFFSET = 0;
+    private static final int SLOT_OFFSET = 4;
+    private static final int TOKEN_OFFSET = 8;
+    private static final int NEXT_OFFSET = 16;
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final long ROW_OVERHEAD_HEAP_SIZE = AtomicBTreeColumns.EMPTY_SIZE + estimateSlotOverhead();
+
+    private final NativeAllocator allocator;
+    private final AtomicLongArray head = new AtomicLongArray(MAX_HEIGHT);
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong keySize = new AtomicLong();
+
+    // the partitions, referenced by the slot of their node
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private volatile AtomicBTreeColumns[][] chunks = new AtomicBTreeColumns[16][];
+
+    // the slots of the nodes that lost the race to add their key, to be reused by the next added nodes
+    private final Queue<Integer> freeSlots = new ConcurrentLinkedQueue<>();
+
+    NativeMemtableIndex(NativeAllocator allocator)
+    {
+        this.allocator = allocator;
+    }
+
+    boolean isEmpty()
+    {
+        return head.get(0) == 0;
+    }
+
+    int size()
+    {
+        return size.get();
+    }
+
+    long keySize()
+    {
+        return keySize.get();
+    }
+
+    long rowOverhead(DecoratedKey key)
+    {
+        return ROW_OVERHEAD_HEAP_SIZE;
+    }
+
+    AtomicBTreeColumns get(RowPosition key)
+    {
+        long node = ceiling(key);
+        return node != 0 && compare(node, key) == 0 ? partition(node) : null;
+    }
+
+    AtomicBTreeColumns putIfAbsent(DecoratedKey key, AtomicBTreeColumns partition, OpOrder.Group opGroup)
+    {
+        long[] preds = new long[MAX_HEIGHT];
+        long[] succs = new long[MAX_HEIGHT];
+        long node = 0;
+        while (true)
+        {
+            // the key is looked for before allocating the node, which is only wasted if we lose a race to add it
+            find(key, preds, succs);
+            if (succs[0] != 0 && compare(succs[0], key) == 0)
+            {
+                // the off-heap bytes of a node we have allocated are left to be freed with the memtable, but the
+                // slot is reused so that it doesn't keep referencing our partition
+                if (node != 0)
+                    release(node);
+                return partition(succs[0]);
+            }
+
+            if (node == 0)
+                node = allocate(key, partition, opGroup);
+            for (int level = 0, height = height(node); level < height; level++)
+                MemoryUtil.setLong(nextAddress(node, level), succs[level]);
+
+            // the node is added once it is linked at the bottom level
+            if (casNext(preds[0], 0, succs[0], node))
+                break;
+        }
+
+        size.incrementAndGet();
+        keySize.addAndGet(key.getKey().remaining());
+
+        // the upper levels only speed up searches, so we link them lazily, finding the new neighbours on contention
+        for (int level = 1, height = height(node); level < height; level++)
+        {
+            while (!casNext(preds[level], level, succs[level], node))
+            {
+                find(key, preds, succs);
+                MemoryUtil.setLongVolatile(nextAddress(node, level), succs[level]);
+            }
+        }
+        return null;
+    }
+
+    Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iterator()
+    {
+        return new NodeIterator(next(0, 0), null);
+    }
+
+    Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iterator(RowPosition from, RowPosition to)
+    {
+        return new NodeIterator(ceiling(from), to);
+    }
+
+    /**
+     * @return the first node not lower than the key, or zero if there is none
+     */
+    private long ceiling(RowPosition key)
+    {
+        long node = 0;
+        long next = 0;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--)
+        {
+            next = next(node, level);
+            while (next != 0 && compare(next, key) < 0)
+            {
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Fills, for each level, the last node lower than the key and the node following it.
+     */
+    private void find(RowPosition key, long[] preds, long[] succs)
+    {
+        long node = 0;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--)
+        {
+            long next = next(node, level);
+            while (next != 0 && compare(next, key) < 0)
+            {
+                node = next;
+                next = next(node, level);
+            }
+            preds[level] = node;
+            succs[level] = next;
+        }
+    }
+
+    private long allocate(DecoratedKey key, AtomicBTreeColumns partition, OpOrder.Group opGroup)
+    {
+        Integer freeSlot = freeSlots.poll();
+        int slot = freeSlot == null ? nextSlot.getAndIncrement() : freeSlot;
+        chunk(slot >>> CHUNK_SHIFT)[slot & CHUNK_MASK] = partition;
+
+        int height = randomHeight();
+        ByteBuffer bytes = key.getKey();
+        int size = NEXT_OFFSET + 8 * height + 4 + bytes.remaining();
+        long node = (allocator.allocate(size + 7, opGroup) + 7) & ~7L;
+        MemoryUtil.setInt(node + HEIGHT_OFFSET, height);
+        MemoryUtil.setInt(node + SLOT_OFFSET, slot);
+        MemoryUtil.setLong(node + TOKEN_OFFSET, (Long) key.getToken().token);
+        long keyAddress = keyAddress(node);
+        MemoryUtil.setInt(keyAddress, bytes.remaining());
+        MemoryUtil.setBytes(keyAddress + 4, bytes);
+        return node;
+    }
+
+    /**
+     * Frees the slot of a node that has never been linked.
+     */
+    private void release(long node)
+    {
+        int slot = MemoryUtil.getInt(node + SLOT_OFFSET);
+        chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = null;
+        freeSlots.add(slot);
+    }
+
+    private AtomicBTreeColumns[] chunk(int index)
+    {
+        AtomicBTreeColumns[][] chunks = this.chunks;
+        if (index < chunks.length && chunks[index] != null)
+            return chunks[index];
+
+        synchronized (this)
+        {
+            chunks = this.chunks;
+            if (index >= chunks.length)
+                chunks = Arrays.copyOf(chunks, Math.max(index + 1, chunks.length * 2));
+            if (chunks[index] == null)
+                chunks[index] = new AtomicBTreeColumns[CHUNK_SIZE];
+            this.chunks = chunks;
+            return chunks[index];
+        }
+    }
+
+    /**
+     * @return the share of a chunk of slots used by each partition, rounded the same way as the row overhead of
+     * {@link MemtableIndex.SkipListIndex}
+     */
+    private static long estimateSlotOverhead()
+    {
+        double slotSize = ObjectSizes.sizeOfReferenceArray(CHUNK_SIZE) / (double) CHUNK_SIZE;
+        return (long) ((slotSize - Math.floor(slotSize)) < 0.05 ? Math.floor(slotSize) : Math.ceil(slotSize));
+    }
+
+    private static int randomHeight()
+    {
+        // each level has a quarter of the nodes of the level below
+        int random = ThreadLocalRandom.current().nextInt();
+        int height = 1;
+        while (height < MAX_HEIGHT && (random & 3) == 0)
+        {
+            height++;
+            random >>>= 2;
+        }
+        return height;
+    }
+
+    private AtomicBTreeColumns partition(long node)
+    {
+        int slot = MemoryUtil.getInt(node + SLOT_OFFSET);
+        return chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    private static DecoratedKey key(long node)
+    {
+        return new NativeDecoratedKey(new LongToken(MemoryUtil.getLong(node + TOKEN_OFFSET)), keyAddress(node));
+    }
+
+    private static int height(long node)
+    {
+        return MemoryUtil.getInt(node + HEIGHT_OFFSET);
+    }
+
+    private static long nextAddress(long node, int level)
+    {
+        return node + NEXT_OFFSET + 8 * level;
+    }
+
+    private static long keyAddress(long node)
+    {
+        return nextAddress(node, height(node));
+    }
+
+    private long next(long node, int level)
+    {
+        return node == 0 ? head.get(level) : MemoryUtil.getLongVolatile(nextAddress(node, level));
+    }
+
+    private boolean casNext(long node, int level, long expected, long update)
+    {
+        return node == 0
+               ? head.compareAndSet(level, expected, update)
+               : MemoryUtil.compareAndSwapLong(nextAddress(node, level), expected, update);
+    }
+
+    /**
+     * Compares the key of a node with a position, the same way {@link RowPosition}s are compared with each other.
+     */
+    private static int compare(long node, RowPosition position)
+    {
+        long token = MemoryUtil.getLong(node + TOKEN_OFFSET);
+        long positionToken = (Long) position.getToken().token;
+        if (token != positionToken)
+            return token < positionToken ? -1 : 1;
+
+        switch (position.kind())
+        {
+            case ROW_KEY:
+                long keyAddress = keyAddress(node);
+                return MemoryUtil.compareUnsigned(keyAddress + 4, MemoryUtil.getInt(keyAddress), ((DecoratedKey) position).getKey());
+            case MIN_BOUND:
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    private class NodeIterator extends AbstractIterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>>
+    {
+        private final RowPosition to;
+        private long node;
+
+        private NodeIterator(long node, RowPosition to)
+        {
+            this.node = node;
+            this.to = to;
+        }
+
+        protected Map.Entry<DecoratedKey, AtomicBTreeColumns> computeNext()
+        {
+            if (node == 0 || (to != null && compare(node, to) > 0))
+                return endOfData();
+
+            long current = node;
+            node = NativeMemtableIndex.this.next(current, 0);
+            return new AbstractMap.SimpleImmutableEntry<>(key(current), partition(current));
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.apache.cassandra.db;
 
 import java.io.DataInput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -86,6 +87,22 @@ public class RangeSliceCommand extends AbstractRangeCommand implements Pageable
         return new MessageOut<>(MessagingService.Verb.RANGE_SLICE, this, serializer);
     }
 
+    /**
+     * @return the message asking a replica for the candidates of its local top-K, see executeTopKLocally()
+     */
+    public MessageOut<RangeSliceCommand> createTopKMessage()
+    {
+        return new MessageOut<>(MessagingService.Verb.INDEX_TOP_K, this, serializer);
+    }
+
+    /**
+     * @return the message asking a replica for the partial aggregates of an index-only count, see executeAggregateLocally()
+     */
+    public MessageOut<RangeSliceCommand> createAggregateMessage()
+    {
+        return new MessageOut<>(MessagingService.Verb.INDEX_AGGREGATE, this, serializer);
+    }
+
     public AbstractRangeCommand forSubRange(AbstractBounds<RowPosition> subRange)
     {
         return new RangeSliceCommand(keyspace,
@@ -133,6 +150,32 @@ public class RangeSliceCommand extends AbstractRangeCommand implements Pageable
             return cfs.getRangeSlice(exFilter);
     }
 
+    /**
+     * Runs the first phase of a two-phase sorted index search, see SecondaryIndexSearcher.supportsTopK().
+     *
+     * @return the sort and primary keys of the local top-K rows, encoded by the index searcher
+     */
+    public ByteBuffer executeTopKLocally()
+    {
+        ColumnFamilyStore cfs = Keyspace.open(keyspace).getColumnFamilyStore(columnFamily);
+
+        ExtendedFilter exFilter = cfs.makeExtendedFilter(keyRange, predicate, rowFilter, maxResults, countCQL3Rows, isPaging, timestamp);
+        return searcher.searchTopK(exFilter);
+    }
+
+    /**
+     * Computes the partial aggregates of an index-only count, see SecondaryIndexSearcher.supportsAggregation().
+     *
+     * @return the partial aggregates of the local rows, encoded by the index searcher
+     */
+    public ByteBuffer executeAggregateLocally()
+    {
+        ColumnFamilyStore cfs = Keyspace.open(keyspace).getColumnFamilyStore(columnFamily);
+
+        ExtendedFilter exFilter = cfs.makeExtendedFilter(keyRange, predicate, rowFilter, maxResults, countCQL3Rows, isPaging, timestamp);
+        return searcher.aggregate(exFilter);
+    }
+
     @Override
     public String toString()
     {
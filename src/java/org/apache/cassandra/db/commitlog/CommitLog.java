@@ -21,15 +21,21 @@ import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.config.Config;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.*;
@@ -61,12 +67,21 @@ public class CommitLog implements CommitLogMBean
     final CommitLogMetrics metrics;
     final AbstractCommitLogService executor;
 
+    // syncs the segments of the different stripes in parallel, as they may be in different disks
+    private final ExecutorService syncExecutor;
+
+    // set while segments are replayed, when the memtables flushed don't hold the mutations of the segments left
+    private volatile boolean replaying;
+
     private CommitLog()
     {
         DatabaseDescriptor.createAllDirectories();
 
         allocator = new CommitLogSegmentManager();
 
+        int stripes = DatabaseDescriptor.getCommitLogStripes();
+        syncExecutor = stripes == 1 ? null : Executors.newFixedThreadPool(stripes, new NamedThreadFactory("COMMIT-LOG-SYNC"));
+
         executor = DatabaseDescriptor.getCommitLogSync() == Config.CommitLogSync.batch
                  ? new BatchCommitLogService(this)
                  : new PeriodicCommitLogService(this);
@@ -94,7 +109,7 @@ public class CommitLog implements CommitLogMBean
     {
         archiver.maybeRestoreArchive();
 
-        File[] files = new File(DatabaseDescriptor.getCommitLogLocation()).listFiles(new FilenameFilter()
+        FilenameFilter unmanagedFilter = new FilenameFilter()
         {
             public boolean accept(File dir, String name)
             {
@@ -103,7 +118,12 @@ public class CommitLog implements CommitLogMBean
                 // ahead and allow writes before recover(), and just skip active segments when we do.
                 return CommitLogDescriptor.isValid(name) && !instance.allocator.manages(name);
             }
-        });
+        };
+        List<File> segmentFiles = new ArrayList<>();
+        for (String directory : DatabaseDescriptor.getCommitLogLocations())
+            segmentFiles.addAll(Arrays.asList(new File(directory).listFiles(unmanagedFilter)));
+        // the segments of all the directories are replayed together in the order of their ids
+        File[] files = segmentFiles.toArray(new File[segmentFiles.size()]);
 
         int replayed = 0;
         if (files.length == 0)
@@ -134,10 +154,27 @@ public class CommitLog implements CommitLogMBean
     public int recover(File... clogs) throws IOException
     {
         CommitLogReplayer recovery = new CommitLogReplayer();
-        recovery.recover(clogs);
+        replaying = true;
+        try
+        {
+            recovery.recover(clogs);
+        }
+        finally
+        {
+            replaying = false;
+        }
         return recovery.blockForWrites();
     }
 
+    /**
+     * @return true if commit log segments are being replayed, so that the memtables flushed in the meantime may not
+     * contain all the mutations up to the current context, but only some of the mutations of the replayed segments
+     */
+    public boolean isReplaying()
+    {
+        return replaying;
+    }
+
     /**
      * Perform recovery on a single commit log.
      */
@@ -152,7 +189,7 @@ public class CommitLog implements CommitLogMBean
      */
     public ReplayPosition getContext()
     {
-        return allocator.allocatingFrom().getContext();
+        return allocator.getContext();
     }
 
     /**
@@ -176,12 +213,36 @@ public class CommitLog implements CommitLogMBean
      */
     public void sync(boolean syncAllSegments)
     {
-        CommitLogSegment current = allocator.allocatingFrom();
-        for (CommitLogSegment segment : allocator.getActiveSegments())
+        long lastAllocatingId = allocator.lastAllocatingId();
+        List<Future<?>> syncs = new ArrayList<>();
+        for (final CommitLogSegment segment : allocator.getActiveSegments())
         {
-            if (!syncAllSegments && segment.id > current.id)
-                return;
-            segment.sync();
+            if (!syncAllSegments && segment.id > lastAllocatingId)
+                continue;
+            if (syncExecutor == null)
+            {
+                segment.sync();
+            }
+            else
+            {
+                syncs.add(syncExecutor.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        segment.sync();
+                    }
+                }));
+            }
+        }
+
+        try
+        {
+            for (Future<?> sync : syncs)
+                Uninterruptibles.getUninterruptibly(sync);
+        }
+        catch (ExecutionException e)
+        {
+            throw Throwables.propagate(e.getCause());
         }
     }
 
@@ -259,13 +320,16 @@ public class CommitLog implements CommitLogMBean
     {
         logger.debug("discard completed log segments for {}, column family {}", context, cfId);
 
-        // Go thru the active segment files, which are ordered oldest to newest, marking the
-        // flushed CF as clean, until we reach the segment file containing the ReplayPosition passed
-        // in the arguments. Any segments that become unused after they are marked clean will be
-        // recycled or discarded.
-        for (Iterator<CommitLogSegment> iter = allocator.getActiveSegments().iterator(); iter.hasNext();)
+        // Go thru the active segment files, marking the flushed CF as clean in the segment file containing
+        // the ReplayPosition passed in the arguments and in the older ones. Any segments that become unused
+        // after they are marked clean will be recycled or discarded.
+        for (CommitLogSegment segment : allocator.getActiveSegments())
         {
-            CommitLogSegment segment = iter.next();
+            // Don't mark or try to delete any newer segments, which may be interleaved with the older ones
+            // when the segments of several stripes are active.
+            if (segment.id > context.segment)
+                continue;
+
             segment.markClean(cfId, context);
 
             if (segment.isUnused())
@@ -276,13 +340,8 @@ public class CommitLog implements CommitLogMBean
             else
             {
                 logger.debug("Not safe to delete{} commit log segment {}; dirty is {}",
-                        (iter.hasNext() ? "" : " active"), segment, segment.dirtyString());
+                        (segment.isStillAllocating() ? " active" : ""), segment, segment.dirtyString());
             }
-
-            // Don't mark or try to delete any newer segments once we've reached the one containing the
-            // position of the flush.
-            if (segment.contains(context))
-                break;
         }
     }
 
@@ -328,6 +387,11 @@ public class CommitLog implements CommitLogMBean
         executor.awaitTermination();
         allocator.shutdown();
         allocator.awaitTermination();
+        if (syncExecutor != null)
+        {
+            syncExecutor.shutdown();
+            syncExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
     }
 
     /**
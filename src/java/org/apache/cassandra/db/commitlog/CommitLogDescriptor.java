@@ -25,10 +25,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.cassandra.exceptions.ConfigurationException;
 import org.apache.cassandra.io.FSReadError;
+import org.apache.cassandra.io.compress.CompressionParameters;
+import org.apache.cassandra.io.compress.ICompressor;
 import org.apache.cassandra.net.MessagingService;
 import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.utils.PureJavaCrc32;
@@ -44,22 +49,32 @@ public class CommitLogDescriptor
     public static final int VERSION_12 = 2;
     public static final int VERSION_20 = 3;
     public static final int VERSION_21 = 4;
+    public static final int VERSION_21_COMPRESSION = 5;
     /**
      * Increment this number if there is a changes in the commit log disc layout or MessagingVersion changes.
      * Note: make sure to handle {@link #getMessagingVersion()}
      */
-    public static final int current_version = VERSION_21;
+    public static final int current_version = VERSION_21_COMPRESSION;
 
-    // [version, id, checksum]
+    // [version, id, checksum], and since VERSION_21_COMPRESSION [version, id, compression length, compression, checksum]
     static final int HEADER_SIZE = 4 + 8 + 4;
 
     final int version;
     public final long id;
+    // the class name of the compressor of the segment, or null if it isn't compressed
+    public final String compression;
 
-    public CommitLogDescriptor(int version, long id)
+    public CommitLogDescriptor(int version, long id, String compression)
     {
+        assert compression == null || version >= VERSION_21_COMPRESSION;
         this.version = version;
         this.id = id;
+        this.compression = compression;
+    }
+
+    public CommitLogDescriptor(int version, long id)
+    {
+        this(version, id, null);
     }
 
     public CommitLogDescriptor(long id)
@@ -67,7 +82,33 @@ public class CommitLogDescriptor
         this(current_version, id);
     }
 
-    static void writeHeader(ByteBuffer out, CommitLogDescriptor descriptor)
+    public int headerSize()
+    {
+        return version < VERSION_21_COMPRESSION ? HEADER_SIZE : HEADER_SIZE + 2 + compressionBytes().length;
+    }
+
+    private byte[] compressionBytes()
+    {
+        return compression == null ? new byte[0] : compression.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a new compressor of the segment, which must be compressed
+     */
+    public ICompressor createCompressor()
+    {
+        assert compression != null;
+        try
+        {
+            return new CompressionParameters(compression, null, Collections.<String, String>emptyMap()).sstableCompressor;
+        }
+        catch (ConfigurationException e)
+        {
+            throw new IllegalStateException("Unable to create the commitlog compressor " + compression, e);
+        }
+    }
+
+    public static void writeHeader(ByteBuffer out, CommitLogDescriptor descriptor)
     {
         out.putInt(0, descriptor.version);
         out.putLong(4, descriptor.id);
@@ -75,7 +116,19 @@ public class CommitLogDescriptor
         crc.updateInt(descriptor.version);
         crc.updateInt((int) (descriptor.id & 0xFFFFFFFFL));
         crc.updateInt((int) (descriptor.id >>> 32));
-        out.putInt(12, crc.getCrc());
+        int position = 12;
+        if (descriptor.version >= VERSION_21_COMPRESSION)
+        {
+            byte[] compression = descriptor.compressionBytes();
+            out.putShort(position, (short) compression.length);
+            crc.updateInt(compression.length);
+            position += 2;
+            for (int i = 0; i < compression.length; i++)
+                out.put(position + i, compression[i]);
+            crc.update(compression, 0, compression.length);
+            position += compression.length;
+        }
+        out.putInt(position, crc.getCrc());
     }
 
     public static CommitLogDescriptor fromHeader(File file)
@@ -85,18 +138,30 @@ public class CommitLogDescriptor
             assert raf.getFilePointer() == 0;
             int version = raf.readInt();
             long id = raf.readLong();
-            int crc = raf.readInt();
             PureJavaCrc32 checkcrc = new PureJavaCrc32();
             checkcrc.updateInt(version);
             checkcrc.updateInt((int) (id & 0xFFFFFFFFL));
             checkcrc.updateInt((int) (id >>> 32));
+            String compression = null;
+            if (version >= VERSION_21_COMPRESSION)
+            {
+                int length = raf.readUnsignedShort();
+                byte[] bytes = new byte[length];
+                raf.readFully(bytes);
+                checkcrc.updateInt(length);
+                checkcrc.update(bytes, 0, length);
+                if (length > 0)
+                    compression = new String(bytes, StandardCharsets.UTF_8);
+            }
+            int crc = raf.readInt();
             if (crc == checkcrc.getCrc())
-                return new CommitLogDescriptor(version, id);
+                return new CommitLogDescriptor(version, id, compression);
             return null;
         }
         catch (EOFException e)
         {
-            throw new RuntimeException(e);
+            // the header of a compressed segment is only written on its first sync
+            return null;
         }
         catch (IOException e)
         {
@@ -126,6 +191,7 @@ public class CommitLogDescriptor
             case VERSION_20:
                 return MessagingService.VERSION_20;
             case VERSION_21:
+            case VERSION_21_COMPRESSION:
                 return MessagingService.VERSION_21;
             default:
                 throw new IllegalStateException("Unknown commitlog version " + version);
@@ -148,7 +214,7 @@ public class CommitLogDescriptor
 
     public String toString()
     {
-        return "(" + version + "," + id + ")";
+        return "(" + version + "," + id + (compression == null ? "" : "," + compression) + ")";
     }
 
     public boolean equals(Object that)
@@ -19,57 +19,88 @@
 package org.apache.cassandra.db.commitlog;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.concurrent.Stage;
 import org.apache.cassandra.concurrent.StageManager;
+import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.config.Schema;
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.index.PerRowSecondaryIndex;
+import org.apache.cassandra.db.index.SecondaryIndex;
+import org.apache.cassandra.io.compress.ICompressor;
 import org.apache.cassandra.io.util.FastByteArrayInputStream;
+import org.apache.cassandra.io.util.FileDataInput;
 import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.io.util.MappedFileDataInput;
 import org.apache.cassandra.io.util.RandomAccessReader;
 import org.apache.cassandra.utils.*;
+import org.apache.cassandra.utils.memory.MemtableAllocator;
 
 import org.cliffc.high_scale_lib.NonBlockingHashSet;
 
 public class CommitLogReplayer
 {
     private static final Logger logger = LoggerFactory.getLogger(CommitLogReplayer.class);
-    private static final int MAX_OUTSTANDING_REPLAY_COUNT = 1024;
+    private static final int MAX_OUTSTANDING_REPLAY_COUNT = Integer.getInteger("cassandra.commitlog_max_outstanding_replay_count", 1024);
     private static final int LEGACY_END_OF_SEGMENT_MARKER = 0;
 
     private final Set<Keyspace> keyspacesRecovered;
-    private final List<Future<?>> futures;
-    private final Map<UUID, AtomicInteger> invalidMutations;
+    private final Set<PerRowSecondaryIndex> indexesRecovered;
+    private final ConcurrentMap<UUID, AtomicInteger> invalidMutations;
     private final AtomicInteger replayedCount;
+    private final AtomicInteger replayedIndexCount;
     private final Map<UUID, ReplayPosition> cfPositions;
+    private final Map<UUID, Map<PerRowSecondaryIndex, ReplayPosition>> indexPositions;
     private final ReplayPosition globalPosition;
-    private final PureJavaCrc32 checksum;
-    private byte[] buffer;
+    private final AtomicInteger segmentsReplayed = new AtomicInteger();
+    private volatile int segmentCount;
+    private final int replayThreads;
+    // the outstanding mutations are shared by the segments read in parallel
+    private final int maxOutstandingSegmentReplayCount;
+    // the share of the memtable memory above which a memtable is flushed during replay; by default it's flushed before
+    // the memory pool has to flush the largest memtables and block the replay until the memory is reclaimed
+    private final float replayFlushRatio;
 
     public CommitLogReplayer()
     {
+        this.replayThreads = Integer.getInteger("cassandra.commitlog_replay_threads", Math.max(1, FBUtilities.getAvailableProcessors() / 2));
+        this.maxOutstandingSegmentReplayCount = Math.max(1, MAX_OUTSTANDING_REPLAY_COUNT / replayThreads);
+        this.replayFlushRatio = Float.parseFloat(System.getProperty("cassandra.commitlog_replay_flush_ratio",
+                                                                    String.valueOf(DatabaseDescriptor.getMemtableCleanupThreshold() / 2)));
         this.keyspacesRecovered = new NonBlockingHashSet<Keyspace>();
-        this.futures = new ArrayList<Future<?>>();
-        this.buffer = new byte[4096];
-        this.invalidMutations = new HashMap<UUID, AtomicInteger>();
+        this.indexesRecovered = new NonBlockingHashSet<PerRowSecondaryIndex>();
+        this.invalidMutations = new ConcurrentHashMap<UUID, AtomicInteger>();
         // count the number of replayed mutation. We don't really care about atomicity, but we need it to be a reference.
         this.replayedCount = new AtomicInteger();
-        this.checksum = new PureJavaCrc32();
+        this.replayedIndexCount = new AtomicInteger();
 
         // compute per-CF and global replay positions
         cfPositions = new HashMap<UUID, ReplayPosition>();
+        indexPositions = new HashMap<UUID, Map<PerRowSecondaryIndex, ReplayPosition>>();
+        List<ReplayPosition> positions = new ArrayList<ReplayPosition>();
         Ordering<ReplayPosition> replayPositionOrdering = Ordering.from(ReplayPosition.comparator);
         for (ColumnFamilyStore cfs : ColumnFamilyStore.all())
         {
@@ -84,15 +115,81 @@ public class CommitLogReplayer
                 rp = replayPositionOrdering.max(Arrays.asList(rp, truncatedAt));
 
             cfPositions.put(cfs.metadata.cfId, rp);
+            positions.add(rp);
+
+            // per-row indexes persisted apart from the sstables may be behind them; if they know their own position,
+            // the mutations between it and the cf position are replayed into the index alone
+            Map<PerRowSecondaryIndex, ReplayPosition> laggingIndexes = new IdentityHashMap<PerRowSecondaryIndex, ReplayPosition>();
+            for (SecondaryIndex index : cfs.indexManager.getIndexesNotBackedByCfs())
+            {
+                if (!(index instanceof PerRowSecondaryIndex))
+                    continue;
+                ReplayPosition indexPosition = ((PerRowSecondaryIndex) index).getReplayPosition();
+                if (indexPosition == null)
+                    continue;
+                if (truncatedAt != null)
+                    indexPosition = replayPositionOrdering.max(Arrays.asList(indexPosition, truncatedAt));
+                if (indexPosition.compareTo(rp) < 0)
+                {
+                    laggingIndexes.put((PerRowSecondaryIndex) index, indexPosition);
+                    positions.add(indexPosition);
+                }
+            }
+            if (!laggingIndexes.isEmpty())
+                indexPositions.put(cfs.metadata.cfId, laggingIndexes);
         }
-        globalPosition = replayPositionOrdering.min(cfPositions.values());
+        globalPosition = replayPositionOrdering.min(positions);
         logger.debug("Global replay position is {} from columnfamilies {}", globalPosition, FBUtilities.toString(cfPositions));
+        if (!indexPositions.isEmpty())
+            logger.info("Replaying commitlog into indexes behind their base table: {}", indexPositions);
     }
 
+    /**
+     * Replays the segments, reading several of them in parallel. The mutations of each segment are read, checked and
+     * deserialized by its own thread, while they are applied by the mutation stage.
+     */
     public void recover(File[] clogs) throws IOException
     {
-        for (final File file : clogs)
-            recover(file);
+        long start = System.nanoTime();
+        segmentCount = clogs.length;
+        int threads = Math.min(replayThreads, clogs.length);
+        if (threads <= 1)
+        {
+            for (final File file : clogs)
+                recover(file);
+        }
+        else
+        {
+            logger.info("Replaying {} commit log segments with {} threads", clogs.length, threads);
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("CommitLogReplayer"));
+            try
+            {
+                List<Future<?>> segments = new ArrayList<>(clogs.length);
+                for (final File file : clogs)
+                {
+                    segments.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call() throws IOException
+                        {
+                            recover(file);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> segment : segments)
+                    Uninterruptibles.getUninterruptibly(segment);
+            }
+            catch (ExecutionException e)
+            {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+        CommitLog.instance.metrics.replayTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
     }
 
     public int blockForWrites()
@@ -100,15 +197,17 @@ public class CommitLogReplayer
         for (Map.Entry<UUID, AtomicInteger> entry : invalidMutations.entrySet())
             logger.info(String.format("Skipped %d mutations from unknown (probably removed) CF with id %s", entry.getValue().intValue(), entry.getKey()));
 
-        // wait for all the writes to finish on the mutation stage
-        FBUtilities.waitOnFutures(futures);
-        logger.debug("Finished waiting on mutations from recovery");
-
-        // flush replayed keyspaces
-        futures.clear();
+        // the mutations of each segment have been applied once it has been replayed, so flush replayed keyspaces
+        List<Future<?>> futures = new ArrayList<Future<?>>();
         for (Keyspace keyspace : keyspacesRecovered)
             futures.addAll(keyspace.flush());
         FBUtilities.waitOnFutures(futures);
+
+        // commit the indexes that have been replayed alone, their base tables may have nothing to flush
+        for (PerRowSecondaryIndex index : indexesRecovered)
+            index.forceBlockingFlush();
+        if (replayedIndexCount.get() > 0)
+            logger.info("Replayed {} mutations into {} indexes", replayedIndexCount.get(), indexesRecovered.size());
         return replayedCount.get();
     }
 
@@ -148,12 +247,12 @@ public class CommitLogReplayer
         return end;
     }
 
-    private int getStartOffset(long segmentId, int version)
+    private int getStartOffset(long segmentId, CommitLogDescriptor desc)
     {
         if (globalPosition.segment < segmentId)
         {
-            if (version >= CommitLogDescriptor.VERSION_21)
-                return CommitLogDescriptor.HEADER_SIZE + CommitLogSegment.SYNC_MARKER_SIZE;
+            if (desc.version >= CommitLogDescriptor.VERSION_21)
+                return desc.headerSize() + CommitLogSegment.SYNC_MARKER_SIZE;
             else
                 return 0;
         }
@@ -225,30 +324,80 @@ public class CommitLogReplayer
         }
     }
 
+    /**
+     * The state of the replay of a single segment.
+     */
+    private static class SegmentReplay
+    {
+        private final PureJavaCrc32 checksum = new PureJavaCrc32();
+        private byte[] buffer = new byte[4096];
+        private byte[] compressedBuffer = new byte[0];
+        private byte[] uncompressedBuffer = new byte[0];
+        // the mutations submitted to the mutation stage, in order
+        private final Deque<Future<?>> futures = new ArrayDeque<>();
+        private int mutationsRead;
+    }
+
     public void recover(File file) throws IOException
+    {
+        long start = System.nanoTime();
+        SegmentReplay replay = new SegmentReplay();
+        read(file, replay);
+
+        // the segment is replayed once all its mutations have been applied
+        FBUtilities.waitOnFutures(replay.futures);
+        long elapsed = System.nanoTime() - start;
+        CommitLog.instance.metrics.segmentReplayTime.update(elapsed, TimeUnit.NANOSECONDS);
+        CommitLog.instance.metrics.replayedSegments.inc();
+        logger.info("Finished replaying {} in {} ms, {} mutations read ({} of {} segments)",
+                    file,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    replay.mutationsRead,
+                    segmentsReplayed.incrementAndGet(),
+                    Math.max(segmentCount, segmentsReplayed.get()));
+    }
+
+    private void read(File file, SegmentReplay replay) throws IOException
     {
         final ReplayFilter replayFilter = ReplayFilter.create();
         logger.info("Replaying {}", file.getPath());
         CommitLogDescriptor desc = CommitLogDescriptor.fromFileName(file.getName());
+        if (desc.version >= CommitLogDescriptor.VERSION_21_COMPRESSION)
+        {
+            // the compression of the segment is only known from its header
+            desc = CommitLogDescriptor.fromHeader(file);
+            if (desc == null)
+            {
+                logger.warn("Skipping replay of {}, whose header is missing or invalid", file);
+                return;
+            }
+        }
         final long segmentId = desc.id;
-        logger.info("Replaying {} (CL version {}, messaging version {})",
+        logger.info("Replaying {} (CL version {}, messaging version {}, compression {})",
                     file.getPath(),
                     desc.version,
-                    desc.getMessagingVersion());
+                    desc.getMessagingVersion(),
+                    desc.compression);
         RandomAccessReader reader = RandomAccessReader.open(new File(file.getAbsolutePath()));
 
         try
         {
             assert reader.length() <= Integer.MAX_VALUE;
-            int offset = getStartOffset(segmentId, desc.version);
+            int offset = getStartOffset(segmentId, desc);
             if (offset < 0)
             {
                 logger.debug("skipping replay of fully-flushed {}", file);
                 return;
             }
 
-            int prevEnd = CommitLogDescriptor.HEADER_SIZE;
-            main: while (true)
+            if (desc.compression != null)
+            {
+                replayCompressed(reader, offset, desc, replayFilter, replay);
+                return;
+            }
+
+            int prevEnd = desc.headerSize();
+            while (true)
             {
 
                 int end = prevEnd;
@@ -267,179 +416,296 @@ public class CommitLogReplayer
                     logger.debug("Replaying {} between {} and {}", file, offset, end);
 
                 reader.seek(offset);
+                if (!replaySyncSection(reader, end, desc, replayFilter, replay))
+                    break;
+
+                if (desc.version < CommitLogDescriptor.VERSION_21)
+                    break;
 
-                 /* read the logs populate Mutation and apply */
-                while (reader.getPosition() < end && !reader.isEOF())
+                offset = end + CommitLogSegment.SYNC_MARKER_SIZE;
+                prevEnd = end;
+            }
+        }
+        finally
+        {
+            FileUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Replays a {@link CompressedSegment}, whose sync markers are file offsets, while the replay positions and the
+     * positions of the entries are offsets in the uncompressed segment.
+     *
+     * @param offset the uncompressed position to start replaying from
+     */
+    private void replayCompressed(RandomAccessReader reader, int offset, CommitLogDescriptor desc, ReplayFilter replayFilter, SegmentReplay replay) throws IOException
+    {
+        ICompressor compressor = desc.createCompressor();
+        int prevEnd = desc.headerSize();
+        // the uncompressed position of the sync marker at prevEnd
+        int uncompressedMarker = prevEnd;
+        while (true)
+        {
+            int end = readSyncMarker(desc, prevEnd, reader);
+            if (end < prevEnd + CompressedSegment.COMPRESSED_MARKER_SIZE)
+                break;
+
+            int uncompressedLength = reader.readInt();
+            int sectionStart = uncompressedMarker + CommitLogSegment.SYNC_MARKER_SIZE;
+            int sectionEnd = sectionStart + uncompressedLength;
+            if (uncompressedLength < 0)
+            {
+                logger.warn("Encountered bad compressed section at position {} of commit log {}, with negative length", prevEnd, reader.getPath());
+                break;
+            }
+
+            // sections whose entries have all been flushed aren't uncompressed
+            if (sectionEnd > offset)
+            {
+                int compressedLength = end - prevEnd - CompressedSegment.COMPRESSED_MARKER_SIZE;
+                if (compressedLength > replay.compressedBuffer.length)
+                    replay.compressedBuffer = new byte[(int) (1.2 * compressedLength)];
+                reader.readFully(replay.compressedBuffer, 0, compressedLength);
+                if (uncompressedLength > replay.uncompressedBuffer.length)
+                    replay.uncompressedBuffer = new byte[(int) (1.2 * uncompressedLength)];
+                try
+                {
+                    compressor.uncompress(replay.compressedBuffer, 0, compressedLength, replay.uncompressedBuffer, 0);
+                }
+                catch (IOException e)
                 {
-                    if (logger.isDebugEnabled())
-                        logger.debug("Reading mutation at {}", reader.getFilePointer());
+                    logger.warn("Encountered bad compressed section at position {} of commit log {}: {}", prevEnd, reader.getPath(), e.getMessage());
+                    break;
+                }
 
-                    long claimedCRC32;
-                    int serializedSize;
-                    try
-                    {
-                        // any of the reads may hit EOF
-                        serializedSize = reader.readInt();
-                        if (serializedSize == LEGACY_END_OF_SEGMENT_MARKER)
-                        {
-                            logger.debug("Encountered end of segment marker at {}", reader.getFilePointer());
-                            break main;
-                        }
+                if (logger.isDebugEnabled())
+                    logger.debug("Replaying {} between {} and {}", reader.getPath(), Math.max(offset, sectionStart), sectionEnd);
 
-                        // Mutation must be at LEAST 10 bytes:
-                        // 3 each for a non-empty Keyspace and Key (including the
-                        // 2-byte length from writeUTF/writeWithShortLength) and 4 bytes for column count.
-                        // This prevents CRC by being fooled by special-case garbage in the file; see CASSANDRA-2128
-                        if (serializedSize < 10)
-                            break main;
-
-                        long claimedSizeChecksum;
-                        if (desc.version < CommitLogDescriptor.VERSION_21)
-                            claimedSizeChecksum = reader.readLong();
-                        else
-                            claimedSizeChecksum = reader.readInt() & 0xffffffffL;
-                        checksum.reset();
-                        if (desc.version < CommitLogDescriptor.VERSION_20)
-                            checksum.update(serializedSize);
-                        else
-                            checksum.updateInt(serializedSize);
-
-                        if (checksum.getValue() != claimedSizeChecksum)
-                            break main; // entry wasn't synced correctly/fully. that's
-                        // ok.
-
-                        if (serializedSize > buffer.length)
-                            buffer = new byte[(int) (1.2 * serializedSize)];
-                        reader.readFully(buffer, 0, serializedSize);
-                        if (desc.version < CommitLogDescriptor.VERSION_21)
-                            claimedCRC32 = reader.readLong();
-                        else
-                            claimedCRC32 = reader.readInt() & 0xffffffffL;
-                    }
-                    catch (EOFException eof)
-                    {
-                        break main; // last CL entry didn't get completely written. that's ok.
-                    }
+                ByteBuffer uncompressed = ByteBuffer.wrap(replay.uncompressedBuffer, 0, uncompressedLength).slice();
+                FileDataInput section = new MappedFileDataInput(uncompressed, reader.getPath(), sectionStart, 0);
+                if (offset > sectionStart)
+                    section.seek(offset);
+                if (!replaySyncSection(section, sectionEnd, desc, replayFilter, replay))
+                    break;
+            }
 
-                    checksum.update(buffer, 0, serializedSize);
-                    if (claimedCRC32 != checksum.getValue())
-                    {
-                        // this entry must not have been fsynced. probably the rest is bad too,
-                        // but just in case there is no harm in trying them (since we still read on an entry boundary)
-                        continue;
-                    }
+            uncompressedMarker = sectionEnd;
+            prevEnd = end;
+        }
+    }
 
-                    /* deserialize the commit log entry */
-                    FastByteArrayInputStream bufIn = new FastByteArrayInputStream(buffer, 0, serializedSize);
-                    final Mutation mutation;
-                    try
-                    {
-                        mutation = Mutation.serializer.deserialize(new DataInputStream(bufIn),
-                                                                   desc.getMessagingVersion(),
-                                                                   ColumnSerializer.Flag.LOCAL);
-                        // doublecheck that what we read is [still] valid for the current schema
-                        for (ColumnFamily cf : mutation.getColumnFamilies())
-                            for (Cell cell : cf)
-                                cf.getComparator().validate(cell.name());
-                    }
-                    catch (UnknownColumnFamilyException ex)
-                    {
-                        if (ex.cfId == null)
-                            continue;
-                        AtomicInteger i = invalidMutations.get(ex.cfId);
-                        if (i == null)
-                        {
-                            i = new AtomicInteger(1);
-                            invalidMutations.put(ex.cfId, i);
-                        }
-                        else
-                            i.incrementAndGet();
-                        continue;
-                    }
-                    catch (Throwable t)
-                    {
-                        File f = File.createTempFile("mutation", "dat");
-                        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
-                        try
-                        {
-                            out.write(buffer, 0, serializedSize);
-                        }
-                        finally
-                        {
-                            out.close();
-                        }
-                        String st = String.format("Unexpected error deserializing mutation; saved to %s and ignored.  This may be caused by replaying a mutation against a table with the same name but incompatible schema.  Exception follows: ",
-                                                  f.getAbsolutePath());
-                        logger.error(st, t);
-                        continue;
-                    }
+    /**
+     * Replays the entries of a sync section, from the current position of the reader.
+     *
+     * @param reader the contents of the segment, whose file pointer is the position in the segment
+     * @param end the position of the end of the section
+     * @return false if the end of the segment has been reached
+     */
+    private boolean replaySyncSection(FileDataInput reader, int end, CommitLogDescriptor desc, final ReplayFilter replayFilter, SegmentReplay replay) throws IOException
+    {
+        final long segmentId = desc.id;
+        PureJavaCrc32 checksum = replay.checksum;
+        /* read the logs populate Mutation and apply */
+        while (reader.getFilePointer() < end && !reader.isEOF())
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Reading mutation at {}", reader.getFilePointer());
 
-                    if (logger.isDebugEnabled())
-                        logger.debug("replaying mutation for {}.{}: {}", mutation.getKeyspaceName(), ByteBufferUtil.bytesToHex(mutation.key()), "{" + StringUtils.join(mutation.getColumnFamilies().iterator(), ", ") + "}");
+            long claimedCRC32;
+            int serializedSize;
+            try
+            {
+                // any of the reads may hit EOF
+                serializedSize = reader.readInt();
+                if (serializedSize == LEGACY_END_OF_SEGMENT_MARKER)
+                {
+                    logger.debug("Encountered end of segment marker at {}", reader.getFilePointer());
+                    return false;
+                }
+
+                // Mutation must be at LEAST 10 bytes:
+                // 3 each for a non-empty Keyspace and Key (including the
+                // 2-byte length from writeUTF/writeWithShortLength) and 4 bytes for column count.
+                // This prevents CRC by being fooled by special-case garbage in the file; see CASSANDRA-2128
+                if (serializedSize < 10)
+                    return false;
+
+                long claimedSizeChecksum;
+                if (desc.version < CommitLogDescriptor.VERSION_21)
+                    claimedSizeChecksum = reader.readLong();
+                else
+                    claimedSizeChecksum = reader.readInt() & 0xffffffffL;
+                checksum.reset();
+                if (desc.version < CommitLogDescriptor.VERSION_20)
+                    checksum.update(serializedSize);
+                else
+                    checksum.updateInt(serializedSize);
+
+                if (checksum.getValue() != claimedSizeChecksum)
+                    return false; // entry wasn't synced correctly/fully. that's
+                // ok.
+
+                if (serializedSize > replay.buffer.length)
+                    replay.buffer = new byte[(int) (1.2 * serializedSize)];
+                reader.readFully(replay.buffer, 0, serializedSize);
+                if (desc.version < CommitLogDescriptor.VERSION_21)
+                    claimedCRC32 = reader.readLong();
+                else
+                    claimedCRC32 = reader.readInt() & 0xffffffffL;
+            }
+            catch (EOFException eof)
+            {
+                return false; // last CL entry didn't get completely written. that's ok.
+            }
 
-                    final long entryLocation = reader.getFilePointer();
-                    Runnable runnable = new WrappedRunnable()
+            checksum.update(replay.buffer, 0, serializedSize);
+            if (claimedCRC32 != checksum.getValue())
+            {
+                // this entry must not have been fsynced. probably the rest is bad too,
+                // but just in case there is no harm in trying them (since we still read on an entry boundary)
+                continue;
+            }
+
+            /* deserialize the commit log entry */
+            FastByteArrayInputStream bufIn = new FastByteArrayInputStream(replay.buffer, 0, serializedSize);
+            final Mutation mutation;
+            try
+            {
+                mutation = Mutation.serializer.deserialize(new DataInputStream(bufIn),
+                                                           desc.getMessagingVersion(),
+                                                           ColumnSerializer.Flag.LOCAL);
+                // doublecheck that what we read is [still] valid for the current schema
+                for (ColumnFamily cf : mutation.getColumnFamilies())
+                    for (Cell cell : cf)
+                        cf.getComparator().validate(cell.name());
+            }
+            catch (UnknownColumnFamilyException ex)
+            {
+                if (ex.cfId == null)
+                    continue;
+                AtomicInteger i = invalidMutations.get(ex.cfId);
+                if (i == null)
+                {
+                    AtomicInteger previous = invalidMutations.putIfAbsent(ex.cfId, i = new AtomicInteger());
+                    if (previous != null)
+                        i = previous;
+                }
+                i.incrementAndGet();
+                continue;
+            }
+            catch (Throwable t)
+            {
+                File f = File.createTempFile("mutation", "dat");
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+                try
+                {
+                    out.write(replay.buffer, 0, serializedSize);
+                }
+                finally
+                {
+                    out.close();
+                }
+                String st = String.format("Unexpected error deserializing mutation; saved to %s and ignored.  This may be caused by replaying a mutation against a table with the same name but incompatible schema.  Exception follows: ",
+                                          f.getAbsolutePath());
+                logger.error(st, t);
+                continue;
+            }
+
+            replay.mutationsRead++;
+            if (logger.isDebugEnabled())
+                logger.debug("replaying mutation for {}.{}: {}", mutation.getKeyspaceName(), ByteBufferUtil.bytesToHex(mutation.key()), "{" + StringUtils.join(mutation.getColumnFamilies().iterator(), ", ") + "}");
+
+            final long entryLocation = reader.getFilePointer();
+            Runnable runnable = new WrappedRunnable()
+            {
+                public void runMayThrow() throws IOException
+                {
+                    if (Schema.instance.getKSMetaData(mutation.getKeyspaceName()) == null)
+                        return;
+                    if (pointInTimeExceeded(mutation))
+                        return;
+
+                    final Keyspace keyspace = Keyspace.open(mutation.getKeyspaceName());
+
+                    // Rebuild the mutation, omitting column families that
+                    //    a) the user has requested that we ignore,
+                    //    b) have already been flushed,
+                    // or c) are part of a cf that was dropped.
+                    // Keep in mind that the cf.name() is suspect. do every thing based on the cfid instead.
+                    Mutation newMutation = null;
+                    for (ColumnFamily columnFamily : replayFilter.filter(mutation))
                     {
-                        public void runMayThrow() throws IOException
-                        {
-                            if (Schema.instance.getKSMetaData(mutation.getKeyspaceName()) == null)
-                                return;
-                            if (pointInTimeExceeded(mutation))
-                                return;
-
-                            final Keyspace keyspace = Keyspace.open(mutation.getKeyspaceName());
-
-                            // Rebuild the mutation, omitting column families that
-                            //    a) the user has requested that we ignore,
-                            //    b) have already been flushed,
-                            // or c) are part of a cf that was dropped.
-                            // Keep in mind that the cf.name() is suspect. do every thing based on the cfid instead.
-                            Mutation newMutation = null;
-                            for (ColumnFamily columnFamily : replayFilter.filter(mutation))
-                            {
-                                if (Schema.instance.getCF(columnFamily.id()) == null)
-                                    continue; // dropped
+                        if (Schema.instance.getCF(columnFamily.id()) == null)
+                            continue; // dropped
 
-                                ReplayPosition rp = cfPositions.get(columnFamily.id());
+                        ReplayPosition rp = cfPositions.get(columnFamily.id());
 
-                                // replay if current segment is newer than last flushed one or,
-                                // if it is the last known segment, if we are after the replay position
-                                if (segmentId > rp.segment || (segmentId == rp.segment && entryLocation > rp.position))
+                        // replay if current segment is newer than last flushed one or,
+                        // if it is the last known segment, if we are after the replay position
+                        if (segmentId > rp.segment || (segmentId == rp.segment && entryLocation > rp.position))
+                        {
+                            if (newMutation == null)
+                                newMutation = new Mutation(mutation.getKeyspaceName(), mutation.key());
+                            newMutation.add(columnFamily);
+                            replayedCount.incrementAndGet();
+                        }
+                        else if (indexPositions.containsKey(columnFamily.id()))
+                        {
+                            // already in the sstables, but not in the indexes that are behind them
+                            for (Map.Entry<PerRowSecondaryIndex, ReplayPosition> entry : indexPositions.get(columnFamily.id()).entrySet())
+                            {
+                                ReplayPosition indexPosition = entry.getValue();
+                                if (segmentId > indexPosition.segment || (segmentId == indexPosition.segment && entryLocation > indexPosition.position))
                                 {
-                                    if (newMutation == null)
-                                        newMutation = new Mutation(mutation.getKeyspaceName(), mutation.key());
-                                    newMutation.add(columnFamily);
-                                    replayedCount.incrementAndGet();
+                                    entry.getKey().index(mutation.key(), columnFamily);
+                                    indexesRecovered.add(entry.getKey());
+                                    replayedIndexCount.incrementAndGet();
                                 }
                             }
-                            if (newMutation != null)
-                            {
-                                assert !newMutation.isEmpty();
-                                Keyspace.open(newMutation.getKeyspaceName()).apply(newMutation, false);
-                                keyspacesRecovered.add(keyspace);
-                            }
                         }
-                    };
-                    futures.add(StageManager.getStage(Stage.MUTATION).submit(runnable));
-                    if (futures.size() > MAX_OUTSTANDING_REPLAY_COUNT)
+                    }
+                    if (newMutation != null)
                     {
-                        FBUtilities.waitOnFutures(futures);
-                        futures.clear();
+                        assert !newMutation.isEmpty();
+                        Keyspace.open(newMutation.getKeyspaceName()).apply(newMutation, false);
+                        keyspacesRecovered.add(keyspace);
+                        CommitLog.instance.metrics.replayedMutations.inc();
+                        for (ColumnFamily columnFamily : newMutation.getColumnFamilies())
+                            maybeFlush(keyspace.getColumnFamilyStore(columnFamily.id()));
                     }
                 }
-
-                if (desc.version < CommitLogDescriptor.VERSION_21)
-                    break;
-
-                offset = end + CommitLogSegment.SYNC_MARKER_SIZE;
-                prevEnd = end;
-            }
+            };
+            replay.futures.add(StageManager.getStage(Stage.MUTATION).submit(runnable));
+            // bound the mutations read ahead of their application, waiting for the oldest one
+            if (replay.futures.size() > maxOutstandingSegmentReplayCount)
+                FBUtilities.waitOnFuture(replay.futures.poll());
         }
-        finally
+        return true;
+    }
+
+    /**
+     * Flushes the memtable of a replayed table once it owns a large share of the memtable memory. The sstables
+     * flushed during replay don't skip any segment on the next replay, so this is safe even if the replay is
+     * interrupted.
+     */
+    private void maybeFlush(ColumnFamilyStore cfs)
+    {
+        if (cfs == null)
+            return;
+        Memtable memtable = cfs.getDataTracker().getView().getCurrentMemtable();
+        MemtableAllocator allocator = memtable.getAllocator();
+        if (Math.max(allocator.onHeap().ownershipRatio(), allocator.offHeap().ownershipRatio()) < replayFlushRatio)
+            return;
+
+        synchronized (memtable)
         {
-            FileUtils.closeQuietly(reader);
-            logger.info("Finished reading {}", file);
+            // the mutations applied concurrently may have already flushed it
+            if (!memtable.isLive())
+                return;
+            logger.debug("Flushing {} during replay, as its memtable is {}", cfs, memtable);
+            cfs.switchMemtableIfCurrent(memtable);
         }
+        CommitLog.instance.metrics.replayFlushes.inc();
     }
 
     protected boolean pointInTimeExceeded(Mutation fm)
@@ -21,7 +21,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -55,8 +54,12 @@ import org.apache.cassandra.utils.concurrent.WaitQueue;
  * A single commit log file on disk. Manages creation of the file and writing mutations to disk,
  * as well as tracking the last mutation position of any "dirty" CFs covered by the segment file. Segment
  * files are initially allocated to a fixed size and can grow to accomidate a larger value if necessary.
+ *
+ * Mutations are appended to a buffer of the segment size, and each sync writes the section of the buffer between the
+ * previous sync marker and the new one to the file, either directly with a {@link MemoryMappedSegment} or compressed
+ * with a {@link CompressedSegment}. Positions in the segment are always offsets in the buffer.
  */
-public class CommitLogSegment
+public abstract class CommitLogSegment
 {
     private static final Logger logger = LoggerFactory.getLogger(CommitLogSegment.class);
 
@@ -65,10 +68,13 @@ public class CommitLogSegment
     static
     {
         long maxId = Long.MIN_VALUE;
-        for (File file : new File(DatabaseDescriptor.getCommitLogLocation()).listFiles())
+        for (String directory : DatabaseDescriptor.getCommitLogLocations())
         {
-            if (CommitLogDescriptor.isValid(file.getName()))
-                maxId = Math.max(CommitLogDescriptor.fromFileName(file.getName()).id, maxId);
+            for (File file : new File(directory).listFiles())
+            {
+                if (CommitLogDescriptor.isValid(file.getName()))
+                    maxId = Math.max(CommitLogDescriptor.fromFileName(file.getName()).id, maxId);
+            }
         }
         idBase = Math.max(System.currentTimeMillis(), maxId + 1);
     }
@@ -102,22 +108,40 @@ public class CommitLogSegment
     // a map of Cf->clean position; this is used to permit marking Cfs clean whilst the log is still in use
     private final ConcurrentHashMap<UUID, AtomicInteger> cfClean = new ConcurrentHashMap<>();
 
+    // set once the buffer has been released, a segment closed by its last sync is closed again when recycled
+    private boolean closed;
+
     public final long id;
 
     private final File logFile;
-    private final RandomAccessFile logFileAccessor;
-    private final int fd;
+    protected final RandomAccessFile logFileAccessor;
+    protected final FileChannel channel;
+    protected final int fd;
 
-    private final MappedByteBuffer buffer;
+    protected final ByteBuffer buffer;
 
     public final CommitLogDescriptor descriptor;
 
     /**
+     * @param directory the commit log directory of the segment
      * @return a newly minted segment file
      */
-    static CommitLogSegment freshSegment()
+    static CommitLogSegment freshSegment(File directory)
+    {
+        return createSegment(directory, null);
+    }
+
+    /**
+     * @param directory the commit log directory of the segment
+     * @param filePath if not null, the file of a discarded segment to reuse, which should be in the same directory
+     * @return a new segment, compressed if commitlog compression is configured
+     */
+    static CommitLogSegment createSegment(File directory, String filePath)
     {
-        return new CommitLogSegment(null);
+        String compression = DatabaseDescriptor.getCommitLogCompression();
+        return compression == null
+               ? new MemoryMappedSegment(directory, filePath)
+               : new CompressedSegment(directory, filePath, compression);
     }
 
     static long getNextId()
@@ -128,13 +152,15 @@ public class CommitLogSegment
     /**
      * Constructs a new segment file.
      *
+     * @param directory the commit log directory of the segment
      * @param filePath  if not null, recycles the existing file by renaming it and truncating it to CommitLog.SEGMENT_SIZE.
+     * @param compression the class name of the compressor of the segment, or null if it isn't compressed
      */
-    CommitLogSegment(String filePath)
+    CommitLogSegment(File directory, String filePath, String compression)
     {
         id = getNextId();
-        descriptor = new CommitLogDescriptor(id);
-        logFile = new File(DatabaseDescriptor.getCommitLogLocation(), descriptor.fileName());
+        descriptor = new CommitLogDescriptor(CommitLogDescriptor.current_version, id, compression);
+        logFile = new File(directory, descriptor.fileName());
         boolean isCreating = true;
 
         try
@@ -158,20 +184,18 @@ public class CommitLogSegment
             if (isCreating)
                 logger.debug("Creating new commit log segment {}", logFile.getPath());
 
-            // Map the segment, extending or truncating it to the standard segment size.
-            // (We may have restarted after a segment size configuration change, leaving "incorrectly"
-            // sized segments on disk.)
-            logFileAccessor.setLength(DatabaseDescriptor.getCommitLogSegmentSize());
+            channel = logFileAccessor.getChannel();
             fd = CLibrary.getfd(logFileAccessor.getFD());
 
-            buffer = logFileAccessor.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DatabaseDescriptor.getCommitLogSegmentSize());
+            buffer = createBuffer();
             // write the header
             CommitLogDescriptor.writeHeader(buffer, descriptor);
+            int headerSize = descriptor.headerSize();
             // mark the initial sync marker as uninitialised
-            buffer.putInt(CommitLogDescriptor.HEADER_SIZE, 0);
-            buffer.putLong(CommitLogDescriptor.HEADER_SIZE + 4, 0);
-            allocatePosition.set(CommitLogDescriptor.HEADER_SIZE + SYNC_MARKER_SIZE);
-            lastSyncedOffset = CommitLogDescriptor.HEADER_SIZE;
+            buffer.putInt(headerSize, 0);
+            buffer.putInt(headerSize + 4, 0);
+            allocatePosition.set(headerSize + SYNC_MARKER_SIZE);
+            lastSyncedOffset = headerSize;
         }
         catch (IOException e)
         {
@@ -179,6 +203,24 @@ public class CommitLogSegment
         }
     }
 
+    /**
+     * Creates the buffer of the segment, preparing the file to receive its contents.
+     */
+    abstract ByteBuffer createBuffer() throws IOException;
+
+    /**
+     * Writes and syncs to disk the section of the buffer between two sync markers, which has been completely written.
+     *
+     * @param startMarker the position of the sync marker starting the section
+     * @param nextMarker the position of the sync marker ending the section, which may be the end of the buffer
+     */
+    abstract void write(int startMarker, int nextMarker);
+
+    /**
+     * Releases the buffer of the segment, which won't be written anymore. Called only once per segment.
+     */
+    abstract void internalClose();
+
     /**
      * allocate space in this buffer for the provided mutation, and populate the provided
      * Allocation object, returning true on success. False indicates there is not enough room in
@@ -264,6 +306,10 @@ public class CommitLogSegment
     {
         try
         {
+            // the buffer of a closed segment may already be in use by another one
+            if (closed)
+                return;
+
             // check we have more work to do
             if (allocatePosition.get() <= lastSyncedOffset + SYNC_MARKER_SIZE)
                 return;
@@ -300,25 +346,8 @@ public class CommitLogSegment
 
             assert nextMarker > lastSyncedOffset;
 
-            // write previous sync marker to point to next sync marker
-            // we don't chain the crcs here to ensure this method is idempotent if it fails
-            int offset = lastSyncedOffset;
-            final PureJavaCrc32 crc = new PureJavaCrc32();
-            crc.updateInt((int) (id & 0xFFFFFFFFL));
-            crc.updateInt((int) (id >>> 32));
-            crc.updateInt(offset);
-            buffer.putInt(offset, nextMarker);
-            buffer.putInt(offset + 4, crc.getCrc());
-
-            // zero out the next sync marker so replayer can cleanly exit
-            if (nextMarker < buffer.capacity())
-            {
-                buffer.putInt(nextMarker, 0);
-                buffer.putInt(nextMarker + 4, 0);
-            }
-
             // actually perform the sync and signal those waiting for it
-            buffer.force();
+            write(lastSyncedOffset, nextMarker);
 
             if (close)
                 nextMarker = buffer.capacity();
@@ -326,7 +355,6 @@ public class CommitLogSegment
             lastSyncedOffset = nextMarker;
             syncComplete.signalAll();
 
-            CLibrary.trySkipCache(fd, offset, nextMarker);
             if (close)
                 close();
         }
@@ -336,6 +364,25 @@ public class CommitLogSegment
         }
     }
 
+    /**
+     * Writes a sync marker pointing to the next one. We don't chain the crcs here to ensure syncs are idempotent if
+     * they fail.
+     *
+     * @param out the buffer to write the marker into
+     * @param position the position of the marker in the buffer
+     * @param offset the offset of the marker in the file, which is covered by its checksum
+     * @param nextMarker the offset of the next marker in the file
+     */
+    protected void writeSyncMarker(ByteBuffer out, int position, int offset, int nextMarker)
+    {
+        final PureJavaCrc32 crc = new PureJavaCrc32();
+        crc.updateInt((int) (id & 0xFFFFFFFFL));
+        crc.updateInt((int) (id >>> 32));
+        crc.updateInt(offset);
+        out.putInt(position, nextMarker);
+        out.putInt(position + 4, crc.getCrc());
+    }
+
     public boolean isStillAllocating()
     {
         return allocatePosition.get() < buffer.capacity();
@@ -368,7 +415,7 @@ public class CommitLogSegment
 
         close();
 
-        return new CommitLogSegment(getPath());
+        return createSegment(getDirectory(), getPath());
     }
 
     /**
@@ -387,6 +434,14 @@ public class CommitLogSegment
         return logFile.getPath();
     }
 
+    /**
+     * @return the commit log directory of this segment
+     */
+    public File getDirectory()
+    {
+        return logFile.getParentFile();
+    }
+
     /**
      * @return the file name of this segment
      */
@@ -413,14 +468,16 @@ public class CommitLogSegment
     }
 
     /**
-     * Close the segment file.
+     * Close the segment file. Closing an already closed segment does nothing.
      */
-    void close()
+    synchronized void close()
     {
+        if (closed)
+            return;
+        closed = true;
         try
         {
-            if (FileUtils.isCleanerAvailable())
-                FileUtils.clean(buffer);
+            internalClose();
             logFileAccessor.close();
         }
         catch (IOException e)
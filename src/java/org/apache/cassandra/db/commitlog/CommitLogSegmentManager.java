@@ -35,7 +35,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,6 +56,12 @@ import static org.apache.cassandra.db.commitlog.CommitLogSegment.Allocation;
 /**
  * Performs eager-creation of commit log segments in a background thread. All the
  * public methods are thread safe.
+ *
+ * Mutations are striped by writing thread over several {@link Stripe}s, each one appending to its own segment in one
+ * of the commit log directories, so that neither the allocation in a single segment nor a single disk are shared by
+ * all the writes. The {@link ReplayPosition}s of different stripes don't follow the order of the writes, so the
+ * context of the commit log is the lowest of the contexts of the stripes: any write after it is either in a later
+ * position of the same stripe or in a later segment, so it still follows the context.
  */
 public class CommitLogSegmentManager
 {
@@ -67,17 +73,12 @@ public class CommitLogSegmentManager
      */
     private final BlockingQueue<Callable<CommitLogSegment>> segmentManagementTasks = new LinkedBlockingQueue<>();
 
-    /** Segments that are ready to be used. Head of the queue is the one we allocate writes to */
-    private final ConcurrentLinkedQueue<CommitLogSegment> availableSegments = new ConcurrentLinkedQueue<>();
+    /** The stripes mutations are appended to */
+    private final Stripe[] stripes;
 
-    /** Active segments, containing unflushed data */
+    /** Active segments, containing unflushed data, in the order they have been allocated from */
     private final ConcurrentLinkedQueue<CommitLogSegment> activeSegments = new ConcurrentLinkedQueue<>();
 
-    /** The segment we are currently allocating commit log records to */
-    private volatile CommitLogSegment allocatingFrom = null;
-
-    private final WaitQueue hasAvailableSegments = new WaitQueue();
-
     /**
      * Tracks commitlog size, in multiples of the segment size.  We need to do this so we can "promise" size
      * adjustments ahead of actually adding/freeing segments on disk, so that the "evict oldest segment" logic
@@ -97,6 +98,11 @@ public class CommitLogSegmentManager
 
     public CommitLogSegmentManager()
     {
+        String[] directories = DatabaseDescriptor.getCommitLogLocations();
+        stripes = new Stripe[DatabaseDescriptor.getCommitLogStripes()];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe(new File(directories[i % directories.length]));
+
         // The run loop for the manager thread
         Runnable runnable = new WrappedRunnable()
         {
@@ -109,14 +115,16 @@ public class CommitLogSegmentManager
                         Callable<CommitLogSegment> task = segmentManagementTasks.poll();
                         if (task == null)
                         {
-                            // if we have no more work to do, check if we should create a new segment
-                            if (availableSegments.isEmpty() && (activeSegments.isEmpty() || createReserveSegments))
+                            // if we have no more work to do, check if we should create new segments
+                            for (Stripe stripe : stripes)
                             {
-                                logger.debug("No segments in reserve; creating a fresh one");
-                                size.addAndGet(DatabaseDescriptor.getCommitLogSegmentSize());
-                                // TODO : some error handling in case we fail to create a new segment
-                                availableSegments.add(CommitLogSegment.freshSegment());
-                                hasAvailableSegments.signalAll();
+                                if (stripe.availableSegments.isEmpty() && (stripe.allocatingFrom == null || createReserveSegments))
+                                {
+                                    logger.debug("No segments in reserve in {}; creating a fresh one", stripe.directory);
+                                    size.addAndGet(DatabaseDescriptor.getCommitLogSegmentSize());
+                                    // TODO : some error handling in case we fail to create a new segment
+                                    stripe.publish(CommitLogSegment.freshSegment(stripe.directory));
+                                }
                             }
 
                             // flush old Cfs if we're full
@@ -127,8 +135,8 @@ public class CommitLogSegmentManager
                                 long spaceToReclaim = 0;
                                 for (CommitLogSegment segment : activeSegments)
                                 {
-                                    if (segment == allocatingFrom)
-                                        break;
+                                    if (isAllocatingFrom(segment))
+                                        continue;
                                     segmentsToRecycle.add(segment);
                                     spaceToReclaim += DatabaseDescriptor.getCommitLogSegmentSize();
                                     if (spaceToReclaim + unused >= 0)
@@ -153,8 +161,7 @@ public class CommitLogSegmentManager
                         if (recycled != null)
                         {
                             // if the work resulted in a segment to recycle, publish it
-                            availableSegments.add(recycled);
-                            hasAvailableSegments.signalAll();
+                            stripeFor(recycled.getDirectory()).publish(recycled);
                         }
                     }
                     catch (Throwable t)
@@ -173,41 +180,77 @@ public class CommitLogSegmentManager
     }
 
     /**
-     * Reserve space in the current segment for the provided mutation or, if there isn't space available,
-     * create a new segment.
+     * Reserve space in the current segment of the stripe of the calling thread for the provided mutation or, if there
+     * isn't space available, create a new segment.
      *
      * @return the provided Allocation object
      */
     public Allocation allocate(Mutation mutation, int size, Allocation alloc)
     {
-        CommitLogSegment segment = allocatingFrom();
+        Stripe stripe = stripes.length == 1 ? stripes[0] : stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        CommitLogSegment segment = allocatingFrom(stripe);
 
         while (!segment.allocate(mutation, size, alloc))
         {
             // failed to allocate, so move to a new segment with enough room
-            advanceAllocatingFrom(segment);
-            segment = allocatingFrom;
+            advanceAllocatingFrom(stripe, segment);
+            segment = stripe.allocatingFrom;
         }
 
         return alloc;
     }
 
     // simple wrapper to ensure non-null value for allocatingFrom; only necessary on first call
-    CommitLogSegment allocatingFrom()
+    private CommitLogSegment allocatingFrom(Stripe stripe)
     {
-        CommitLogSegment r = allocatingFrom;
+        CommitLogSegment r = stripe.allocatingFrom;
         if (r == null)
         {
-            advanceAllocatingFrom(null);
-            r = allocatingFrom;
+            advanceAllocatingFrom(stripe, null);
+            r = stripe.allocatingFrom;
         }
         return r;
     }
 
     /**
-     * Fetches a new segment from the queue, creating a new one if necessary, and activates it
+     * @return a ReplayPosition such that all the Allocations created after this call will follow it, which is the
+     * lowest of the contexts of the segments being allocated from
+     */
+    ReplayPosition getContext()
+    {
+        ReplayPosition context = null;
+        for (Stripe stripe : stripes)
+        {
+            ReplayPosition stripeContext = allocatingFrom(stripe).getContext();
+            if (context == null || stripeContext.compareTo(context) < 0)
+                context = stripeContext;
+        }
+        return context;
+    }
+
+    /**
+     * @return the highest id of the segments being allocated from
+     */
+    long lastAllocatingId()
+    {
+        long id = Long.MIN_VALUE;
+        for (Stripe stripe : stripes)
+            id = Math.max(id, allocatingFrom(stripe).id);
+        return id;
+    }
+
+    private boolean isAllocatingFrom(CommitLogSegment segment)
+    {
+        for (Stripe stripe : stripes)
+            if (stripe.allocatingFrom == segment)
+                return true;
+        return false;
+    }
+
+    /**
+     * Fetches a new segment from the queue of the stripe, creating a new one if necessary, and activates it
      */
-    private void advanceAllocatingFrom(CommitLogSegment old)
+    private void advanceAllocatingFrom(Stripe stripe, CommitLogSegment old)
     {
         while (true)
         {
@@ -216,12 +259,12 @@ public class CommitLogSegmentManager
             {
                 // do this in a critical section so we can atomically remove from availableSegments and add to allocatingFrom/activeSegments
                 // see https://issues.apache.org/jira/browse/CASSANDRA-6557?focusedCommentId=13874432&page=com.atlassian.jira.plugin.system.issuetabpanels:comment-tabpanel#comment-13874432
-                if (allocatingFrom != old)
+                if (stripe.allocatingFrom != old)
                     return;
-                next = availableSegments.poll();
+                next = stripe.availableSegments.poll();
                 if (next != null)
                 {
-                    allocatingFrom = next;
+                    stripe.allocatingFrom = next;
                     activeSegments.add(next);
                 }
             }
@@ -236,6 +279,15 @@ public class CommitLogSegmentManager
 
                     // ensure we don't continue to use the old file; not strictly necessary, but cleaner to enforce it
                     old.discardUnusedTail();
+
+                    // the stripes still allocating from older segments are moved on too, as the oldest of them
+                    // holds back the context of the commit log, and so the recycling of all the newer segments
+                    for (Stripe other : stripes)
+                    {
+                        CommitLogSegment current = other.allocatingFrom;
+                        if (current != null && current.id < old.id)
+                            advanceAllocatingFrom(other, current);
+                    }
                 }
 
                 // request that the CL be synced out-of-band, as we've finished a segment
@@ -244,7 +296,7 @@ public class CommitLogSegmentManager
             }
 
             // no more segments, so register to receive a signal when not empty
-            WaitQueue.Signal signal = hasAvailableSegments.register(CommitLog.instance.metrics.waitingOnSegmentAllocation.time());
+            WaitQueue.Signal signal = stripe.hasAvailableSegments.register(CommitLog.instance.metrics.waitingOnSegmentAllocation.time());
 
             // trigger the management thread; this must occur after registering
             // the signal to ensure we are woken by any new segment creation
@@ -252,11 +304,11 @@ public class CommitLogSegmentManager
 
             // check if the queue has already been added to before waiting on the signal, to catch modifications
             // that happened prior to registering the signal; *then* check to see if we've been beaten to making the change
-            if (!availableSegments.isEmpty() || allocatingFrom != old)
+            if (!stripe.availableSegments.isEmpty() || stripe.allocatingFrom != old)
             {
                 signal.cancel();
                 // if we've been beaten, just stop immediately
-                if (allocatingFrom != old)
+                if (stripe.allocatingFrom != old)
                     return;
                 // otherwise try again, as there should be an available segment
                 continue;
@@ -290,21 +342,33 @@ public class CommitLogSegmentManager
      */
     void forceRecycleAll(Iterable<UUID> droppedCfs)
     {
+        List<CommitLogSegment> lasts = new ArrayList<>(stripes.length);
+        for (Stripe stripe : stripes)
+            lasts.add(allocatingFrom(stripe));
         List<CommitLogSegment> segmentsToRecycle = new ArrayList<>(activeSegments);
-        CommitLogSegment last = segmentsToRecycle.get(segmentsToRecycle.size() - 1);
-        advanceAllocatingFrom(last);
+        long lastId = Long.MIN_VALUE;
+        for (int i = 0; i < stripes.length; i++)
+        {
+            CommitLogSegment last = lasts.get(i);
+            advanceAllocatingFrom(stripes[i], last);
+            lastId = Math.max(lastId, last.id);
+        }
 
         // wait for the commit log modifications
-        last.waitForModifications();
+        for (CommitLogSegment last : lasts)
+            last.waitForModifications();
 
         // make sure the writes have materialized inside of the memtables by waiting for all outstanding writes
         // on the relevant keyspaces to complete
         Set<Keyspace> keyspaces = new HashSet<>();
-        for (UUID cfId : last.getDirtyCFIDs())
+        for (CommitLogSegment last : lasts)
         {
-            ColumnFamilyStore cfs = Schema.instance.getColumnFamilyStoreInstance(cfId);
-            if (cfs != null)
-                keyspaces.add(cfs.keyspace);
+            for (UUID cfId : last.getDirtyCFIDs())
+            {
+                ColumnFamilyStore cfs = Schema.instance.getColumnFamilyStoreInstance(cfId);
+                if (cfs != null)
+                    keyspaces.add(cfs.keyspace);
+            }
         }
         for (Keyspace keyspace : keyspaces)
             keyspace.writeOrder.awaitNewBarrier();
@@ -327,7 +391,7 @@ public class CommitLogSegmentManager
                     recycleSegment(segment);
 
             CommitLogSegment first;
-            if ((first = activeSegments.peek()) != null && first.id <= last.id)
+            if ((first = activeSegments.peek()) != null && first.id <= lastId)
                 logger.error("Failed to force-recycle all segments; at least one segment is still in use with dirty CFs.");
         }
         catch (Throwable t)
@@ -385,6 +449,14 @@ public class CommitLogSegmentManager
             return;
         }
 
+        final Stripe stripe = stripeFor(file.getParentFile());
+        if (stripe == null)
+        {
+            logger.debug("(Unopened) segment {} is not in a commit log directory and will be deleted now", file);
+            FileUtils.deleteWithConfirm(file);
+            return;
+        }
+
         logger.debug("Recycling {}", file);
         // this wasn't previously a live segment, so add it to the managed size when we make it live
         size.addAndGet(DatabaseDescriptor.getCommitLogSegmentSize());
@@ -392,7 +464,7 @@ public class CommitLogSegmentManager
         {
             public CommitLogSegment call()
             {
-                return new CommitLogSegment(file.getPath());
+                return CommitLogSegment.createSegment(stripe.directory, file.getPath());
             }
         });
     }
@@ -433,12 +505,31 @@ public class CommitLogSegmentManager
      */
     public boolean manages(String name)
     {
-        for (CommitLogSegment segment : Iterables.concat(activeSegments, availableSegments))
+        for (CommitLogSegment segment : activeSegments)
             if (segment.getName().equals(name))
                 return true;
+        for (Stripe stripe : stripes)
+            for (CommitLogSegment segment : stripe.availableSegments)
+                if (segment.getName().equals(name))
+                    return true;
         return false;
     }
 
+    /**
+     * @return the stripe of the given directory with the fewest available segments, or null if there is none
+     */
+    private Stripe stripeFor(File directory)
+    {
+        Stripe stripe = null;
+        for (Stripe candidate : stripes)
+        {
+            if (candidate.directory.equals(directory)
+                && (stripe == null || candidate.availableSegments.size() < stripe.availableSegments.size()))
+                stripe = candidate;
+        }
+        return stripe;
+    }
+
     /**
      * Check to see if the speculative current size exceeds the cap.
      *
@@ -475,7 +566,9 @@ public class CommitLogSegmentManager
     {
         if (segments.isEmpty())
             return Futures.immediateFuture(null);
-        final ReplayPosition maxReplayPosition = segments.get(segments.size() - 1).getContext();
+        ReplayPosition maxReplayPosition = ReplayPosition.NONE;
+        for (CommitLogSegment segment : segments)
+            maxReplayPosition = Ordering.natural().max(maxReplayPosition, segment.getContext());
 
         // a map of CfId -> forceFlush() to ensure we only queue one flush per cf
         final Map<UUID, ListenableFuture<?>> flushes = new LinkedHashMap<>();
@@ -520,11 +613,13 @@ public class CommitLogSegmentManager
             segment.close();
         activeSegments.clear();
 
-        for (CommitLogSegment segment : availableSegments)
-            segment.close();
-        availableSegments.clear();
-
-        allocatingFrom = null;
+        for (Stripe stripe : stripes)
+        {
+            for (CommitLogSegment segment : stripe.availableSegments)
+                segment.close();
+            stripe.availableSegments.clear();
+            stripe.allocatingFrom = null;
+        }
     }
 
     /**
@@ -551,5 +646,32 @@ public class CommitLogSegmentManager
     {
         return Collections.unmodifiableCollection(activeSegments);
     }
+
+    /**
+     * A sequence of segments in a commit log directory, one of which is allocated from at a time.
+     */
+    private static class Stripe
+    {
+        private final File directory;
+
+        /** Segments that are ready to be used. Head of the queue is the one we allocate writes to */
+        private final ConcurrentLinkedQueue<CommitLogSegment> availableSegments = new ConcurrentLinkedQueue<>();
+
+        /** The segment we are currently allocating commit log records to */
+        private volatile CommitLogSegment allocatingFrom = null;
+
+        private final WaitQueue hasAvailableSegments = new WaitQueue();
+
+        private Stripe(File directory)
+        {
+            this.directory = directory;
+        }
+
+        private void publish(CommitLogSegment segment)
+        {
+            availableSegments.add(segment);
+            hasAvailableSegments.signalAll();
+        }
+    }
 }
 
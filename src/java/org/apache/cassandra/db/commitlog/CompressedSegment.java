@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.commitlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.io.FSWriteError;
+import org.apache.cassandra.io.compress.ICompressor;
+import org.apache.cassandra.utils.CLibrary;
+
+/*
+ * A segment whose mutations are appended to a heap buffer, and compressed as a block at each sync. The file starts with
+ * the header, and is followed by a compressed section per sync:
+ *
+ *   int next section file offset | int sync marker checksum [segment id, file offset] | int uncompressed length | data
+ *
+ * where the data are the compressed contents of the buffer between the two sync markers. Replay positions are offsets
+ * in the uncompressed buffer, so each section also starts where the previous one ended once uncompressed.
+ */
+class CompressedSegment extends CommitLogSegment
+{
+    // The sync marker and the uncompressed length of a section
+    static final int COMPRESSED_MARKER_SIZE = SYNC_MARKER_SIZE + 4;
+
+    // Buffers of closed segments, kept to avoid allocating a new one of the segment size for each segment
+    private static final int MAX_BUFFER_POOL_SIZE = 3;
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    private static final ThreadLocal<ICompressor.WrappedArray> compressedBuffer = new ThreadLocal<ICompressor.WrappedArray>()
+    {
+        protected ICompressor.WrappedArray initialValue()
+        {
+            return new ICompressor.WrappedArray(new byte[0]);
+        }
+    };
+
+    private final ICompressor compressor;
+
+    // the file offset of the next section, the header is written to the file along with the first one
+    private int filePosition = 0;
+
+    CompressedSegment(File directory, String filePath, String compression)
+    {
+        super(directory, filePath, compression);
+        compressor = descriptor.createCompressor();
+    }
+
+    ByteBuffer createBuffer() throws IOException
+    {
+        // drop the contents of a recycled segment, the sections are appended as they are synced
+        logFileAccessor.setLength(0);
+
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null || buffer.capacity() != DatabaseDescriptor.getCommitLogSegmentSize())
+            buffer = ByteBuffer.allocate(DatabaseDescriptor.getCommitLogSegmentSize());
+        return buffer;
+    }
+
+    void write(int startMarker, int nextMarker)
+    {
+        int contentStart = startMarker + SYNC_MARKER_SIZE;
+        int length = nextMarker - contentStart;
+        assert length >= 0;
+
+        try
+        {
+            int start = filePosition;
+            if (filePosition == 0)
+            {
+                int headerSize = descriptor.headerSize();
+                writeFully((ByteBuffer) buffer.duplicate().position(0).limit(headerSize), 0);
+                filePosition = headerSize;
+            }
+
+            ICompressor.WrappedArray output = compressedBuffer.get();
+            int maxLength = COMPRESSED_MARKER_SIZE + compressor.initialCompressedBufferLength(length);
+            if (output.buffer.length < maxLength)
+                output.buffer = new byte[maxLength];
+            int compressedLength = compressor.compress(buffer.array(), buffer.arrayOffset() + contentStart, length, output, COMPRESSED_MARKER_SIZE);
+
+            ByteBuffer section = ByteBuffer.wrap(output.buffer, 0, COMPRESSED_MARKER_SIZE + compressedLength);
+            writeSyncMarker(section, 0, filePosition, filePosition + section.remaining());
+            section.putInt(SYNC_MARKER_SIZE, length);
+            writeFully(section, filePosition);
+            filePosition += section.limit();
+
+            channel.force(true);
+            CLibrary.trySkipCache(fd, start, filePosition - start);
+        }
+        catch (IOException e)
+        {
+            throw new FSWriteError(e, getPath());
+        }
+    }
+
+    private void writeFully(ByteBuffer source, long position) throws IOException
+    {
+        while (source.hasRemaining())
+            position += channel.write(source, position);
+    }
+
+    void internalClose()
+    {
+        if (bufferPool.size() < MAX_BUFFER_POOL_SIZE)
+            bufferPool.add(buffer);
+    }
+}
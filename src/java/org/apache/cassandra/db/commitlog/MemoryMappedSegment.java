@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db.commitlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.CLibrary;
+
+/*
+ * A segment whose buffer is the memory mapped file, so mutations are written to disk as they are appended.
+ */
+class MemoryMappedSegment extends CommitLogSegment
+{
+    MemoryMappedSegment(File directory, String filePath)
+    {
+        super(directory, filePath, null);
+    }
+
+    ByteBuffer createBuffer() throws IOException
+    {
+        // Map the segment, extending or truncating it to the standard segment size.
+        // (We may have restarted after a segment size configuration change, leaving "incorrectly"
+        // sized segments on disk.)
+        logFileAccessor.setLength(DatabaseDescriptor.getCommitLogSegmentSize());
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, DatabaseDescriptor.getCommitLogSegmentSize());
+    }
+
+    void write(int startMarker, int nextMarker)
+    {
+        // write previous sync marker to point to next sync marker
+        writeSyncMarker(buffer, startMarker, startMarker, nextMarker);
+
+        // zero out the next sync marker so replayer can cleanly exit
+        if (nextMarker < buffer.capacity())
+        {
+            buffer.putInt(nextMarker, 0);
+            buffer.putInt(nextMarker + 4, 0);
+        }
+
+        ((MappedByteBuffer) buffer).force();
+        CLibrary.trySkipCache(fd, startMarker, nextMarker);
+    }
+
+    void internalClose()
+    {
+        if (FileUtils.isCleanerAvailable())
+            FileUtils.clean((MappedByteBuffer) buffer);
+    }
+}
@@ -158,6 +158,20 @@ public class CompactionManager implements CompactionManagerMBean
         return compactionRateLimiter;
     }
 
+    /**
+     * Reports an operation not run by the compaction executors, such as the merge of a custom index,
+     * as an ongoing compaction until finishCompaction is called.
+     */
+    public void beginCompaction(CompactionInfo.Holder holder)
+    {
+        metrics.beginCompaction(holder);
+    }
+
+    public void finishCompaction(CompactionInfo.Holder holder)
+    {
+        metrics.finishCompaction(holder);
+    }
+
     /**
      * Call this whenever a compaction might be needed on the given columnfamily.
      * It's okay to over-call (within reason) if a call is unnecessary, it will
@@ -31,7 +31,9 @@ public enum OperationType
     /** Compaction for tombstone removal */
     TOMBSTONE_COMPACTION("Tombstone Compaction"),
     UNKNOWN("Unknown compaction type"),
-    ANTICOMPACTION("Anticompaction after repair");
+    ANTICOMPACTION("Anticompaction after repair"),
+    /** Merge of the segments of a custom index */
+    INDEX_MERGE("Secondary index merge");
 
     private final String type;
 
@@ -24,6 +24,7 @@ import org.apache.cassandra.utils.concurrent.OpOrder;
 import org.apache.cassandra.db.Cell;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.utils.ByteBufferUtil;
 
 /**
@@ -46,6 +47,18 @@ public abstract class PerRowSecondaryIndex extends SecondaryIndex
      */
     public abstract void delete(DecoratedKey key, OpOrder.Group opGroup);
 
+    /**
+     * Returns the commit log position up to which all the mutations have been durably applied to this index, or null
+     * if it is unknown. Indexes persisting their data independently of the base table flushes can return a position
+     * older than the one of the base table sstables, so the mutations after it are replayed into the index alone.
+     *
+     * @return the commit log position up to which this index is durable, or null
+     */
+    public ReplayPosition getReplayPosition()
+    {
+        return null;
+    }
+
     public String getNameForSystemKeyspace(ByteBuffer columnName)
     {
         try
@@ -188,6 +188,17 @@ public abstract class SecondaryIndex
      */
     protected void buildIndexBlocking()
     {
+        SecondaryIndexBuilder fullBuilder = getFullBuilder();
+        if (fullBuilder != null)
+        {
+            logger.info("Submitting full index build of {}", getIndexName());
+            FBUtilities.waitOnFuture(CompactionManager.instance.submitIndexBuild(fullBuilder));
+            forceBlockingFlush();
+            setIndexBuilt();
+            logger.info("Index build of {} complete", getIndexName());
+            return;
+        }
+
         logger.info(String.format("Submitting index build of %s for data in %s",
                                   getIndexName(), StringUtils.join(baseCfs.getSSTables(), ", ")));
 
@@ -210,6 +221,19 @@ public abstract class SecondaryIndex
     }
 
 
+    /**
+     * Returns a builder that builds this whole index from all the data in the base table, selecting and reading the
+     * sstables by itself, or null if the index must be built by the default builder, which reads each partition of
+     * the sstables through the storage engine. The full builder is used for the initial build and for user requested
+     * rebuilds, but not for building the index of imported sstables.
+     *
+     * @return a builder for the whole index, or null to use the default builder
+     */
+    public SecondaryIndexBuilder getFullBuilder()
+    {
+        return null;
+    }
+
     /**
      * Builds the index using the data in the underlying CF, non blocking
      *
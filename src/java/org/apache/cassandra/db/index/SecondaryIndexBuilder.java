@@ -44,6 +44,14 @@ public class SecondaryIndexBuilder extends CompactionInfo.Holder
         this.iter = iter;
     }
 
+    /**
+     * For index specific builders overriding both build() and getCompactionInfo(), see SecondaryIndex.getFullBuilder().
+     */
+    protected SecondaryIndexBuilder(ColumnFamilyStore cfs, Set<String> idxNames)
+    {
+        this(cfs, idxNames, null);
+    }
+
     public CompactionInfo getCompactionInfo()
     {
         return new CompactionInfo(cfs.metadata,
@@ -20,8 +20,12 @@ package org.apache.cassandra.db.index;
 import java.nio.ByteBuffer;
 import java.util.*;
 
+import org.apache.cassandra.cql3.ColumnIdentifier;
+import org.apache.cassandra.cql3.ResultSet;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.filter.ExtendedFilter;
+import org.apache.cassandra.exceptions.ReadTimeoutException;
+import org.apache.cassandra.exceptions.UnavailableException;
 import org.apache.cassandra.tracing.Tracing;
 import org.apache.cassandra.utils.FBUtilities;
 
@@ -133,4 +137,101 @@ public abstract class SecondaryIndexSearcher
     {
         return rows;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns {@code true} if the specified {@link IndexExpression}s can be solved by a distributed top-K query, that is,
+     * by merging in the coordinator the best candidates found by the index of each replica set, and fetching only the
+     * winning rows. See {@link #searchTopK(ExtendedFilter)} and {@link #fetchTopK(RangeSliceCommand, List, ConsistencyLevel)}.
+     *
+     * @param clause
+     *            An {@link IndexExpression}.
+     * @return {@code true} if the {@code clause} can be solved by a distributed top-K query, {@code false} otherwise.
+     */
+    public boolean supportsTopK(List<IndexExpression> clause)
+    {
+        return false;
+    }
+
+    /**
+     * Returns the serialized best candidates satisfying the specified {@link ExtendedFilter} in the local index, without
+     * reading the matching rows. Only called if {@link #supportsTopK(List)} returns {@code true}.
+     *
+     * @param filter
+     *            The {@link ExtendedFilter} to be satisfied.
+     * @return The serialized best local candidates, or {@code null} if the local index can't provide them, so the
+     *         search must be executed as a regular range scan.
+     */
+    public ByteBuffer searchTopK(ExtendedFilter filter)
+    {
+        return null;
+    }
+
+    /**
+     * Merges the candidates returned by {@link #searchTopK(ExtendedFilter)} in each replica set and reads the rows of
+     * the best of them with the specified {@link ConsistencyLevel}. Only called if {@link #supportsTopK(List)} returns
+     * {@code true}.
+     *
+     * @param command
+     *            The {@link RangeSliceCommand} being executed.
+     * @param candidates
+     *            The serialized candidates returned by each replica set.
+     * @param consistencyLevel
+     *            The {@link ConsistencyLevel} for reading the winning rows.
+     * @return The winning rows, sorted, or {@code null} if the candidates were not enough to satisfy the
+     *         {@code command}, so it must be executed as a regular range scan.
+     */
+    public List<Row> fetchTopK(RangeSliceCommand command, List<ByteBuffer> candidates, ConsistencyLevel consistencyLevel)
+    throws UnavailableException, ReadTimeoutException
+    {
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if the specified {@link RangeSliceCommand} can be counted, and its index-specific
+     * aggregations computed, only from the local index of each replica, without reading any row. See
+     * {@link #aggregate(ExtendedFilter)} and {@link #aggregate(RangeSliceCommand, List, int, ColumnIdentifier)}.
+     *
+     * @param command
+     *            The {@link RangeSliceCommand} of a count query.
+     * @return {@code true} if the {@code command} can be answered only by the index, {@code false} otherwise.
+     */
+    public boolean supportsAggregation(RangeSliceCommand command)
+    {
+        return false;
+    }
+
+    /**
+     * Returns the serialized partial aggregates of the rows satisfying the specified {@link ExtendedFilter} in the
+     * local index, without reading them. Only called if {@link #supportsAggregation(RangeSliceCommand)} returns
+     * {@code true}.
+     *
+     * @param filter
+     *            The {@link ExtendedFilter} to be satisfied.
+     * @return The serialized local partial aggregates, or {@code null} if the local index can't compute them, so the
+     *         count must be executed by reading the rows.
+     */
+    public ByteBuffer aggregate(ExtendedFilter filter)
+    {
+        return null;
+    }
+
+    /**
+     * Merges the partial aggregates returned by {@link #aggregate(ExtendedFilter)} in each replica set into the
+     * result of a count query. Only called if {@link #supportsAggregation(RangeSliceCommand)} returns {@code true}.
+     *
+     * @param command
+     *            The {@link RangeSliceCommand} being executed.
+     * @param partials
+     *            The serialized partial aggregates returned by each replica set.
+     * @param limit
+     *            The max count to be returned.
+     * @param countAlias
+     *            The alias of the count column, maybe {@code null}.
+     * @return The single row result of the count query, or {@code null} if the partial aggregates can't be merged, so
+     *         the count must be executed by reading the rows.
+     */
+    public ResultSet aggregate(RangeSliceCommand command, List<ByteBuffer> partials, int limit, ColumnIdentifier countAlias)
+    {
+        return null;
+    }
+}
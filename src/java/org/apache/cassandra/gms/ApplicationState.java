@@ -33,8 +33,8 @@ public enum ApplicationState
     NET_VERSION,
     HOST_ID,
     TOKENS,
+    INDEX_SEARCH_VERSION, // taking the place of X1
     // pad to allow adding new states to existing cluster
-    X1,
     X2,
     X3,
     X4,
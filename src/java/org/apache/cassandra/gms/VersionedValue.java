@@ -233,6 +233,11 @@ public class VersionedValue implements Comparable<VersionedValue>
             return new VersionedValue(String.valueOf(MessagingService.current_version));
         }
 
+        public VersionedValue indexSearchVersion()
+        {
+            return new VersionedValue(String.valueOf(MessagingService.current_index_search_version));
+        }
+
         public VersionedValue internalIP(String private_ip)
         {
             return new VersionedValue(private_ip);
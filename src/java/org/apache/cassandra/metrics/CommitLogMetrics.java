@@ -18,6 +18,7 @@
 package org.apache.cassandra.metrics;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
 
 import com.yammer.metrics.core.Timer;
@@ -43,6 +44,16 @@ public class CommitLogMetrics
     public final Timer waitingOnSegmentAllocation;
     /** The time spent waiting on CL sync; for Periodic this is only occurs when the sync is lagging its sync interval */
     public final Timer waitingOnCommit;
+    /** Time spent replaying the commit log on startup */
+    public final Timer replayTime;
+    /** Time spent replaying each commit log segment, including the application of its mutations */
+    public final Timer segmentReplayTime;
+    /** Number of commit log segments replayed */
+    public final Counter replayedSegments;
+    /** Number of mutations replayed */
+    public final Counter replayedMutations;
+    /** Number of memtables flushed during replay because they grew too large */
+    public final Counter replayFlushes;
 
     public CommitLogMetrics(final AbstractCommitLogService service, final CommitLogSegmentManager allocator)
     {
@@ -69,5 +80,10 @@ public class CommitLogMetrics
         });
         waitingOnSegmentAllocation = Metrics.newTimer(factory.createMetricName("WaitingOnSegmentAllocation"), TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
         waitingOnCommit = Metrics.newTimer(factory.createMetricName("WaitingOnCommit"), TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+        replayTime = Metrics.newTimer(factory.createMetricName("ReplayTime"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        segmentReplayTime = Metrics.newTimer(factory.createMetricName("SegmentReplayTime"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        replayedSegments = Metrics.newCounter(factory.createMetricName("ReplayedSegments"));
+        replayedMutations = Metrics.newCounter(factory.createMetricName("ReplayedMutations"));
+        replayFlushes = Metrics.newCounter(factory.createMetricName("ReplayFlushes"));
     }
 }
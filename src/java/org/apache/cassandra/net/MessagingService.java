@@ -45,10 +45,14 @@ import org.apache.cassandra.config.EncryptionOptions.ServerEncryptionOptions;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.dht.BootStrapper;
 import org.apache.cassandra.exceptions.ConfigurationException;
+import org.apache.cassandra.gms.ApplicationState;
 import org.apache.cassandra.gms.EchoMessage;
+import org.apache.cassandra.gms.EndpointState;
 import org.apache.cassandra.gms.GossipDigestAck;
 import org.apache.cassandra.gms.GossipDigestAck2;
 import org.apache.cassandra.gms.GossipDigestSyn;
+import org.apache.cassandra.gms.Gossiper;
+import org.apache.cassandra.gms.VersionedValue;
 import org.apache.cassandra.io.IVersionedSerializer;
 import org.apache.cassandra.io.util.DataOutputPlus;
 import org.apache.cassandra.io.util.FileUtils;
@@ -76,6 +80,14 @@ public final class MessagingService implements MessagingServiceMBean
     public static final int VERSION_21 = 8;
     public static final int current_version = VERSION_21;
 
+    /*
+     * Version of the index search verbs (INDEX_TOP_K and INDEX_AGGREGATE) understood by this node, announced through
+     * gossip. These verbs take the place of unused verbs without a new messaging version, so nodes running an older
+     * release with the same messaging version would drop them as unknown. See knowsIndexSearchVerbs().
+     */
+    public static final int INDEX_SEARCH_VERSION_1 = 1;
+    public static final int current_index_search_version = INDEX_SEARCH_VERSION_1;
+
     public static final String FAILURE_CALLBACK_PARAM = "CAL_BAC";
     public static final byte[] ONE_BYTE = new byte[1];
     public static final String FAILURE_RESPONSE_PARAM = "FAIL";
@@ -129,8 +141,8 @@ public final class MessagingService implements MessagingServiceMBean
         PAXOS_COMMIT,
         PAGED_RANGE,
         // remember to add new verbs at the end, since we serialize by ordinal
-        UNUSED_1,
-        UNUSED_2,
+        INDEX_TOP_K, // first phase of two-phase sorted index searches, taking the place of UNUSED_1
+        INDEX_AGGREGATE, // index-only aggregation searches, taking the place of UNUSED_2
         UNUSED_3,
         ;
     }
@@ -149,6 +161,8 @@ public final class MessagingService implements MessagingServiceMBean
         put(Verb.RANGE_SLICE, Stage.READ);
         put(Verb.INDEX_SCAN, Stage.READ);
         put(Verb.PAGED_RANGE, Stage.READ);
+        put(Verb.INDEX_TOP_K, Stage.READ);
+        put(Verb.INDEX_AGGREGATE, Stage.READ);
 
         put(Verb.REQUEST_RESPONSE, Stage.REQUEST_RESPONSE);
         put(Verb.INTERNAL_RESPONSE, Stage.INTERNAL_RESPONSE);
@@ -177,8 +191,6 @@ public final class MessagingService implements MessagingServiceMBean
         put(Verb.SNAPSHOT, Stage.MISC);
         put(Verb.ECHO, Stage.GOSSIP);
 
-        put(Verb.UNUSED_1, Stage.INTERNAL_RESPONSE);
-        put(Verb.UNUSED_2, Stage.INTERNAL_RESPONSE);
         put(Verb.UNUSED_3, Stage.INTERNAL_RESPONSE);
     }};
 
@@ -201,6 +213,8 @@ public final class MessagingService implements MessagingServiceMBean
         put(Verb.READ, ReadCommand.serializer);
         put(Verb.RANGE_SLICE, RangeSliceCommand.serializer);
         put(Verb.PAGED_RANGE, PagedRangeCommand.serializer);
+        put(Verb.INDEX_TOP_K, RangeSliceCommand.serializer);
+        put(Verb.INDEX_AGGREGATE, RangeSliceCommand.serializer);
         put(Verb.BOOTSTRAP_TOKEN, BootStrapper.StringSerializer.instance);
         put(Verb.REPAIR_MESSAGE, RepairMessage.serializer);
         put(Verb.GOSSIP_DIGEST_ACK, GossipDigestAck.serializer);
@@ -227,6 +241,8 @@ public final class MessagingService implements MessagingServiceMBean
         put(Verb.COUNTER_MUTATION, WriteResponse.serializer);
         put(Verb.RANGE_SLICE, RangeSliceReply.serializer);
         put(Verb.PAGED_RANGE, RangeSliceReply.serializer);
+        put(Verb.INDEX_TOP_K, IndexSearchReply.serializer);
+        put(Verb.INDEX_AGGREGATE, IndexSearchReply.serializer);
         put(Verb.READ, ReadResponse.serializer);
         put(Verb.TRUNCATE, TruncateResponse.serializer);
         put(Verb.SNAPSHOT, null);
@@ -291,6 +307,8 @@ public final class MessagingService implements MessagingServiceMBean
                                                                    Verb.READ,
                                                                    Verb.RANGE_SLICE,
                                                                    Verb.PAGED_RANGE,
+                                                                   Verb.INDEX_TOP_K,
+                                                                   Verb.INDEX_AGGREGATE,
                                                                    Verb.REQUEST_RESPONSE);
 
     // total dropped message counts for server lifetime
@@ -832,6 +850,19 @@ public final class MessagingService implements MessagingServiceMBean
             return Math.min(v, MessagingService.current_version);
     }
 
+    /**
+     * @return true if the endpoint has announced that it understands the index search verbs, see current_index_search_version
+     */
+    public boolean knowsIndexSearchVerbs(InetAddress endpoint)
+    {
+        if (endpoint.equals(FBUtilities.getBroadcastAddress()))
+            return true;
+
+        EndpointState state = Gossiper.instance.getEndpointStateForEndpoint(endpoint);
+        VersionedValue version = state == null ? null : state.getApplicationState(ApplicationState.INDEX_SEARCH_VERSION);
+        return version != null && Integer.parseInt(version.value) >= INDEX_SEARCH_VERSION_1;
+    }
+
     public int getVersion(String endpoint) throws UnknownHostException
     {
         return getVersion(InetAddress.getByName(endpoint));
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.service;
+
+import java.nio.ByteBuffer;
+
+import org.apache.cassandra.db.IndexSearchReply;
+import org.apache.cassandra.db.RangeSliceCommand;
+import org.apache.cassandra.db.filter.TombstoneOverwhelmingException;
+import org.apache.cassandra.net.IVerbHandler;
+import org.apache.cassandra.net.MessageIn;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.tracing.Tracing;
+
+/**
+ * Handles the index search verbs: INDEX_TOP_K, the first phase of two-phase sorted index searches, and
+ * INDEX_AGGREGATE, the index-only aggregation searches.
+ */
+public class IndexSearchVerbHandler implements IVerbHandler<RangeSliceCommand>
+{
+    public void doVerb(MessageIn<RangeSliceCommand> message, int id)
+    {
+        try
+        {
+            if (StorageService.instance.isBootstrapMode())
+            {
+                /* Don't service reads! */
+                throw new RuntimeException("Cannot service reads while bootstrapping!");
+            }
+            ByteBuffer result = message.verb == MessagingService.Verb.INDEX_TOP_K
+                              ? message.payload.executeTopKLocally()
+                              : message.payload.executeAggregateLocally();
+            IndexSearchReply reply = new IndexSearchReply(result);
+            Tracing.trace("Enqueuing {} response to {}", message.verb, message.from);
+            MessagingService.instance().sendReply(reply.createMessage(), id, message.from);
+        }
+        catch (TombstoneOverwhelmingException e)
+        {
+            // error already logged.  Drop the request
+        }
+        catch (Exception ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+}
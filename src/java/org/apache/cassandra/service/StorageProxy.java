@@ -27,6 +27,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.cache.CacheLoader;
 import com.google.common.collect.*;
@@ -1385,6 +1386,29 @@ public class StorageProxy implements StorageProxyMBean
         }
     }
 
+    static class LocalIndexAggregateRunnable extends DroppableRunnable
+    {
+        private final RangeSliceCommand command;
+        private final AsyncOneResponse<IndexSearchReply> handler;
+
+        LocalIndexAggregateRunnable(RangeSliceCommand command, AsyncOneResponse<IndexSearchReply> handler)
+        {
+            super(MessagingService.Verb.INDEX_AGGREGATE);
+            this.command = command;
+            this.handler = handler;
+        }
+
+        protected void runMayThrow()
+        {
+            IndexSearchReply result = new IndexSearchReply(command.executeAggregateLocally());
+            handler.response(MessageIn.create(FBUtilities.getBroadcastAddress(),
+                                              result,
+                                              Collections.<String, byte[]>emptyMap(),
+                                              MessagingService.Verb.REQUEST_RESPONSE,
+                                              MessagingService.current_version));
+        }
+    }
+
     public static List<InetAddress> getLiveSortedEndpoints(Keyspace keyspace, ByteBuffer key)
     {
         return getLiveSortedEndpoints(keyspace, StorageService.getPartitioner().decorateKey(key));
@@ -1467,6 +1491,17 @@ public class StorageProxy implements StorageProxyMBean
     public static List<Row> getRangeSlice(AbstractRangeCommand command, ConsistencyLevel consistency_level)
             throws UnavailableException, ReadTimeoutException
     {
+        if (command instanceof RangeSliceCommand
+                && !((RangeSliceCommand) command).isPaging
+                && command.searcher != null
+                && command.searcher.supportsTopK(command.rowFilter))
+        {
+            List<Row> rows = getRangeSliceTopK((RangeSliceCommand) command, consistency_level);
+            if (rows != null)
+                return rows;
+            Tracing.trace("Top-K index search not possible, falling back to a full range scan");
+        }
+
         Tracing.trace("Computing ranges to query");
         long startTime = System.nanoTime();
 
@@ -1687,6 +1722,208 @@ public class StorageProxy implements StorageProxyMBean
         return command.combine(rows);
     }
 
+    /**
+     * Two-phase execution of a sorted index search: each replica set returns the candidates of its local top-K,
+     * without reading any row, and then the index searcher merges them and reads only the winning rows.
+     * See SecondaryIndexSearcher.supportsTopK().
+     *
+     * @return the winning rows, or null if the candidates were not enough and the regular range scan should be used
+     */
+    private static List<Row> getRangeSliceTopK(RangeSliceCommand command, ConsistencyLevel consistency_level)
+            throws UnavailableException, ReadTimeoutException
+    {
+        Tracing.trace("Computing ranges to query for top-K index search");
+        long startTime = System.nanoTime();
+
+        Keyspace keyspace = Keyspace.open(command.keyspace);
+        try
+        {
+            List<? extends AbstractBounds<RowPosition>> ranges;
+            if (keyspace.getReplicationStrategy() instanceof LocalStrategy)
+                ranges = command.keyRange.unwrap();
+            else
+                ranges = getRestrictedRanges(command.keyRange);
+
+            // each replica may hold different versions of the rows, so we ask blockFor replicas for their
+            // candidates, and the final read at the requested consistency level resolves the differences
+            int blockFor = consistency_level.blockFor(keyspace);
+            List<MessageOut<RangeSliceCommand>> messages = new ArrayList<>(ranges.size());
+            List<List<InetAddress>> targets = new ArrayList<>(ranges.size());
+            for (AbstractBounds<RowPosition> range : ranges)
+            {
+                List<InetAddress> liveEndpoints = getLiveSortedEndpoints(keyspace, range.right);
+                consistency_level.assureSufficientLiveNodes(keyspace, liveEndpoints);
+                List<InetAddress> filteredEndpoints = consistency_level.filterForQuery(keyspace, liveEndpoints);
+                List<InetAddress> endpoints = filteredEndpoints.subList(0, Math.min(filteredEndpoints.size(), blockFor));
+                if (!knowIndexSearchVerbs(endpoints))
+                    return null;
+                messages.add(((RangeSliceCommand) command.forSubRange(range)).createTopKMessage());
+                targets.add(endpoints);
+            }
+
+            List<AsyncOneResponse<IndexSearchReply>> responses = new ArrayList<>(ranges.size());
+            for (int i = 0; i < messages.size(); i++)
+            {
+                for (InetAddress endpoint : targets.get(i))
+                {
+                    Tracing.trace("Enqueuing top-K request to {}", endpoint);
+                    AsyncOneResponse<IndexSearchReply> response = new AsyncOneResponse<>();
+                    MessagingService.instance().sendRR(messages.get(i), endpoint, response);
+                    responses.add(response);
+                }
+            }
+            Tracing.trace("Submitted {} top-K requests covering {} ranges", responses.size(), ranges.size());
+
+            List<ByteBuffer> candidates = new ArrayList<>(responses.size());
+            int received = 0;
+            for (AsyncOneResponse<IndexSearchReply> response : responses)
+            {
+                ByteBuffer result;
+                try
+                {
+                    result = response.get(DatabaseDescriptor.getRangeRpcTimeout(), TimeUnit.MILLISECONDS).result;
+                    received++;
+                }
+                catch (TimeoutException ex)
+                {
+                    if (Tracing.isTracing())
+                        Tracing.trace("Timed out; received {} of {} top-K responses", received, responses.size());
+                    else
+                        logger.debug("Top-K index search timeout; received {} of {} responses", received, responses.size());
+                    throw new ReadTimeoutException(consistency_level, 0, blockFor, false);
+                }
+                if (result == null)
+                {
+                    Tracing.trace("Top-K index search not supported by a replica");
+                    return null;
+                }
+                candidates.add(result);
+            }
+
+            Tracing.trace("Fetching top-K rows from {} candidate lists", candidates.size());
+            return command.searcher.fetchTopK(command, candidates, consistency_level);
+        }
+        finally
+        {
+            long latency = System.nanoTime() - startTime;
+            rangeMetrics.addNano(latency);
+            keyspace.getColumnFamilyStore(command.columnFamily).metric.coordinatorScanLatency.update(latency, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Index-only execution of a count query: each replica set returns the partial aggregates computed by its local
+     * index, without reading any row. Index-only results are not reconciled across replicas, so they are only used
+     * when a single replica is required by the consistency level. See SecondaryIndexSearcher.supportsAggregation().
+     * As for top-K searches, the regular count is used if any of the replicas to be queried doesn't understand the
+     * index search verbs.
+     *
+     * @return the partial aggregates of each range, or null if the query can't be answered only by the index
+     */
+    public static List<ByteBuffer> getRangeAggregate(RangeSliceCommand command, ConsistencyLevel consistency_level)
+            throws UnavailableException, ReadTimeoutException
+    {
+        Keyspace keyspace = Keyspace.open(command.keyspace);
+        if (command.searcher == null
+                || consistency_level.blockFor(keyspace) != 1
+                || !command.searcher.supportsAggregation(command))
+            return null;
+
+        Tracing.trace("Computing ranges to query for index aggregation");
+        long startTime = System.nanoTime();
+        try
+        {
+            List<? extends AbstractBounds<RowPosition>> ranges;
+            if (keyspace.getReplicationStrategy() instanceof LocalStrategy)
+                ranges = command.keyRange.unwrap();
+            else
+                ranges = getRestrictedRanges(command.keyRange);
+
+            // nothing is sent until we know that all the targets understand the aggregate verb, so the regular
+            // count can still be used instead
+            List<RangeSliceCommand> commands = new ArrayList<>(ranges.size());
+            List<InetAddress> targets = new ArrayList<>(ranges.size());
+            for (AbstractBounds<RowPosition> range : ranges)
+            {
+                List<InetAddress> liveEndpoints = getLiveSortedEndpoints(keyspace, range.right);
+                consistency_level.assureSufficientLiveNodes(keyspace, liveEndpoints);
+                InetAddress endpoint = consistency_level.filterForQuery(keyspace, liveEndpoints).get(0);
+                if (!knowIndexSearchVerbs(Collections.singletonList(endpoint)))
+                    return null;
+                commands.add((RangeSliceCommand) command.forSubRange(range));
+                targets.add(endpoint);
+            }
+
+            List<AsyncOneResponse<IndexSearchReply>> responses = new ArrayList<>(ranges.size());
+            for (int i = 0; i < commands.size(); i++)
+            {
+                AsyncOneResponse<IndexSearchReply> response = new AsyncOneResponse<>();
+                if (targets.get(i).equals(FBUtilities.getBroadcastAddress()) && OPTIMIZE_LOCAL_REQUESTS)
+                {
+                    StageManager.getStage(Stage.READ).execute(new LocalIndexAggregateRunnable(commands.get(i), response), Tracing.instance.get());
+                }
+                else
+                {
+                    Tracing.trace("Enqueuing aggregate request to {}", targets.get(i));
+                    MessagingService.instance().sendRR(commands.get(i).createAggregateMessage(), targets.get(i), response);
+                }
+                responses.add(response);
+            }
+            Tracing.trace("Submitted {} aggregate requests", responses.size());
+
+            List<ByteBuffer> partials = new ArrayList<>(responses.size());
+            for (AsyncOneResponse<IndexSearchReply> response : responses)
+            {
+                ByteBuffer result;
+                try
+                {
+                    result = response.get(DatabaseDescriptor.getRangeRpcTimeout(), TimeUnit.MILLISECONDS).result;
+                }
+                catch (TimeoutException ex)
+                {
+                    if (Tracing.isTracing())
+                        Tracing.trace("Timed out; received {} of {} aggregate responses", partials.size(), responses.size());
+                    else
+                        logger.debug("Index aggregation timeout; received {} of {} responses", partials.size(), responses.size());
+                    throw new ReadTimeoutException(consistency_level, 0, 1, false);
+                }
+                if (result == null)
+                {
+                    Tracing.trace("Index aggregation not supported by a replica");
+                    return null;
+                }
+                partials.add(result);
+            }
+            return partials;
+        }
+        finally
+        {
+            long latency = System.nanoTime() - startTime;
+            rangeMetrics.addNano(latency);
+            keyspace.getColumnFamilyStore(command.columnFamily).metric.coordinatorScanLatency.update(latency, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Nodes running an older release drop the index search verbs as unknown, so they are only sent when all the
+     * replicas to be queried have announced that they understand them. Otherwise the regular range scan is used.
+     *
+     * @return true if all the endpoints understand the index search verbs
+     */
+    @VisibleForTesting
+    static boolean knowIndexSearchVerbs(Collection<InetAddress> endpoints)
+    {
+        for (InetAddress endpoint : endpoints)
+        {
+            if (!MessagingService.instance().knowsIndexSearchVerbs(endpoint))
+            {
+                Tracing.trace("{} doesn't support index search verbs, falling back to a range scan", endpoint);
+                return false;
+            }
+        }
+        return true;
+    }
+
     public Map<String, List<String>> getSchemaVersions()
     {
         return describeSchemaVersions();
@@ -110,6 +110,80 @@ public abstract class MemoryUtil
         return UNALIGNED ? unsafe.getLong(address) : getLongByByte(address);
     }
 
+    /**
+     * Reads the 8-byte aligned long at the specified address with volatile semantics.
+     */
+    public static long getLongVolatile(long address)
+    {
+        return unsafe.getLongVolatile(null, address);
+    }
+
+    /**
+     * Writes the 8-byte aligned long at the specified address with volatile semantics.
+     */
+    public static void setLongVolatile(long address, long l)
+    {
+        unsafe.putLongVolatile(null, address, l);
+    }
+
+    /**
+     * Atomically sets the 8-byte aligned long at the specified address to the given updated value if it currently
+     * holds the expected value.
+     */
+    public static boolean compareAndSwapLong(long address, long expected, long update)
+    {
+        return unsafe.compareAndSwapLong(null, address, expected, update);
+    }
+
+    /**
+     * Lexicographically compares, as unsigned bytes, the {@code length} bytes at the specified address with the
+     * remaining bytes of the buffer, without allocating nor modifying the buffer.
+     */
+    public static int compareUnsigned(long address, int length, ByteBuffer buffer)
+    {
+        Object obj;
+        long offset;
+        if (buffer.hasArray())
+        {
+            obj = buffer.array();
+            offset = BYTE_ARRAY_BASE_OFFSET + buffer.arrayOffset() + buffer.position();
+        }
+        else
+        {
+            obj = null;
+            offset = unsafe.getLong(buffer, DIRECT_BYTE_BUFFER_ADDRESS_OFFSET) + buffer.position();
+        }
+
+        int bufferLength = buffer.remaining();
+        int minLength = Math.min(length, bufferLength);
+        int i = 0;
+        if (UNALIGNED)
+        {
+            for (; i + 8 <= minLength; i += 8)
+            {
+                long l1 = unsafe.getLong(address + i);
+                long l2 = unsafe.getLong(obj, offset + i);
+                if (l1 != l2)
+                {
+                    if (!BIG_ENDIAN)
+                    {
+                        l1 = Long.reverseBytes(l1);
+                        l2 = Long.reverseBytes(l2);
+                    }
+                    return (l1 ^ Long.MIN_VALUE) < (l2 ^ Long.MIN_VALUE) ? -1 : 1;
+                }
+            }
+        }
+        for (; i < minLength; i++)
+        {
+            int b1 = unsafe.getByte(address + i) & 0xFF;
+            int b2 = unsafe.getByte(obj, offset + i) & 0xFF;
+            if (b1 != b2)
+                return b1 - b2;
+        }
+        return length - bufferLength;
+    }
+
     public static ByteBuffer getByteBuffer(long address, int length)
     {
         ByteBuffer instance;
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.locator.TokenMetadata;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the count queries and {@link com.stratio.cassandra.index.query.Aggregation}s answered only by the index.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class AggregationTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, n:{type:\"integer\"}, l:{type:\"long\"}, "
+                                         + "f:{type:\"float\"}, d:{type:\"double\"}, b:{type:\"boolean\"}, "
+                                         + "t:{type:\"text\"}, s:{type:\"string\"}}}";
+    private static final String AGGREGATIONS = "{filter:{type:\"match\",field:\"v\",value:\"a\"}, "
+                                               + "aggregations:[{type:\"min\",field:\"n\"}, "
+                                               + "{type:\"max\",field:\"l\"}, "
+                                               + "{type:\"sum\",field:\"f\"}, "
+                                               + "{type:\"sum\",field:\"d\"}, "
+                                               + "{type:\"facet\",field:\"b\"}], "
+                                               + "refresh:true}";
+    private static final int NUM_ROWS = 100;
+
+    private Map<Token, InetAddress> tokens;
+
+    @Before
+    public void before()
+    {
+        // Single node ring, so the count queries can be run through the storage proxy
+        TokenMetadata tmd = StorageService.instance.getTokenMetadata();
+        tokens = new HashMap<>(tmd.getNormalAndBootstrappingTokenToEndpointMap());
+        tmd.clearUnsafe();
+        tmd.updateNormalToken(DatabaseDescriptor.getPartitioner().getToken(ByteBufferUtil.bytes(0)),
+                              FBUtilities.getBroadcastAddress());
+    }
+
+    @After
+    public void after()
+    {
+        TokenMetadata tmd = StorageService.instance.getTokenMetadata();
+        tmd.clearUnsafe();
+        for (Map.Entry<Token, InetAddress> entry : tokens.entrySet())
+        {
+            tmd.updateNormalToken(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void createAndPopulate(String options) throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, l bigint, f float, d double, b boolean, "
+                    + "t text, s set<text>, lucene text)");
+        createRowIndex(SCHEMA, "'refresh_seconds':'60'" + (options == null ? "" : ", " + options));
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            // Only the rows with even keys match the search, and only the first ones have numeric values
+            execute("INSERT INTO %s (k, v, b, t, s) VALUES (?, ?, ?, ?, ?)",
+                    i, i % 2 == 0 ? "a" : "b", i % 3 == 0, "some text", set("x", "y"));
+            if (i < NUM_ROWS / 2)
+            {
+                execute("UPDATE %s SET n = ?, l = ?, f = ?, d = ? WHERE k = ?",
+                        i, (long) i * 1000000000L, 0.5f, 0.25d, i);
+            }
+        }
+    }
+
+    /**
+     * Runs the specified count query through the storage proxy with consistency level {@code ONE}.
+     */
+    private UntypedResultSet count(String search) throws Throwable
+    {
+        CFMetaData metadata = currentTableMetadata();
+        String cql = String.format("SELECT count(*) FROM %s.%s WHERE lucene = '%s'",
+                                   metadata.ksName,
+                                   metadata.cfName,
+                                   search);
+        return QueryProcessor.process(cql, ConsistencyLevel.ONE);
+    }
+
+    @Test
+    public void testCountAndAggregations() throws Throwable
+    {
+        createAndPopulate("'index_only_counts':'true'");
+        long aggregations = counter("SearchAggregations");
+        UntypedResultSet.Row row = count(AGGREGATIONS).one();
+        assertTrue(counter("SearchAggregations") > aggregations);
+
+        assertEquals(NUM_ROWS / 2, row.getLong("count"));
+        assertEquals(0d, row.getDouble("min(n)"), 0);
+        assertEquals(48 * 1000000000d, row.getDouble("max(l)"), 0);
+        assertEquals(25 * 0.5d, row.getDouble("sum(f)"), 0);
+        assertEquals(25 * 0.25d, row.getDouble("sum(d)"), 0);
+        assertEquals("{false:33,true:17}", row.getString("facet(b)"));
+    }
+
+    @Test
+    public void testCountOverSeveralSegments() throws Throwable
+    {
+        createAndPopulate("'index_only_counts':'true'");
+        for (int i = NUM_ROWS; i < 2 * NUM_ROWS; i++)
+        {
+            execute("INSERT INTO %s (k, v, n) VALUES (?, ?, ?)", i, "a", -i);
+            if (i % 10 == 0)
+            {
+                search("{refresh:true}"); // Reopen the searcher, creating a new segment
+            }
+        }
+        UntypedResultSet.Row row = count(AGGREGATIONS).one();
+        assertEquals(NUM_ROWS / 2 + NUM_ROWS, row.getLong("count"));
+        assertEquals(-(2 * NUM_ROWS - 1d), row.getDouble("min(n)"), 0);
+    }
+
+    @Test
+    public void testCountWithoutIndexOnlyCounts() throws Throwable
+    {
+        createAndPopulate(null);
+        long aggregations = counter("SearchAggregations");
+        UntypedResultSet.Row row = count(AGGREGATIONS).one();
+        assertEquals(aggregations, counter("SearchAggregations"));
+        assertEquals(NUM_ROWS / 2, row.getLong("count"));
+        assertFalse(row.has("min(n)"));
+    }
+
+    @Test
+    public void testAggregationsOfFieldsWithoutDocValues() throws Throwable
+    {
+        createAndPopulate("'index_only_counts':'true'");
+        for (String field : new String[]{"t", "s"})
+        {
+            try
+            {
+                count(String.format("{aggregations:[{type:\"facet\",field:\"%s\"}]}", field));
+                fail("Field " + field + " should not be aggregated");
+            }
+            catch (RuntimeException e)
+            {
+                Throwable cause = e;
+                while (cause.getCause() != null && !String.valueOf(cause.getMessage()).contains("doc values"))
+                {
+                    cause = cause.getCause();
+                }
+                assertTrue(String.valueOf(cause.getMessage()).contains("doc values"));
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.composites.CellName;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the per thread {@link Document}s and {@link KeyFields} reused by {@link RowMapper} for consecutive rows,
+ * and by {@link DocumentBuffer} for bulk writes, never leak values from one row to another.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class DocumentReuseTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, n:{type:\"integer\"}}}";
+    private static final String OPTIONS = "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'";
+    private static final String REFRESH_SEARCH = "{refresh:true}";
+    private static final int NUM_ROWS = 200;
+    private static final int NUM_PARTITIONS = 10;
+
+    private static String v(int i)
+    {
+        return i % 3 == 0 ? null : "v" + i;
+    }
+
+    private static Integer n(int i)
+    {
+        return i % 4 == 0 ? null : i;
+    }
+
+    /**
+     * Creates a skinny or wide table with {@link #NUM_ROWS} rows, where consecutive rows have different partition key
+     * and some of them have not the column {@code v}, the column {@code n} or both.
+     */
+    private void createTable(boolean wide) throws Throwable
+    {
+        if (wide)
+        {
+            createTable("CREATE TABLE %s (k int, c int, v text, n int, lucene text, PRIMARY KEY (k, c))");
+        }
+        else
+        {
+            createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        }
+        createRowIndex(SCHEMA, OPTIONS);
+        String keyColumns = wide ? "k, c" : "k";
+        String keyMarkers = wide ? "?, ?" : "?";
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            List<Object> values = new ArrayList<>();
+            if (wide)
+            {
+                values.add(i % NUM_PARTITIONS);
+            }
+            values.add(i);
+            String columns = keyColumns;
+            String markers = keyMarkers;
+            if (v(i) != null)
+            {
+                columns += ", v";
+                markers += ", ?";
+                values.add(v(i));
+            }
+            if (n(i) != null)
+            {
+                columns += ", n";
+                markers += ", ?";
+                values.add(n(i));
+            }
+            execute("INSERT INTO %s (" + columns + ") VALUES (" + markers + ")", values.toArray());
+        }
+        search(REFRESH_SEARCH);
+    }
+
+    private RowService rowService() throws Exception
+    {
+        Field field = RowIndex.class.getDeclaredField("rowService");
+        field.setAccessible(true);
+        return (RowService) field.get(rowIndex());
+    }
+
+    /**
+     * Returns the {@link Row}s of the current table, ordered by the value of the key column written by
+     * {@link #createTable(boolean)}, that is, in their insertion order.
+     */
+    private List<Row> rows(RowMapper rowMapper, boolean wide)
+    {
+        CFMetaData metadata = currentTableMetadata();
+        ColumnFamilyStore cfs = Keyspace.open(metadata.ksName).getColumnFamilyStore(metadata.cfName);
+        Row[] rows = new Row[NUM_ROWS];
+        for (int k = 0; k < (wide ? NUM_PARTITIONS : NUM_ROWS); k++)
+        {
+            DecoratedKey partitionKey = cfs.partitioner.decorateKey(ByteBufferUtil.bytes(k));
+            QueryFilter filter = QueryFilter.getIdentityFilter(partitionKey, cfs.name, System.currentTimeMillis());
+            ColumnFamily columnFamily = cfs.getColumnFamily(filter);
+            assertNotNull(columnFamily);
+            if (wide)
+            {
+                Map<CellName, ColumnFamily> splitRows = ((RowMapperWide) rowMapper).splitRows(columnFamily);
+                for (Map.Entry<CellName, ColumnFamily> entry : splitRows.entrySet())
+                {
+                    int c = ByteBufferUtil.toInt(entry.getKey().get(0));
+                    rows[c] = new Row(partitionKey, entry.getValue());
+                }
+            }
+            else
+            {
+                rows[k] = new Row(partitionKey, columnFamily);
+            }
+        }
+        List<Row> list = new ArrayList<>(NUM_ROWS);
+        for (Row row : rows)
+        {
+            assertNotNull(row);
+            list.add(row);
+        }
+        return list;
+    }
+
+    private static Term term(RowMapper rowMapper, Row row)
+    {
+        if (rowMapper instanceof RowMapperWide)
+        {
+            RowMapperWide rowMapperWide = (RowMapperWide) rowMapper;
+            return rowMapperWide.term(row.key, rowMapperWide.clusteringKey(row.cf));
+        }
+        return rowMapper.term(row.key);
+    }
+
+    /**
+     * Returns a description of all the values of the specified {@link Document}'s fields, including the binary ones.
+     */
+    private static List<String> describe(Document document)
+    {
+        List<String> fields = new ArrayList<>();
+        for (IndexableField field : document.getFields())
+        {
+            BytesRef bytesRef = field.binaryValue();
+            fields.add(String.format("%s=%s/%s/%s/%s",
+                                     field.name(),
+                                     field.stringValue(),
+                                     bytesRef == null ? null : bytesRef.utf8ToString(),
+                                     field.numericValue(),
+                                     field.fieldType().docValueType()));
+        }
+        return fields;
+    }
+
+    /**
+     * Returns the description of the {@link Document} of the specified {@link Row} built by a new thread, that is,
+     * without reusing any {@link Document} nor key field.
+     */
+    private static List<String> describeInNewThread(final RowMapper rowMapper, final Row row) throws Exception
+    {
+        FutureTask<List<String>> task = new FutureTask<>(new Callable<List<String>>()
+        {
+            public List<String> call()
+            {
+                return describe(rowMapper.document(row));
+            }
+        });
+        new Thread(task).start();
+        return task.get();
+    }
+
+    /**
+     * Asserts that the specified {@link Document}, built for the row with the specified value of its key column, has
+     * the key fields of that row and only the columns written for it.
+     */
+    private static void assertDocument(RowMapper rowMapper, Document document, Row row, int i)
+    {
+        assertEquals(row.key, rowMapper.partitionKey(document));
+        for (IndexableField field : document.getFields())
+        {
+            BytesRef bytesRef = field.binaryValue();
+            if (bytesRef != null && field.fieldType().docValueType() != null && field.name().startsWith("_"))
+            {
+                assertEquals(new BytesRef(document.get(field.name())), bytesRef);
+            }
+        }
+        if (rowMapper instanceof RowMapperWide)
+        {
+            ByteBuffer clusteringKey = KeyFields.key(document, ClusteringKeyMapper.FIELD_NAME);
+            CellName cellName = ((RowMapperWide) rowMapper).clusteringKey(row.cf);
+            assertEquals(cellName.toByteBuffer(), clusteringKey);
+            assertEquals(i, ByteBufferUtil.toInt(cellName.get(0)));
+        }
+        assertEquals(v(i) == null ? 0 : 2, document.getFields("v").length);
+        assertEquals(v(i), document.get("v"));
+        assertEquals(n(i) == null ? 0 : 2, document.getFields("n").length);
+        if (n(i) == null)
+        {
+            assertNull(document.getField("n"));
+        }
+        else
+        {
+            assertEquals(n(i), document.getField("n").numericValue());
+        }
+    }
+
+    private void testConsecutiveDocuments(boolean wide) throws Throwable
+    {
+        createTable(wide);
+        RowMapper rowMapper = rowService().rowMapper;
+        List<Row> rows = rows(rowMapper, wide);
+
+        // Build the documents one after another in the same thread, checking each one before building the next one
+        for (int i = 0; i < rows.size(); i++)
+        {
+            Row row = rows.get(i);
+            Document document = rowMapper.document(row);
+            assertDocument(rowMapper, document, row, i);
+            assertEquals(describeInNewThread(rowMapper, row), describe(document));
+        }
+    }
+
+    @Test
+    public void testConsecutiveSkinnyDocuments() throws Throwable
+    {
+        testConsecutiveDocuments(false);
+    }
+
+    @Test
+    public void testConsecutiveWideDocuments() throws Throwable
+    {
+        testConsecutiveDocuments(true);
+    }
+
+    /**
+     * Asserts that the index contains exactly one document for each row, matched only by the values of its columns.
+     */
+    private void assertIndexedRows(boolean wide) throws Throwable
+    {
+        String keyColumn = wide ? "c" : "k";
+        assertEquals(NUM_ROWS, search(REFRESH_SEARCH).size());
+        int rowsWithV = 0;
+        int rowsWithN = 0;
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            if (v(i) != null)
+            {
+                rowsWithV++;
+                String search = String.format("{filter:{type:\"match\",field:\"v\",value:\"%s\"}}", v(i));
+                UntypedResultSet rows = search(search);
+                assertEquals(1, rows.size());
+                assertEquals(i, rows.one().getInt(keyColumn));
+            }
+            if (n(i) != null)
+            {
+                rowsWithN++;
+            }
+        }
+        assertEquals(rowsWithV, search("{filter:{type:\"wildcard\",field:\"v\",value:\"v*\"}}").size());
+
+        // The doc values of the written documents sort the rows with n by it, and give the right primary keys
+        UntypedResultSet rows = search("{filter:{type:\"range\",field:\"n\",lower:0,include_lower:true}, "
+                                       + "sort:{fields:[{field:\"n\"}]}}");
+        assertEquals(rowsWithN, rows.size());
+        int previous = -1;
+        for (UntypedResultSet.Row row : rows)
+        {
+            int n = row.getInt("n");
+            assertEquals(n, row.getInt(keyColumn));
+            if (wide)
+            {
+                assertEquals(n % NUM_PARTITIONS, row.getInt("k"));
+            }
+            assertTrue(n > previous);
+            previous = n;
+        }
+    }
+
+    private void testBufferFlush(boolean wide) throws Throwable
+    {
+        createTable(wide);
+        RowService rowService = rowService();
+        RowMapper rowMapper = rowService.rowMapper;
+        List<Row> rows = rows(rowMapper, wide);
+
+        // Rewrite all the documents only with DocumentBuffer, with a first flush of half of the rows and a second one
+        // of all of them, replacing the first ones
+        rowService.luceneIndex.truncate();
+        assertEquals(0, search(REFRESH_SEARCH).size());
+        DocumentBuffer buffer = new DocumentBuffer(rowService.luceneIndex, rowMapper);
+        for (int i = 0; i < NUM_ROWS / 2; i++)
+        {
+            Row row = rows.get(i);
+            buffer.upsert(row.key, term(rowMapper, row), row);
+        }
+        buffer.flush();
+        assertEquals(NUM_ROWS / 2, search(REFRESH_SEARCH).size());
+        for (Row row : rows)
+        {
+            buffer.upsert(row.key, term(rowMapper, row), row);
+        }
+        buffer.flush();
+        assertIndexedRows(wide);
+    }
+
+    @Test
+    public void testSkinnyBufferFlush() throws Throwable
+    {
+        testBufferFlush(false);
+    }
+
+    @Test
+    public void testWideBufferFlush() throws Throwable
+    {
+        testBufferFlush(true);
+    }
+}
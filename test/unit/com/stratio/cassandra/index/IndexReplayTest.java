@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.commitlog.CommitLog;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the commit log replay of the writes that are in the base table sstables but not in the Lucene index.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class IndexReplayTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}}}";
+    private static final String SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"}}";
+    private static final String REFRESH_SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"},refresh:true}";
+
+    private ColumnFamilyStore cfs()
+    {
+        CFMetaData metadata = currentTableMetadata();
+        return Keyspace.open(metadata.ksName).getColumnFamilyStore(metadata.cfName);
+    }
+
+    private RowService rowService() throws Exception
+    {
+        Field field = RowIndex.class.getDeclaredField("rowService");
+        field.setAccessible(true);
+        return (RowService) field.get(rowIndex());
+    }
+
+    private void insert(int from, int to) throws Throwable
+    {
+        for (int i = from; i < to; i++)
+        {
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", i, "a");
+        }
+    }
+
+    /**
+     * Removes the specified rows from the index alone, and commits it at the specified position, as if the index had
+     * been committed at that position and the rows had been lost in a crash.
+     */
+    private void loseIndexedRows(int from, int to, ReplayPosition replayPosition) throws Exception
+    {
+        RowService rowService = rowService();
+        for (int i = from; i < to; i++)
+        {
+            rowService.delete(cfs().partitioner.decorateKey(ByteBufferUtil.bytes(i)));
+        }
+        rowService.commit(replayPosition);
+    }
+
+    private void replay() throws Exception
+    {
+        CommitLog.instance.sync(true);
+        List<File> files = new ArrayList<>();
+        for (String directory : DatabaseDescriptor.getCommitLogLocations())
+        {
+            files.addAll(Arrays.asList(new File(directory).listFiles(new FilenameFilter()
+            {
+                public boolean accept(File dir, String name)
+                {
+                    return CommitLogDescriptor.isValid(name);
+                }
+            })));
+        }
+        CommitLog.instance.recover(files.toArray(new File[files.size()]));
+    }
+
+    @Test
+    public void testFlushRecordsReplayPosition() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1'");
+        insert(0, 10);
+        ReplayPosition beforeFlush = CommitLog.instance.getContext();
+        cfs().forceBlockingFlush();
+        ReplayPosition indexPosition = rowIndex().getReplayPosition();
+        assertNotNull(indexPosition);
+        assertTrue(indexPosition.compareTo(beforeFlush) >= 0);
+        assertTrue(indexPosition.compareTo(ReplayPosition.getReplayPosition(cfs().getSSTables())) >= 0);
+    }
+
+    @Test
+    public void testLaggingIndexIsReplayed() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1'");
+        insert(0, 10);
+        cfs().forceBlockingFlush();
+        ReplayPosition indexPosition = rowIndex().getReplayPosition();
+
+        // The last rows reach the sstables, but the index goes back to the previous commit
+        insert(10, 20);
+        cfs().forceBlockingFlush();
+        loseIndexedRows(10, 20, indexPosition);
+        waitForSearch(SEARCH, 10);
+        assertEquals(indexPosition, rowIndex().getReplayPosition());
+
+        replay();
+        waitForSearch(SEARCH, 20);
+        assertTrue(rowIndex().getReplayPosition().compareTo(indexPosition) > 0);
+        assertEquals(20, execute("SELECT * FROM %s").size());
+    }
+
+    @Test
+    public void testUpToDateIndexIsNotReplayed() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1'");
+        insert(0, 20);
+        cfs().forceBlockingFlush();
+
+        // Writes before the index position are not replayed, so rows removed from the index alone stay missing
+        loseIndexedRows(10, 20, rowIndex().getReplayPosition());
+        waitForSearch(SEARCH, 10);
+        replay();
+        assertEquals(10, search(REFRESH_SEARCH).size());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.db.IndexSearchReply;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.exceptions.ReadTimeoutException;
+import org.apache.cassandra.gms.ApplicationState;
+import org.apache.cassandra.gms.Gossiper;
+import org.apache.cassandra.gms.VersionedValue;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.locator.TokenMetadata;
+import org.apache.cassandra.net.MessageIn;
+import org.apache.cassandra.net.MessageOut;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.cassandra.net.MessagingService.Verb;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.sink.IMessageSink;
+import org.apache.cassandra.sink.SinkManager;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the distributed index searches on clusters where some replicas don't understand the index search verbs,
+ * as it happens during rolling upgrades.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class IndexSearchVerbsTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}}}";
+    private static final String RELEVANCE_SEARCH = "{query:{type:\"match\",field:\"v\",value:\"a\"}}";
+    private static final String COUNT = "SELECT count(*) FROM %s.%s WHERE lucene = '%s'";
+
+    /** Gossip retains the state of removed endpoints, so each test uses its own peer. */
+    private static final AtomicInteger lastPeer = new AtomicInteger(1);
+
+    private final List<Verb> sentVerbs = new CopyOnWriteArrayList<>();
+    private final IMessageSink sink = new IMessageSink()
+    {
+        @Override
+        public MessageOut handleMessage(MessageOut message, int id, InetAddress to)
+        {
+            if (to.equals(peer))
+            {
+                sentVerbs.add(message.verb);
+                return null; // The peer doesn't exist
+            }
+            return message;
+        }
+
+        @Override
+        public MessageIn handleMessage(MessageIn message, int id, InetAddress to)
+        {
+            return message;
+        }
+    };
+
+    private InetAddress peer;
+    private Map<Token, InetAddress> tokens;
+    private Long rangeRpcTimeout;
+
+    @Before
+    public void before() throws Exception
+    {
+        peer = InetAddress.getByName("127.0.0." + lastPeer.incrementAndGet());
+        rangeRpcTimeout = DatabaseDescriptor.getRangeRpcTimeout();
+        DatabaseDescriptor.setRangeRpcTimeout(200L);
+
+        // Two nodes ring, where the peer is alive but it just drops the messages sent to it
+        TokenMetadata tmd = StorageService.instance.getTokenMetadata();
+        tokens = new HashMap<>(tmd.getNormalAndBootstrappingTokenToEndpointMap());
+        tmd.clearUnsafe();
+        IPartitioner<?> partitioner = DatabaseDescriptor.getPartitioner();
+        tmd.updateNormalToken(partitioner.getToken(ByteBufferUtil.bytes(0x40000000)), FBUtilities.getBroadcastAddress());
+        tmd.updateNormalToken(partitioner.getToken(ByteBufferUtil.bytes(0xC0000000)), peer);
+        Gossiper.instance.initializeNodeUnsafe(peer, UUID.randomUUID(), 1);
+        SinkManager.add(sink);
+    }
+
+    @After
+    public void after()
+    {
+        SinkManager.remove(sink);
+        Gossiper.instance.removeEndpoint(peer);
+        TokenMetadata tmd = StorageService.instance.getTokenMetadata();
+        tmd.clearUnsafe();
+        for (Map.Entry<Token, InetAddress> entry : tokens.entrySet())
+        {
+            tmd.updateNormalToken(entry.getKey(), entry.getValue());
+        }
+        DatabaseDescriptor.setRangeRpcTimeout(rangeRpcTimeout);
+    }
+
+    private void populate() throws Throwable
+    {
+        populate("'refresh_seconds':'0.1'");
+    }
+
+    private void populate(String options) throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, options);
+        for (int i = 0; i < 10; i++)
+        {
+            execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", 0, i, "a");
+        }
+        waitForSearch(RELEVANCE_SEARCH, 10);
+    }
+
+    /**
+     * Runs the specified search through the storage proxy with consistency level {@code ONE}, returning the verbs of
+     * the messages sent to the peer.
+     */
+    private List<Verb> distributedSearch(String query) throws Throwable
+    {
+        return distributed("SELECT * FROM %s.%s WHERE lucene = '%s'", query);
+    }
+
+    /**
+     * Runs the specified CQL statement, formatted with the current table and the specified search, through the storage
+     * proxy with consistency level {@code ONE}, returning the verbs of the messages sent to the peer.
+     */
+    private List<Verb> distributed(String statement, String query) throws Throwable
+    {
+        CFMetaData metadata = currentTableMetadata();
+        String cql = String.format(statement, metadata.ksName, metadata.cfName, query);
+        sentVerbs.clear();
+        try
+        {
+            QueryProcessor.process(cql, ConsistencyLevel.ONE);
+            fail("The peer should not answer");
+        }
+        catch (ReadTimeoutException e)
+        {
+            // Expected
+        }
+        return sentVerbs;
+    }
+
+    @Test
+    public void testFallbackToRangeSliceWithoutCapability() throws Throwable
+    {
+        populate();
+        assertFalse(MessagingService.instance().knowsIndexSearchVerbs(peer));
+        List<Verb> verbs = distributedSearch(RELEVANCE_SEARCH);
+        assertTrue(verbs.contains(Verb.RANGE_SLICE));
+        assertFalse(verbs.contains(Verb.INDEX_TOP_K));
+    }
+
+    @Test
+    public void testTopKWithCapability() throws Throwable
+    {
+        populate();
+        Gossiper.instance.injectApplicationState(peer,
+                                                 ApplicationState.INDEX_SEARCH_VERSION,
+                                                 StorageService.instance.valueFactory.indexSearchVersion());
+        assertTrue(MessagingService.instance().knowsIndexSearchVerbs(peer));
+        List<Verb> verbs = distributedSearch(RELEVANCE_SEARCH);
+        assertTrue(verbs.contains(Verb.INDEX_TOP_K));
+        assertFalse(verbs.contains(Verb.RANGE_SLICE));
+    }
+
+    @Test
+    public void testAggregateFallbackToRangeScanWithoutCapability() throws Throwable
+    {
+        populate("'refresh_seconds':'0.1', 'index_only_counts':'true'");
+        assertFalse(MessagingService.instance().knowsIndexSearchVerbs(peer));
+        List<Verb> verbs = distributed(COUNT, RELEVANCE_SEARCH);
+        assertTrue(verbs.contains(Verb.PAGED_RANGE)); // The regular count pages the wide rows
+        assertFalse(verbs.contains(Verb.INDEX_AGGREGATE));
+    }
+
+    @Test
+    public void testAggregateWithCapability() throws Throwable
+    {
+        populate("'refresh_seconds':'0.1', 'index_only_counts':'true'");
+        Gossiper.instance.injectApplicationState(peer,
+                                                 ApplicationState.INDEX_SEARCH_VERSION,
+                                                 StorageService.instance.valueFactory.indexSearchVersion());
+        List<Verb> verbs = distributed(COUNT, RELEVANCE_SEARCH);
+        assertTrue(verbs.contains(Verb.INDEX_AGGREGATE));
+        assertFalse(verbs.contains(Verb.RANGE_SLICE));
+    }
+
+    @Test
+    public void testAggregateDisabledByIndexOptions() throws Throwable
+    {
+        populate();
+        Gossiper.instance.injectApplicationState(peer,
+                                                 ApplicationState.INDEX_SEARCH_VERSION,
+                                                 StorageService.instance.valueFactory.indexSearchVersion());
+        List<Verb> verbs = distributed(COUNT, RELEVANCE_SEARCH);
+        assertTrue(verbs.contains(Verb.PAGED_RANGE)); // The regular count pages the wide rows
+        assertFalse(verbs.contains(Verb.INDEX_AGGREGATE));
+    }
+
+    @Test
+    public void testCapabilityOfUnknownAndLocalEndpoints() throws Exception
+    {
+        assertTrue(MessagingService.instance().knowsIndexSearchVerbs(FBUtilities.getBroadcastAddress()));
+        assertFalse(MessagingService.instance().knowsIndexSearchVerbs(InetAddress.getByName("127.0.1.1")));
+        Gossiper.instance.injectApplicationState(peer,
+                                                 ApplicationState.INDEX_SEARCH_VERSION,
+                                                 new VersionedValue.VersionedValueFactory(null).indexSearchVersion());
+        assertTrue(MessagingService.instance().knowsIndexSearchVerbs(peer));
+    }
+
+    @Test
+    public void testReplySerialization() throws Exception
+    {
+        for (IndexSearchReply reply : new IndexSearchReply[]{new IndexSearchReply(null),
+                                                             new IndexSearchReply(ByteBufferUtil.bytes("result"))})
+        {
+            DataOutputBuffer out = new DataOutputBuffer();
+            IndexSearchReply.serializer.serialize(reply, out, MessagingService.current_version);
+            assertEquals(out.getLength(), IndexSearchReply.serializer.serializedSize(reply, MessagingService.current_version));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.getData(), 0, out.getLength()));
+            IndexSearchReply read = IndexSearchReply.serializer.deserialize(in, MessagingService.current_version);
+            assertEquals(reply.result, read.result);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link IndexingBatcher}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class IndexingBatcherTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, c:{type:\"integer\"}}}";
+
+    @Test
+    public void testCoalesceUpdatesOfSamePartition() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1', 'indexing_batch_ms':'500', 'indexing_batch_size':'1000'");
+
+        for (int i = 0; i < 50; i++)
+        {
+            execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", 0, i, "a");
+        }
+        execute("UPDATE %s SET v = ? WHERE k = ? AND c = ?", "b", 0, 7);
+
+        waitForSearch("{filter:{type:\"match\",field:\"v\",value:\"a\"}}", 49);
+        UntypedResultSet rows = waitForSearch("{filter:{type:\"match\",field:\"v\",value:\"b\"}}", 1);
+        assertEquals(7, rows.one().getInt("c"));
+
+        assertEquals(51, counter("IndexingUpdates"));
+        long batches = counter("IndexingBatches");
+        assertTrue("Expected coalesced updates but found " + batches + " batches", batches < 51);
+    }
+
+    @Test
+    public void testSizeLimitedBatches() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1', 'indexing_batch_ms':'60000', 'indexing_batch_size':'10'");
+
+        for (int i = 0; i < 30; i++)
+        {
+            execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", 0, i, "a");
+        }
+
+        // The batch window is longer than the test, so rows are only indexed by the batches reaching the size limit
+        waitForSearch("{filter:{type:\"match\",field:\"v\",value:\"a\"}}", 30);
+        assertEquals(30, counter("IndexingUpdates"));
+        assertEquals(3, counter("IndexingBatches"));
+    }
+
+    @Test
+    public void testBatchesOfDistinctPartitions() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1', 'indexing_batch_ms':'200'");
+
+        for (int i = 0; i < 20; i++)
+        {
+            execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", i % 4, i, "a");
+        }
+
+        waitForSearch("{filter:{type:\"match\",field:\"v\",value:\"a\"}}", 20);
+        assertEquals(20, counter("IndexingUpdates"));
+        assertTrue(counter("IndexingBatches") >= 4);
+    }
+}
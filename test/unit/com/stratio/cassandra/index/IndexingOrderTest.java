@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.concurrent.OpOrder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the concurrency between the indexing operations and the lifecycle operations of {@link RowIndex}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class IndexingOrderTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}}}";
+    private static final String SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"},refresh:true}";
+    private static final int WRITERS = 8;
+
+    private ColumnFamilyStore cfs()
+    {
+        CFMetaData metadata = currentTableMetadata();
+        return Keyspace.open(metadata.ksName).getColumnFamilyStore(metadata.cfName);
+    }
+
+    /**
+     * Starts {@link #WRITERS} threads, each one inserting its own rows until the returned flag is set.
+     */
+    private List<Future<Integer>> startWriters(ExecutorService executor, final AtomicBoolean stop)
+    {
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++)
+        {
+            final int writer = w;
+            futures.add(executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    int count = 0;
+                    while (!stop.get())
+                    {
+                        try
+                        {
+                            execute("INSERT INTO %s (k, v) VALUES (?, ?)", writer * 1000000 + count, "a");
+                        }
+                        catch (Throwable e)
+                        {
+                            throw new Exception(e);
+                        }
+                        count++;
+                    }
+                    return count;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    @Test
+    public void testPartitionDeleteKeepsIndexing() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, null);
+        for (int i = 0; i < 10; i++)
+        {
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", i, "a");
+        }
+        assertEquals(10, search(SEARCH).size());
+
+        // As done by cleanup compactions
+        OpOrder.Group opGroup = cfs().keyspace.writeOrder.start();
+        try
+        {
+            rowIndex().delete(cfs().partitioner.decorateKey(ByteBufferUtil.bytes(0)), opGroup);
+        }
+        finally
+        {
+            opGroup.close();
+        }
+        assertEquals(9, search(SEARCH).size());
+
+        execute("INSERT INTO %s (k, v) VALUES (?, ?)", 10, "a");
+        assertEquals(10, search(SEARCH).size());
+    }
+
+    @Test
+    public void testConcurrentIndexingAndPartitionDeletes() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, null);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try
+        {
+            AtomicBoolean stop = new AtomicBoolean();
+            List<Future<Integer>> writers = startWriters(executor, stop);
+            Thread.sleep(500);
+
+            // Remove the first rows of each writer from the index while the writers are running
+            for (int w = 0; w < WRITERS; w++)
+            {
+                OpOrder.Group opGroup = cfs().keyspace.writeOrder.start();
+                try
+                {
+                    rowIndex().delete(cfs().partitioner.decorateKey(ByteBufferUtil.bytes(w * 1000000)), opGroup);
+                }
+                finally
+                {
+                    opGroup.close();
+                }
+            }
+            Thread.sleep(200);
+            stop.set(true);
+
+            int written = 0;
+            for (Future<Integer> writer : writers)
+            {
+                written += writer.get(30, TimeUnit.SECONDS);
+            }
+            assertTrue(written > WRITERS);
+            assertEquals(written - WRITERS, search(SEARCH).size());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLifecycleOperationsDuringIndexing() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, null);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try
+        {
+            AtomicBoolean stop = new AtomicBoolean();
+            List<Future<Integer>> writers = startWriters(executor, stop);
+            for (int i = 0; i < 5; i++)
+            {
+                Thread.sleep(100);
+                cfs().forceBlockingFlush();
+                Thread.sleep(100);
+                cfs().truncateBlocking();
+            }
+            stop.set(true);
+            for (Future<Integer> writer : writers)
+            {
+                writer.get(30, TimeUnit.SECONDS);
+            }
+
+            // Neither the writers nor the lifecycle operations fail, and a truncation without concurrent writes
+            // leaves the index in sync with the table
+            assertTrue(search(SEARCH).size() <= execute("SELECT * FROM %s").size());
+            cfs().truncateBlocking();
+            assertEquals(0, search(SEARCH).size());
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", -1, "a");
+            assertEquals(1, search(SEARCH).size());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDropIndexDuringIndexing() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, null);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try
+        {
+            AtomicBoolean stop = new AtomicBoolean();
+            List<Future<Integer>> writers = startWriters(executor, stop);
+            Thread.sleep(300);
+            QueryProcessor.executeOnceInternal(String.format("DROP INDEX %s.%s",
+                                                             currentTableMetadata().ksName,
+                                                             rowIndex().getIndexName()));
+            Thread.sleep(200);
+            stop.set(true);
+
+            // The writes don't fail after the index removal
+            int written = 0;
+            for (Future<Integer> writer : writers)
+            {
+                written += writer.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(written, execute("SELECT * FROM %s").size());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
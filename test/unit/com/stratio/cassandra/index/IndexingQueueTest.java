@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the indexing queue, whose consumers write the documents of each batch of tasks in bulk.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class IndexingQueueTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}}}";
+    private static final String OPTIONS = "'refresh_seconds':'0.1', 'indexing_threads':'1', 'indexing_queues_size':'64'";
+
+    private static String refreshSearch(String value)
+    {
+        return String.format("{filter:{type:\"match\",field:\"v\",value:\"%s\"},refresh:true}", value);
+    }
+
+    @Test
+    public void testMixedWritesOfSkinnyRows() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        for (int i = 0; i < 300; i++)
+        {
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", i, "a");
+            if (i % 3 == 0)
+            {
+                execute("UPDATE %s SET v = ? WHERE k = ?", "b", i);
+            }
+            if (i % 5 == 0)
+            {
+                execute("DELETE FROM %s WHERE k = ?", i);
+            }
+        }
+        int deleted = 60;
+        int updated = 100 - 20; // Multiples of 3, but not of 15
+        assertEquals(300 - deleted - updated, search(refreshSearch("a")).size());
+        assertEquals(updated, search(refreshSearch("b")).size());
+    }
+
+    @Test
+    public void testMixedWritesOfWideRows() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, OPTIONS);
+        for (int k = 0; k < 20; k++)
+        {
+            for (int c = 0; c < 10; c++)
+            {
+                execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", k, c, "a");
+            }
+            execute("DELETE FROM %s WHERE k = ? AND c = ?", k, 0);
+            if (k % 2 == 0) // Partition deletion followed by a new row
+            {
+                execute("DELETE FROM %s WHERE k = ?", k);
+                execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", k, 10, "a");
+            }
+        }
+        assertEquals(10 * 9 + 10, search(refreshSearch("a")).size());
+        assertEquals(execute("SELECT * FROM %s").size(), search(refreshSearch("a")).size());
+    }
+
+    @Test
+    public void testIndexingQueueGauges() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        assertEquals(64L, gauge("IndexingQueueCapacity"));
+        for (int i = 0; i < 100; i++)
+        {
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", i, "a");
+        }
+        assertEquals(100, search(refreshSearch("a")).size());
+
+        assertTrue((Long) gauge("IndexingQueueDepth") >= 0);
+        assertTrue((Long) gauge("IndexingBlockedSubmissions") >= 0);
+        assertTrue((Long) gauge("IndexingBlockedMillis") >= 0);
+        assertTrue((Double) gauge("IndexingDrainedBatchSize") >= 1);
+    }
+}
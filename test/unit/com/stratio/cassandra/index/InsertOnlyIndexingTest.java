@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the read-free indexing of insert only indexes.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class InsertOnlyIndexingTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, w:{type:\"string\"}}}";
+
+    private static String match(String field, String value)
+    {
+        return String.format("{filter:{type:\"match\",field:\"%s\",value:\"%s\"}}", field, value);
+    }
+
+    @Test
+    public void testFullRowsAreNotRead() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, w text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1', 'insert_only':'true'");
+
+        for (int i = 0; i < 10; i++)
+        {
+            execute("INSERT INTO %s (k, c, v, w) VALUES (?, ?, ?, ?)", 0, i, "a", "b");
+        }
+        waitForSearch(match("w", "b"), 10);
+        assertEquals(0, counter("IndexingReads"));
+        assertEquals(counter("IndexingBatches"), counter("IndexingSkippedReads"));
+    }
+
+    @Test
+    public void testPartialRowsAreRead() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, w text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1', 'insert_only':'true'");
+
+        execute("INSERT INTO %s (k, c, v, w) VALUES (?, ?, ?, ?)", 0, 1, "a", "b");
+        waitForSearch(match("v", "a"), 1);
+
+        execute("UPDATE %s SET v = ? WHERE k = ? AND c = ?", "c", 0, 1);
+        UntypedResultSet rows = waitForSearch(match("v", "c"), 1);
+        assertEquals("b", rows.one().getString("w"));
+        waitForSearch(match("w", "b"), 1); // The read row keeps the not updated column
+        assertEquals(1, counter("IndexingReads"));
+    }
+
+    @Test
+    public void testMixedBatchReadsOnlyPartialRows() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, w text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1', 'insert_only':'true', 'indexing_batch_ms':'1000'");
+
+        execute("INSERT INTO %s (k, c, v, w) VALUES (?, ?, ?, ?) USING TIMESTAMP 10", 0, 1, "b", "x");
+        execute("INSERT INTO %s (k, c, v, w) VALUES (?, ?, ?, ?) USING TIMESTAMP 10", 0, 2, "b", "y");
+        waitForSearch(match("v", "b"), 2);
+        long reads = counter("IndexingReads");
+
+        // A full row overwritten by an older insert is indexed as it comes, without reading it
+        execute("INSERT INTO %s (k, c, v, w) VALUES (?, ?, ?, ?) USING TIMESTAMP 5", 0, 1, "a", "x");
+        // A partial row in the same batch is read
+        execute("UPDATE %s USING TIMESTAMP 20 SET v = ? WHERE k = ? AND c = ?", "c", 0, 2);
+
+        UntypedResultSet rows = waitForSearch(match("v", "a"), 1);
+        assertEquals(1, rows.one().getInt("c"));
+        rows = waitForSearch(match("v", "c"), 1);
+        assertEquals(2, rows.one().getInt("c"));
+        waitForSearch(match("w", "y"), 1);
+        assertEquals(reads + 1, counter("IndexingReads"));
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.google.common.io.Files;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.composites.CellName;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the reading of the primary keys of the search hits from doc values, with stored fields as fallback for the
+ * documents written without doc values.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class KeyDocValuesTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, n:{type:\"integer\"}}}";
+    private static final String SORTED_SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"}, "
+                                                + "sort:{fields:[{field:\"n\"}]}, refresh:true}";
+    private static final String RELEVANCE_SEARCH = "{query:{type:\"match\",field:\"v\",value:\"a\"}, refresh:true}";
+    private static final int NUM_SEGMENTS = 4;
+    private static final int ROWS_PER_SEGMENT = 50;
+    private static final int NUM_ROWS = NUM_SEGMENTS * ROWS_PER_SEGMENT;
+
+    private ColumnFamilyStore cfs()
+    {
+        CFMetaData metadata = currentTableMetadata();
+        return Keyspace.open(metadata.ksName).getColumnFamilyStore(metadata.cfName);
+    }
+
+    private RowService rowService() throws Exception
+    {
+        Field field = RowIndex.class.getDeclaredField("rowService");
+        field.setAccessible(true);
+        return (RowService) field.get(rowIndex());
+    }
+
+    /**
+     * Returns the shuffled values of the sorting column, so that the index order of the documents differs from the
+     * order of the hits.
+     */
+    private static List<Integer> values()
+    {
+        List<Integer> values = new ArrayList<>(NUM_ROWS);
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(42));
+        return values;
+    }
+
+    /**
+     * Asserts that the specified search returns all the rows sorted by {@code n}, and that the value of {@code n} of
+     * each row is the one written for its primary key.
+     */
+    private void assertSorted(UntypedResultSet rows, List<Integer> values, boolean wide)
+    {
+        assertEquals(NUM_ROWS, rows.size());
+        int expected = 0;
+        for (UntypedResultSet.Row row : rows)
+        {
+            int i = wide ? row.getInt("c") : row.getInt("k");
+            assertEquals((int) values.get(i), row.getInt("n"));
+            assertEquals(expected++, row.getInt("n"));
+        }
+    }
+
+    private static Set<Integer> keys(UntypedResultSet rows, String column)
+    {
+        Set<Integer> keys = new HashSet<>();
+        for (UntypedResultSet.Row row : rows)
+        {
+            keys.add(row.getInt(column));
+        }
+        return keys;
+    }
+
+    @Test
+    public void testSkinnyRowsInSeveralSegments() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        createRowIndex(SCHEMA, "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'");
+
+        List<Integer> values = values();
+        for (int segment = 0; segment < NUM_SEGMENTS; segment++)
+        {
+            for (int i = segment * ROWS_PER_SEGMENT; i < (segment + 1) * ROWS_PER_SEGMENT; i++)
+            {
+                execute("INSERT INTO %s (k, v, n) VALUES (?, ?, ?)", i, "a", values.get(i));
+            }
+            search(RELEVANCE_SEARCH); // Reopen the searcher, creating a new segment
+        }
+
+        assertSorted(search(SORTED_SEARCH), values, false);
+        UntypedResultSet rows = search(RELEVANCE_SEARCH);
+        assertEquals(NUM_ROWS, rows.size());
+        assertEquals(NUM_ROWS, keys(rows, "k").size());
+    }
+
+    @Test
+    public void testWideRowsInSeveralSegments() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, n int, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'");
+
+        List<Integer> values = values();
+        for (int segment = 0; segment < NUM_SEGMENTS; segment++)
+        {
+            for (int i = segment * ROWS_PER_SEGMENT; i < (segment + 1) * ROWS_PER_SEGMENT; i++)
+            {
+                execute("INSERT INTO %s (k, c, v, n) VALUES (?, ?, ?, ?)", i % 10, i, "a", values.get(i));
+            }
+            search(RELEVANCE_SEARCH); // Reopen the searcher, creating a new segment
+        }
+
+        UntypedResultSet rows = search(SORTED_SEARCH);
+        assertSorted(rows, values, true);
+        for (UntypedResultSet.Row row : rows)
+        {
+            assertEquals(row.getInt("c") % 10, row.getInt("k"));
+        }
+        assertEquals(NUM_ROWS, keys(search(RELEVANCE_SEARCH), "c").size());
+    }
+
+    @Test
+    public void testDocumentsWithoutDocValues() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        createRowIndex(SCHEMA, "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'");
+
+        List<Integer> values = values();
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            execute("INSERT INTO %s (k, v, n) VALUES (?, ?, ?)", i, "a", values.get(i));
+        }
+        assertSorted(search(SORTED_SEARCH), values, false);
+
+        // Rewrite half of the rows as previous versions did, without the doc values of the partition key
+        RowService rowService = rowService();
+        ColumnFamilyStore cfs = cfs();
+        for (int i = 0; i < NUM_ROWS; i += 2)
+        {
+            DecoratedKey partitionKey = cfs.partitioner.decorateKey(ByteBufferUtil.bytes(i));
+            QueryFilter filter = QueryFilter.getIdentityFilter(partitionKey, cfs.name, System.currentTimeMillis());
+            ColumnFamily columnFamily = cfs.getColumnFamily(filter);
+            assertNotNull(columnFamily);
+            Document document = rowService.rowMapper.document(new Row(partitionKey, columnFamily));
+            Document legacyDocument = new Document();
+            for (IndexableField field : document.getFields())
+            {
+                boolean keyDocValues = field.name().equals(PartitionKeyMapper.FIELD_NAME)
+                                       && field.fieldType().docValueType() != null;
+                if (!keyDocValues)
+                {
+                    legacyDocument.add(field);
+                }
+            }
+            assertTrue(legacyDocument.getFields().size() < document.getFields().size());
+            rowService.luceneIndex.shard(partitionKey).upsert(rowService.rowMapper.term(partitionKey), legacyDocument);
+        }
+
+        assertSorted(search(SORTED_SEARCH), values, false);
+        assertEquals(NUM_ROWS, keys(search(RELEVANCE_SEARCH), "k").size());
+    }
+
+    private static final String[] KEY_FIELDS = {TokenMapperGeneric.FIELD_NAME,
+                                                PartitionKeyMapper.FIELD_NAME,
+                                                ClusteringKeyMapper.FIELD_NAME};
+
+    /**
+     * Writes with the specified {@link DocumentWriter} the {@link Document}s of the CQL rows with clustering key in the
+     * specified range, built by the specified {@link RowMapperWide}.
+     */
+    private void write(RowMapperWide rowMapper, int from, int to, DocumentWriter writer) throws Exception
+    {
+        ColumnFamilyStore cfs = cfs();
+        for (int k = 0; k < 10; k++)
+        {
+            DecoratedKey partitionKey = cfs.partitioner.decorateKey(ByteBufferUtil.bytes(k));
+            QueryFilter filter = QueryFilter.getIdentityFilter(partitionKey, cfs.name, System.currentTimeMillis());
+            ColumnFamily columnFamily = cfs.getColumnFamily(filter);
+            for (Map.Entry<CellName, ColumnFamily> entry : rowMapper.splitRows(columnFamily).entrySet())
+            {
+                int c = ByteBufferUtil.toInt(entry.getKey().get(0));
+                if (c >= from && c < to)
+                {
+                    Row row = new Row(partitionKey, entry.getValue());
+                    writer.write(rowMapper.term(partitionKey, entry.getKey()), rowMapper.document(row));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writer of the {@link Document}s built by {@link #write(RowMapperWide, int, int, DocumentWriter)}.
+     */
+    private interface DocumentWriter
+    {
+        void write(Term term, Document document) throws Exception;
+    }
+
+    private static LuceneIndex luceneIndex(CFMetaData metadata, RowMapperWide rowMapper, File directory)
+    throws Exception
+    {
+        LuceneIndex luceneIndex = new LuceneIndex(metadata,
+                                                  rowMapper,
+                                                  directory.getPath(),
+                                                  60d,
+                                                  0.05d,
+                                                  16,
+                                                  5,
+                                                  30,
+                                                  new KeywordAnalyzer());
+        luceneIndex.init(rowMapper.sort());
+        return luceneIndex;
+    }
+
+    /**
+     * Asserts that the natural order search of the specified {@link LuceneIndex} returns all the rows sorted by
+     * partition and clustering key, and that the key fields of all the documents in each segment either have or have
+     * not doc values.
+     */
+    private static void assertNaturalOrder(LuceneIndex luceneIndex, boolean docValues) throws Exception
+    {
+        assertTrue(luceneIndex.waitForLastWrite(10000));
+        Set<String> fieldsToLoad = new HashSet<>(Arrays.asList(PartitionKeyMapper.FIELD_NAME,
+                                                               ClusteringKeyMapper.FIELD_NAME));
+        List<SearchResult> results = luceneIndex.search(new MatchAllDocsQuery(),
+                                                        null,
+                                                        null,
+                                                        NUM_ROWS,
+                                                        fieldsToLoad,
+                                                        false);
+        assertEquals(NUM_ROWS, results.size());
+        int i = 0;
+        for (SearchResult result : results)
+        {
+            // Partition keys are sorted by their byte ordered tokens
+            assertEquals(i / (NUM_ROWS / 10), ByteBufferUtil.toInt(result.getPartitionKey().getKey()));
+            assertEquals(i % (NUM_ROWS / 10) * 10 + i / (NUM_ROWS / 10),
+                         ByteBufferUtil.toInt(result.getClusteringKey().get(0)));
+            i++;
+        }
+
+        IndexSearcher searcher = luceneIndex.acquireSearcher();
+        try
+        {
+            assertEquals(1, searcher.getIndexReader().leaves().size());
+            for (AtomicReaderContext context : searcher.getIndexReader().leaves())
+            {
+                AtomicReader reader = context.reader();
+                for (String field : KEY_FIELDS)
+                {
+                    BinaryDocValues values = reader.getBinaryDocValues(field);
+                    if (docValues)
+                    {
+                        assertNotNull(values);
+                        Bits docsWithField = reader.getDocsWithField(field);
+                        for (int doc = 0; doc < reader.maxDoc(); doc++)
+                        {
+                            assertTrue(docsWithField.get(doc));
+                        }
+                    }
+                    else
+                    {
+                        assertNull(values);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            luceneIndex.releaseSearcher(searcher);
+        }
+    }
+
+    @Test
+    public void testIndexWithoutKeyDocValues() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, n int, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'");
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            execute("INSERT INTO %s (k, c, v, n) VALUES (?, ?, ?, ?)", i % 10, i, "a", i);
+        }
+        RowService rowService = rowService();
+        assertTrue(rowService.luceneIndex.hasKeyDocValues());
+        RowMapperWide rowMapper = (RowMapperWide) rowService.rowMapper;
+        CFMetaData metadata = currentTableMetadata();
+        File directory = Files.createTempDir();
+        try
+        {
+            // Write half of the rows as previous versions did, without key doc values nor commit data
+            rowMapper.setKeyDocValues(false);
+            IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer());
+            final IndexWriter indexWriter = new IndexWriter(FSDirectory.open(directory), config);
+            write(rowMapper, 0, NUM_ROWS / 2, new DocumentWriter()
+            {
+                public void write(Term term, Document document) throws Exception
+                {
+                    indexWriter.addDocument(document);
+                }
+            });
+            indexWriter.close();
+
+            // The opened index keeps writing without key doc values, so its segments can be merged
+            final LuceneIndex legacyIndex = luceneIndex(metadata, rowMapper, directory);
+            assertFalse(legacyIndex.hasKeyDocValues());
+            write(rowMapper, NUM_ROWS / 2, NUM_ROWS, new DocumentWriter()
+            {
+                public void write(Term term, Document document) throws Exception
+                {
+                    legacyIndex.upsert(term, document);
+                }
+            });
+            legacyIndex.optimize();
+            assertNaturalOrder(legacyIndex, false);
+            legacyIndex.close();
+            LuceneIndex reopenedIndex = luceneIndex(metadata, rowMapper, directory);
+            assertFalse(reopenedIndex.hasKeyDocValues());
+
+            // Once emptied, the index is written with key doc values, which is recorded when committed
+            reopenedIndex.truncate();
+            assertTrue(reopenedIndex.hasKeyDocValues());
+            reopenedIndex.commit();
+            reopenedIndex.close();
+            final LuceneIndex rebuiltIndex = luceneIndex(metadata, rowMapper, directory);
+            assertTrue(rebuiltIndex.hasKeyDocValues());
+            rowMapper.setKeyDocValues(true);
+            DocumentWriter writer = new DocumentWriter()
+            {
+                public void write(Term term, Document document) throws Exception
+                {
+                    rebuiltIndex.upsert(term, document);
+                }
+            };
+            write(rowMapper, 0, NUM_ROWS / 2, writer);
+            rebuiltIndex.commit();
+            write(rowMapper, NUM_ROWS / 2, NUM_ROWS, writer);
+            rebuiltIndex.optimize();
+            assertNaturalOrder(rebuiltIndex, true);
+            rebuiltIndex.close();
+            LuceneIndex restartedIndex = luceneIndex(metadata, rowMapper, directory);
+            assertTrue(restartedIndex.hasKeyDocValues());
+            restartedIndex.close();
+        }
+        finally
+        {
+            rowMapper.setKeyDocValues(true);
+            FileUtils.deleteRecursive(directory);
+        }
+    }
+}
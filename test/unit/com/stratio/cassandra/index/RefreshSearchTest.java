@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the read-your-writes searches, those with the {@code refresh} option set.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class RefreshSearchTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}}}";
+    private static final String OPTIONS = "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'";
+    private static final String SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"}}";
+    private static final String REFRESH_SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"},refresh:true}";
+
+    /** Far below the refresh_seconds, so the searches can only be fresh if they have forced a reopen. */
+    private static final long MAX_REFRESH_MILLIS = 5000;
+
+    private void insert(int from, int to) throws Throwable
+    {
+        for (int i = from; i < to; i++)
+        {
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", i, "a");
+        }
+    }
+
+    private int refreshSearch() throws Throwable
+    {
+        long start = System.currentTimeMillis();
+        int rows = search(REFRESH_SEARCH).size();
+        assertTrue("Refresh took too long", System.currentTimeMillis() - start < MAX_REFRESH_MILLIS);
+        return rows;
+    }
+
+    @Test
+    public void testWritesAreVisible() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        insert(0, 20);
+        assertEquals("Regular searches should not wait for the writes", 0, search(SEARCH).size());
+        assertEquals(20, refreshSearch());
+        assertEquals("Regular searches should see the refreshed searcher", 20, search(SEARCH).size());
+    }
+
+    @Test
+    public void testConsecutiveWritesAreVisible() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        for (int round = 0; round < 5; round++)
+        {
+            insert(round * 10, (round + 1) * 10);
+            assertEquals((round + 1) * 10, refreshSearch());
+        }
+    }
+
+    @Test
+    public void testUpdatesAndDeletionsAreVisible() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        insert(0, 10);
+        assertEquals(10, refreshSearch());
+
+        execute("UPDATE %s SET v = ? WHERE k = ?", "b", 0);
+        execute("DELETE FROM %s WHERE k = ?", 1);
+        assertEquals(8, refreshSearch());
+    }
+
+    @Test
+    public void testWideRowsWritesAreVisible() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, OPTIONS);
+        for (int i = 0; i < 20; i++)
+        {
+            execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", i % 4, i, "a");
+        }
+        assertEquals(20, refreshSearch());
+    }
+
+    @Test
+    public void testShardedWritesAreVisible() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS + ", 'shards':'4'");
+        for (int i = 0; i < 20; i++)
+        {
+            // Spread the keys over the byte ordered ring so they fall in different shards
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", (int) (i * (0x100000000L / 20)), "a");
+        }
+        assertEquals(20, refreshSearch());
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.compaction.CompactionInfo;
+import org.apache.cassandra.db.compaction.CompactionInterruptedException;
+import org.apache.cassandra.db.compaction.OperationType;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the full rebuild of a {@link RowIndex} done by {@link RowIndexBuilder} from the merged partitions of
+ * several SSTables, containing overwrites and tombstones, and of the memtable.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class RowIndexBuilderTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, n:{type:\"integer\"}}}";
+    private static final String OPTIONS = "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'";
+    private static final String REFRESH_SEARCH = "{refresh:true}";
+    private static final String SORTED_SEARCH = "{filter:{type:\"range\",field:\"n\",lower:0,include_lower:true}, "
+                                                + "sort:{fields:[{field:\"n\"}]}, refresh:true}";
+    private static final String[] VALUES = {"a", "b", "c"};
+    private static final int NUM_ROWS = 200;
+    private static final int NUM_PARTITIONS = 10;
+
+    private boolean wide;
+
+    private void createTable(boolean wide)
+    {
+        this.wide = wide;
+        if (wide)
+        {
+            createTable("CREATE TABLE %s (k int, c int, v text, n int, lucene text, PRIMARY KEY (k, c))");
+        }
+        else
+        {
+            createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        }
+        cfs().disableAutoCompaction();
+    }
+
+    private ColumnFamilyStore cfs()
+    {
+        CFMetaData metadata = currentTableMetadata();
+        return Keyspace.open(metadata.ksName).getColumnFamilyStore(metadata.cfName);
+    }
+
+    private RowService rowService() throws Exception
+    {
+        Field field = RowIndex.class.getDeclaredField("rowService");
+        field.setAccessible(true);
+        return (RowService) field.get(rowIndex());
+    }
+
+    /**
+     * Returns the CQL row key for the specified row number, which is the partition key for skinny rows, and the
+     * clustering key for wide rows, spread over {@link #NUM_PARTITIONS} partitions.
+     */
+    private Object[] key(int i)
+    {
+        return wide ? new Object[]{i % NUM_PARTITIONS, i} : new Object[]{i};
+    }
+
+    private String where()
+    {
+        return wide ? " WHERE k = ? AND c = ?" : " WHERE k = ?";
+    }
+
+    private void insert(int i, String v, int n) throws Throwable
+    {
+        String query = wide
+                       ? "INSERT INTO %s (k, c, v, n) VALUES (?, ?, ?, ?)"
+                       : "INSERT INTO %s (k, v, n) VALUES (?, ?, ?)";
+        List<Object> values = new ArrayList<>();
+        Collections.addAll(values, key(i));
+        values.add(v);
+        values.add(n);
+        execute(query, values.toArray());
+    }
+
+    private void delete(int i) throws Throwable
+    {
+        execute("DELETE FROM %s" + where(), key(i));
+    }
+
+    private void deleteN(int i) throws Throwable
+    {
+        execute("DELETE n FROM %s" + where(), key(i));
+    }
+
+    /**
+     * Writes the rows in three SSTables and the memtable, overwriting and deleting rows and cells of the previous
+     * ones, and deleting a whole partition of the wide rows.
+     */
+    private void populate() throws Throwable
+    {
+        ColumnFamilyStore cfs = cfs();
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            insert(i, "a", i);
+        }
+        cfs.forceBlockingFlush();
+
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            if (i % 3 == 0)
+            {
+                insert(i, "b", 1000 + i);
+            }
+            if (i % 7 == 0)
+            {
+                delete(i);
+            }
+            if (i % 5 == 1)
+            {
+                deleteN(i);
+            }
+        }
+        cfs.forceBlockingFlush();
+
+        if (wide)
+        {
+            execute("DELETE FROM %s WHERE k = ?", 3);
+        }
+        else
+        {
+            for (int i = 3; i < NUM_ROWS; i += NUM_PARTITIONS)
+            {
+                delete(i);
+            }
+        }
+        insert(NUM_ROWS + 3, "c", 2000 + NUM_ROWS + 3);
+        for (int i = 0; i < NUM_ROWS; i += 11)
+        {
+            insert(i, "c", 2000 + i); // Some of them were deleted
+        }
+        cfs.forceBlockingFlush();
+
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            if (i % 13 == 0)
+            {
+                delete(i);
+            }
+            if (i % 4 == 2)
+            {
+                insert(i, "b", 3000 + i);
+            }
+        }
+        insert(NUM_ROWS + 10, "a", 4000);
+        assertEquals(3, cfs.getSSTables().size());
+        assertTrue(cfs.getMemtableColumnsCount() > 0);
+    }
+
+    private String key(UntypedResultSet.Row row)
+    {
+        return wide ? row.getInt("k") + ":" + row.getInt("c") : String.valueOf(row.getInt("k"));
+    }
+
+    /**
+     * Returns the results of several searches as the sets or lists of the matched row keys, computed either by the
+     * index or from a full scan of the table, without using the index.
+     */
+    private List<Object> results(boolean useIndex) throws Throwable
+    {
+        List<Object> results = new ArrayList<>();
+        if (useIndex)
+        {
+            results.add(keys(search(REFRESH_SEARCH)));
+            for (String value : VALUES)
+            {
+                results.add(keys(search(String.format("{filter:{type:\"match\",field:\"v\",value:\"%s\"}}", value))));
+            }
+            List<String> sorted = new ArrayList<>();
+            for (UntypedResultSet.Row row : search(SORTED_SEARCH))
+            {
+                sorted.add(key(row));
+            }
+            results.add(sorted);
+        }
+        else
+        {
+            UntypedResultSet rows = execute("SELECT * FROM %s");
+            results.add(keys(rows));
+            for (String value : VALUES)
+            {
+                Set<String> keys = new TreeSet<>();
+                for (UntypedResultSet.Row row : rows)
+                {
+                    if (value.equals(row.getString("v")))
+                    {
+                        keys.add(key(row));
+                    }
+                }
+                results.add(keys);
+            }
+            TreeMap<Integer, String> sorted = new TreeMap<>();
+            for (UntypedResultSet.Row row : rows)
+            {
+                if (row.has("n"))
+                {
+                    sorted.put(row.getInt("n"), key(row));
+                }
+            }
+            results.add(new ArrayList<>(sorted.values()));
+        }
+        return results;
+    }
+
+    private Set<String> keys(UntypedResultSet rows)
+    {
+        Set<String> keys = new TreeSet<>();
+        for (UntypedResultSet.Row row : rows)
+        {
+            assertTrue(keys.add(key(row)));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the results of the live index, after checking them against a full scan of the table, and empties the
+     * index without touching the table.
+     */
+    private List<Object> truncateIndex() throws Throwable
+    {
+        List<Object> expected = results(false);
+        List<Object> live = results(true);
+        assertEquals(expected, live);
+        rowService().luceneIndex.truncate();
+        assertEquals(0, search(REFRESH_SEARCH).size());
+        return live;
+    }
+
+    private void rebuild()
+    {
+        CFMetaData metadata = currentTableMetadata();
+        ColumnFamilyStore.rebuildSecondaryIndex(metadata.ksName, metadata.cfName, rowIndex().getIndexName());
+    }
+
+    private void testRebuild(boolean wide) throws Throwable
+    {
+        createTable(wide);
+        createRowIndex(SCHEMA, OPTIONS);
+        populate();
+        List<Object> live = truncateIndex();
+        int numSSTables = cfs().getSSTables().size();
+
+        rebuild();
+        assertEquals(live, results(true));
+        assertEquals(results(false), results(true));
+        assertEquals(numSSTables + 1, cfs().getSSTables().size()); // The memtable has been flushed
+    }
+
+    @Test
+    public void testRebuildSkinnyRows() throws Throwable
+    {
+        testRebuild(false);
+    }
+
+    @Test
+    public void testRebuildWideRows() throws Throwable
+    {
+        testRebuild(true);
+    }
+
+    @Test
+    public void testInitialBuild() throws Throwable
+    {
+        createTable(true);
+        populate();
+        createRowIndex(SCHEMA, OPTIONS);
+        assertEquals(results(false), results(true));
+    }
+
+    @Test
+    public void testCompactionInfo() throws Throwable
+    {
+        createTable(true);
+        createRowIndex(SCHEMA, OPTIONS);
+        populate();
+        List<Object> live = truncateIndex();
+
+        final RowIndexBuilder builder = (RowIndexBuilder) rowIndex().getFullBuilder();
+        CompactionInfo info = builder.getCompactionInfo();
+        assertEquals(OperationType.INDEX_BUILD, info.getTaskType());
+        assertEquals(currentTableMetadata().cfName, info.getColumnFamily());
+        assertEquals(0, info.getCompleted());
+
+        // Watch the progress while building
+        final List<CompactionInfo> progress = Collections.synchronizedList(new ArrayList<CompactionInfo>());
+        final AtomicBoolean finished = new AtomicBoolean();
+        Thread watcher = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                while (!finished.get())
+                {
+                    progress.add(builder.getCompactionInfo());
+                }
+            }
+        };
+        watcher.start();
+        try
+        {
+            builder.build();
+        }
+        finally
+        {
+            finished.set(true);
+            watcher.join();
+        }
+        info = builder.getCompactionInfo();
+        assertTrue(info.getTotal() > 0);
+        assertEquals(info.getTotal(), info.getCompleted());
+        CompactionInfo previous = null;
+        for (CompactionInfo current : progress)
+        {
+            assertTrue(current.getCompleted() <= info.getTotal());
+            if (previous != null)
+            {
+                assertTrue(current.getCompleted() >= previous.getCompleted());
+            }
+            previous = current;
+        }
+        assertEquals(live, results(true));
+    }
+
+    @Test
+    public void testInterruptedBuild() throws Throwable
+    {
+        createTable(false);
+        createRowIndex(SCHEMA, OPTIONS);
+        populate();
+        List<Object> live = truncateIndex();
+
+        RowIndexBuilder builder = (RowIndexBuilder) rowIndex().getFullBuilder();
+        builder.stop();
+        try
+        {
+            builder.build();
+            fail("The stopped build should have been interrupted");
+        }
+        catch (CompactionInterruptedException e)
+        {
+            // Expected
+        }
+        assertEquals(0, search(REFRESH_SEARCH).size());
+
+        // The index keeps indexing writes, and can be rebuilt again
+        insert(NUM_ROWS + 20, "a", 5000);
+        assertEquals(1, search(REFRESH_SEARCH).size());
+        rebuild();
+        assertEquals(results(false), results(true));
+        assertTrue(((Set<?>) results(true).get(0)).containsAll((Set<?>) live.get(0)));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.cql3.CQLTester;
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Base class for the tests running CQL queries against a {@link RowIndex}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public abstract class RowIndexTester extends CQLTester
+{
+
+    private static final long WAIT_MILLIS = 10000;
+    private static final ByteBuffer COLUMN_NAME = ByteBufferUtil.bytes("lucene");
+
+    /**
+     * Creates a {@link RowIndex} on the {@code lucene} column of the current table, waiting for its initial build.
+     *
+     * @param schema  The JSON index schema.
+     * @param options The other index options, as a CQL map body, or {@code null} if there are none.
+     */
+    protected void createRowIndex(String schema, String options)
+    {
+        createIndex(String.format("CREATE CUSTOM INDEX ON %%s (lucene) USING '%s' WITH OPTIONS = {%s'schema':'%s'}",
+                                  RowIndex.class.getName(),
+                                  options == null ? "" : options + ", ",
+                                  schema));
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!rowIndex().isIndexBuilt(COLUMN_NAME))
+        {
+            if (System.currentTimeMillis() > deadline)
+            {
+                fail("Timed out waiting for index build");
+            }
+            Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the {@link RowIndex} of the current table.
+     *
+     * @return The {@link RowIndex} of the current table.
+     */
+    protected RowIndex rowIndex()
+    {
+        CFMetaData metadata = currentTableMetadata();
+        ColumnFamilyStore cfs = Keyspace.open(metadata.ksName).getColumnFamilyStore(metadata.cfName);
+        return (RowIndex) cfs.indexManager.getIndexForColumn(COLUMN_NAME);
+    }
+
+    /**
+     * Returns the rows of the current table matching the specified JSON search.
+     *
+     * @param search The JSON search.
+     * @return The rows of the current table matching {@code search}.
+     */
+    protected UntypedResultSet search(String search) throws Throwable
+    {
+        return execute("SELECT * FROM %s WHERE lucene = ?", search);
+    }
+
+    /**
+     * Waits until the specified JSON search returns the specified number of rows.
+     *
+     * @param search       The JSON search.
+     * @param expectedRows The number of expected rows.
+     * @return The matched rows.
+     */
+    protected UntypedResultSet waitForSearch(String search, int expectedRows) throws Throwable
+    {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (true)
+        {
+            UntypedResultSet rows = search(search);
+            if (rows.size() == expectedRows)
+            {
+                return rows;
+            }
+            if (System.currentTimeMillis() > deadline)
+            {
+                fail(String.format("Expected %d rows but found %d", expectedRows, rows.size()));
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Returns the value of the specified {@link RowIndexMetrics} counter of the index of the current table.
+     *
+     * @param name The metric name.
+     * @return The counter value.
+     */
+    protected long counter(String name)
+    {
+        return ((Counter) metric(name)).count();
+    }
+
+    /**
+     * Returns the value of the specified {@link RowIndexMetrics} gauge of the index of the current table.
+     *
+     * @param name The metric name.
+     * @return The gauge value.
+     */
+    protected Object gauge(String name)
+    {
+        return ((Gauge<?>) metric(name)).value();
+    }
+
+    private Metric metric(String name)
+    {
+        CFMetaData metadata = currentTableMetadata();
+        String scope = metadata.ksName + "." + metadata.cfName + ".";
+        for (Map.Entry<MetricName, Metric> entry : Metrics.defaultRegistry().allMetrics().entrySet())
+        {
+            MetricName metricName = entry.getKey();
+            if ("RowIndex".equals(metricName.getType())
+                && name.equals(metricName.getName())
+                && metricName.getScope().startsWith(scope))
+            {
+                return entry.getValue();
+            }
+        }
+        throw new IllegalArgumentException("Unknown metric " + name);
+    }
+}
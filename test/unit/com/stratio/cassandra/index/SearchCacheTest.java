@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.Keyspace;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the caching of the parsed searches and of the documents matched by their filters, and for their metrics.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class SearchCacheTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, n:{type:\"integer\"}}}";
+    private static final String OPTIONS = "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'";
+    private static final String FILTER_SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"}}";
+    private static final String REFRESH_SEARCH = "{query:{type:\"match\",field:\"v\",value:\"a\"}, refresh:true}";
+
+    private void insert(int from, int to) throws Throwable
+    {
+        for (int i = from; i < to; i++)
+        {
+            execute("INSERT INTO %s (k, v, n) VALUES (?, ?, ?)", i, i % 2 == 0 ? "a" : "b", i);
+        }
+        search(REFRESH_SEARCH); // Reopen the searcher, creating a new segment
+    }
+
+    private long longGauge(String name)
+    {
+        return ((Number) gauge(name)).longValue();
+    }
+
+    @Test
+    public void testSearchCache() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        insert(0, 10);
+
+        long misses = longGauge("SearchCacheMisses");
+        long entries = longGauge("SearchCacheEntries");
+        assertEquals(5, search(FILTER_SEARCH).size());
+        assertEquals(misses + 1, longGauge("SearchCacheMisses"));
+        assertEquals(entries + 1, longGauge("SearchCacheEntries"));
+        long hits = longGauge("SearchCacheHits");
+
+        // The same search is parsed only once
+        assertEquals(5, search(FILTER_SEARCH).size());
+        assertEquals(misses + 1, longGauge("SearchCacheMisses"));
+        assertTrue(longGauge("SearchCacheHits") > hits);
+        assertEquals(entries + 1, longGauge("SearchCacheEntries"));
+        assertTrue((Double) gauge("SearchCacheHitRate") > 0.5);
+    }
+
+    @Test
+    public void testFilterCache() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS + ", 'filter_cache_mb':'1'");
+        insert(0, 10);
+        assertEquals(0L, longGauge("FilterCacheEntries"));
+        assertEquals(0L, longGauge("FilterCacheSize"));
+
+        // The first search caches the filter of the single segment, and the second one uses it
+        assertEquals(5, search(FILTER_SEARCH).size());
+        assertEquals(1L, longGauge("FilterCacheMisses"));
+        assertEquals(0L, longGauge("FilterCacheHits"));
+        assertEquals(1L, longGauge("FilterCacheEntries"));
+        long size = longGauge("FilterCacheSize");
+        assertTrue(size > 0);
+        assertEquals(5, search(FILTER_SEARCH).size());
+        assertEquals(1L, longGauge("FilterCacheMisses"));
+        assertEquals(1L, longGauge("FilterCacheHits"));
+        assertEquals(0.5, (Double) gauge("FilterCacheHitRate"), 0.0);
+        assertEquals(size, longGauge("FilterCacheSize"));
+
+        // A new segment only misses its own entry
+        insert(10, 20);
+        assertEquals(10, search(FILTER_SEARCH).size());
+        assertEquals(2L, longGauge("FilterCacheMisses"));
+        assertEquals(2L, longGauge("FilterCacheHits"));
+        assertEquals(2L, longGauge("FilterCacheEntries"));
+        assertTrue(longGauge("FilterCacheSize") > size);
+
+        // Deletions don't invalidate the cached entries, and the deleted rows are not matched
+        execute("DELETE FROM %s WHERE k = ?", 0);
+        search(REFRESH_SEARCH);
+        assertEquals(9, search(FILTER_SEARCH).size());
+        assertEquals(2L, longGauge("FilterCacheMisses"));
+        assertEquals(4L, longGauge("FilterCacheHits"));
+
+        // The entries of the segments dropped by truncation are invalidated
+        CFMetaData metadata = currentTableMetadata();
+        Keyspace.open(metadata.ksName).getColumnFamilyStore(metadata.cfName).truncateBlocking();
+        search(REFRESH_SEARCH);
+        assertEquals(0L, longGauge("FilterCacheEntries"));
+        assertEquals(0L, longGauge("FilterCacheSize"));
+        assertEquals(0L, longGauge("FilterCacheEvictions"));
+    }
+
+    @Test
+    public void testFilterCacheDisabled() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS + ", 'filter_cache_mb':'0'");
+        insert(0, 10);
+        assertEquals(5, search(FILTER_SEARCH).size());
+        try
+        {
+            gauge("FilterCacheSize");
+            fail("The filter cache metrics shouldn't be registered");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the cursors resuming the pages of paged searches, and for their index options.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class SearchCursorTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}}}";
+    private static final String SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"}}";
+    private static final int NUM_ROWS = 300;
+    private static final int PAGE_SIZE = 50;
+
+    private void createAndPopulate(String options) throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1'" + (options == null ? "" : ", " + options));
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            execute("INSERT INTO %s (k, v) VALUES (?, ?)", i, "a");
+        }
+        waitForSearch(SEARCH, NUM_ROWS);
+    }
+
+    private Iterator<UntypedResultSet.Row> pagedSearch()
+    {
+        CFMetaData metadata = currentTableMetadata();
+        String query = String.format("SELECT * FROM %s.%s WHERE lucene = ?", metadata.ksName, metadata.cfName);
+        return QueryProcessor.executeInternalWithPaging(query, PAGE_SIZE, SEARCH).iterator();
+    }
+
+    private static void assertAllRows(Set<Integer> keys)
+    {
+        assertEquals(NUM_ROWS, keys.size());
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            assertTrue(keys.contains(i));
+        }
+    }
+
+    @Test
+    public void testPagedSearchResumesCursors() throws Throwable
+    {
+        createAndPopulate(null);
+        Set<Integer> keys = new HashSet<>();
+        Iterator<UntypedResultSet.Row> rows = pagedSearch();
+        while (rows.hasNext())
+        {
+            assertTrue(keys.add(rows.next().getInt("k")));
+        }
+        assertAllRows(keys);
+        assertTrue(counter("SearchCursorsResumed") > 0);
+    }
+
+    @Test
+    public void testPagedSearchOfWideRows() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1'");
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            execute("INSERT INTO %s (k, c, v) VALUES (?, ?, ?)", i % 30, i, "a");
+        }
+        waitForSearch(SEARCH, NUM_ROWS);
+
+        Set<Integer> keys = new HashSet<>();
+        Iterator<UntypedResultSet.Row> rows = pagedSearch();
+        while (rows.hasNext())
+        {
+            assertTrue(keys.add(rows.next().getInt("c")));
+        }
+        assertAllRows(keys);
+        assertTrue(counter("SearchCursorsResumed") > 0);
+    }
+
+    @Test
+    public void testConcurrentPagedSearches() throws Throwable
+    {
+        createAndPopulate(null);
+        Set<Integer> keys1 = new HashSet<>();
+        Set<Integer> keys2 = new HashSet<>();
+        Iterator<UntypedResultSet.Row> rows1 = pagedSearch();
+        Iterator<UntypedResultSet.Row> rows2 = pagedSearch();
+        while (rows1.hasNext() || rows2.hasNext())
+        {
+            // Both clients fetch the same pages of the same search at the same time
+            if (rows1.hasNext())
+            {
+                assertTrue(keys1.add(rows1.next().getInt("k")));
+            }
+            if (rows2.hasNext())
+            {
+                assertTrue(keys2.add(rows2.next().getInt("k")));
+            }
+        }
+        assertAllRows(keys1);
+        assertAllRows(keys2);
+    }
+
+    @Test
+    public void testDisabledCursors() throws Throwable
+    {
+        createAndPopulate("'search_cursors':'0'");
+        Set<Integer> keys = new HashSet<>();
+        Iterator<UntypedResultSet.Row> rows = pagedSearch();
+        while (rows.hasNext())
+        {
+            assertTrue(keys.add(rows.next().getInt("k")));
+        }
+        assertAllRows(keys);
+        assertEquals(0, counter("SearchCursorsResumed"));
+    }
+
+    @Test
+    public void testInvalidCursorOptions() throws Throwable
+    {
+        String[] invalidOptions = {"'search_cursors':'-1'",
+                                   "'search_cursors':'a'",
+                                   "'search_cursor_ttl_seconds':'0'",
+                                   "'search_cursor_ttl_seconds':'1.5'"};
+        for (String options : invalidOptions)
+        {
+            createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, lucene text)");
+            try
+            {
+                createRowIndex(SCHEMA, options);
+                fail("Index options should be invalid: " + options);
+            }
+            catch (RuntimeException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
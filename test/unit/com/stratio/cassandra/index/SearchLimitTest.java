@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the streaming of the rows of a search in Lucene's order, stopping as soon as the search limit is reached.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class SearchLimitTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, n:{type:\"integer\"}}}";
+    private static final String SORTED_SEARCH = "{filter:{type:\"match\",field:\"v\",value:\"a\"}, "
+                                                + "sort:{fields:[{field:\"n\"}]}}";
+    private static final String REFRESH_SEARCH = "{refresh:true}";
+    private static final String OPTIONS = "'refresh_seconds':'60', 'min_refresh_seconds':'0.05'";
+    private static final int NUM_ROWS = 100;
+
+    /**
+     * Returns the shuffled values of the sorting column, so that the index order of the documents differs from the
+     * order of the hits.
+     */
+    private static List<Integer> values(int count)
+    {
+        List<Integer> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(7));
+        return values;
+    }
+
+    /**
+     * Runs the sorted search with the specified limit, without refreshing the index, and asserts that it returns the
+     * specified values of {@code n} in order, having read at most {@code maxReadRows} rows from the base table.
+     */
+    private void assertSortedSearch(int limit, List<Integer> expected, int maxReadRows) throws Throwable
+    {
+        long read = counter("SearchRowsRead");
+        long returned = counter("SearchRowsReturned");
+        UntypedResultSet rows = execute("SELECT * FROM %s WHERE lucene = ? LIMIT " + limit, SORTED_SEARCH);
+
+        List<Integer> actual = new ArrayList<>(rows.size());
+        for (UntypedResultSet.Row row : rows)
+        {
+            actual.add(row.getInt("n"));
+        }
+        assertEquals(expected, actual);
+        assertEquals(expected.size(), counter("SearchRowsReturned") - returned);
+        long readRows = counter("SearchRowsRead") - read;
+        assertTrue("Read " + readRows + " rows", readRows >= expected.size() && readRows <= maxReadRows);
+    }
+
+    private static List<Integer> range(int from, int to, int skippedDivisor)
+    {
+        List<Integer> values = new ArrayList<>();
+        for (int n = from; n < to; n++)
+        {
+            if (skippedDivisor == 0 || n % skippedDivisor != 0)
+            {
+                values.add(n);
+            }
+        }
+        return values;
+    }
+
+    private List<Integer> createSkinny() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        List<Integer> values = values(NUM_ROWS);
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            execute("INSERT INTO %s (k, v, n) VALUES (?, ?, ?)", i, "a", values.get(i));
+        }
+        search(REFRESH_SEARCH);
+        return values;
+    }
+
+    @Test
+    public void testLimitAtPageBoundary() throws Throwable
+    {
+        createSkinny();
+
+        // The first page has exactly the limit, so no more documents nor rows are read
+        assertSortedSearch(1, range(0, 1, 0), 1);
+        assertSortedSearch(50, range(0, 50, 0), 50);
+        assertSortedSearch(NUM_ROWS, range(0, NUM_ROWS, 0), NUM_ROWS);
+        assertSortedSearch(2 * NUM_ROWS, range(0, NUM_ROWS, 0), NUM_ROWS);
+    }
+
+    @Test
+    public void testSkipDeletedRows() throws Throwable
+    {
+        List<Integer> values = createSkinny();
+
+        // Delete the rows whose value is a multiple of five, which are still in the searched point in time view
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            if (values.get(i) % 5 == 0)
+            {
+                execute("DELETE FROM %s WHERE k = ?", i);
+            }
+        }
+
+        // The 20 first live values are below 25, which are read in three pages (20, 4 and 1 documents), the last of
+        // them reaching exactly the limit
+        assertSortedSearch(20, range(0, 25, 5), 25);
+        assertSortedSearch(NUM_ROWS, range(0, NUM_ROWS, 5), NUM_ROWS);
+    }
+
+    @Test
+    public void testSkipExpiredRows() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int PRIMARY KEY, v text, n int, lucene text)");
+        createRowIndex(SCHEMA, OPTIONS);
+        List<Integer> values = values(NUM_ROWS);
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            int n = values.get(i);
+            String ttl = n % 5 == 0 ? " USING TTL 1" : "";
+            execute("INSERT INTO %s (k, v, n) VALUES (?, ?, ?)" + ttl, i, "a", n);
+        }
+        search(REFRESH_SEARCH);
+
+        // The expired rows are still indexed until they are compacted
+        Thread.sleep(2000);
+        assertSortedSearch(20, range(0, 25, 5), 25);
+    }
+
+    @Test
+    public void testWideRowsLimitCountsCQLRows() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, n int, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, OPTIONS);
+        int numRows = 2 * NUM_ROWS;
+        List<Integer> values = values(numRows);
+        for (int i = 0; i < numRows; i++)
+        {
+            execute("INSERT INTO %s (k, c, v, n) VALUES (?, ?, ?, ?)", i % 10, i, "a", values.get(i));
+        }
+        search(REFRESH_SEARCH);
+
+        // The limit is counted in CQL rows, spread over the ten partitions, and not in partitions
+        assertSortedSearch(30, range(0, 30, 0), 30);
+        assertSortedSearch(5, range(0, 5, 0), 5);
+
+        // Delete some CQL rows, which are still in the searched point in time view
+        for (int i = 0; i < numRows; i++)
+        {
+            if (values.get(i) % 5 == 0)
+            {
+                execute("DELETE FROM %s WHERE k = ? AND c = ?", i % 10, i);
+            }
+        }
+        assertSortedSearch(30, range(0, 38, 5), 38);
+    }
+}
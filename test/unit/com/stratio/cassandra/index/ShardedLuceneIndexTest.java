@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index;
+
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the searches merging the results of the several shards of a {@link ShardedLuceneIndex}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class ShardedLuceneIndexTest extends RowIndexTester
+{
+
+    private static final String SCHEMA = "{fields:{v:{type:\"string\"}, n:{type:\"integer\"}}}";
+    private static final String MATCH_ALL = "{filter:{type:\"match\",field:\"v\",value:\"a\"}}";
+    private static final int NUM_ROWS = 200;
+    private static final int NUM_PARTITIONS = 50;
+
+    /**
+     * Returns the partition key for the specified partition number. Keys are spread over the whole ring, so that all
+     * the shards get partitions with any partitioner.
+     */
+    private static int key(int partition)
+    {
+        return (int) (partition * (0x100000000L / NUM_PARTITIONS));
+    }
+
+    private void createAndPopulate() throws Throwable
+    {
+        createTable("CREATE TABLE %s (k int, c int, v text, n int, lucene text, PRIMARY KEY (k, c))");
+        createRowIndex(SCHEMA, "'refresh_seconds':'0.1', 'shards':'4'");
+
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(42));
+        for (int i = 0; i < NUM_ROWS; i++)
+        {
+            execute("INSERT INTO %s (k, c, v, n) VALUES (?, ?, ?, ?)", key(i % NUM_PARTITIONS), i, "a", values.get(i));
+        }
+        waitForSearch(MATCH_ALL, NUM_ROWS);
+    }
+
+    @Test
+    public void testFilterSearchesAllShards() throws Throwable
+    {
+        createAndPopulate();
+        UntypedResultSet rows = search(MATCH_ALL);
+        Set<Integer> found = new HashSet<>();
+        for (UntypedResultSet.Row row : rows)
+        {
+            found.add(row.getInt("c"));
+        }
+        assertEquals(NUM_ROWS, found.size());
+    }
+
+    @Test
+    public void testSortedSearchMergesShards() throws Throwable
+    {
+        createAndPopulate();
+        String search = "{filter:{type:\"match\",field:\"v\",value:\"a\"}, sort:{fields:[{field:\"n\"}]}}";
+        UntypedResultSet rows = execute("SELECT * FROM %s WHERE lucene = ? LIMIT 30", search);
+        assertEquals(30, rows.size());
+        int expected = 0;
+        for (UntypedResultSet.Row row : rows)
+        {
+            assertEquals(expected++, row.getInt("n"));
+        }
+
+        search = "{filter:{type:\"match\",field:\"v\",value:\"a\"}, sort:{fields:[{field:\"n\",reverse:true}]}}";
+        rows = execute("SELECT * FROM %s WHERE lucene = ? LIMIT 10", search);
+        assertEquals(10, rows.size());
+        expected = NUM_ROWS - 1;
+        for (UntypedResultSet.Row row : rows)
+        {
+            assertEquals(expected--, row.getInt("n"));
+        }
+    }
+
+    @Test
+    public void testTokenRangeSearch() throws Throwable
+    {
+        createAndPopulate();
+        for (int partition : new int[]{0, 17, 33})
+        {
+            int k = key(partition);
+            Set<Integer> expected = new HashSet<>();
+            for (UntypedResultSet.Row row : execute("SELECT c FROM %s WHERE token(k) > token(?)", k))
+            {
+                expected.add(row.getInt("c"));
+            }
+            Set<Integer> found = new HashSet<>();
+            for (UntypedResultSet.Row row : execute("SELECT * FROM %s WHERE lucene = ? AND token(k) > token(?)",
+                                                    MATCH_ALL,
+                                                    k))
+            {
+                found.add(row.getInt("c"));
+            }
+            assertEquals(expected, found);
+        }
+    }
+
+    @Test
+    public void testDeletionInAllShards() throws Throwable
+    {
+        createAndPopulate();
+        for (int partition = 0; partition < NUM_PARTITIONS; partition += 2)
+        {
+            execute("DELETE FROM %s WHERE k = ?", key(partition));
+        }
+        waitForSearch(MATCH_ALL, NUM_ROWS / 2);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.query;
+
+import com.stratio.cassandra.index.schema.ColumnMapper;
+import com.stratio.cassandra.index.schema.ColumnMapperInteger;
+import com.stratio.cassandra.index.schema.ColumnMapperString;
+import com.stratio.cassandra.index.schema.Schema;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.SortField;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.stratio.cassandra.index.query.builder.SearchBuilders.fuzzy;
+import static com.stratio.cassandra.index.query.builder.SearchBuilders.query;
+import static com.stratio.cassandra.index.query.builder.SearchBuilders.sortField;
+import static com.stratio.cassandra.index.query.builder.SearchBuilders.wildcard;
+
+/**
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class SearchTest
+{
+
+    private static Schema schema()
+    {
+        Map<String, ColumnMapper<?>> map = new HashMap<>();
+        map.put("name", new ColumnMapperString());
+        map.put("age", new ColumnMapperInteger(null));
+        return new Schema(EnglishAnalyzer.class.getName(), map);
+    }
+
+    @Test
+    public void testCompiledOncePerSchema()
+    {
+        Schema schema = schema();
+        Search search = query(fuzzy("name", "tr")).filter(wildcard("name", "t*")).sort(sortField("name")).build();
+
+        BooleanQuery first = (BooleanQuery) search.query(schema, null);
+        BooleanQuery second = (BooleanQuery) search.query(schema, null);
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, first.clauses().size());
+        Assert.assertSame(first.clauses().get(0).getQuery(), second.clauses().get(0).getQuery());
+        Assert.assertSame(search.sort(schema), search.sort(schema));
+    }
+
+    @Test
+    public void testCompiledAgainForAnotherSchema()
+    {
+        Search search = query(fuzzy("name", "tr")).sort(sortField("name")).build();
+
+        BooleanQuery first = (BooleanQuery) search.query(schema(), null);
+        BooleanQuery second = (BooleanQuery) search.query(schema(), null);
+
+        Assert.assertNotSame(first.clauses().get(0).getQuery(), second.clauses().get(0).getQuery());
+        Assert.assertEquals(first.clauses().get(0).getQuery(), second.clauses().get(0).getQuery());
+    }
+
+    @Test
+    public void testAggregationsFromJson()
+    {
+        Search search = Search.fromJson("{filter:{type:\"wildcard\",field:\"name\",value:\"t*\"}," +
+                                        "aggregations:[{type:\"max\",field:\"age\"}," +
+                                        "{type:\"facet\",field:\"name\",limit:3}]}");
+
+        Assert.assertEquals(2, search.getAggregations().size());
+        Assert.assertEquals("max(age)", search.getAggregations().get(0).name());
+        Assert.assertEquals(Aggregation.DEFAULT_LIMIT, search.getAggregations().get(0).getLimit());
+        Assert.assertEquals("facet(name)", search.getAggregations().get(1).name());
+        Assert.assertEquals(3, search.getAggregations().get(1).getLimit());
+        SortField.Type[] types = search.aggregationTypes(schema());
+        Assert.assertEquals(SortField.Type.INT, types[0]);
+        Assert.assertEquals(SortField.Type.STRING, types[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNumericAggregationOverStringField()
+    {
+        Search search = Search.fromJson("{aggregations:[{type:\"sum\",field:\"name\"}]}");
+        search.validate(schema());
+    }
+
+}
@@ -17,8 +17,14 @@ package com.stratio.cassandra.index.schema;
 
 import java.io.IOException;
 
+import org.apache.cassandra.db.IndexExpression;
+import org.apache.cassandra.db.IndexExpression.Operator;
+import org.apache.cassandra.db.marshal.DoubleType;
+import org.apache.cassandra.db.marshal.Int32Type;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -171,4 +177,46 @@ public class ColumnMapperIntegerTest
         String json = "{fields:{age:{}}";
         Schema.fromJson(json);
     }
+
+    @Test
+    public void testQueryExpressionEQ()
+    {
+        ColumnMapperInteger mapper = new ColumnMapperInteger(1f);
+        IndexExpression expression = new IndexExpression(Int32Type.instance.decompose(3),
+                                                         Operator.EQ,
+                                                         Int32Type.instance.decompose(3));
+        Query query = mapper.query("test", Int32Type.instance, expression);
+        Assert.assertEquals(NumericRangeQuery.class, query.getClass());
+        NumericRangeQuery<?> numericRangeQuery = (NumericRangeQuery<?>) query;
+        Assert.assertEquals(Integer.valueOf(3), numericRangeQuery.getMin());
+        Assert.assertEquals(Integer.valueOf(3), numericRangeQuery.getMax());
+        Assert.assertTrue(numericRangeQuery.includesMin());
+        Assert.assertTrue(numericRangeQuery.includesMax());
+    }
+
+    @Test
+    public void testQueryExpressionGT()
+    {
+        ColumnMapperInteger mapper = new ColumnMapperInteger(1f);
+        IndexExpression expression = new IndexExpression(Int32Type.instance.decompose(3),
+                                                         Operator.GT,
+                                                         Int32Type.instance.decompose(3));
+        Query query = mapper.query("test", Int32Type.instance, expression);
+        Assert.assertEquals(NumericRangeQuery.class, query.getClass());
+        NumericRangeQuery<?> numericRangeQuery = (NumericRangeQuery<?>) query;
+        Assert.assertEquals(Integer.valueOf(3), numericRangeQuery.getMin());
+        Assert.assertNull(numericRangeQuery.getMax());
+        Assert.assertFalse(numericRangeQuery.includesMin());
+    }
+
+    @Test
+    public void testQueryExpressionInexact()
+    {
+        ColumnMapperInteger mapper = new ColumnMapperInteger(1f);
+        IndexExpression expression = new IndexExpression(Int32Type.instance.decompose(3),
+                                                         Operator.EQ,
+                                                         DoubleType.instance.decompose(3.5));
+        Query query = mapper.query("test", DoubleType.instance, expression);
+        Assert.assertNull(query);
+    }
 }
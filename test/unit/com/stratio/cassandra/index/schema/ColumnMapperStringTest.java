@@ -18,8 +18,15 @@ package com.stratio.cassandra.index.schema;
 import java.io.IOException;
 import java.util.UUID;
 
+import org.apache.cassandra.db.IndexExpression;
+import org.apache.cassandra.db.IndexExpression.Operator;
+import org.apache.cassandra.db.marshal.TimestampType;
+import org.apache.cassandra.db.marshal.UTF8Type;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -178,4 +185,42 @@ public class ColumnMapperStringTest
         String json = "{fields:{age:{}}";
         Schema.fromJson(json);
     }
+
+    @Test
+    public void testQueryExpressionEQ()
+    {
+        ColumnMapperString mapper = new ColumnMapperString();
+        IndexExpression expression = new IndexExpression(UTF8Type.instance.decompose("test"),
+                                                         Operator.EQ,
+                                                         UTF8Type.instance.decompose("Hello"));
+        Query query = mapper.query("test", UTF8Type.instance, expression);
+        Assert.assertEquals(TermQuery.class, query.getClass());
+        Assert.assertEquals("Hello", ((TermQuery) query).getTerm().text());
+    }
+
+    @Test
+    public void testQueryExpressionLTE()
+    {
+        ColumnMapperString mapper = new ColumnMapperString();
+        IndexExpression expression = new IndexExpression(UTF8Type.instance.decompose("test"),
+                                                         Operator.LTE,
+                                                         UTF8Type.instance.decompose("Hello"));
+        Query query = mapper.query("test", UTF8Type.instance, expression);
+        Assert.assertEquals(TermRangeQuery.class, query.getClass());
+        TermRangeQuery termRangeQuery = (TermRangeQuery) query;
+        Assert.assertNull(termRangeQuery.getLowerTerm());
+        Assert.assertEquals("Hello", termRangeQuery.getUpperTerm().utf8ToString());
+        Assert.assertTrue(termRangeQuery.includesUpper());
+    }
+
+    @Test
+    public void testQueryExpressionInexact()
+    {
+        ColumnMapperString mapper = new ColumnMapperString();
+        IndexExpression expression = new IndexExpression(UTF8Type.instance.decompose("test"),
+                                                         Operator.EQ,
+                                                         TimestampType.instance.decompose(new java.util.Date()));
+        Query query = mapper.query("test", TimestampType.instance, expression);
+        Assert.assertNull(query);
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the conversion of keys between {@link ByteBuffer}s, strings and UTF-8 {@link BytesRef}s done by
+ * {@link ByteBufferUtils}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class ByteBufferUtilsTest
+{
+
+    /**
+     * Asserts that the direct UTF-8 encoding of the specified {@link ByteBuffer} into the specified {@link BytesRef}
+     * is the same as the one of its string, that the {@link ByteBuffer} is not modified, and that it can be decoded.
+     */
+    private static void assertBytesRef(ByteBuffer byteBuffer, BytesRef bytesRef)
+    {
+        ByteBuffer original = byteBuffer.duplicate();
+        String string = ByteBufferUtils.toString(byteBuffer);
+        assertEquals(original, byteBuffer);
+
+        BytesRef result = ByteBufferUtils.toBytesRef(byteBuffer, bytesRef);
+        assertEquals(original, byteBuffer);
+        assertEquals(bytesRef, result);
+        assertEquals(new BytesRef(string), result);
+        assertEquals(string, result.utf8ToString());
+        assertEquals(original, ByteBufferUtils.fromBytesRef(result));
+        assertEquals(original, ByteBufferUtils.fromString(string));
+    }
+
+    private static void assertBytesRef(ByteBuffer byteBuffer)
+    {
+        assertBytesRef(byteBuffer, new BytesRef());
+    }
+
+    private static byte[] allBytes()
+    {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testEveryByte()
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            assertBytesRef(ByteBuffer.wrap(new byte[]{(byte) i}));
+            assertBytesRef(ByteBuffer.wrap(new byte[]{(byte) i, (byte) (255 - i), (byte) i}));
+        }
+        assertBytesRef(ByteBuffer.wrap(allBytes()));
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        assertBytesRef(ByteBuffer.allocate(0));
+        assertBytesRef(ByteBuffer.allocate(0), new BytesRef("previous"));
+    }
+
+    @Test
+    public void testPositionAndLimit()
+    {
+        byte[] bytes = allBytes();
+        for (int position = 0; position < bytes.length; position += 7)
+        {
+            for (int limit = position; limit <= bytes.length; limit += 11)
+            {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+                byteBuffer.position(position);
+                byteBuffer.limit(limit);
+                assertBytesRef(byteBuffer);
+                assertBytesRef(byteBuffer.slice());
+            }
+        }
+
+        // A buffer wrapping a range of an array, with non zero array offset
+        ByteBuffer slice = ByteBuffer.wrap(bytes, 100, 150).slice();
+        assertEquals(100, slice.arrayOffset());
+        assertBytesRef(slice);
+    }
+
+    @Test
+    public void testDirectBuffer()
+    {
+        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(300);
+        byteBuffer.position(20);
+        byteBuffer.put(allBytes());
+        byteBuffer.flip();
+        byteBuffer.position(20);
+        assertBytesRef(byteBuffer);
+        assertBytesRef(byteBuffer.slice());
+    }
+
+    @Test
+    public void testReusedBytesRef()
+    {
+        // A reused BytesRef holding a longer value is overwritten without keeping any of its previous bytes
+        BytesRef bytesRef = new BytesRef();
+        assertBytesRef(ByteBuffer.wrap(allBytes()), bytesRef);
+        assertBytesRef(ByteBuffer.wrap(new byte[]{(byte) 200, 1}), bytesRef);
+        assertBytesRef(ByteBuffer.wrap(new byte[]{1}), bytesRef);
+        assertBytesRef(ByteBuffer.allocate(0), bytesRef);
+        assertBytesRef(ByteBuffer.wrap(allBytes()), bytesRef);
+
+        // An undersized BytesRef grows
+        assertBytesRef(ByteBuffer.wrap(allBytes()), new BytesRef(new byte[1]));
+        assertBytesRef(ByteBuffer.wrap(new byte[]{(byte) 128}), new BytesRef(new byte[1]));
+
+        // A BytesRef pointing to the middle of its array is written from the beginning
+        assertBytesRef(ByteBuffer.wrap(allBytes()), new BytesRef(new byte[1024], 100, 10));
+        assertBytesRef(ByteBuffer.wrap(new byte[]{(byte) 255, 0}), new BytesRef(new byte[4], 3, 1));
+    }
+
+    @Test
+    public void testRandomBuffers()
+    {
+        Random random = new Random(42);
+        BytesRef bytesRef = new BytesRef();
+        for (int i = 0; i < 1000; i++)
+        {
+            byte[] bytes = new byte[random.nextInt(64)];
+            random.nextBytes(bytes);
+            int position = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+            ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+            byteBuffer.position(position);
+            assertBytesRef(byteBuffer, bytesRef);
+            assertBytesRef(byteBuffer);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import com.google.common.cache.CacheStats;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link FilterCache}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class FilterCacheTest
+{
+
+    private static final int DOCS_PER_SEGMENT = 100;
+
+    private RAMDirectory directory;
+    private IndexWriter writer;
+    private DirectoryReader reader;
+    private int numDocs;
+
+    @Before
+    public void before() throws IOException
+    {
+        directory = new RAMDirectory();
+        writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer()));
+        reader = null;
+        numDocs = 0;
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        if (reader != null)
+        {
+            reader.close();
+        }
+        writer.close();
+        directory.close();
+    }
+
+    /**
+     * Adds a new segment with {@link #DOCS_PER_SEGMENT} documents, whose field {@code even} says if their {@code id} is
+     * even, and their field {@code mod} is their {@code id} modulo ten.
+     */
+    private void addSegment() throws IOException
+    {
+        for (int i = 0; i < DOCS_PER_SEGMENT; i++)
+        {
+            int id = numDocs++;
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(id), Field.Store.YES));
+            document.add(new StringField("even", Boolean.toString(id % 2 == 0), Field.Store.NO));
+            document.add(new StringField("mod", Integer.toString(id % 10), Field.Store.NO));
+            writer.addDocument(document);
+        }
+        writer.commit();
+    }
+
+    /**
+     * Reopens the NRT reader, closing the previous one.
+     */
+    private IndexSearcher reopen() throws IOException
+    {
+        DirectoryReader newReader = reader == null
+                                    ? DirectoryReader.open(writer, true)
+                                    : DirectoryReader.openIfChanged(reader, writer, true);
+        if (newReader != null)
+        {
+            if (reader != null)
+            {
+                reader.close();
+            }
+            reader = newReader;
+        }
+        return new IndexSearcher(reader);
+    }
+
+    private static Query query(String field, String value)
+    {
+        return new TermQuery(new Term(field, value));
+    }
+
+    private static int count(IndexSearcher searcher, FilterCache cache, Query query) throws IOException
+    {
+        TopDocs topDocs = searcher.search(new ConstantScoreQuery(cache.filter(query)), Integer.MAX_VALUE);
+        return topDocs.totalHits;
+    }
+
+    @Test
+    public void testHitSameQueryAndCore() throws IOException
+    {
+        FilterCache cache = new FilterCache(1024 * 1024);
+        addSegment();
+        addSegment();
+        IndexSearcher searcher = reopen();
+        int numSegments = reader.leaves().size();
+        assertEquals(2, numSegments);
+
+        // The first search populates the cache with an entry per segment
+        assertEquals(numDocs / 2, count(searcher, cache, query("even", "true")));
+        CacheStats stats = cache.getCache().stats();
+        assertEquals(numSegments, stats.missCount());
+        assertEquals(0, stats.hitCount());
+        assertEquals(numSegments, cache.getCache().size());
+
+        // An equal query hits the cached entries
+        assertEquals(numDocs / 2, count(searcher, cache, query("even", "true")));
+        stats = cache.getCache().stats();
+        assertEquals(numSegments, stats.missCount());
+        assertEquals(numSegments, stats.hitCount());
+
+        // A different query doesn't
+        assertEquals(numDocs / 2, count(searcher, cache, query("even", "false")));
+        stats = cache.getCache().stats();
+        assertEquals(2 * numSegments, stats.missCount());
+        assertEquals(numSegments, stats.hitCount());
+        assertEquals(2 * numSegments, cache.getCache().size());
+
+        // A reopen keeps the entries of the unmodified segments
+        addSegment();
+        searcher = reopen();
+        assertEquals(numDocs / 2, count(searcher, cache, query("even", "true")));
+        stats = cache.getCache().stats();
+        assertEquals(2 * numSegments + 1, stats.missCount());
+        assertEquals(2 * numSegments, stats.hitCount());
+    }
+
+    @Test
+    public void testInvalidateOnMerge() throws IOException
+    {
+        FilterCache cache = new FilterCache(1024 * 1024);
+        addSegment();
+        addSegment();
+        addSegment();
+        IndexSearcher searcher = reopen();
+        assertEquals(numDocs / 10, count(searcher, cache, query("mod", "3")));
+        assertEquals(3, cache.getCache().size());
+
+        // Once the reader using them is closed, the merged segments are invalidated
+        writer.forceMerge(1);
+        searcher = reopen();
+        assertEquals(1, reader.leaves().size());
+        assertEquals(0, cache.getCache().size());
+        assertEquals(0, cache.sizeInBytes());
+        assertEquals(numDocs / 10, count(searcher, cache, query("mod", "3")));
+        assertEquals(1, cache.getCache().size());
+    }
+
+    @Test
+    public void testInvalidateOnClose() throws IOException
+    {
+        FilterCache cache = new FilterCache(1024 * 1024);
+        addSegment();
+        IndexSearcher searcher = reopen();
+        assertEquals(numDocs / 10, count(searcher, cache, query("mod", "3")));
+        assertEquals(numDocs / 10, count(searcher, cache, query("mod", "4")));
+        assertEquals(2, cache.getCache().size());
+
+        // Closing the reader and the writer, as dropping the index does, closes the segment cores
+        reader.close();
+        reader = null;
+        writer.close();
+        assertEquals(0, cache.getCache().size());
+        assertEquals(0, cache.sizeInBytes());
+        writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer()));
+    }
+
+    @Test
+    public void testExcludeDeletedDocuments() throws IOException
+    {
+        FilterCache cache = new FilterCache(1024 * 1024);
+        addSegment();
+        IndexSearcher searcher = reopen();
+        assertEquals(numDocs / 2, count(searcher, cache, query("even", "true")));
+
+        // Deleting documents keeps the segment core, so the cached entry is used with the live documents of each reader
+        DirectoryReader oldReader = reader;
+        writer.deleteDocuments(new Term("id", "0"), new Term("id", "2"), new Term("id", "3"));
+        reader = DirectoryReader.openIfChanged(oldReader, writer, true);
+        try
+        {
+            searcher = new IndexSearcher(reader);
+            assertEquals(numDocs / 2 - 2, count(searcher, cache, query("even", "true")));
+            TopDocs topDocs = searcher.search(new ConstantScoreQuery(cache.filter(query("even", "true"))), numDocs);
+            for (int i = 0; i < topDocs.scoreDocs.length; i++)
+            {
+                String id = searcher.doc(topDocs.scoreDocs[i].doc).get("id");
+                assertFalse(id.equals("0") || id.equals("2"));
+            }
+            assertEquals(numDocs / 2, count(new IndexSearcher(oldReader), cache, query("even", "true")));
+        }
+        finally
+        {
+            oldReader.close();
+        }
+        CacheStats stats = cache.getCache().stats();
+        assertEquals(1, stats.missCount());
+        assertEquals(3, stats.hitCount());
+        assertEquals(1, cache.getCache().size());
+    }
+
+    @Test
+    public void testWeightBound() throws IOException
+    {
+        addSegment();
+        IndexSearcher searcher = reopen();
+
+        // Get the size of a single entry
+        FilterCache unbounded = new FilterCache(1024 * 1024);
+        count(searcher, unbounded, query("mod", "0"));
+        long entrySize = unbounded.sizeInBytes();
+        assertTrue(entrySize > 0);
+
+        // A cache able to hold only some entries evicts the others
+        long maxSize = 4 * entrySize;
+        FilterCache cache = new FilterCache(maxSize);
+        for (int mod = 0; mod < 10; mod++)
+        {
+            assertEquals(numDocs / 10, count(searcher, cache, query("mod", Integer.toString(mod))));
+            assertTrue(cache.sizeInBytes() <= maxSize);
+        }
+        assertTrue(cache.getCache().stats().evictionCount() > 0);
+        assertTrue(cache.getCache().size() < 10);
+
+        // Evicted entries are computed again
+        long misses = cache.getCache().stats().missCount();
+        for (int mod = 0; mod < 10; mod++)
+        {
+            assertEquals(numDocs / 10, count(searcher, cache, query("mod", Integer.toString(mod))));
+        }
+        assertTrue(cache.getCache().stats().missCount() > misses);
+    }
+
+    @Test
+    public void testSizeInBytes() throws IOException
+    {
+        FilterCache cache = new FilterCache(1024 * 1024);
+        assertEquals(0, cache.sizeInBytes());
+        addSegment();
+        IndexSearcher searcher = reopen();
+
+        count(searcher, cache, query("mod", "0"));
+        long size = cache.sizeInBytes();
+        assertTrue(size > 0);
+
+        // Hits don't change the size, while new entries increase it
+        count(searcher, cache, query("mod", "0"));
+        assertEquals(size, cache.sizeInBytes());
+        count(searcher, cache, query("even", "true"));
+        assertTrue(cache.sizeInBytes() > size);
+
+        cache.clear();
+        assertEquals(0, cache.sizeInBytes());
+        assertEquals(0, cache.getCache().size());
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ReadAhead}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class ReadAheadTest
+{
+
+    private static final Executor FAILING_EXECUTOR = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            fail("Unexpected asynchronous read");
+        }
+    };
+
+    private static List<Integer> keys(int size)
+    {
+        List<Integer> keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            keys.add(i);
+        }
+        return keys;
+    }
+
+    @Test
+    public void testValuesInOrder() throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            ReadAhead<Integer, String> readAhead = new ReadAhead<Integer, String>(executor, keys(100), 8)
+            {
+                @Override
+                protected String read(Integer key)
+                {
+                    return "value" + key;
+                }
+            };
+            for (int i = 0; i < 100; i++)
+            {
+                assertEquals("value" + i, readAhead.get(i));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testWindowBoundsConcurrentReads() throws InterruptedException
+    {
+        final int window = 3;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger reads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try
+        {
+            ReadAhead<Integer, Integer> readAhead = new ReadAhead<Integer, Integer>(executor, keys(50), window)
+            {
+                @Override
+                protected Integer read(Integer key)
+                {
+                    int current = inFlight.incrementAndGet();
+                    while (true)
+                    {
+                        int max = maxInFlight.get();
+                        if (current <= max || maxInFlight.compareAndSet(max, current))
+                        {
+                            break;
+                        }
+                    }
+                    try
+                    {
+                        Thread.sleep(5);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    inFlight.decrementAndGet();
+                    reads.incrementAndGet();
+                    return key;
+                }
+            };
+            for (int i = 0; i < 50; i++)
+            {
+                assertEquals(Integer.valueOf(i), readAhead.get(i));
+            }
+            assertEquals(50, reads.get());
+            assertTrue("Max in flight reads was " + maxInFlight.get(), maxInFlight.get() <= window);
+            assertTrue("Reads were not concurrent", maxInFlight.get() > 1);
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testNoReadAheadWithWindowOfOne()
+    {
+        ReadAhead<Integer, Integer> readAhead = new ReadAhead<Integer, Integer>(FAILING_EXECUTOR, keys(10), 1)
+        {
+            @Override
+            protected Integer read(Integer key)
+            {
+                return key * 2;
+            }
+        };
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(Integer.valueOf(i * 2), readAhead.get(i));
+        }
+    }
+
+    @Test
+    public void testUnknownKeyIsReadSynchronously()
+    {
+        ReadAhead<Integer, Integer> readAhead = new ReadAhead<Integer, Integer>(FAILING_EXECUTOR, keys(0), 4)
+        {
+            @Override
+            protected Integer read(Integer key)
+            {
+                return -key;
+            }
+        };
+        assertEquals(Integer.valueOf(-7), readAhead.get(7));
+    }
+
+    @Test
+    public void testBusyExecutorDoesNotBlockReads() throws InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            executor.execute(new Runnable() // Occupy the only executor thread
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            ReadAhead<Integer, Integer> readAhead = new ReadAhead<Integer, Integer>(executor, keys(20), 4)
+            {
+                @Override
+                protected Integer read(Integer key)
+                {
+                    return key;
+                }
+            };
+            for (int i = 0; i < 20; i++)
+            {
+                assertEquals(Integer.valueOf(i), readAhead.get(i));
+            }
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testReadErrorIsPropagated() throws InterruptedException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            ReadAhead<Integer, Integer> readAhead = new ReadAhead<Integer, Integer>(executor, keys(10), 4)
+            {
+                @Override
+                protected Integer read(Integer key)
+                {
+                    if (key == 2)
+                    {
+                        throw new IllegalStateException("Read error");
+                    }
+                    return key;
+                }
+            };
+            assertEquals(Integer.valueOf(0), readAhead.get(0));
+            assertEquals(Integer.valueOf(1), readAhead.get(1));
+            try
+            {
+                readAhead.get(2);
+                fail("Expected read error");
+            }
+            catch (RuntimeException e)
+            {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            assertEquals(Integer.valueOf(3), readAhead.get(3));
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TaskQueue}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class TaskQueueTest
+{
+
+    private static final int KEYS = 10;
+
+    private static class Item extends TaskQueue.Task
+    {
+        private Integer value;
+
+        @Override
+        protected void clear()
+        {
+            value = null;
+        }
+    }
+
+    private static final EventFactory<Item> FACTORY = new EventFactory<Item>()
+    {
+        @Override
+        public Item newInstance()
+        {
+            return new Item();
+        }
+    };
+
+    private static final EventTranslatorOneArg<Item, Integer> TRANSLATOR = new EventTranslatorOneArg<Item, Integer>()
+    {
+        @Override
+        public void translateTo(Item item, long sequence, Integer value)
+        {
+            item.value = value;
+        }
+    };
+
+    /**
+     * Consumer buffering the consumed values until they are flushed.
+     */
+    private static class Recorder implements TaskQueue.ConsumerFactory<Item>
+    {
+        private final Queue<Integer> flushed = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger flushes = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile CountDownLatch blocker = new CountDownLatch(0);
+
+        @Override
+        public TaskQueue.Consumer<Item> newConsumer()
+        {
+            return new TaskQueue.Consumer<Item>()
+            {
+                private final List<Integer> buffer = new ArrayList<>();
+
+                @Override
+                public void consume(Item item) throws Exception
+                {
+                    started.countDown();
+                    blocker.await();
+                    if (item.value < 0)
+                    {
+                        throw new IllegalArgumentException("Negative value");
+                    }
+                    buffer.add(item.value);
+                }
+
+                @Override
+                public void flush()
+                {
+                    flushed.addAll(buffer);
+                    buffer.clear();
+                    flushes.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    private static void submit(TaskQueue<Item> queue, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            queue.submitAsynchronous(i % KEYS, TRANSLATOR, i);
+        }
+    }
+
+    @Test
+    public void testOrderPerIdentifier()
+    {
+        Recorder recorder = new Recorder();
+        TaskQueue<Item> queue = new TaskQueue<>(4, 16, FACTORY, recorder);
+        submit(queue, 0, 1000);
+        queue.await();
+        assertEquals(1000, recorder.flushed.size());
+        Map<Integer, Integer> lastValues = new HashMap<>();
+        for (Integer value : recorder.flushed)
+        {
+            Integer last = lastValues.put(value % KEYS, value);
+            assertTrue("Values of the same identifier should be run in order", last == null || last < value);
+        }
+        queue.close();
+    }
+
+    @Test
+    public void testBatchesAreFlushedBeforeBarriers() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        TaskQueue<Item> queue = new TaskQueue<>(2, 1024, FACTORY, recorder);
+        recorder.blocker = new CountDownLatch(1);
+        submit(queue, 0, 100);
+        assertFalse(queue.awaitSubmitted(100));
+        recorder.blocker.countDown();
+        assertTrue(queue.awaitSubmitted(10000));
+        assertEquals(100, recorder.flushed.size());
+        queue.close();
+    }
+
+    @Test
+    public void testAwaitSubmittedWithFullQueue() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        TaskQueue<Item> queue = new TaskQueue<>(1, 4, FACTORY, recorder);
+        recorder.blocker = new CountDownLatch(1);
+        submit(queue, 0, 4);
+        assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+        assertEquals(queue.getCapacity(), queue.getPendingTasks());
+
+        // The barrier can't be queued, so the timeout is reached without blocking
+        long startTime = System.nanoTime();
+        assertFalse(queue.awaitSubmitted(100));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        assertTrue(elapsedMillis >= 100);
+        assertTrue(elapsedMillis < 5000);
+        assertEquals(0, queue.getBlockedSubmissions());
+
+        // The barrier is queued as soon as there is room for it
+        recorder.blocker.countDown();
+        assertTrue(queue.awaitSubmitted(10000));
+        assertEquals(4, recorder.flushed.size());
+        queue.close();
+    }
+
+    @Test
+    public void testAwaitSubmittedAfterClose()
+    {
+        Recorder recorder = new Recorder();
+        TaskQueue<Item> queue = new TaskQueue<>(2, 4, FACTORY, recorder);
+        submit(queue, 0, 10);
+        queue.close();
+        assertEquals(10, recorder.flushed.size());
+
+        // The stopped consumers never free the slots of the tasks submitted after closing
+        for (int i = 0; i < queue.getCapacity(); i++)
+        {
+            queue.submitAsynchronous(i, TRANSLATOR, i);
+        }
+        assertEquals(queue.getCapacity(), queue.getPendingTasks());
+        assertFalse(queue.awaitSubmitted(100));
+        assertFalse(queue.awaitSubmitted(0));
+        assertEquals(10, recorder.flushed.size());
+    }
+
+    @Test
+    public void testBatchDraining() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        TaskQueue<Item> queue = new TaskQueue<>(1, 1024, FACTORY, recorder);
+        recorder.blocker = new CountDownLatch(1);
+        submit(queue, 0, 1);
+        assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+        submit(queue, 1, 101);
+        assertEquals("The running task keeps its slot", 101, queue.getPendingTasks());
+        recorder.blocker.countDown();
+        queue.await();
+
+        // The tasks submitted while the consumer was busy are drained and flushed together
+        assertEquals(101, recorder.flushed.size());
+        assertEquals(101, queue.getDrainedTasks());
+        assertTrue(queue.getDrainedBatches() <= 2);
+        assertEquals(queue.getDrainedBatches(), recorder.flushes.get());
+        queue.close();
+    }
+
+    @Test
+    public void testBlockedSubmissions() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        final TaskQueue<Item> queue = new TaskQueue<>(1, 4, FACTORY, recorder);
+        assertEquals(4, queue.getCapacity());
+        recorder.blocker = new CountDownLatch(1);
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                submit(queue, 0, 10);
+            }
+        };
+        producer.start();
+        assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertTrue("The producer should be blocked", producer.isAlive());
+        assertEquals(queue.getCapacity(), queue.getPendingTasks());
+
+        recorder.blocker.countDown();
+        producer.join(10000);
+        queue.await();
+        assertEquals(10, recorder.flushed.size());
+        assertTrue(queue.getBlockedSubmissions() > 0);
+        assertTrue(queue.getBlockedNanos() > 0);
+        queue.close();
+    }
+
+    @Test
+    public void testSynchronousTaskAfterSubmitted()
+    {
+        final Recorder recorder = new Recorder();
+        TaskQueue<Item> queue = new TaskQueue<>(4, 16, FACTORY, recorder);
+        submit(queue, 0, 500);
+        final AtomicInteger seen = new AtomicInteger();
+        queue.submitSynchronous(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                seen.set(recorder.flushed.size());
+            }
+        });
+        assertEquals(500, seen.get());
+        queue.close();
+    }
+
+    @Test
+    public void testErrorsDontStopConsumers()
+    {
+        Recorder recorder = new Recorder();
+        TaskQueue<Item> queue = new TaskQueue<>(1, 16, FACTORY, recorder);
+        queue.submitAsynchronous(0, TRANSLATOR, -1);
+        submit(queue, 0, 10);
+        queue.await();
+        assertEquals(10, recorder.flushed.size());
+        queue.close();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014, Stratio.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stratio.cassandra.index.util;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.compaction.CompactionInfo;
+import org.apache.cassandra.db.compaction.OperationType;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.metrics.CompactionMetrics;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.apache.lucene.store.RateLimiter;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ThrottledMergeScheduler}.
+ *
+ * @author Andres de la Pena <adelapena@stratio.com>
+ */
+public class ThrottledMergeSchedulerTest
+{
+
+    private static final int NUM_DOCS = 20000;
+
+    private final int throughput = DatabaseDescriptor.getCompactionThroughputMbPerSec();
+
+    @After
+    public void after()
+    {
+        DatabaseDescriptor.setCompactionThroughputMbPerSec(throughput);
+    }
+
+    /**
+     * {@link RateLimiter} delegating on the one of a {@link ThrottledMergeScheduler}, and checking that the merge
+     * writing is reported as a compaction.
+     */
+    private static class ProbeRateLimiter extends RateLimiter
+    {
+        private final RateLimiter delegate;
+        private final CFMetaData metadata;
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile long reportedBytes;
+        private volatile boolean reported;
+
+        private ProbeRateLimiter(RateLimiter delegate, CFMetaData metadata)
+        {
+            this.delegate = delegate;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public void setMbPerSec(double mbPerSec)
+        {
+            delegate.setMbPerSec(mbPerSec);
+        }
+
+        @Override
+        public double getMbPerSec()
+        {
+            return delegate.getMbPerSec();
+        }
+
+        @Override
+        public long pause(long bytes)
+        {
+            this.bytes.addAndGet(bytes);
+            long pause = delegate.pause(bytes);
+            CompactionInfo info = merge(metadata);
+            if (info != null)
+            {
+                reported = true;
+                reportedBytes = Math.max(reportedBytes, info.getCompleted());
+            }
+            return pause;
+        }
+
+        @Override
+        public long getMinPauseCheckBytes()
+        {
+            return delegate.getMinPauseCheckBytes();
+        }
+    }
+
+    private static CompactionInfo merge(CFMetaData metadata)
+    {
+        for (CompactionInfo.Holder holder : CompactionMetrics.getCompactions())
+        {
+            CompactionInfo info = holder.getCompactionInfo();
+            if (info.getTaskType() == OperationType.INDEX_MERGE && info.getCFMetaData() == metadata)
+            {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private static long merge(String tableName, ProbeRateLimiter[] probe) throws IOException
+    {
+        CFMetaData metadata = CFMetaData.denseCFMetaData("ks", tableName, BytesType.instance);
+        ThrottledMergeScheduler scheduler = new ThrottledMergeScheduler(metadata);
+        probe[0] = new ProbeRateLimiter(scheduler.getRateLimiter(), metadata);
+        RateLimitedDirectoryWrapper directory = new RateLimitedDirectoryWrapper(new RAMDirectory());
+        directory.setRateLimiter(probe[0], IOContext.Context.MERGE);
+
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer());
+        config.setMaxBufferedDocs(1000);
+        config.setMergeScheduler(scheduler);
+        Random random = new Random(0);
+        try (IndexWriter writer = new IndexWriter(directory, config))
+        {
+            for (int i = 0; i < NUM_DOCS; i++)
+            {
+                Document document = new Document();
+                document.add(new StringField("id", String.valueOf(i), Field.Store.YES));
+                byte[] payload = new byte[100];
+                random.nextBytes(payload);
+                document.add(new StoredField("payload", payload));
+                writer.addDocument(document);
+            }
+            writer.commit();
+            long startTime = System.currentTimeMillis();
+            writer.forceMerge(1);
+            long time = System.currentTimeMillis() - startTime;
+            writer.commit();
+            try (DirectoryReader reader = DirectoryReader.open(directory))
+            {
+                assertEquals(1, reader.leaves().size());
+            }
+            // Merges are unregistered right after Lucene marks them as finished
+            long deadline = System.currentTimeMillis() + 10000;
+            while (merge(metadata) != null && System.currentTimeMillis() < deadline)
+            {
+                Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+            }
+            assertNull("Finished merges should not be reported", merge(metadata));
+            return time;
+        }
+    }
+
+    @Test
+    public void testMergesAreReportedAsCompactions() throws IOException
+    {
+        DatabaseDescriptor.setCompactionThroughputMbPerSec(0);
+        ProbeRateLimiter[] probe = new ProbeRateLimiter[1];
+        merge("reported", probe);
+        assertTrue(probe[0].bytes.get() > 0);
+        assertTrue("Merges should be reported as index merge compactions", probe[0].reported);
+        assertTrue(probe[0].reportedBytes > 0);
+        assertTrue(probe[0].reportedBytes <= probe[0].bytes.get());
+    }
+
+    @Test
+    public void testRateFollowsCompactionThroughput()
+    {
+        ThrottledMergeScheduler scheduler = new ThrottledMergeScheduler(null);
+        RateLimiter rateLimiter = scheduler.getRateLimiter();
+        DatabaseDescriptor.setCompactionThroughputMbPerSec(16);
+        assertEquals(16, rateLimiter.getMbPerSec(), 0.001);
+        rateLimiter.setMbPerSec(1); // Ignored
+        assertEquals(16, rateLimiter.getMbPerSec(), 0.001);
+        DatabaseDescriptor.setCompactionThroughputMbPerSec(4);
+        assertEquals(4, rateLimiter.getMbPerSec(), 0.001);
+    }
+
+    @Test
+    public void testMergesAreThrottled() throws IOException
+    {
+        DatabaseDescriptor.setCompactionThroughputMbPerSec(1);
+        ProbeRateLimiter[] probe = new ProbeRateLimiter[1];
+        long time = merge("throttled", probe);
+        double mb = probe[0].bytes.get() / (1024.0 * 1024.0);
+        assertTrue("Merged only " + mb + " MB", mb > 2);
+        // The rate limiter allows a burst of up to one second of writes
+        double minTime = (mb - 1) * 1000 * 0.7;
+        assertTrue(String.format("Merged %.2f MB in %d ms", mb, time), time >= minTime);
+    }
+}
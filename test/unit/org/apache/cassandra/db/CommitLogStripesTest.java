@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.Util;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.commitlog.CommitLog;
+import org.apache.cassandra.db.commitlog.CommitLogDescriptor;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
+import org.apache.cassandra.db.filter.QueryFilter;
+
+import static org.apache.cassandra.utils.ByteBufferUtil.bytes;
+
+/**
+ * Tests a commit log striped over several segments in several directories.
+ */
+public class CommitLogStripesTest extends SchemaLoader
+{
+    private static final int STRIPES = 4;
+
+    static
+    {
+        // the commit log is created with the stripes and directories it is first loaded with
+        String directory = DatabaseDescriptor.getCommitLogLocation();
+        DatabaseDescriptor.setCommitLogLocations(directory, directory + "2");
+        DatabaseDescriptor.setCommitLogStripes(STRIPES);
+    }
+
+    /**
+     * Adds a mutation to the commit log from a thread appending to the specified stripe.
+     */
+    private static ReplayPosition add(int stripe, final Mutation mutation) throws Exception
+    {
+        FutureTask<ReplayPosition> task = new FutureTask<>(new Callable<ReplayPosition>()
+        {
+            public ReplayPosition call()
+            {
+                return CommitLog.instance.add(mutation);
+            }
+        });
+        // mutations are appended to the stripe given by the id of the writing thread
+        Thread thread;
+        do
+        {
+            thread = new Thread(task);
+        }
+        while (thread.getId() % STRIPES != stripe);
+        thread.start();
+        return task.get();
+    }
+
+    private static Mutation mutation(String cf, String key, ByteBuffer value)
+    {
+        Mutation rm = new Mutation("Keyspace1", bytes(key));
+        rm.add(cf, Util.cellname("c1"), value, 0);
+        return rm;
+    }
+
+    private static boolean isActive(long segmentId)
+    {
+        for (String name : CommitLog.instance.getActiveSegmentNames())
+        {
+            if (CommitLogDescriptor.fromFileName(name).id == segmentId)
+                return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testDiscardOnlyCleanOlderSegments() throws Exception
+    {
+        CommitLog.instance.resetUnsafe();
+        ReplayPosition dirty = add(1, mutation("Standard2", "k", ByteBuffer.allocate(4)));
+
+        // fill two segments of another stripe with mutations of another table, moving on to a third one
+        List<ReplayPosition> positions = new ArrayList<>();
+        Set<Long> segments = new HashSet<>();
+        while (segments.size() < 3)
+        {
+            ReplayPosition position = add(0, mutation("Standard1", "k", ByteBuffer.allocate(DatabaseDescriptor.getCommitLogSegmentSize() / 4)));
+            positions.add(position);
+            segments.add(position.segment);
+        }
+        long first = positions.get(0).segment;
+        long second = positions.get(positions.size() - 2).segment;
+        long third = positions.get(positions.size() - 1).segment;
+        Assert.assertTrue(first < second && second < third);
+        Assert.assertTrue(isActive(first) && isActive(second) && isActive(third));
+
+        // a flush of the table whose context was taken in the first segment only recycles that one, the second
+        // segment is newer and may have writes after the context in other stripes
+        UUID cfId = Keyspace.open("Keyspace1").getColumnFamilyStore("Standard1").metadata.cfId;
+        CommitLog.instance.discardCompletedSegments(cfId, new ReplayPosition(first, Integer.MAX_VALUE));
+        Assert.assertFalse(isActive(first));
+        Assert.assertTrue(isActive(second));
+        Assert.assertTrue(isActive(dirty.segment));
+
+        // a flush with the current context recycles the second segment, but not those still being allocated from or
+        // dirty with the other table
+        CommitLog.instance.discardCompletedSegments(cfId, CommitLog.instance.getContext());
+        Assert.assertFalse(isActive(second));
+        Assert.assertTrue(isActive(third));
+        Assert.assertTrue(isActive(dirty.segment));
+    }
+
+    @Test
+    public void testReplayFromSeveralDirectories() throws Exception
+    {
+        CommitLog.instance.resetUnsafe();
+
+        // the mutations are only added to the commit log, so their rows are only found once they have been replayed
+        Set<String> directories = new HashSet<>();
+        for (int stripe = 0; stripe < STRIPES; stripe++)
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                ReplayPosition position = add(stripe, mutation("Standard1", "stripe" + stripe + "-" + i, bytes("value" + i)));
+                for (String directory : DatabaseDescriptor.getCommitLogLocations())
+                {
+                    if (new File(directory, new CommitLogDescriptor(position.segment).fileName()).exists())
+                        directories.add(directory);
+                }
+            }
+        }
+        Assert.assertEquals(DatabaseDescriptor.getCommitLogLocations().length, directories.size());
+
+        // forget about the segments, so that they are replayed from all the directories as after a restart
+        CommitLog.instance.resetUnsafe();
+        Assert.assertTrue(CommitLog.instance.recover() >= STRIPES * 10);
+
+        ColumnFamilyStore cfs = Keyspace.open("Keyspace1").getColumnFamilyStore("Standard1");
+        for (int stripe = 0; stripe < STRIPES; stripe++)
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                DecoratedKey key = Util.dk("stripe" + stripe + "-" + i);
+                ColumnFamily cf = cfs.getColumnFamily(QueryFilter.getIdentityFilter(key, "Standard1", System.currentTimeMillis()));
+                Assert.assertEquals(bytes("value" + i), cf.getColumn(Util.cellname("c1")).value());
+            }
+        }
+    }
+}
@@ -21,6 +21,11 @@ package org.apache.cassandra.db;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -42,6 +47,12 @@ import org.apache.cassandra.db.commitlog.CommitLogSegment;
 import org.apache.cassandra.db.composites.CellName;
 import org.apache.cassandra.db.composites.CellNameType;
 import org.apache.cassandra.db.filter.NamesQueryFilter;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.io.FSReadError;
+import org.apache.cassandra.io.compress.DeflateCompressor;
+import org.apache.cassandra.io.compress.LZ4Compressor;
+import org.apache.cassandra.io.compress.SnappyCompressor;
+import org.apache.cassandra.io.sstable.SSTableReader;
 import org.apache.cassandra.net.MessagingService;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -241,23 +252,242 @@ public class CommitLogTest extends SchemaLoader
 
     protected File tmpFile() throws IOException
     {
-        File logFile = File.createTempFile("CommitLog-" + CommitLogDescriptor.current_version + "-", ".log");
+        // an id after those of the written segments, so that the segment isn't skipped as already flushed
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        directory.deleteOnExit();
+        File logFile = new File(directory, new CommitLogDescriptor(System.currentTimeMillis() * 1000).fileName());
+        assert logFile.createNewFile();
         logFile.deleteOnExit();
-        assert logFile.length() == 0;
         return logFile;
     }
 
     protected void testRecovery(byte[] logData) throws Exception
     {
         File logFile = tmpFile();
+        // a valid header, so that the replayer gets to the data instead of skipping the segment
+        CommitLogDescriptor descriptor = CommitLogDescriptor.fromFileName(logFile.getName());
+        ByteBuffer header = ByteBuffer.allocate(descriptor.headerSize());
+        CommitLogDescriptor.writeHeader(header, descriptor);
         try (OutputStream lout = new FileOutputStream(logFile))
         {
+            lout.write(header.array());
             lout.write(logData);
             //statics make it annoying to test things correctly
             CommitLog.instance.recover(new File[]{ logFile }); //CASSANDRA-1119 / CASSANDRA-1179 throw on failure*/
         }
     }
     
+    @Test
+    public void testReplayLZ4Compressed() throws Exception
+    {
+        testReplayCompressed(LZ4Compressor.class.getName(), false);
+    }
+
+    @Test
+    public void testReplaySnappyCompressed() throws Exception
+    {
+        testReplayCompressed(SnappyCompressor.class.getName(), false);
+    }
+
+    @Test
+    public void testReplayDeflateCompressed() throws Exception
+    {
+        testReplayCompressed(DeflateCompressor.class.getName(), false);
+    }
+
+    @Test
+    public void testReplayCompressedWithTornSection() throws Exception
+    {
+        testReplayCompressed(LZ4Compressor.class.getName(), true);
+    }
+
+    /**
+     * Writes some synced sections into a compressed segment and replays a copy of it, which is cut in the middle of
+     * the last section if torn is true.
+     */
+    private void testReplayCompressed(String compression, boolean torn) throws Exception
+    {
+        String previous = DatabaseDescriptor.getCommitLogCompression();
+        try
+        {
+            resetCompression(compression);
+            String prefix = compression + (torn ? "-torn-" : "-");
+            addMutations(prefix, 100);
+            CommitLog.instance.sync(true);
+            File segment = activeSegmentFile();
+            long length = segment.length();
+
+            addMutations(prefix + "last-", 1);
+            CommitLog.instance.sync(true);
+            Assert.assertEquals(segment, activeSegmentFile());
+            long lastLength = segment.length();
+            Assert.assertTrue(lastLength > length);
+
+            File copy = copySegment(segment, torn ? (length + lastLength) / 2 : lastLength);
+            CommitLog.instance.recover(copy);
+
+            assertMutations(prefix, 100, true);
+            assertMutations(prefix + "last-", 1, !torn);
+        }
+        finally
+        {
+            resetCompression(previous);
+        }
+    }
+
+    private static void resetCompression(String compression)
+    {
+        DatabaseDescriptor.setCommitLogCompression(compression);
+        // the allocator thread may still publish a segment created with the previous compression after a reset
+        while (true)
+        {
+            CommitLog.instance.resetUnsafe();
+            addMutations("reset-", 1);
+            CommitLog.instance.sync(true);
+            CommitLogDescriptor descriptor = CommitLogDescriptor.fromHeader(activeSegmentFile());
+            if (compression == null ? descriptor.compression == null : compression.equals(descriptor.compression))
+                return;
+        }
+    }
+
+    @Test
+    public void testParallelReplayWithOverwrites() throws Exception
+    {
+        String previous = System.getProperty("cassandra.commitlog_replay_threads");
+        System.setProperty("cassandra.commitlog_replay_threads", "4");
+        try
+        {
+            // the same cell is overwritten in every segment, so the segments replayed in parallel race to write it
+            List<File> segments = new ArrayList<>();
+            for (int segment = 0; segment < 4; segment++)
+            {
+                CommitLog.instance.resetUnsafe();
+                for (int i = 0; i < 10; i++)
+                {
+                    Mutation rm = new Mutation("Keyspace1", bytes("overwritten"));
+                    rm.add("Standard1", Util.cellname("c1"), bytes(segment * 10 + i), segment * 10 + i);
+                    CommitLog.instance.add(rm);
+                }
+                addMutations("parallel-" + segment + "-", 10);
+                segments.add(activeSegmentFile());
+            }
+            CommitLog.instance.resetUnsafe();
+            Assert.assertTrue(CommitLog.instance.recover(segments.toArray(new File[segments.size()])) >= 4 * 20);
+
+            for (int segment = 0; segment < 4; segment++)
+                assertMutations("parallel-" + segment + "-", 10, true);
+            ColumnFamilyStore cfs = Keyspace.open("Keyspace1").getColumnFamilyStore("Standard1");
+            ColumnFamily cf = cfs.getColumnFamily(QueryFilter.getIdentityFilter(Util.dk("overwritten"), "Standard1", System.currentTimeMillis()));
+            Assert.assertEquals(bytes(39), cf.getColumn(Util.cellname("c1")).value());
+        }
+        finally
+        {
+            if (previous == null)
+                System.clearProperty("cassandra.commitlog_replay_threads");
+            else
+                System.setProperty("cassandra.commitlog_replay_threads", previous);
+        }
+    }
+
+    @Test
+    public void testReplayAfterInterruptedReplay() throws Exception
+    {
+        CommitLog.instance.resetUnsafe();
+        addMutations("interrupted-first-", 10);
+        File first = activeSegmentFile();
+        CommitLog.instance.resetUnsafe();
+        addMutations("interrupted-second-", 10);
+        File second = activeSegmentFile();
+        CommitLog.instance.resetUnsafe();
+
+        // a replay that fails before reaching the second segment, flushing the replayed table after each mutation
+        ColumnFamilyStore cfs = Keyspace.open("Keyspace1").getColumnFamilyStore("Standard1");
+        Set<SSTableReader> sstables = new HashSet<>(cfs.getSSTables());
+        String previous = System.getProperty("cassandra.commitlog_replay_flush_ratio");
+        System.setProperty("cassandra.commitlog_replay_flush_ratio", "0");
+        try
+        {
+            CommitLog.instance.recover(first, new File(new File(first.getParentFile(), "missing"), second.getName()));
+            Assert.fail("The replay of a missing segment should fail");
+        }
+        catch (FSReadError e)
+        {
+            // the replay has been interrupted
+        }
+        finally
+        {
+            if (previous == null)
+                System.clearProperty("cassandra.commitlog_replay_flush_ratio");
+            else
+                System.setProperty("cassandra.commitlog_replay_flush_ratio", previous);
+        }
+        assertMutations("interrupted-first-", 10, true);
+        assertMutations("interrupted-second-", 10, false);
+
+        // the sstables flushed while replaying don't hold the second segment, so they mustn't skip it
+        Assert.assertTrue(cfs.getDataTracker().getView().getCurrentMemtable().isClean());
+        cfs.forceBlockingFlush(); // only waits for the flushes started while replaying
+        Set<SSTableReader> flushed = new HashSet<>(cfs.getSSTables());
+        flushed.removeAll(sstables);
+        Assert.assertFalse(flushed.isEmpty());
+        for (SSTableReader sstable : flushed)
+            Assert.assertEquals(ReplayPosition.NONE, sstable.getReplayPosition());
+
+        // the replay on restart replays both segments
+        CommitLog.instance.recover(first, second);
+        assertMutations("interrupted-first-", 10, true);
+        assertMutations("interrupted-second-", 10, true);
+    }
+
+    // the mutations are only added to the commit log, so their rows are only found once they have been replayed
+    private static void addMutations(String prefix, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Mutation rm = new Mutation("Keyspace1", bytes(prefix + i));
+            rm.add("Standard1", Util.cellname("c1"), bytes("value" + i), 0);
+            CommitLog.instance.add(rm);
+        }
+    }
+
+    private static void assertMutations(String prefix, int count, boolean replayed)
+    {
+        ColumnFamilyStore cfs = Keyspace.open("Keyspace1").getColumnFamilyStore("Standard1");
+        for (int i = 0; i < count; i++)
+        {
+            DecoratedKey key = Util.dk(prefix + i);
+            ColumnFamily cf = cfs.getColumnFamily(QueryFilter.getIdentityFilter(key, "Standard1", System.currentTimeMillis()));
+            if (replayed)
+                Assert.assertEquals(bytes("value" + i), cf.getColumn(Util.cellname("c1")).value());
+            else
+                Assert.assertTrue(cf == null || cf.getColumn(Util.cellname("c1")) == null);
+        }
+    }
+
+    private static File activeSegmentFile()
+    {
+        List<String> names = CommitLog.instance.getActiveSegmentNames();
+        Assert.assertEquals(1, names.size());
+        return new File(DatabaseDescriptor.getCommitLogLocation(), names.get(0));
+    }
+
+    // copies the first length bytes of a segment into a new directory, keeping its name
+    private static File copySegment(File segment, long length) throws IOException
+    {
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        directory.deleteOnExit();
+        File copy = new File(directory, segment.getName());
+        copy.deleteOnExit();
+        try (RandomAccessFile in = new RandomAccessFile(segment, "r");
+             RandomAccessFile out = new RandomAccessFile(copy, "rw"))
+        {
+            byte[] contents = new byte[(int) length];
+            in.readFully(contents);
+            out.write(contents);
+        }
+        return copy;
+    }
+
     @Test
     public void testVersions()
     {
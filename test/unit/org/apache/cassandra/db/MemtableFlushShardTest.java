@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.Iterables;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.cassandra.SchemaLoader;
+import org.apache.cassandra.Util;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.utils.ByteBufferUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemtableFlushShardTest extends SchemaLoader
+{
+    private static final String KEYSPACE = "Keyspace1";
+    private static final String CF = "Standard1";
+    private static final int ROWS = 1000;
+    private static final int SHARDS = 4;
+
+    private int flushShards;
+    private long minFlushShardSize;
+
+    @Before
+    public void setUp()
+    {
+        flushShards = DatabaseDescriptor.getFlushShards();
+        minFlushShardSize = Memtable.minFlushShardSize;
+        DatabaseDescriptor.setFlushShards(SHARDS);
+        Memtable.minFlushShardSize = 1;
+    }
+
+    @After
+    public void tearDown()
+    {
+        DatabaseDescriptor.setFlushShards(flushShards);
+        Memtable.minFlushShardSize = minFlushShardSize;
+    }
+
+    private static ColumnFamilyStore populate()
+    {
+        ColumnFamilyStore cfs = Keyspace.open(KEYSPACE).getColumnFamilyStore(CF);
+        cfs.truncateBlocking();
+        cfs.disableAutoCompaction();
+        for (int i = 0; i < ROWS; i++)
+        {
+            Mutation rm = new Mutation(KEYSPACE, ByteBufferUtil.bytes("key" + i));
+            rm.add(CF, Util.cellname("c"), ByteBufferUtil.bytes("value" + i), 0);
+            rm.apply();
+        }
+        return cfs;
+    }
+
+    private static void assertAllRows(ColumnFamilyStore cfs)
+    {
+        for (int i = 0; i < ROWS; i++)
+        {
+            DecoratedKey key = Util.dk("key" + i);
+            ColumnFamily cf = cfs.getColumnFamily(QueryFilter.getIdentityFilter(key, CF, System.currentTimeMillis()));
+            assertNotNull(cf);
+            assertEquals(ByteBufferUtil.bytes("value" + i), cf.getColumn(Util.cellname("c")).value());
+        }
+    }
+
+    @Test
+    public void testShardedFlush()
+    {
+        ColumnFamilyStore cfs = populate();
+        cfs.forceBlockingFlush();
+
+        // each shard writes a disjoint range of the memtable into its own sstable, all of them with the same position
+        List<SSTableReader> sstables = new ArrayList<>(cfs.getSSTables());
+        assertEquals(SHARDS, sstables.size());
+        Collections.sort(sstables, new Comparator<SSTableReader>()
+        {
+            public int compare(SSTableReader a, SSTableReader b)
+            {
+                return a.first.compareTo(b.first);
+            }
+        });
+        for (int i = 0; i < sstables.size(); i++)
+        {
+            SSTableReader sstable = sstables.get(i);
+            assertTrue(sstable.first.compareTo(sstable.last) < 0);
+            assertEquals(sstables.get(0).getReplayPosition(), sstable.getReplayPosition());
+            if (i > 0)
+                assertTrue(sstables.get(i - 1).last.compareTo(sstable.first) < 0);
+        }
+
+        assertEquals(ROWS, Util.getRangeSlice(cfs).size());
+        assertAllRows(cfs);
+    }
+
+    @Test
+    public void testAtomicReplaceFlushed() throws Exception
+    {
+        final ColumnFamilyStore cfs = populate();
+        Memtable memtable = cfs.getDataTracker().getView().getCurrentMemtable();
+
+        // record every view seen while the memtable is flushed
+        final List<DataTracker.View> views = new ArrayList<>();
+        final AtomicBoolean flushed = new AtomicBoolean();
+        Thread observer = new Thread()
+        {
+            public void run()
+            {
+                DataTracker.View last = null;
+                while (!flushed.get())
+                {
+                    DataTracker.View view = cfs.getDataTracker().getView();
+                    if (view != last)
+                        views.add(view);
+                    last = view;
+                }
+                views.add(cfs.getDataTracker().getView());
+            }
+        };
+        observer.start();
+        cfs.forceBlockingFlush();
+        flushed.set(true);
+        observer.join();
+
+        List<SSTableReader> sstables = new ArrayList<>(cfs.getSSTables());
+        assertEquals(SHARDS, sstables.size());
+        for (DataTracker.View view : views)
+        {
+            boolean hasMemtable = Iterables.contains(view.getAllMemtables(), memtable);
+            boolean hasAnySSTable = false;
+            for (SSTableReader sstable : sstables)
+                hasAnySSTable |= view.sstables.contains(sstable);
+
+            // the sstables of all the shards replace the memtable at once
+            if (hasMemtable)
+                assertFalse(hasAnySSTable);
+            else
+                assertTrue(view.sstables.containsAll(sstables));
+        }
+        assertAllRows(cfs);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.cassandra.db;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.dht.LongToken;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.concurrent.OpOrder;
+import org.apache.cassandra.utils.memory.HeapPool;
+import org.apache.cassandra.utils.memory.NativePool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the off-heap {@link NativeMemtableIndex} against the on-heap {@link MemtableIndex.SkipListIndex}.
+ */
+public class NativeMemtableIndexTest
+{
+    private static final Murmur3Partitioner partitioner = new Murmur3Partitioner();
+    private static final CFMetaData metadata = CFMetaData.denseCFMetaData("Keyspace1", "Standard1", BytesType.instance);
+    private static final OpOrder order = new OpOrder();
+
+    private static NativeMemtableIndex nativeIndex()
+    {
+        return new NativeMemtableIndex(new NativePool(Integer.MAX_VALUE, Integer.MAX_VALUE, 1f, null).newAllocator());
+    }
+
+    private static MemtableIndex skipListIndex()
+    {
+        return new MemtableIndex.SkipListIndex(partitioner, new HeapPool(Integer.MAX_VALUE, 1f, null).newAllocator());
+    }
+
+    private static AtomicBTreeColumns partition()
+    {
+        return AtomicBTreeColumns.factory.create(metadata);
+    }
+
+    /**
+     * @return random keys, with some of them sharing their token so that they are ordered by their bytes
+     */
+    private static List<DecoratedKey> keys(int count, Random random)
+    {
+        List<DecoratedKey> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            byte[] bytes = new byte[random.nextInt(20)];
+            random.nextBytes(bytes);
+            keys.add(i % 10 == 0
+                     ? new BufferDecoratedKey(new LongToken((long) random.nextInt(10)), ByteBufferUtil.bytes(i))
+                     : partitioner.decorateKey(ByteBufferUtil.bytes(i + ":" + new String(bytes))));
+        }
+        return keys;
+    }
+
+    private static void putAll(MemtableIndex index, List<DecoratedKey> keys)
+    {
+        try (OpOrder.Group group = order.start())
+        {
+            for (DecoratedKey key : keys)
+                index.putIfAbsent(key, partition(), group);
+        }
+    }
+
+    private static void assertSameEntries(Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> expected,
+                                          Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> actual)
+    {
+        while (expected.hasNext())
+        {
+            assertTrue(actual.hasNext());
+            Map.Entry<DecoratedKey, AtomicBTreeColumns> expectedEntry = expected.next();
+            Map.Entry<DecoratedKey, AtomicBTreeColumns> actualEntry = actual.next();
+            assertEquals(expectedEntry.getKey(), actualEntry.getKey());
+            assertEquals(expectedEntry.getKey().getToken(), actualEntry.getKey().getToken());
+            assertEquals(0, expectedEntry.getKey().compareTo(actualEntry.getKey()));
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    @Test
+    public void testGet()
+    {
+        Random random = new Random(1);
+        List<DecoratedKey> keys = keys(1000, random);
+        NativeMemtableIndex index = nativeIndex();
+        assertTrue(index.isEmpty());
+        assertNull(index.get(keys.get(0)));
+
+        List<AtomicBTreeColumns> partitions = new ArrayList<>(keys.size());
+        try (OpOrder.Group group = order.start())
+        {
+            for (DecoratedKey key : keys)
+            {
+                AtomicBTreeColumns partition = partition();
+                assertNull(index.putIfAbsent(key, partition, group));
+                partitions.add(partition);
+            }
+            for (int i = 0; i < keys.size(); i++)
+                assertSame(partitions.get(i), index.putIfAbsent(keys.get(i), partition(), group));
+        }
+
+        assertFalse(index.isEmpty());
+        assertEquals(keys.size(), index.size());
+        long keySize = 0;
+        for (int i = 0; i < keys.size(); i++)
+        {
+            assertSame(partitions.get(i), index.get(keys.get(i)));
+            keySize += keys.get(i).getKey().remaining();
+        }
+        assertEquals(keySize, index.keySize());
+
+        for (DecoratedKey key : keys(100, new Random(2)))
+            assertNull(index.get(new BufferDecoratedKey(key.getToken(), ByteBufferUtil.bytes("absent" + key.getToken()))));
+    }
+
+    @Test
+    public void testIterator()
+    {
+        List<DecoratedKey> keys = keys(1000, new Random(3));
+        MemtableIndex expected = skipListIndex();
+        MemtableIndex actual = nativeIndex();
+        putAll(expected, keys);
+        putAll(actual, keys);
+        assertEquals(expected.size(), actual.size());
+        assertSameEntries(expected.iterator(), actual.iterator());
+
+        Iterator<Map.Entry<DecoratedKey, AtomicBTreeColumns>> iterator = actual.iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<DecoratedKey, AtomicBTreeColumns> entry = iterator.next();
+            assertSame(actual.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Test
+    public void testRangeIterator()
+    {
+        Random random = new Random(4);
+        List<DecoratedKey> keys = keys(1000, random);
+        MemtableIndex expected = skipListIndex();
+        MemtableIndex actual = nativeIndex();
+        putAll(expected, keys);
+        putAll(actual, keys);
+
+        List<RowPosition> bounds = new ArrayList<>();
+        bounds.add(partitioner.getMinimumToken().minKeyBound());
+        bounds.add(partitioner.getMinimumToken().maxKeyBound());
+        for (int i = 0; i < 20; i++)
+        {
+            DecoratedKey key = keys.get(random.nextInt(keys.size()));
+            bounds.add(key);
+            bounds.add(key.getToken().minKeyBound());
+            bounds.add(key.getToken().maxKeyBound());
+            bounds.add(partitioner.getRandomToken().minKeyBound());
+            bounds.add(partitioner.getRandomToken().maxKeyBound());
+        }
+        // the bounds of the tokens shared by several keys
+        bounds.add(new LongToken(5L).minKeyBound());
+        bounds.add(new LongToken(5L).maxKeyBound());
+
+        for (RowPosition from : bounds)
+        {
+            assertSameEntries(expected.iterator(from, null), actual.iterator(from, null));
+            for (RowPosition to : bounds)
+            {
+                if (from.compareTo(to) <= 0)
+                    assertSameEntries(expected.iterator(from, to), actual.iterator(from, to));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentPutIfAbsentOnOneKey() throws Exception
+    {
+        final DecoratedKey key = partitioner.decorateKey(ByteBufferUtil.bytes("key"));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            for (int round = 0; round < 100; round++)
+            {
+                final NativeMemtableIndex index = nativeIndex();
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<AtomicBTreeColumns>> previous = new ArrayList<>();
+                final List<AtomicBTreeColumns> partitions = new ArrayList<>();
+                for (int i = 0; i < 8; i++)
+                {
+                    final AtomicBTreeColumns partition = partition();
+                    partitions.add(partition);
+                    previous.add(executor.submit(new Callable<AtomicBTreeColumns>()
+                    {
+                        public AtomicBTreeColumns call() throws Exception
+                        {
+                            start.await();
+                            try (OpOrder.Group group = order.start())
+                            {
+                                AtomicBTreeColumns existing = index.putIfAbsent(key, partition, group);
+                                return existing == null ? partition : existing;
+                            }
+                        }
+                    }));
+                }
+                start.countDown();
+
+                List<AtomicBTreeColumns> added = new ArrayList<>();
+                for (Future<AtomicBTreeColumns> future : previous)
+                    added.add(future.get(10, TimeUnit.SECONDS));
+
+                // all the threads see the partition of the only one that has added it
+                AtomicBTreeColumns winner = index.get(key);
+                assertTrue(partitions.contains(winner));
+                for (AtomicBTreeColumns partition : added)
+                    assertSame(winner, partition);
+                assertEquals(1, index.size());
+                assertEquals(key.getKey().remaining(), index.keySize());
+                assertSameEntries(putAllInSkipList(key).iterator(), index.iterator());
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static MemtableIndex putAllInSkipList(DecoratedKey key)
+    {
+        MemtableIndex index = skipListIndex();
+        List<DecoratedKey> keys = new ArrayList<>();
+        keys.add(key);
+        putAll(index, keys);
+        return index;
+    }
+
+    @Test
+    public void testConcurrentPutIfAbsentOnManyKeys() throws Exception
+    {
+        final List<DecoratedKey> keys = keys(2000, new Random(5));
+        final NativeMemtableIndex index = nativeIndex();
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<List<AtomicBTreeColumns>>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                final int offset = t * 100;
+                futures.add(executor.submit(new Callable<List<AtomicBTreeColumns>>()
+                {
+                    public List<AtomicBTreeColumns> call() throws Exception
+                    {
+                        // every thread adds all the keys, starting at a different one
+                        List<AtomicBTreeColumns> partitions = new ArrayList<>(keys.size());
+                        start.await();
+                        try (OpOrder.Group group = order.start())
+                        {
+                            for (int i = 0; i < keys.size(); i++)
+                            {
+                                DecoratedKey key = keys.get((i + offset) % keys.size());
+                                AtomicBTreeColumns partition = partition();
+                                AtomicBTreeColumns existing = index.putIfAbsent(key, partition, group);
+                                partitions.add(existing == null ? partition : existing);
+                            }
+                        }
+                        return partitions;
+                    }
+                }));
+            }
+            start.countDown();
+
+            for (int t = 0; t < threads; t++)
+            {
+                List<AtomicBTreeColumns> partitions = futures.get(t).get(30, TimeUnit.SECONDS);
+                for (int i = 0; i < keys.size(); i++)
+                {
+                    AtomicBTreeColumns partition = index.get(keys.get((i + t * 100) % keys.size()));
+                    assertNotNull(partition);
+                    assertSame(partition, partitions.get(i));
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        MemtableIndex expected = skipListIndex();
+        putAll(expected, keys);
+        assertEquals(expected.size(), index.size());
+        assertEquals(expected.keySize(), index.keySize());
+        assertSameEntries(expected.iterator(), index.iterator());
+    }
+}